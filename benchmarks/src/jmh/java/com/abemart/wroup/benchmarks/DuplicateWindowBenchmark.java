@@ -0,0 +1,58 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.dedup.DuplicateWindow;
+import com.abemart.wroup.common.dedup.MessageIdSequence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Checks of the {@link DuplicateWindow} done for every data message received, with the messages
+ * of several senders interleaved as in a group, and the copies of messages already received.
+ */
+@State(Scope.Thread)
+public class DuplicateWindowBenchmark {
+
+    @Param({"8", "50", "500"})
+    public int senders;
+
+    private DuplicateWindow duplicateWindow;
+    private String[] senderMacs;
+    private MessageIdSequence[] sequences;
+    private long[] lastIds;
+    private int next;
+
+    @Setup
+    public void setup() {
+        duplicateWindow = new DuplicateWindow();
+        List<String> macs = Fixtures.macs(senders);
+        senderMacs = macs.toArray(new String[0]);
+        sequences = new MessageIdSequence[senders];
+        lastIds = new long[senders];
+        for (int i = 0; i < senders; i++) {
+            sequences[i] = new MessageIdSequence();
+            lastIds[i] = sequences[i].next();
+            duplicateWindow.accept(senderMacs[i], lastIds[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean acceptNew() {
+        int sender = next++ % senders;
+        lastIds[sender] = sequences[sender].next();
+        return duplicateWindow.accept(senderMacs[sender], lastIds[sender]);
+    }
+
+    @Benchmark
+    public boolean discardDuplicate() {
+        int sender = next++ % senders;
+        return duplicateWindow.accept(senderMacs[sender], lastIds[sender]);
+    }
+
+}
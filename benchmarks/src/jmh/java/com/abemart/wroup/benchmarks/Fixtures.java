@@ -0,0 +1,64 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Factory of the devices and messages shared by the benchmarks.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static WroupDevice device(int index) {
+        WroupDevice device = new WroupDevice();
+        device.setDeviceName("Android_" + Integer.toHexString(0x1000 + index));
+        device.setDeviceMac(mac(index));
+        device.setDeviceServerSocketIP("192.168.49." + (2 + index % 250));
+        device.setDeviceServerSocketPort(40000 + index);
+        device.setCustomName("Device " + index);
+        return device;
+    }
+
+    static List<WroupDevice> devices(int count) {
+        List<WroupDevice> devices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            devices.add(device(i));
+        }
+        return devices;
+    }
+
+    static List<String> macs(int count) {
+        List<String> macs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            macs.add(mac(i));
+        }
+        return macs;
+    }
+
+    static String mac(int index) {
+        return String.format("02:00:00:%02x:%02x:%02x", (index >> 16) & 0xff, (index >> 8) & 0xff, index & 0xff);
+    }
+
+    static String payload(int size) {
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    static MessageWrapper normalMessage(int payloadSize) {
+        MessageWrapper message = new MessageWrapper();
+        message.setMessageType(MessageWrapper.MessageType.NORMAL);
+        message.setMessage(payload(payloadSize));
+        message.setWroupDevice(device(0));
+        return message;
+    }
+
+}
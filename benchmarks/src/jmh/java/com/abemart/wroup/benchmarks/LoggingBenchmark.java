@@ -0,0 +1,67 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.logging.LogSink;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of the log of every message sent, which the send paths write at debug level. The eager
+ * concatenation builds the line even if it's discarded, while the facade checks the level first.
+ * With the debug level enabled the lines are written to a sink which consumes them, all of them or
+ * one of every 100 with the sampling.
+ */
+@State(Scope.Thread)
+public class LoggingBenchmark {
+
+    private static final String TAG = "LoggingBenchmark";
+
+    @Param({"INFO", "DEBUG", "DEBUG_SAMPLED"})
+    public String level;
+
+    private final MessageWrapper.MessageType messageType = MessageWrapper.MessageType.NORMAL;
+    private final String ip = "192.168.49.12";
+    private long frameSize = 1432;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        WroupLog.setSink(new LogSink() {
+            @Override
+            public void log(int messageLevel, String tag, String message, Throwable throwable) {
+                blackhole.consume(message);
+            }
+        });
+        WroupLog.setLevel("INFO".equals(level) ? WroupLog.INFO : WroupLog.DEBUG);
+        WroupLog.setSampleRate("DEBUG_SAMPLED".equals(level) ? 100 : 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        WroupLog.setLevel(WroupLog.INFO);
+        WroupLog.setSampleRate(1);
+    }
+
+    @Benchmark
+    public String eagerConcatenation() {
+        // The line which the send paths built before checking the level
+        frameSize++;
+        return "Sent " + messageType + " (" + frameSize + " bytes) to IP: " + ip;
+    }
+
+    @Benchmark
+    public void facade() {
+        frameSize++;
+        if (WroupLog.isSampled(WroupLog.DEBUG)) {
+            WroupLog.d(TAG, "Sent {} ({} bytes) to IP: {}", messageType, frameSize, ip);
+        }
+    }
+
+}
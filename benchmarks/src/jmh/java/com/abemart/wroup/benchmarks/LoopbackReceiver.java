@@ -0,0 +1,63 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.WroupDevice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal receiver listening in the loopback interface. It accepts a connection per message and
+ * reads it until the end of the stream, as the service and client server sockets do.
+ */
+final class LoopbackReceiver implements Runnable {
+
+    private final ServerSocket serverSocket;
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final Thread thread;
+
+    LoopbackReceiver() throws IOException {
+        serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        thread = new Thread(this, "loopback-receiver-" + serverSocket.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    WroupDevice asDevice(int index) {
+        WroupDevice device = Fixtures.device(index);
+        device.setDeviceServerSocketIP(serverSocket.getInetAddress().getHostAddress());
+        device.setDeviceServerSocketPort(serverSocket.getLocalPort());
+        return device;
+    }
+
+    long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[8192];
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                InputStream inputStream = socket.getInputStream();
+                while (inputStream.read(buffer) != -1) {
+                    // Drain the message
+                }
+                socket.close();
+                messagesReceived.incrementAndGet();
+            } catch (IOException e) {
+                // Closed by close()
+            }
+        }
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.WroupDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Equality, hashing and lookups of {@link WroupDevice} in the membership map, which is keyed by
+ * the device MAC address in both the service and the clients.
+ */
+@State(Scope.Thread)
+public class MembershipBenchmark {
+
+    @Param({"8", "50", "200"})
+    public int groupSize;
+
+    private List<WroupDevice> devices;
+    private Map<String, WroupDevice> clientsConnected;
+
+    private WroupDevice device;
+    private WroupDevice equalDevice;
+    private String presentMac;
+    private String absentMac;
+
+    @Setup
+    public void setup() {
+        devices = Fixtures.devices(groupSize);
+        clientsConnected = new HashMap<>();
+        for (WroupDevice wroupDevice : devices) {
+            clientsConnected.put(wroupDevice.getDeviceMac(), wroupDevice);
+        }
+
+        device = devices.get(groupSize / 2);
+        equalDevice = Fixtures.device(groupSize / 2);
+
+        // Fresh String instances so the lookups really hash and compare the characters
+        presentMac = new String(Fixtures.mac(groupSize - 1));
+        absentMac = new String(Fixtures.mac(groupSize + 1));
+    }
+
+    @Benchmark
+    public boolean deviceEquals() {
+        return device.equals(equalDevice);
+    }
+
+    @Benchmark
+    public int deviceHashCode() {
+        return equalDevice.hashCode();
+    }
+
+    @Benchmark
+    public WroupDevice lookupPresent() {
+        return clientsConnected.get(presentMac);
+    }
+
+    @Benchmark
+    public WroupDevice lookupAbsent() {
+        return clientsConnected.get(absentMac);
+    }
+
+    @Benchmark
+    public boolean listContains() {
+        // WroupClient keeps the discovered services in a List and checks it with contains()
+        return devices.contains(equalDevice);
+    }
+
+    @Benchmark
+    public int fanOutExcludingSender() {
+        // The service iterates all the members comparing MACs when it notifies a new connection
+        int recipients = 0;
+        String senderMac = device.getDeviceMac();
+        for (WroupDevice wroupDevice : clientsConnected.values()) {
+            if (!senderMac.equals(wroupDevice.getDeviceMac())) {
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+
+}
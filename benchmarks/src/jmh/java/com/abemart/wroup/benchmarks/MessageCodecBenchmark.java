@@ -0,0 +1,154 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.DisconnectionMessageContent;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.RegisteredDevicesMessageContent;
+import com.abemart.wroup.common.messages.RegistrationMessageContent;
+import com.abemart.wroup.common.transport.BufferPool;
+import com.abemart.wroup.common.transport.ByteBufferWriter;
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding and decoding of the messages exchanged by the group, done in the same way that the
+ * service and the clients do it: the content is serialized to JSON and wrapped as the String
+ * message of a {@link MessageWrapper}, which is serialized again. The pooled variant encodes the
+ * header of a message frame as the {@link com.abemart.wroup.common.transport.MessageSender} does.
+ */
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"1", "10", "50"})
+    public int groupSize;
+
+    private final BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT_MAX_POOLED_BUFFERS, true);
+
+    private MessageWrapper normalMessage;
+    private String normalJson;
+
+    private WroupDevice device;
+    private String registrationJson;
+    private String disconnectionJson;
+
+    private RegisteredDevicesMessageContent registeredDevicesContent;
+    private String registeredDevicesJson;
+
+    @Setup
+    public void setup() {
+        Gson gson = new Gson();
+
+        normalMessage = Fixtures.normalMessage(payloadSize);
+        normalJson = gson.toJson(normalMessage);
+
+        device = Fixtures.device(1);
+        registrationJson = gson.toJson(registrationMessage(gson, device));
+        disconnectionJson = gson.toJson(disconnectionMessage(gson, device));
+
+        registeredDevicesContent = new RegisteredDevicesMessageContent();
+        registeredDevicesContent.setDevicesRegistered(Fixtures.devices(groupSize));
+        registeredDevicesJson = gson.toJson(registeredDevicesMessage(gson, registeredDevicesContent));
+    }
+
+    @Benchmark
+    public byte[] encodeNormal() {
+        Gson gson = new Gson();
+        return gson.toJson(normalMessage).getBytes();
+    }
+
+    @Benchmark
+    public int encodeNormalPooled() throws IOException {
+        ByteBufferWriter writer = new ByteBufferWriter(bufferPool);
+        MessageCodec.encodeMessage(normalMessage, writer);
+        ByteBuffer buffer = writer.getBuffer();
+        int size = buffer.remaining();
+        bufferPool.release(buffer);
+        return size;
+    }
+
+    @Benchmark
+    public MessageWrapper decodeNormal() {
+        Gson gson = new Gson();
+        return gson.fromJson(normalJson, MessageWrapper.class);
+    }
+
+    @Benchmark
+    public byte[] encodeRegistration() {
+        Gson gson = new Gson();
+        return gson.toJson(registrationMessage(gson, device)).getBytes();
+    }
+
+    @Benchmark
+    public WroupDevice decodeRegistration() {
+        Gson gson = new Gson();
+        MessageWrapper messageWrapper = gson.fromJson(registrationJson, MessageWrapper.class);
+        return gson.fromJson(messageWrapper.getMessage(), RegistrationMessageContent.class).getWroupDevice();
+    }
+
+    @Benchmark
+    public byte[] encodeDisconnection() {
+        Gson gson = new Gson();
+        return gson.toJson(disconnectionMessage(gson, device)).getBytes();
+    }
+
+    @Benchmark
+    public WroupDevice decodeDisconnection() {
+        Gson gson = new Gson();
+        MessageWrapper messageWrapper = gson.fromJson(disconnectionJson, MessageWrapper.class);
+        return gson.fromJson(messageWrapper.getMessage(), DisconnectionMessageContent.class).getWroupDevice();
+    }
+
+    @Benchmark
+    public byte[] encodeRegisteredDevices() {
+        Gson gson = new Gson();
+        return gson.toJson(registeredDevicesMessage(gson, registeredDevicesContent)).getBytes();
+    }
+
+    @Benchmark
+    public RegisteredDevicesMessageContent decodeRegisteredDevices() {
+        Gson gson = new Gson();
+        MessageWrapper messageWrapper = gson.fromJson(registeredDevicesJson, MessageWrapper.class);
+        return gson.fromJson(messageWrapper.getMessage(), RegisteredDevicesMessageContent.class);
+    }
+
+    private static MessageWrapper registrationMessage(Gson gson, WroupDevice device) {
+        RegistrationMessageContent content = new RegistrationMessageContent();
+        content.setWroupDevice(device);
+
+        MessageWrapper messageWrapper = new MessageWrapper();
+        messageWrapper.setMessageType(MessageWrapper.MessageType.CONNECTION_MESSAGE);
+        messageWrapper.setMessage(gson.toJson(content));
+        return messageWrapper;
+    }
+
+    private static MessageWrapper disconnectionMessage(Gson gson, WroupDevice device) {
+        DisconnectionMessageContent content = new DisconnectionMessageContent();
+        content.setWroupDevice(device);
+
+        MessageWrapper messageWrapper = new MessageWrapper();
+        messageWrapper.setMessageType(MessageWrapper.MessageType.DISCONNECTION_MESSAGE);
+        messageWrapper.setMessage(gson.toJson(content));
+        return messageWrapper;
+    }
+
+    private static MessageWrapper registeredDevicesMessage(Gson gson, RegisteredDevicesMessageContent content) {
+        MessageWrapper messageWrapper = new MessageWrapper();
+        messageWrapper.setMessageType(MessageWrapper.MessageType.REGISTERED_DEVICES);
+        messageWrapper.setMessage(gson.toJson(content));
+        return messageWrapper;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.OutboxAckMessageContent;
+import com.abemart.wroup.common.outbox.Outbox;
+import com.abemart.wroup.common.outbox.OutboxStamp;
+import com.abemart.wroup.common.outbox.OutboxTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Appends to the durable {@link Outbox} of a connected device. Every message appended is sent and
+ * they are acknowledged in batches, as the receiver would do, so the segments acknowledged are
+ * deleted and the disk used by the benchmark stays bounded.
+ */
+@State(Scope.Thread)
+public class OutboxBenchmark {
+
+    private static final int ACK_BATCH = 64;
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private File directory;
+    private Outbox outbox;
+    private WroupDevice device;
+    private MessageWrapper message;
+    private OutboxStamp lastStamp;
+    private final OutboxAckMessageContent ack = new OutboxAckMessageContent();
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("wroup-outbox").toFile();
+        OutboxTransport transport = new OutboxTransport() {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                lastStamp = message.getOutboxStamp();
+            }
+        };
+        outbox = new Outbox(directory, transport);
+
+        device = Fixtures.device(1);
+
+        message = Fixtures.normalMessage(64);
+        message.setPayload(ByteBuffer.allocateDirect(payloadSize));
+    }
+
+    @TearDown
+    public void tearDown() {
+        outbox.close();
+        delete(directory);
+    }
+
+    @Benchmark
+    public void append() {
+        outbox.send(device, message);
+        if (lastStamp != null && lastStamp.getSequence() % ACK_BATCH == 0) {
+            ack.setEpoch(lastStamp.getEpoch());
+            ack.setSequence(lastStamp.getSequence());
+            outbox.onAcknowledgement(device.getDeviceMac(), ack);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.throttling.RateLimiter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Rate limit checks done by the group owner for every data message received and relayed, with
+ * the messages of several clients interleaved. With a rate of 0 the limiter is disabled, which is
+ * the cost added to the groups which don't use it.
+ */
+@State(Scope.Thread)
+public class RateLimiterBenchmark {
+
+    @Param({"8", "50"})
+    public int clients;
+
+    @Param({"0", "1000000"})
+    public int messagesPerSecond;
+
+    private RateLimiter rateLimiter;
+    private String[] clientMacs;
+    private int next;
+
+    @Setup
+    public void setup() {
+        rateLimiter = new RateLimiter();
+        if (messagesPerSecond > 0) {
+            rateLimiter.setLimit(messagesPerSecond, messagesPerSecond);
+        }
+        List<String> macs = Fixtures.macs(clients);
+        clientMacs = macs.toArray(new String[0]);
+    }
+
+    @Benchmark
+    public boolean tryAcquire() {
+        return rateLimiter.tryAcquire(nextClient(), 1);
+    }
+
+    @Benchmark
+    public long reserve() {
+        return rateLimiter.reserve(nextClient(), 1);
+    }
+
+    private String nextClient() {
+        next = next + 1 < clients ? next + 1 : 0;
+        return clientMacs[next];
+    }
+
+}
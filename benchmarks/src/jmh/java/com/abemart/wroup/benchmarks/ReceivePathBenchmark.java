@@ -0,0 +1,81 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.RegistrationMessageContent;
+import com.abemart.wroup.common.transport.MessageReader;
+import com.google.gson.Gson;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Receive path of a message from the bytes of the connection to the decoded message: the previous
+ * one, which read the whole message into a String and created a <code>Gson</code> per message,
+ * and the {@link MessageReader} one, which decodes from a pooled buffer.
+ * <p>
+ * Run it with the GC profiler to compare the bytes allocated per message:
+ * <code>gradle jmh -PjmhIncludes=ReceivePathBenchmark -PjmhProfilers=gc</code>
+ */
+@State(Scope.Thread)
+public class ReceivePathBenchmark {
+
+    @Param({"CONNECTION_MESSAGE", "NORMAL"})
+    public String messageType;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private final MessageReader messageReader = new MessageReader();
+
+    private byte[] messageBytes;
+
+    @Setup
+    public void setup() {
+        Gson gson = new Gson();
+
+        MessageWrapper messageWrapper;
+        if (MessageWrapper.MessageType.NORMAL.name().equals(messageType)) {
+            messageWrapper = Fixtures.normalMessage(payloadSize);
+        } else {
+            RegistrationMessageContent content = new RegistrationMessageContent();
+            content.setWroupDevice(Fixtures.device(1));
+
+            messageWrapper = new MessageWrapper();
+            messageWrapper.setMessageType(MessageWrapper.MessageType.CONNECTION_MESSAGE);
+            messageWrapper.setMessage(gson.toJson(content));
+        }
+        messageBytes = gson.toJson(messageWrapper).getBytes();
+    }
+
+    @Benchmark
+    public MessageWrapper stringReceive() throws IOException {
+        byte[] bytesReceived = IOUtils.toByteArray(new ByteArrayInputStream(messageBytes));
+        String dataReceived = new String(bytesReceived);
+        Gson gson = new Gson();
+        return gson.fromJson(dataReceived, MessageWrapper.class);
+    }
+
+    @Benchmark
+    public MessageWrapper pooledReceive() throws IOException {
+        return messageReader.read(new ByteArrayInputStream(messageBytes));
+    }
+
+    @Benchmark
+    public Object pooledReceiveWithContent() throws IOException {
+        MessageWrapper messageWrapper = messageReader.read(new ByteArrayInputStream(messageBytes));
+        if (MessageWrapper.MessageType.NORMAL.equals(messageWrapper.getMessageType())) {
+            return messageWrapper;
+        }
+        return MessageCodec.GSON.fromJson(messageWrapper.getMessage(), RegistrationMessageContent.class);
+    }
+
+}
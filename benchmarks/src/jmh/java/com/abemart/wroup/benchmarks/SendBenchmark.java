@@ -0,0 +1,120 @@
+package com.abemart.wroup.benchmarks;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.transport.EncodedMessage;
+import com.abemart.wroup.common.transport.MessageSender;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Send and broadcast paths over loopback sockets using the library {@link MessageSender}.
+ * <p>
+ * The broadcast benchmarks reproduce the fan-out of <code>sendMessageToAllClients</code>: one send
+ * per member, either sequentially or submitted to a thread pool like the AsyncTask executor does.
+ * The shared variant encodes the header once for all the members, as the group owner does.
+ */
+@State(Scope.Benchmark)
+public class SendBenchmark {
+
+    @Param({"64", "16384"})
+    public int payloadSize;
+
+    @Param({"4", "16"})
+    public int groupSize;
+
+    private MessageSender messageSender;
+    private MessageWrapper message;
+    private MessageWrapper payloadMessage;
+
+    private List<LoopbackReceiver> receivers;
+    private List<WroupDevice> devices;
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() throws IOException {
+        executor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        messageSender = new MessageSender(executor);
+        message = Fixtures.normalMessage(payloadSize);
+        payloadMessage = Fixtures.normalMessage(0);
+        payloadMessage.setPayload(ByteBuffer.allocateDirect(payloadSize));
+
+        receivers = new ArrayList<>(groupSize);
+        devices = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            LoopbackReceiver receiver = new LoopbackReceiver();
+            receivers.add(receiver);
+            devices.add(receiver.asDevice(i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        for (LoopbackReceiver receiver : receivers) {
+            receiver.close();
+        }
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+        messageSender.send(devices.get(0), message);
+    }
+
+    @Benchmark
+    public void broadcastSequential() throws IOException {
+        for (WroupDevice device : devices) {
+            messageSender.send(device, message);
+        }
+    }
+
+    @Benchmark
+    public void sendBinaryPayload() throws IOException {
+        messageSender.send(devices.get(0), payloadMessage);
+    }
+
+    @Benchmark
+    public void broadcastSequentialShared() throws IOException {
+        EncodedMessage encodedMessage = messageSender.prepare(message, devices.size());
+        for (WroupDevice device : devices) {
+            try {
+                messageSender.send(device, encodedMessage, null);
+            } finally {
+                encodedMessage.release();
+            }
+        }
+    }
+
+    @Benchmark
+    public void broadcastParallel() throws Exception {
+        List<Future<?>> futures = new ArrayList<>(devices.size());
+        for (final WroupDevice device : devices) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    messageSender.send(device, message);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+}
@@ -0,0 +1,13 @@
+package android.net.wifi.p2p;
+
+/**
+ * Host shim of the Android <code>WifiP2pDevice</code> class used to run the library code in a
+ * plain JVM.
+ */
+public class WifiP2pDevice {
+
+    public String deviceName = "";
+
+    public String deviceAddress = "";
+
+}
@@ -0,0 +1,597 @@
+package com.abemart.wroup.simulator;
+
+
+import com.abemart.wroup.common.history.HistoryRequest;
+import com.abemart.wroup.common.metrics.MetricsSnapshot;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load simulator of a Wroup group.
+ * <p>
+ * It starts a real group owner and N clients in the loopback interface of this host, all of them
+ * speaking the real registration protocol, and runs scripted scenarios over them:
+ * <ul>
+ * <li>join-storm: all the clients join at the same time.</li>
+ * <li>steady-chat: every client broadcasts small messages at a constant rate.</li>
+ * <li>large-payloads: a few clients broadcast large messages.</li>
+ * <li>churn: clients leave and join again while the rest keep chatting.</li>
+ * <li>pub-sub: every client subscribes to one of several topics and publishes in random topics
+ * at the chat rate, so every message only reaches the subscribers of its topic.</li>
+ * <li>mixed-traffic: one client broadcasts large binary payloads while all the clients chat, so
+ * the latency of the chat messages shows how much they are delayed by the bulk transfers.</li>
+ * <li>rpc: every client calls a method of the group owner at the chat rate, and the round trip
+ * of every call is measured.</li>
+ * <li>multi-group: several groups are connected in a chain by bridges, and every client sends
+ * messages at the chat rate to random clients of the other groups, which are routed through the
+ * group owners and the bridges.</li>
+ * <li>replicated-state: every client writes its register of the replicated store at the chat
+ * rate, and at the end a new client joins and synchronizes the whole store.</li>
+ * <li>offline-outbox: every client sends messages at the chat rate to random clients through its
+ * durable outbox while clients leave and join again, and at the end all the clients join, so the
+ * messages sent to the clients which were out of the group are delivered.</li>
+ * <li>flooding-client: all the clients are subscribed to a topic and publish in it at the chat
+ * rate, while the first one also floods it at the flood rate. The group owner limits the rate of
+ * every client, so the latency of the chat messages shows how much the flood delays them. Running
+ * it with <code>--client-limit 0</code> shows the latency without limits.</li>
+ * <li>late-joiner: every client broadcasts at the chat rate with the history of the group owner
+ * enabled, and in the middle of the chat a new client joins asking for the last messages, so the
+ * latency of the chat shows how much the catch-up delays the group.</li>
+ * <li>total-order: like steady-chat, but the group owner stamps every message with a sequence
+ * number and every device, including the sender, delivers them in the same order, so comparing it
+ * with steady-chat shows the cost of the order. The devices which deliver a message out of order
+ * are counted.</li>
+ * </ul>
+ * For every scenario it reports the throughput, the end-to-end latency percentiles, the control
+ * messages received and the memory used.
+ */
+public final class GroupSimulator {
+
+    private static final List<String> SCENARIOS = Arrays.asList("join-storm", "steady-chat", "large-payloads", "churn", "pub-sub", "mixed-traffic", "rpc", "multi-group", "replicated-state", "offline-outbox", "flooding-client", "late-joiner", "total-order");
+
+    private static final String CHAT_TOPIC = "sim/chat";
+
+    /**
+     * Number of messages of the history which the late client asks for.
+     */
+    private static final int LATE_JOINER_HISTORY = 200;
+
+    private final SimulatorConfig config;
+    private final Random random = new Random(42);
+
+    private GroupSimulator(SimulatorConfig config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimulatorConfig config;
+        try {
+            config = SimulatorConfig.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println(SimulatorConfig.usage());
+            System.exit(1);
+            return;
+        }
+
+        List<String> scenarios = "all".equals(config.scenario) ? SCENARIOS : Arrays.asList(config.scenario.split(","));
+        GroupSimulator simulator = new GroupSimulator(config);
+        List<ScenarioReport> reports = new ArrayList<>();
+        for (String scenario : scenarios) {
+            if (!SCENARIOS.contains(scenario)) {
+                System.err.println("Unknown scenario: " + scenario);
+                System.err.println(SimulatorConfig.usage());
+                System.exit(1);
+            }
+            ScenarioReport report = simulator.run(scenario);
+            System.out.println(report.format());
+            reports.add(report);
+        }
+
+        if (config.jsonFile != null) {
+            Writer writer = new FileWriter(config.jsonFile);
+            try {
+                new GsonBuilder().setPrettyPrinting().create().toJson(reports, writer);
+            } finally {
+                writer.close();
+            }
+            System.out.println("Results saved to " + config.jsonFile);
+        }
+
+        System.exit(0);
+    }
+
+    private ScenarioReport run(String scenario) throws Exception {
+        System.gc();
+
+        final SimulationStats stats = new SimulationStats();
+        long heapBefore = stats.currentHeapBytes();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                stats.sampleResources();
+            }
+        }, 0, 50, TimeUnit.MILLISECONDS);
+
+        boolean multiGroup = "multi-group".equals(scenario);
+        List<SimulatedGroup> groups = new ArrayList<>();
+        for (int i = 0; i < (multiGroup ? Math.max(2, config.groups) : 1); i++) {
+            SimulatedGroup newGroup = new SimulatedGroup(i, config, stats);
+            newGroup.start();
+            groups.add(newGroup);
+        }
+        SimulatedGroup group = groups.get(0);
+        if ("pub-sub".equals(scenario)) {
+            List<SimulatedClient> clients = group.getClients();
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).setSubscription(topic(i % config.topics));
+            }
+        }
+        File outboxDirectory = null;
+        if ("offline-outbox".equals(scenario)) {
+            outboxDirectory = Files.createTempDirectory("wroup-outbox").toFile();
+            List<SimulatedClient> clients = group.getClients();
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).setOutboxDirectory(new File(outboxDirectory, "client-" + i));
+            }
+        }
+
+        if ("flooding-client".equals(scenario)) {
+            for (SimulatedClient client : group.getClients()) {
+                client.setSubscription(CHAT_TOPIC);
+            }
+            group.setClientRateLimit(config.clientRateLimit);
+        }
+        if ("late-joiner".equals(scenario)) {
+            group.enableHistory();
+        }
+        if ("total-order".equals(scenario)) {
+            group.enableTotalOrder();
+        }
+
+        long start = System.currentTimeMillis();
+        for (SimulatedGroup joiningGroup : groups) {
+            joiningGroup.joinAll();
+        }
+        List<SimulatedBridge> bridges = connect(groups, stats);
+        boolean converged = awaitConverged(groups, TimeUnit.SECONDS.toMillis(config.timeoutSeconds));
+        long convergenceMillis = System.currentTimeMillis() - start;
+
+        long elapsed = convergenceMillis;
+        if (converged) {
+            // The join storm is measured from the first join, the rest of the scenarios after it
+            stats.getLatencies().reset();
+            start = System.currentTimeMillis();
+            if ("steady-chat".equals(scenario) || "total-order".equals(scenario)) {
+                chat(group, config.payloadBytes, config.durationSeconds, false, null);
+            } else if ("large-payloads".equals(scenario)) {
+                largePayloads(group);
+            } else if ("churn".equals(scenario)) {
+                chat(group, config.payloadBytes, config.durationSeconds, true, null);
+            } else if ("pub-sub".equals(scenario)) {
+                publishSubscribe(group);
+            } else if ("mixed-traffic".equals(scenario)) {
+                ByteBuffer bulkPayload = ByteBuffer.allocateDirect(config.largePayloadBytes).asReadOnlyBuffer();
+                chat(group, config.payloadBytes, config.durationSeconds, false, bulkPayload);
+            } else if ("rpc".equals(scenario)) {
+                callOwner(group);
+            } else if (multiGroup) {
+                chatBetweenGroups(groups);
+            } else if ("replicated-state".equals(scenario)) {
+                writeState(group, stats);
+            } else if ("offline-outbox".equals(scenario)) {
+                chatThroughOutboxes(group);
+            } else if ("flooding-client".equals(scenario)) {
+                chatWithFlood(group);
+            } else if ("late-joiner".equals(scenario)) {
+                chatWithLateJoiner(group, stats);
+            }
+            long lastDelivery = group.awaitDeliveries(TimeUnit.SECONDS.toMillis(config.timeoutSeconds));
+            if (!"join-storm".equals(scenario)) {
+                elapsed = lastDelivery - start;
+            }
+        }
+
+        sampler.shutdownNow();
+        stats.sampleResources();
+        ScenarioReport report = ScenarioReport.from(scenario, config, stats, converged, convergenceMillis, elapsed, heapBefore);
+        MetricsSnapshot ownerMetrics = group.ownerMetrics();
+        report.messagesThrottled = ownerMetrics.getMessagesThrottled();
+        report.relaysThrottled = ownerMetrics.getRelaysThrottled();
+        for (SimulatedBridge bridge : bridges) {
+            bridge.close();
+        }
+        for (SimulatedGroup closingGroup : groups) {
+            closingGroup.close();
+        }
+        if (outboxDirectory != null) {
+            delete(outboxDirectory);
+        }
+        return report;
+    }
+
+    /**
+     * Connect every group with the next one through a bridge, forming a chain.
+     */
+    private List<SimulatedBridge> connect(List<SimulatedGroup> groups, SimulationStats stats) throws IOException {
+        List<SimulatedBridge> bridges = new ArrayList<>();
+        for (int i = 0; i + 1 < groups.size(); i++) {
+            SimulatedBridge bridge = new SimulatedBridge(i, groups.get(i), groups.get(i + 1), config, stats);
+            groups.get(i).addBridge();
+            groups.get(i + 1).addBridge();
+            bridge.join();
+            bridges.add(bridge);
+        }
+        return bridges;
+    }
+
+    /**
+     * Wait until every group has converged and every group owner has a route to the clients of
+     * the other groups.
+     *
+     * @return true if all the groups converged before the timeout.
+     */
+    private static boolean awaitConverged(List<SimulatedGroup> groups, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            if (isConverged(groups)) {
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        return false;
+    }
+
+    private static boolean isConverged(List<SimulatedGroup> groups) {
+        for (SimulatedGroup group : groups) {
+            if (!group.isConverged()) {
+                return false;
+            }
+            for (SimulatedGroup otherGroup : groups) {
+                if (otherGroup != group && !group.hasRoutes(deviceMacs(otherGroup.getClients()))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static List<String> deviceMacs(List<SimulatedClient> clients) {
+        List<String> deviceMacs = new ArrayList<>();
+        for (SimulatedClient client : clients) {
+            deviceMacs.add(client.getDeviceMac());
+        }
+        return deviceMacs;
+    }
+
+    /**
+     * Every joined client broadcasts at the configured rate during the duration of the scenario.
+     * With churn enabled, a random client leaves or joins again in every churn interval. With a
+     * bulk payload, the first client also broadcasts it in every period. The bulk messages aren't
+     * counted as deliveries, only the chat messages.
+     */
+    private void chat(SimulatedGroup group, int payloadBytes, int durationSeconds, boolean churn, ByteBuffer bulkPayload) throws Exception {
+        String payload = payload(payloadBytes);
+        List<SimulatedClient> clients = group.getClients();
+
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.messagesPerSecond);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextChurn = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.churnIntervalMillis);
+        long next = System.nanoTime();
+
+        while (System.nanoTime() < end) {
+            if (bulkPayload != null) {
+                clients.get(0).broadcastBulk(bulkPayload);
+            }
+            for (SimulatedClient client : clients) {
+                client.broadcast(payload);
+            }
+
+            if (churn && System.nanoTime() >= nextChurn) {
+                SimulatedClient client = clients.get(random.nextInt(clients.size()));
+                if (client.isJoined()) {
+                    client.leave();
+                } else {
+                    client.join();
+                }
+                nextChurn += TimeUnit.MILLISECONDS.toNanos(config.churnIntervalMillis);
+            }
+
+            next += periodNanos;
+            long sleepNanos = next - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+    }
+
+    /**
+     * Every client publishes at the configured rate in a random topic during the duration of the
+     * scenario. Only the subscribers of the topic, except the publisher, receive the message.
+     */
+    private void publishSubscribe(SimulatedGroup group) throws InterruptedException {
+        String payload = payload(config.payloadBytes);
+        List<SimulatedClient> clients = group.getClients();
+
+        Map<String, Integer> subscribers = new HashMap<>();
+        for (SimulatedClient client : clients) {
+            Integer count = subscribers.get(client.getSubscription());
+            subscribers.put(client.getSubscription(), count == null ? 1 : count + 1);
+        }
+
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.messagesPerSecond);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        long next = System.nanoTime();
+
+        while (System.nanoTime() < end) {
+            for (SimulatedClient client : clients) {
+                String topic = topic(random.nextInt(config.topics));
+                Integer count = subscribers.get(topic);
+                int recipients = (count != null ? count : 0) - (topic.equals(client.getSubscription()) ? 1 : 0);
+                client.publish(topic, payload, recipients);
+            }
+
+            next += periodNanos;
+            long sleepNanos = next - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+    }
+
+    /**
+     * Every client publishes in the chat topic at the configured rate during the duration of the
+     * scenario, and the first one also publishes the flood messages, which aren't counted as
+     * deliveries. The flood is published in bursts of one period of the chat.
+     */
+    private void chatWithFlood(SimulatedGroup group) throws InterruptedException {
+        String payload = payload(config.payloadBytes);
+        String floodPayload = "flood" + payload;
+        List<SimulatedClient> clients = group.getClients();
+        SimulatedClient flooder = clients.get(0);
+
+        int messagesPerSecond = Math.max(1, config.messagesPerSecond);
+        int floodBurst = Math.max(1, config.floodRate / messagesPerSecond);
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        long next = System.nanoTime();
+
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < floodBurst; i++) {
+                flooder.publishUncounted(CHAT_TOPIC, floodPayload);
+            }
+            for (SimulatedClient client : clients) {
+                if (client != flooder) {
+                    client.publish(CHAT_TOPIC, payload, clients.size() - 1);
+                }
+            }
+
+            next += periodNanos;
+            long sleepNanos = next - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+    }
+
+    /**
+     * Every client calls the echo method of the group owner at the configured rate during the
+     * duration of the scenario. Every response is a delivery.
+     */
+    private void callOwner(SimulatedGroup group) throws InterruptedException {
+        String payload = payload(config.payloadBytes);
+        List<SimulatedClient> clients = group.getClients();
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(config.timeoutSeconds);
+
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.messagesPerSecond);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        long next = System.nanoTime();
+
+        while (System.nanoTime() < end) {
+            for (SimulatedClient client : clients) {
+                client.callOwner(payload, timeoutMillis);
+            }
+
+            next += periodNanos;
+            long sleepNanos = next - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+    }
+
+    /**
+     * Every client sends messages at the configured rate to a random client of another group
+     * during the duration of the scenario.
+     */
+    private void chatBetweenGroups(List<SimulatedGroup> groups) throws InterruptedException {
+        String payload = payload(config.payloadBytes);
+
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.messagesPerSecond);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        long next = System.nanoTime();
+
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < groups.size(); i++) {
+                for (SimulatedClient client : groups.get(i).getClients()) {
+                    // A random group different from the one of the client
+                    int otherGroup = (i + 1 + random.nextInt(groups.size() - 1)) % groups.size();
+                    List<SimulatedClient> receivers = groups.get(otherGroup).getClients();
+                    client.sendRouted(receivers.get(random.nextInt(receivers.size())).getDeviceMac(), payload);
+                }
+            }
+
+            next += periodNanos;
+            long sleepNanos = next - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+    }
+
+    /**
+     * Every client writes its register at the configured rate during the duration of the
+     * scenario, then a new client joins and the time until its store is equal to the one of the
+     * group owner is recorded.
+     */
+    private void writeState(SimulatedGroup group, SimulationStats stats) throws Exception {
+        String payload = payload(config.payloadBytes);
+        List<SimulatedClient> clients = group.getClients();
+
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.messagesPerSecond);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        long next = System.nanoTime();
+
+        while (System.nanoTime() < end) {
+            for (SimulatedClient client : clients) {
+                client.putState(payload);
+            }
+
+            next += periodNanos;
+            long sleepNanos = next - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+
+        group.awaitDeliveries(TimeUnit.SECONDS.toMillis(config.timeoutSeconds));
+        SimulatedClient lateClient = group.addClient();
+        lateClient.setObserver(true);
+        long start = System.currentTimeMillis();
+        long deadline = start + TimeUnit.SECONDS.toMillis(config.timeoutSeconds);
+        lateClient.join();
+        while (lateClient.stateHash() != group.stateHash() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        if (lateClient.stateHash() == group.stateHash()) {
+            stats.setStateSync(System.currentTimeMillis() - start, lateClient.stateKeys());
+        }
+    }
+
+    /**
+     * Every client broadcasts at the configured rate during the duration of the scenario, and in
+     * the middle of it a new client joins asking for the last messages of the history. The new
+     * client isn't one of the clients of the group, so it doesn't send messages, and it leaves at
+     * the end.
+     */
+    private void chatWithLateJoiner(SimulatedGroup group, SimulationStats stats) throws Exception {
+        final SimulatedClient lateClient = new SimulatedClient(config.clients, group.getServiceDevice(),
+                config.newDeviceExecutor(stats), stats);
+        lateClient.setHistoryRequest(HistoryRequest.lastMessages(LATE_JOINER_HISTORY));
+        final long joinDelayMillis = TimeUnit.SECONDS.toMillis(config.durationSeconds) / 2;
+        Thread joiner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(joinDelayMillis);
+                    lateClient.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    System.err.println("The late client couldn't join: " + e.getMessage());
+                }
+            }
+        }, "sim-late-joiner");
+        joiner.start();
+
+        chat(group, config.payloadBytes, config.durationSeconds, false, null);
+        joiner.join();
+        group.awaitDeliveries(TimeUnit.SECONDS.toMillis(config.timeoutSeconds));
+        lateClient.leave();
+    }
+
+    /**
+     * Every joined client sends messages at the configured rate to random clients of the group
+     * during the duration of the scenario, while a random client leaves or joins again in every
+     * churn interval. Then all the clients join, so the outboxes send the messages which their
+     * receivers haven't acknowledged.
+     */
+    private void chatThroughOutboxes(SimulatedGroup group) throws Exception {
+        String payload = payload(config.payloadBytes);
+        List<SimulatedClient> clients = group.getClients();
+
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.messagesPerSecond);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        long nextChurn = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.churnIntervalMillis);
+        long next = System.nanoTime();
+
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < clients.size(); i++) {
+                // A random client different from the sender
+                int receiver = (i + 1 + random.nextInt(clients.size() - 1)) % clients.size();
+                clients.get(i).sendDirect(clients.get(receiver).getDeviceMac(), payload);
+            }
+
+            if (System.nanoTime() >= nextChurn) {
+                SimulatedClient client = clients.get(random.nextInt(clients.size()));
+                if (client.isJoined()) {
+                    client.leave();
+                } else {
+                    client.join();
+                }
+                nextChurn += TimeUnit.MILLISECONDS.toNanos(config.churnIntervalMillis);
+            }
+
+            next += periodNanos;
+            long sleepNanos = next - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+
+        for (SimulatedClient client : clients) {
+            if (!client.isJoined()) {
+                client.join();
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String topic(int index) {
+        return "sim/topic-" + index;
+    }
+
+    private void largePayloads(SimulatedGroup group) {
+        String payload = payload(config.largePayloadBytes);
+        List<SimulatedClient> clients = group.getClients();
+        int senders = Math.min(config.largePayloadSenders, clients.size());
+
+        for (int i = 0; i < config.largePayloadMessages; i++) {
+            for (int sender = 0; sender < senders; sender++) {
+                clients.get(sender).broadcast(payload);
+            }
+        }
+    }
+
+    private static String payload(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+}
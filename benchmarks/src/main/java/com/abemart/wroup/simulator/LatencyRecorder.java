@@ -0,0 +1,48 @@
+package com.abemart.wroup.simulator;
+
+
+import java.util.Arrays;
+
+/**
+ * Records latency samples in microseconds and computes their percentiles.
+ */
+final class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+    private int count;
+
+    synchronized void record(long micros) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = micros;
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    /**
+     * @return the p50, p90, p99, p99.9 and max values, or zeros if there are no samples.
+     */
+    synchronized long[] percentiles() {
+        if (count == 0) {
+            return new long[5];
+        }
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return new long[]{
+                sorted[index(0.50)], sorted[index(0.90)], sorted[index(0.99)], sorted[index(0.999)], sorted[count - 1]
+        };
+    }
+
+    synchronized void reset() {
+        count = 0;
+    }
+
+    private int index(double percentile) {
+        return Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+    }
+
+}
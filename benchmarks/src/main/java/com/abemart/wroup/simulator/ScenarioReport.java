@@ -0,0 +1,138 @@
+package com.abemart.wroup.simulator;
+
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Results of one scenario. It's serialized as JSON when the simulator is run with --json.
+ */
+final class ScenarioReport {
+
+    String scenario;
+    int clients;
+    boolean converged;
+    long convergenceMillis;
+    long elapsedMillis;
+
+    long broadcastsSent;
+    long deliveriesExpected;
+    long deliveries;
+    double deliveriesPerSecond;
+    double megabytesPerSecond;
+
+    long latencyP50Micros;
+    long latencyP90Micros;
+    long latencyP99Micros;
+    long latencyP999Micros;
+    long latencyMaxMicros;
+
+    Map<String, Long> messagesReceived = new LinkedHashMap<>();
+    long rejectedSends;
+    long receiveLoopFailures;
+    long rpcErrors;
+    long messagesThrottled;
+    long relaysThrottled;
+    long leaves;
+    long gracefulLeaves;
+    double leaveAverageMillis;
+    long stateSyncMillis;
+    int stateSyncKeys;
+    long catchUpMillis;
+    int catchUpMessages;
+    long orderedDeliveries;
+    long orderViolations;
+
+    long heapBeforeBytes;
+    long heapPeakBytes;
+    int threadsPeak;
+
+    static ScenarioReport from(String scenario, SimulatorConfig config, SimulationStats stats,
+                               boolean converged, long convergenceMillis, long elapsedMillis, long heapBeforeBytes) {
+        ScenarioReport report = new ScenarioReport();
+        report.scenario = scenario;
+        report.clients = config.clients;
+        report.converged = converged;
+        report.convergenceMillis = convergenceMillis;
+        report.elapsedMillis = elapsedMillis;
+
+        report.broadcastsSent = stats.getBroadcastsSent();
+        report.deliveriesExpected = stats.getDeliveriesExpected();
+        report.deliveries = stats.getDeliveries();
+        double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+        report.deliveriesPerSecond = report.deliveries / seconds;
+        report.megabytesPerSecond = stats.getBytesDelivered() / seconds / (1024 * 1024);
+
+        long[] percentiles = stats.getLatencies().percentiles();
+        report.latencyP50Micros = percentiles[0];
+        report.latencyP90Micros = percentiles[1];
+        report.latencyP99Micros = percentiles[2];
+        report.latencyP999Micros = percentiles[3];
+        report.latencyMaxMicros = percentiles[4];
+
+        for (MessageWrapper.MessageType messageType : MessageWrapper.MessageType.values()) {
+            report.messagesReceived.put(messageType.name(), stats.received(messageType));
+        }
+        report.rejectedSends = stats.getRejectedSends();
+        report.receiveLoopFailures = stats.getReceiveLoopFailures();
+        report.rpcErrors = stats.getRpcErrors();
+        report.leaves = stats.getLeaves();
+        report.gracefulLeaves = stats.getGracefulLeaves();
+        report.leaveAverageMillis = report.leaves > 0 ? stats.getLeaveNanos() / 1e6 / report.leaves : 0;
+        report.stateSyncMillis = stats.getStateSyncMillis();
+        report.stateSyncKeys = stats.getStateSyncKeys();
+        report.catchUpMillis = stats.getCatchUpMillis();
+        report.catchUpMessages = stats.getCatchUpMessages();
+        report.orderedDeliveries = stats.getOrderedDeliveries();
+        report.orderViolations = stats.getOrderViolations();
+
+        report.heapBeforeBytes = heapBeforeBytes;
+        report.heapPeakBytes = stats.getPeakHeapBytes();
+        report.threadsPeak = stats.getPeakThreads();
+        return report;
+    }
+
+    String format() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "== %s (%d clients) ==%n", scenario, clients));
+        builder.append(String.format(Locale.US, "  converged:          %s in %d ms%n", converged, convergenceMillis));
+        builder.append(String.format(Locale.US, "  elapsed:            %d ms%n", elapsedMillis));
+        if (broadcastsSent > 0) {
+            builder.append(String.format(Locale.US, "  broadcasts sent:    %d%n", broadcastsSent));
+            builder.append(String.format(Locale.US, "  deliveries:         %d of %d (%.2f%%)%n", deliveries, deliveriesExpected,
+                    deliveriesExpected > 0 ? deliveries * 100.0 / deliveriesExpected : 0));
+            builder.append(String.format(Locale.US, "  throughput:         %.1f msg/s, %.2f MB/s%n", deliveriesPerSecond, megabytesPerSecond));
+            builder.append(String.format(Locale.US, "  latency (us):       p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                    latencyP50Micros, latencyP90Micros, latencyP99Micros, latencyP999Micros, latencyMaxMicros));
+        }
+        builder.append("  messages received: ");
+        for (Map.Entry<String, Long> entry : messagesReceived.entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        builder.append(String.format(Locale.US, "%n"));
+        builder.append(String.format(Locale.US, "  rejected sends:     %d, receive loop failures: %d, rpc errors: %d%n",
+                rejectedSends, receiveLoopFailures, rpcErrors));
+        if (messagesThrottled > 0 || relaysThrottled > 0) {
+            builder.append(String.format(Locale.US, "  throttled:          %d received, %d relays%n", messagesThrottled, relaysThrottled));
+        }
+        if (leaves > 0) {
+            builder.append(String.format(Locale.US, "  leaves:             %d, %d graceful, %.1f ms average%n", leaves, gracefulLeaves, leaveAverageMillis));
+        }
+        if (stateSyncMillis >= 0) {
+            builder.append(String.format(Locale.US, "  state sync:         %d keys in %d ms%n", stateSyncKeys, stateSyncMillis));
+        }
+        if (catchUpMillis >= 0) {
+            builder.append(String.format(Locale.US, "  catch-up:           %d messages in %d ms%n", catchUpMessages, catchUpMillis));
+        }
+        if (orderedDeliveries > 0) {
+            builder.append(String.format(Locale.US, "  total order:        %d deliveries, %d out of order%n", orderedDeliveries, orderViolations));
+        }
+        builder.append(String.format(Locale.US, "  heap:               %.1f MB before, %.1f MB peak; threads peak %d%n",
+                heapBeforeBytes / (1024.0 * 1024.0), heapPeakBytes / (1024.0 * 1024.0), threadsPeak));
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.abemart.wroup.simulator;
+
+
+import com.abemart.wroup.client.GroupBridge;
+import com.abemart.wroup.client.GroupMember;
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.listeners.MessageReceivedListener;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.transport.MessageReceiver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+/**
+ * A bridge device of the simulation, member of two consecutive groups. Every membership is a real
+ * {@link GroupMember} with its own server socket, as a device connected to two groups through two
+ * network interfaces, and a real {@link GroupBridge} forwards the messages between them.
+ */
+final class SimulatedBridge {
+
+    private final SimulationStats stats;
+    private final GroupMember first;
+    private final GroupMember second;
+    private final ServerSocket firstSocket;
+    private final ServerSocket secondSocket;
+    private final GroupBridge bridge;
+
+    SimulatedBridge(int index, SimulatedGroup firstGroup, SimulatedGroup secondGroup, SimulatorConfig config, SimulationStats stats) throws IOException {
+        this.stats = stats;
+
+        String deviceMac = String.format("02:00:00:fe:%02x:%02x", (index >> 8) & 0xff, index & 0xff);
+        firstSocket = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+        secondSocket = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+        first = newMember("sim-bridge-" + index + "a", deviceMac, firstSocket, firstGroup, config);
+        second = newMember("sim-bridge-" + index + "b", deviceMac, secondSocket, secondGroup, config);
+        bridge = new GroupBridge(first, second);
+    }
+
+    private GroupMember newMember(String name, String deviceMac, ServerSocket serverSocket, SimulatedGroup group, SimulatorConfig config) {
+        WroupDevice device = new WroupDevice();
+        device.setDeviceName(name);
+        device.setDeviceMac(deviceMac);
+        device.setDeviceServerSocketPort(serverSocket.getLocalPort());
+
+        final GroupMember member = new GroupMember(config.newDeviceExecutor(stats));
+        member.setThisDevice(device);
+        member.setServiceDevice(group.getServiceDevice());
+
+        final ServerSocket socket = serverSocket;
+        Thread receiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MessageReceiver messageReceiver = new MessageReceiver(socket, new MessageReceivedListener() {
+                        @Override
+                        public void onMessageReceived(MessageWrapper messageWrapper, InetAddress fromAddress) {
+                            stats.countReceived(messageWrapper.getMessageType());
+                            member.onMessageReceived(messageWrapper, fromAddress);
+                        }
+                    });
+                    messageReceiver.setPeerDirectory(member.getPeerDirectory());
+                    messageReceiver.receive();
+                } catch (IOException e) {
+                    // Server socket closed at the end of the simulation
+                } catch (RuntimeException e) {
+                    stats.countReceiveLoopFailure();
+                }
+            }
+        }, name);
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+        return member;
+    }
+
+    /**
+     * Register the bridge in both groups and announce it to their group owners.
+     */
+    void join() {
+        first.register();
+        second.register();
+        bridge.start();
+    }
+
+    void close() throws IOException {
+        bridge.close();
+        first.unregister();
+        second.unregister();
+        first.close();
+        second.close();
+        firstSocket.close();
+        secondSocket.close();
+    }
+
+}
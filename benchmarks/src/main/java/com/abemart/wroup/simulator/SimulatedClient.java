@@ -0,0 +1,421 @@
+package com.abemart.wroup.simulator;
+
+
+import com.abemart.wroup.client.GroupMember;
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.history.HistoryRequest;
+import com.abemart.wroup.common.listeners.DataReceivedListener;
+import com.abemart.wroup.common.listeners.MessageReceivedListener;
+import com.abemart.wroup.common.listeners.RpcResponseListener;
+import com.abemart.wroup.common.listeners.ShutdownListener;
+import com.abemart.wroup.common.listeners.StateChangedListener;
+import com.abemart.wroup.common.messages.HistoryMessageContent;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.outbox.Outbox;
+import com.abemart.wroup.common.replication.ReplicatedStore;
+import com.abemart.wroup.common.rpc.RpcError;
+import com.abemart.wroup.common.transport.MessageReceiver;
+import com.abemart.wroup.common.transport.PeerDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client device of the simulation. It runs a real {@link GroupMember} with its own server socket
+ * in the loopback interface, so the registration and the group changes go through the real
+ * protocol. The received messages are counted before being processed by the member.
+ */
+final class SimulatedClient implements MessageReceivedListener, DataReceivedListener {
+
+    private static final long LEAVE_TIMEOUT_MILLIS = 2000;
+
+    private final WroupDevice device;
+    private final WroupDevice serviceDevice;
+    private final Executor executor;
+    private final SimulationStats stats;
+
+    private String subscription;
+    private boolean observer;
+    private HistoryRequest historyRequest;
+    private long joinNanos;
+    private boolean catchingUp;
+    private long lastSequence;
+    private File outboxDirectory;
+    private GroupMember member;
+    private ServerSocket serverSocket;
+
+    SimulatedClient(int index, WroupDevice serviceDevice, Executor executor, SimulationStats stats) {
+        this.serviceDevice = serviceDevice;
+        this.executor = executor;
+        this.stats = stats;
+
+        device = new WroupDevice();
+        device.setDeviceName("sim-client-" + index);
+        device.setDeviceMac(String.format("02:00:00:%02x:%02x:%02x", (index >> 16) & 0xff, (index >> 8) & 0xff, index & 0xff));
+    }
+
+    /**
+     * Open the server socket of the client and send the registration message to the group owner.
+     */
+    void join() throws IOException {
+        member = new GroupMember(executor);
+        member.setDataReceivedListener(this);
+        final ReplicatedStore replicatedStore = member.getReplicatedStore();
+        replicatedStore.setStateChangedListener(new StateChangedListener() {
+            @Override
+            public void onStateChanged(String key) {
+                if (!observer) {
+                    countStateDelivery(stats, replicatedStore, key);
+                }
+            }
+        });
+        if (subscription != null) {
+            member.subscribe(subscription);
+        }
+        if (outboxDirectory != null) {
+            member.enableOutbox(outboxDirectory);
+        }
+        member.setHistoryRequest(historyRequest);
+
+        serverSocket = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+        device.setDeviceServerSocketPort(serverSocket.getLocalPort());
+        member.setThisDevice(device);
+        member.setServiceDevice(serviceDevice);
+
+        final ServerSocket socket = serverSocket;
+        final PeerDirectory peerDirectory = member.getPeerDirectory();
+        Thread receiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MessageReceiver messageReceiver = new MessageReceiver(socket, SimulatedClient.this);
+                    messageReceiver.setPeerDirectory(peerDirectory);
+                    messageReceiver.receive();
+                } catch (IOException e) {
+                    // Server socket closed when the client leaves
+                } catch (RuntimeException e) {
+                    stats.countReceiveLoopFailure();
+                }
+            }
+        }, device.getDeviceName());
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+
+        joinNanos = System.nanoTime();
+        lastSequence = -1;
+        member.register();
+    }
+
+    /**
+     * Leave the group gracefully, waiting until the messages queued have been sent and the group
+     * owner has acknowledged the disconnection, and close the server socket.
+     */
+    void leave() throws IOException {
+        if (member != null) {
+            long startNanos = System.nanoTime();
+            final boolean[] graceful = new boolean[1];
+            final CountDownLatch left = new CountDownLatch(1);
+            member.shutdown(LEAVE_TIMEOUT_MILLIS, new ShutdownListener() {
+                @Override
+                public void onShutdownCompleted(boolean completed) {
+                    graceful[0] = completed;
+                    left.countDown();
+                }
+            });
+            try {
+                left.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stats.countLeave(graceful[0], System.nanoTime() - startNanos);
+            serverSocket.close();
+
+            // Like a restart of the application, the next member opens the logs left in the directory
+            Outbox outbox = member.getOutbox();
+            if (outbox != null) {
+                outbox.close();
+            }
+            member = null;
+        }
+    }
+
+    /**
+     * Set the topic pattern which the client subscribes to when it joins.
+     */
+    void setSubscription(String subscription) {
+        this.subscription = subscription;
+    }
+
+    String getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * Set the directory of the outbox which the client enables when it joins. It's kept when the
+     * client leaves, so the messages not delivered are sent when it joins again.
+     */
+    void setOutboxDirectory(File outboxDirectory) {
+        this.outboxDirectory = outboxDirectory;
+    }
+
+    /**
+     * Make the client an observer, which doesn't count the state changes received as deliveries,
+     * for example the ones of the synchronization when it joins.
+     */
+    void setObserver(boolean observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * Set the messages of the history of the group which the client asks for when it joins. The
+     * ones received aren't counted as deliveries, since they were sent before it joined.
+     */
+    void setHistoryRequest(HistoryRequest historyRequest) {
+        this.historyRequest = historyRequest;
+    }
+
+    String getDeviceMac() {
+        return device.getDeviceMac();
+    }
+
+    boolean isJoined() {
+        return member != null;
+    }
+
+    int knownMembers() {
+        return member != null ? member.getClientsConnected().size() : 0;
+    }
+
+    /**
+     * Send a message to all the group, including the group owner, and this client too in total
+     * order.
+     *
+     * @param payload The padding appended to the send timestamp.
+     */
+    void broadcast(String payload) {
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            MessageWrapper message = new MessageWrapper();
+            message.setMessageType(MessageWrapper.MessageType.NORMAL);
+            message.setMessage(System.nanoTime() + ":" + payload);
+
+            stats.countBroadcast(actualMember.getClientsConnected().size() + (actualMember.isTotalOrder() ? 2 : 1));
+            actualMember.sendMessageToAllClients(message);
+        }
+    }
+
+    /**
+     * Send a message with a binary payload to all the group. The message doesn't carry a send
+     * timestamp, so it isn't counted as a delivery.
+     *
+     * @param payload The payload of the message, which isn't modified while it's being sent.
+     */
+    void broadcastBulk(ByteBuffer payload) {
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            MessageWrapper message = new MessageWrapper();
+            message.setMessageType(MessageWrapper.MessageType.NORMAL);
+            message.setMessage("bulk");
+            message.setPayload(payload.duplicate());
+            actualMember.sendMessageToAllClients(message);
+        }
+    }
+
+    /**
+     * Send a message to a device of another group, which is routed through the bridges.
+     *
+     * @param destinationMac The MAC address of the receiver of the message.
+     * @param payload        The padding appended to the send timestamp.
+     */
+    void sendRouted(String destinationMac, String payload) {
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            MessageWrapper message = new MessageWrapper();
+            message.setMessageType(MessageWrapper.MessageType.NORMAL);
+            message.setMessage(System.nanoTime() + ":" + payload);
+
+            stats.countBroadcast(1);
+            actualMember.sendRoutedMessage(destinationMac, message);
+        }
+    }
+
+    /**
+     * Send a message to a client of the group, which may have left it. Without an outbox the
+     * messages sent to a client which has left are lost.
+     *
+     * @param destinationMac The MAC address of the receiver of the message.
+     * @param payload        The padding appended to the send timestamp.
+     */
+    void sendDirect(String destinationMac, String payload) {
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            WroupDevice destination = actualMember.getDevice(destinationMac);
+            if (destination == null) {
+                destination = new WroupDevice();
+                destination.setDeviceMac(destinationMac);
+            }
+
+            MessageWrapper message = new MessageWrapper();
+            message.setMessageType(MessageWrapper.MessageType.NORMAL);
+            message.setMessage(System.nanoTime() + ":" + payload);
+
+            stats.countBroadcast(1);
+            actualMember.sendMessage(destination, message);
+        }
+    }
+
+    /**
+     * Write the register of this client in the replicated store, which sends the change to all
+     * the group.
+     *
+     * @param payload The padding appended to the send timestamp.
+     */
+    void putState(String payload) {
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            stats.countBroadcast(actualMember.getClientsConnected().size() + 1);
+            actualMember.getReplicatedStore().putRegister("sim/" + device.getDeviceName(), System.nanoTime() + ":" + payload);
+        }
+    }
+
+    long stateHash() {
+        GroupMember actualMember = member;
+        return actualMember != null ? actualMember.getReplicatedStore().getStateHash() : 0;
+    }
+
+    int stateKeys() {
+        GroupMember actualMember = member;
+        return actualMember != null ? actualMember.getReplicatedStore().getKeys().size() : 0;
+    }
+
+    /**
+     * Publish a message in a topic through the group owner.
+     *
+     * @param topic       The topic of the message.
+     * @param payload     The padding appended to the send timestamp.
+     * @param subscribers The number of devices expected to receive the message.
+     */
+    void publish(String topic, String payload, int subscribers) {
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            MessageWrapper message = new MessageWrapper();
+            message.setMessageType(MessageWrapper.MessageType.NORMAL);
+            message.setMessage(System.nanoTime() + ":" + payload);
+
+            stats.countBroadcast(subscribers);
+            actualMember.publish(topic, message);
+        }
+    }
+
+    /**
+     * Publish a message in a topic without a send timestamp, so it isn't counted as a delivery.
+     *
+     * @param topic   The topic of the message.
+     * @param payload The content of the message.
+     */
+    void publishUncounted(String topic, String payload) {
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            MessageWrapper message = new MessageWrapper();
+            message.setMessageType(MessageWrapper.MessageType.NORMAL);
+            message.setMessage(payload);
+            actualMember.publish(topic, message);
+        }
+    }
+
+    /**
+     * Call the echo method of the group owner. The response is counted as a delivery.
+     *
+     * @param payload       The padding appended to the send timestamp.
+     * @param timeoutMillis The time to wait for the response.
+     */
+    void callOwner(String payload, long timeoutMillis) {
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            stats.countBroadcast(1);
+            actualMember.getRpcEngine().call(serviceDevice, SimulatedGroup.ECHO_METHOD, System.nanoTime() + ":" + payload,
+                    timeoutMillis, new RpcResponseListener() {
+                        @Override
+                        public void onRpcResponse(String result) {
+                            int separator = result.indexOf(':');
+                            stats.countDelivery(Long.parseLong(result.substring(0, separator)), result.length());
+                        }
+
+                        @Override
+                        public void onRpcError(RpcError rpcError, String message) {
+                            stats.countRpcError(rpcError);
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public void onMessageReceived(MessageWrapper messageWrapper, InetAddress fromAddress) {
+        stats.countReceived(messageWrapper.getMessageType());
+
+        boolean history = MessageWrapper.MessageType.HISTORY.equals(messageWrapper.getMessageType());
+        if (history) {
+            HistoryMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), HistoryMessageContent.class);
+            stats.setCatchUp(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - joinNanos),
+                    content != null && content.getMessages() != null ? content.getMessages().size() : 0);
+        }
+
+        GroupMember actualMember = member;
+        if (actualMember != null) {
+            // The messages of the history are notified in this thread while it's processed
+            catchingUp = history;
+            try {
+                actualMember.onMessageReceived(messageWrapper, fromAddress);
+            } finally {
+                catchingUp = false;
+            }
+        }
+    }
+
+    @Override
+    public void onDataReceived(MessageWrapper messageWrapper) {
+        if (!catchingUp) {
+            lastSequence = checkOrder(stats, messageWrapper, lastSequence);
+            countDelivery(stats, messageWrapper);
+        }
+    }
+
+    /**
+     * Check that a message stamped by the sequencer of the group is delivered after the previous
+     * ones delivered to the same device.
+     *
+     * @return the sequence number of the last message delivered to the device.
+     */
+    static long checkOrder(SimulationStats stats, MessageWrapper messageWrapper, long lastSequence) {
+        Long sequence = messageWrapper.getSequence();
+        if (sequence == null) {
+            return lastSequence;
+        }
+        stats.countOrderedDelivery(sequence > lastSequence);
+        return Math.max(sequence, lastSequence);
+    }
+
+    static void countStateDelivery(SimulationStats stats, ReplicatedStore replicatedStore, String key) {
+        String value = replicatedStore.getRegister(key);
+        int separator = value != null ? value.indexOf(':') : -1;
+        if (separator > 0) {
+            stats.countDelivery(Long.parseLong(value.substring(0, separator)), value.length());
+        }
+    }
+
+    static void countDelivery(SimulationStats stats, MessageWrapper messageWrapper) {
+        String message = messageWrapper.getMessage();
+        int separator = message.indexOf(':');
+        if (separator > 0) {
+            stats.countDelivery(Long.parseLong(message.substring(0, separator)), message.length());
+        }
+    }
+
+}
@@ -0,0 +1,279 @@
+package com.abemart.wroup.simulator;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.history.MessageHistory;
+import com.abemart.wroup.common.listeners.DataReceivedListener;
+import com.abemart.wroup.common.listeners.MessageReceivedListener;
+import com.abemart.wroup.common.listeners.RpcRequestListener;
+import com.abemart.wroup.common.listeners.StateChangedListener;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.metrics.MetricsSnapshot;
+import com.abemart.wroup.common.throttling.RateLimiter;
+import com.abemart.wroup.common.transport.MessageReceiver;
+import com.abemart.wroup.service.GroupOwner;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A group of the simulation: a real {@link GroupOwner} listening in the loopback interface and
+ * the simulated clients connected to it.
+ */
+final class SimulatedGroup implements MessageReceivedListener, DataReceivedListener {
+
+    /**
+     * Method of the group owner which answers the remote calls with their parameters.
+     */
+    static final String ECHO_METHOD = "echo";
+
+    private final SimulatorConfig config;
+    private final SimulationStats stats;
+    private final int index;
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final RateLimiter inboundLimiter = new RateLimiter();
+
+    private int bridges;
+    private GroupOwner groupOwner;
+    private ServerSocket serverSocket;
+    private WroupDevice serviceDevice;
+    private long lastSequence = -1;
+
+    SimulatedGroup(SimulatorConfig config, SimulationStats stats) {
+        this(0, config, stats);
+    }
+
+    /**
+     * @param index The index of the group in the simulation, which makes the addresses of its
+     *              devices unique among all the groups.
+     */
+    SimulatedGroup(int index, SimulatorConfig config, SimulationStats stats) {
+        this.index = index;
+        this.config = config;
+        this.stats = stats;
+    }
+
+    void start() throws IOException {
+        WroupDevice ownerDevice = new WroupDevice();
+        ownerDevice.setDeviceName(index == 0 ? "sim-owner" : "sim-owner-" + index);
+        ownerDevice.setDeviceMac(String.format("02:00:00:ff:ff:%02x", 0xff - index));
+
+        groupOwner = new GroupOwner(config.newDeviceExecutor(stats));
+        groupOwner.setThisDevice(ownerDevice);
+        groupOwner.setDataReceivedListener(this);
+        groupOwner.getRpcEngine().registerHandler(ECHO_METHOD, new RpcRequestListener() {
+            @Override
+            public String onRpcRequest(WroupDevice caller, String params) {
+                return params;
+            }
+        });
+
+        groupOwner.getReplicatedStore().setStateChangedListener(new StateChangedListener() {
+            @Override
+            public void onStateChanged(String key) {
+                SimulatedClient.countStateDelivery(stats, groupOwner.getReplicatedStore(), key);
+            }
+        });
+
+        serverSocket = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+
+        serviceDevice = new WroupDevice();
+        serviceDevice.setDeviceName(ownerDevice.getDeviceName());
+        serviceDevice.setDeviceMac(ownerDevice.getDeviceMac());
+        serviceDevice.setDeviceServerSocketIP(serverSocket.getInetAddress().getHostAddress());
+        serviceDevice.setDeviceServerSocketPort(serverSocket.getLocalPort());
+
+        Thread ownerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MessageReceiver messageReceiver = new MessageReceiver(serverSocket, SimulatedGroup.this,
+                            groupOwner.getMetrics(), groupOwner.getTracer());
+                    messageReceiver.setRateLimiter(inboundLimiter);
+                    messageReceiver.setPeerDirectory(groupOwner.getPeerDirectory());
+                    messageReceiver.receive();
+                } catch (IOException e) {
+                    // Server socket closed at the end of the simulation
+                } catch (RuntimeException e) {
+                    stats.countReceiveLoopFailure();
+                }
+            }
+        }, ownerDevice.getDeviceName());
+        ownerThread.setDaemon(true);
+        ownerThread.start();
+
+        for (int i = 0; i < config.clients; i++) {
+            clients.add(new SimulatedClient(index * config.clients + i, serviceDevice, config.newDeviceExecutor(stats), stats));
+        }
+    }
+
+    List<SimulatedClient> getClients() {
+        return clients;
+    }
+
+    /**
+     * Add a client to the group, which isn't joined yet.
+     */
+    SimulatedClient addClient() {
+        SimulatedClient client = new SimulatedClient(index * config.clients + clients.size(), serviceDevice,
+                config.newDeviceExecutor(stats), stats);
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Limit the messages received from every client and the ones relayed for it, like
+     * <code>setInboundRateLimit</code> and <code>setRelayRateLimit</code> of the group owner. The
+     * receive loop of the simulation is its own, so it applies the inbound limit itself.
+     *
+     * @param messagesPerSecond The rate of every client, which is also its burst, or 0 to remove
+     *                          the limits.
+     */
+    void setClientRateLimit(int messagesPerSecond) {
+        inboundLimiter.setLimit(messagesPerSecond, Math.max(1, messagesPerSecond));
+        groupOwner.setRelayRateLimit(messagesPerSecond, Math.max(1, messagesPerSecond));
+    }
+
+    /**
+     * Keep the messages of the group in the history of the group owner, out of the Java heap.
+     */
+    void enableHistory() {
+        groupOwner.enableHistory(MessageHistory.DEFAULT_MAX_BYTES, MessageHistory.DEFAULT_MAX_MESSAGES, true);
+    }
+
+    /**
+     * Send the messages to all the group in total order, with the group owner as sequencer.
+     */
+    void enableTotalOrder() {
+        groupOwner.setTotalOrder(true);
+    }
+
+    MetricsSnapshot ownerMetrics() {
+        return groupOwner.getMetrics().snapshot();
+    }
+
+    long stateHash() {
+        return groupOwner.getReplicatedStore().getStateHash();
+    }
+
+    WroupDevice getServiceDevice() {
+        return serviceDevice;
+    }
+
+    /**
+     * Count a bridge with another group, which is a member of this group besides the clients.
+     */
+    void addBridge() {
+        bridges++;
+    }
+
+    /**
+     * @return true if the group owner has a route to all the devices indicated.
+     */
+    boolean hasRoutes(Collection<String> deviceMacs) {
+        for (String deviceMac : deviceMacs) {
+            if (groupOwner.getRoutingTable().getRoute(deviceMac) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int ownerMembers() {
+        return groupOwner.getClientsConnected().size();
+    }
+
+    /**
+     * Join all the clients at the same time.
+     */
+    void joinAll() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch joined = new CountDownLatch(clients.size());
+        for (final SimulatedClient client : clients) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        client.join();
+                    } catch (Exception e) {
+                        System.err.println("Error joining client: " + e);
+                    } finally {
+                        joined.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        joined.await();
+    }
+
+    /**
+     * @return true if the group owner and every joined client know all the members of the group.
+     */
+    boolean isConverged() {
+        int joined = 0;
+        for (SimulatedClient client : clients) {
+            if (client.isJoined()) {
+                joined++;
+            }
+        }
+        if (ownerMembers() != joined + bridges) {
+            return false;
+        }
+        for (SimulatedClient client : clients) {
+            if (client.isJoined() && client.knownMembers() != joined + bridges - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until all the messages sent have been delivered, no delivery has happened for a second
+     * (the rest are lost, for example sent to clients which have left) or the timeout expires.
+     *
+     * @return the time in milliseconds of the last delivery observed.
+     */
+    long awaitDeliveries(long timeoutMillis) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long deadline = now + timeoutMillis;
+        long lastProgress = now;
+        long lastDeliveries = stats.getDeliveries();
+        while (now < deadline && stats.getDeliveries() < stats.getDeliveriesExpected() && now - lastProgress < 1000) {
+            Thread.sleep(10);
+            now = System.currentTimeMillis();
+            if (stats.getDeliveries() != lastDeliveries) {
+                lastDeliveries = stats.getDeliveries();
+                lastProgress = now;
+            }
+        }
+        return lastProgress;
+    }
+
+    void close() throws IOException {
+        for (SimulatedClient client : clients) {
+            client.leave();
+        }
+        serverSocket.close();
+        groupOwner.close();
+    }
+
+    @Override
+    public void onMessageReceived(MessageWrapper messageWrapper, InetAddress fromAddress) {
+        stats.countReceived(messageWrapper.getMessageType());
+        groupOwner.onMessageReceived(messageWrapper, fromAddress);
+    }
+
+    @Override
+    public void onDataReceived(MessageWrapper messageWrapper) {
+        lastSequence = SimulatedClient.checkOrder(stats, messageWrapper, lastSequence);
+        SimulatedClient.countDelivery(stats, messageWrapper);
+    }
+
+}
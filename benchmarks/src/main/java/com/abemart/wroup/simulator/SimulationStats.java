@@ -0,0 +1,213 @@
+package com.abemart.wroup.simulator;
+
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.rpc.RpcError;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters shared by all the devices of a simulation.
+ */
+final class SimulationStats implements RejectedExecutionHandler {
+
+    private final AtomicLongArray messagesReceived = new AtomicLongArray(MessageWrapper.MessageType.values().length);
+    private final AtomicLong broadcastsSent = new AtomicLong();
+    private final AtomicLong deliveriesExpected = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong bytesDelivered = new AtomicLong();
+    private final AtomicLong rejectedSends = new AtomicLong();
+    private final AtomicLong receiveLoopFailures = new AtomicLong();
+    private final AtomicLong rpcErrors = new AtomicLong();
+    private final AtomicLong leaves = new AtomicLong();
+    private final AtomicLong gracefulLeaves = new AtomicLong();
+    private final AtomicLong leaveNanos = new AtomicLong();
+    private final AtomicLong orderedDeliveries = new AtomicLong();
+    private final AtomicLong orderViolations = new AtomicLong();
+    private final LatencyRecorder latencies = new LatencyRecorder();
+    private volatile long stateSyncMillis = -1;
+    private volatile int stateSyncKeys;
+    private volatile long catchUpMillis = -1;
+    private volatile int catchUpMessages;
+
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private volatile long peakHeapBytes;
+    private volatile int peakThreads;
+
+    void countReceived(MessageWrapper.MessageType messageType) {
+        if (messageType != null) {
+            messagesReceived.incrementAndGet(messageType.ordinal());
+        }
+    }
+
+    long received(MessageWrapper.MessageType messageType) {
+        return messagesReceived.get(messageType.ordinal());
+    }
+
+    void countBroadcast(int recipients) {
+        broadcastsSent.incrementAndGet();
+        deliveriesExpected.addAndGet(recipients);
+    }
+
+    void countDelivery(long sentNanos, int bytes) {
+        latencies.record((System.nanoTime() - sentNanos) / 1000);
+        deliveries.incrementAndGet();
+        bytesDelivered.addAndGet(bytes);
+    }
+
+    /**
+     * Record the time which a device joining the group has needed to synchronize its replicated
+     * store, and the keys which it has received.
+     */
+    void setStateSync(long millis, int keys) {
+        stateSyncMillis = millis;
+        stateSyncKeys = keys;
+    }
+
+    long getStateSyncMillis() {
+        return stateSyncMillis;
+    }
+
+    int getStateSyncKeys() {
+        return stateSyncKeys;
+    }
+
+    /**
+     * Record the time which a device joining the group has waited for the history of the group,
+     * and the messages which it has received in it.
+     */
+    void setCatchUp(long millis, int messages) {
+        catchUpMillis = millis;
+        catchUpMessages = messages;
+    }
+
+    long getCatchUpMillis() {
+        return catchUpMillis;
+    }
+
+    int getCatchUpMessages() {
+        return catchUpMessages;
+    }
+
+    /**
+     * Count a message delivered with a sequence number of the group, which is out of order if the
+     * device has already delivered one with the same or a greater sequence number.
+     */
+    void countOrderedDelivery(boolean inOrder) {
+        orderedDeliveries.incrementAndGet();
+        if (!inOrder) {
+            orderViolations.incrementAndGet();
+        }
+    }
+
+    long getOrderedDeliveries() {
+        return orderedDeliveries.get();
+    }
+
+    long getOrderViolations() {
+        return orderViolations.get();
+    }
+
+    void countReceiveLoopFailure() {
+        receiveLoopFailures.incrementAndGet();
+    }
+
+    /**
+     * Record a client which has left the group, and the time which it has needed to drain its
+     * messages and get the disconnection acknowledged.
+     */
+    void countLeave(boolean graceful, long nanos) {
+        leaves.incrementAndGet();
+        if (graceful) {
+            gracefulLeaves.incrementAndGet();
+        }
+        leaveNanos.addAndGet(nanos);
+    }
+
+    long getLeaves() {
+        return leaves.get();
+    }
+
+    long getGracefulLeaves() {
+        return gracefulLeaves.get();
+    }
+
+    long getLeaveNanos() {
+        return leaveNanos.get();
+    }
+
+    void countRpcError(RpcError rpcError) {
+        rpcErrors.incrementAndGet();
+    }
+
+    long getRpcErrors() {
+        return rpcErrors.get();
+    }
+
+    long getBroadcastsSent() {
+        return broadcastsSent.get();
+    }
+
+    long getDeliveriesExpected() {
+        return deliveriesExpected.get();
+    }
+
+    long getDeliveries() {
+        return deliveries.get();
+    }
+
+    long getBytesDelivered() {
+        return bytesDelivered.get();
+    }
+
+    long getRejectedSends() {
+        return rejectedSends.get();
+    }
+
+    long getReceiveLoopFailures() {
+        return receiveLoopFailures.get();
+    }
+
+    LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    int getPeakThreads() {
+        return peakThreads;
+    }
+
+    long currentHeapBytes() {
+        return memoryMXBean.getHeapMemoryUsage().getUsed();
+    }
+
+    void sampleResources() {
+        long heap = currentHeapBytes();
+        if (heap > peakHeapBytes) {
+            peakHeapBytes = heap;
+        }
+        int threads = threadMXBean.getThreadCount();
+        if (threads > peakThreads) {
+            peakThreads = threads;
+        }
+    }
+
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+        // Same behaviour as the AsyncTask executor: the task is discarded with an exception
+        rejectedSends.incrementAndGet();
+        throw new RejectedExecutionException("Send rejected, the executor queue is full");
+    }
+
+}
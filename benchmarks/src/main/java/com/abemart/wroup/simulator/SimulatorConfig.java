@@ -0,0 +1,112 @@
+package com.abemart.wroup.simulator;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parameters of a simulation, parsed from the command line arguments.
+ */
+final class SimulatorConfig {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    String scenario = "all";
+    int clients = 20;
+    int durationSeconds = 10;
+    int messagesPerSecond = 5;
+    int payloadBytes = 256;
+    int largePayloadBytes = 256 * 1024;
+    int largePayloadSenders = 4;
+    int largePayloadMessages = 5;
+    int churnIntervalMillis = 500;
+    int topics = 4;
+    int groups = 3;
+    int floodRate = 2000;
+    int clientRateLimit = 50;
+    int timeoutSeconds = 30;
+    boolean deviceExecutor = true;
+    String jsonFile;
+
+    static SimulatorConfig parse(String[] args) {
+        SimulatorConfig config = new SimulatorConfig();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String value = i + 1 < args.length ? args[i + 1] : null;
+
+            if ("--scenario".equals(arg)) {
+                config.scenario = value;
+            } else if ("--clients".equals(arg)) {
+                config.clients = Integer.parseInt(value);
+            } else if ("--duration".equals(arg)) {
+                config.durationSeconds = Integer.parseInt(value);
+            } else if ("--rate".equals(arg)) {
+                config.messagesPerSecond = Integer.parseInt(value);
+            } else if ("--payload".equals(arg)) {
+                config.payloadBytes = Integer.parseInt(value);
+            } else if ("--large-payload".equals(arg)) {
+                config.largePayloadBytes = Integer.parseInt(value);
+            } else if ("--large-senders".equals(arg)) {
+                config.largePayloadSenders = Integer.parseInt(value);
+            } else if ("--large-messages".equals(arg)) {
+                config.largePayloadMessages = Integer.parseInt(value);
+            } else if ("--churn-interval".equals(arg)) {
+                config.churnIntervalMillis = Integer.parseInt(value);
+            } else if ("--topics".equals(arg)) {
+                config.topics = Integer.parseInt(value);
+            } else if ("--groups".equals(arg)) {
+                config.groups = Integer.parseInt(value);
+            } else if ("--flood-rate".equals(arg)) {
+                config.floodRate = Integer.parseInt(value);
+            } else if ("--client-limit".equals(arg)) {
+                config.clientRateLimit = Integer.parseInt(value);
+            } else if ("--timeout".equals(arg)) {
+                config.timeoutSeconds = Integer.parseInt(value);
+            } else if ("--executor".equals(arg)) {
+                config.deviceExecutor = !"unbounded".equals(value);
+            } else if ("--json".equals(arg)) {
+                config.jsonFile = value;
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            i++;
+        }
+        return config;
+    }
+
+    /**
+     * Create the executor of a simulated device. By default it has the same configuration as the
+     * <code>AsyncTask.THREAD_POOL_EXECUTOR</code> used in the devices, including the bounded queue
+     * which rejects tasks when it's full.
+     */
+    Executor newDeviceExecutor(RejectedExecutionHandler rejectedExecutionHandler) {
+        ThreadPoolExecutor executor;
+        if (deviceExecutor) {
+            executor = new ThreadPoolExecutor(CPU_COUNT + 1, CPU_COUNT * 2 + 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(128), rejectedExecutionHandler);
+        } else {
+            executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 1, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), rejectedExecutionHandler);
+        }
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static String usage() {
+        return "Usage: GroupSimulator [--scenario all|join-storm|steady-chat|large-payloads|churn|pub-sub|\n"
+                + "                                  mixed-traffic|rpc|multi-group|\n"
+                + "                                  replicated-state|offline-outbox|flooding-client|\n"
+                + "                                  late-joiner|total-order]\n"
+                + "                      [--clients N] [--duration seconds] [--rate messages/s per client]\n"
+                + "                      [--payload bytes] [--large-payload bytes] [--large-senders N]\n"
+                + "                      [--large-messages N] [--churn-interval millis] [--topics N]\n"
+                + "                      [--groups N] [--flood-rate messages/s] [--client-limit messages/s]\n"
+                + "                      [--timeout seconds]\n"
+                + "                      [--executor device|unbounded] [--json file]";
+    }
+
+}
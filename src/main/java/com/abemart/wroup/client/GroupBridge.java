@@ -0,0 +1,163 @@
+package com.abemart.wroup.client;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.listeners.DataReceivedListener;
+import com.abemart.wroup.common.listeners.RoutingListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.RouteAdvertisementMessageContent;
+import com.abemart.wroup.common.messages.RoutedMessageContent;
+import com.abemart.wroup.common.routing.DuplicateFilter;
+import com.abemart.wroup.common.routing.RoutingTable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bridge between two groups, run by a device which is a member of both of them, for example
+ * connected to one group owner by WiFi P2P and to the other one as a legacy WiFi client.
+ * <p>
+ * The bridge advertises to each group owner the devices which it reaches through the other group,
+ * with the number of bridges crossed, and learns the same from the advertisements of the group
+ * owners, so the routes propagate through chains of groups as a distance vector. The
+ * <code>ROUTED</code> messages received from one group are forwarded to the other one: directly to
+ * their destination if it's a member of that group, or to its group owner otherwise. The messages
+ * already forwarded are discarded, and every hop decrements the TTL of the message.
+ */
+public class GroupBridge {
+
+    private static final String TAG = GroupBridge.class.getSimpleName();
+
+    private final GroupMember first;
+    private final GroupMember second;
+    private final RoutingTable routingTable = new RoutingTable(1);
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter();
+    private final Map<String, Map<String, Integer>> advertisementsSent = new HashMap<>();
+
+    private DataReceivedListener dataReceivedListener;
+
+    /**
+     * @param first  The member of one of the groups.
+     * @param second The member of the other group, with the same device MAC address.
+     */
+    public GroupBridge(final GroupMember first, final GroupMember second) {
+        this.first = first;
+        this.second = second;
+
+        first.setRoutingListener(new RoutingListener() {
+            @Override
+            public void onRoutingMessageReceived(MessageWrapper messageWrapper) {
+                onRoutingMessage(first, messageWrapper);
+            }
+        });
+        second.setRoutingListener(new RoutingListener() {
+            @Override
+            public void onRoutingMessageReceived(MessageWrapper messageWrapper) {
+                onRoutingMessage(second, messageWrapper);
+            }
+        });
+    }
+
+    /**
+     * Set the listener of the routed messages whose destination is this device.
+     */
+    public void setDataReceivedListener(DataReceivedListener dataReceivedListener) {
+        this.dataReceivedListener = dataReceivedListener;
+    }
+
+    /**
+     * Announce the bridge to both group owners. It must be called once both members have been
+     * registered in their groups.
+     */
+    public synchronized void start() {
+        advertiseRoutes();
+    }
+
+    /**
+     * Stop bridging the groups. The members aren't unregistered.
+     */
+    public synchronized void close() {
+        first.setRoutingListener(null);
+        second.setRoutingListener(null);
+        routingTable.clear();
+        duplicateFilter.clear();
+        advertisementsSent.clear();
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    private synchronized void onRoutingMessage(GroupMember from, MessageWrapper messageWrapper) {
+        if (MessageWrapper.MessageType.ROUTE_ADVERTISEMENT.equals(messageWrapper.getMessageType())) {
+            RouteAdvertisementMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), RouteAdvertisementMessageContent.class);
+            WroupDevice groupOwner = from.getServiceDevice();
+            if (content != null && groupOwner != null) {
+                routingTable.update(groupOwner.getDeviceMac(), content.getDistances());
+                advertiseRoutes();
+            }
+        } else {
+            RoutedMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), RoutedMessageContent.class);
+            if (content != null && content.getMessage() != null && duplicateFilter.add(content.getMessageId())) {
+                routeMessage(content);
+            }
+        }
+    }
+
+    private void routeMessage(RoutedMessageContent content) {
+        String destinationMac = content.getDestinationMac();
+        if (destinationMac.equals(first.getThisDevice().getDeviceMac())) {
+            if (dataReceivedListener != null) {
+                dataReceivedListener.onDataReceived(content.getMessage());
+            }
+            return;
+        }
+
+        RoutingTable.Route route = routingTable.getRoute(destinationMac);
+        GroupMember side = route != null ? memberOfGroup(route.getNextHop()) : null;
+        if (side == null || content.getTtl() <= 1) {
+            WroupLog.w(TAG, "Discarded routed message {} without route to {}", content.getMessageId(), destinationMac);
+            return;
+        }
+
+        WroupDevice destination = side.getDevice(destinationMac);
+        if (destination != null) {
+            side.forwardMessage(destination, content.getMessage());
+        } else {
+            content.setTtl(content.getTtl() - 1);
+            side.forwardRoutedMessage(content);
+        }
+    }
+
+    private GroupMember memberOfGroup(String groupOwnerMac) {
+        if (first.getServiceDevice() != null && groupOwnerMac.equals(first.getServiceDevice().getDeviceMac())) {
+            return first;
+        }
+        if (second.getServiceDevice() != null && groupOwnerMac.equals(second.getServiceDevice().getDeviceMac())) {
+            return second;
+        }
+        return null;
+    }
+
+    private void advertiseRoutes() {
+        advertiseRoutes(first);
+        advertiseRoutes(second);
+    }
+
+    private void advertiseRoutes(GroupMember side) {
+        WroupDevice groupOwner = side.getServiceDevice();
+        if (groupOwner == null) {
+            return;
+        }
+
+        Map<String, Integer> distances = routingTable.advertisementFor(groupOwner.getDeviceMac(),
+                Collections.singletonList(side.getThisDevice().getDeviceMac()));
+        if (!distances.equals(advertisementsSent.put(groupOwner.getDeviceMac(), distances))) {
+            side.sendRouteAdvertisement(distances);
+        }
+    }
+
+}
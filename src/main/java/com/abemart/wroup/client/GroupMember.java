@@ -0,0 +1,927 @@
+package com.abemart.wroup.client;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.dedup.DuplicateWindow;
+import com.abemart.wroup.common.dedup.MessageIdSequence;
+import com.abemart.wroup.common.history.HistoryRequest;
+import com.abemart.wroup.common.listeners.ClientConnectedListener;
+import com.abemart.wroup.common.listeners.ClientDisconnectedListener;
+import com.abemart.wroup.common.listeners.DataReceivedListener;
+import com.abemart.wroup.common.listeners.MessageReceivedListener;
+import com.abemart.wroup.common.listeners.RoutingListener;
+import com.abemart.wroup.common.listeners.ShutdownListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.ClockSyncMessageContent;
+import com.abemart.wroup.common.messages.DisconnectionMessageContent;
+import com.abemart.wroup.common.messages.HistoryMessageContent;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.OutboxAckMessageContent;
+import com.abemart.wroup.common.messages.RegisteredDevicesMessageContent;
+import com.abemart.wroup.common.messages.RegistrationMessageContent;
+import com.abemart.wroup.common.messages.RouteAdvertisementMessageContent;
+import com.abemart.wroup.common.messages.RoutedMessageContent;
+import com.abemart.wroup.common.messages.SubscriptionMessageContent;
+import com.abemart.wroup.common.metrics.WroupMetrics;
+import com.abemart.wroup.common.ordering.ReorderBuffer;
+import com.abemart.wroup.common.outbox.DeliveryTracker;
+import com.abemart.wroup.common.outbox.Outbox;
+import com.abemart.wroup.common.outbox.OutboxTransport;
+import com.abemart.wroup.common.replication.ReplicatedStore;
+import com.abemart.wroup.common.replication.ReplicationTransport;
+import com.abemart.wroup.common.routing.MessageIdGenerator;
+import com.abemart.wroup.common.routing.RoutingTable;
+import com.abemart.wroup.common.rpc.RpcEngine;
+import com.abemart.wroup.common.rpc.RpcTransport;
+import com.abemart.wroup.common.topics.TopicPatterns;
+import com.abemart.wroup.common.tracing.TraceContext;
+import com.abemart.wroup.common.tracing.Tracer;
+import com.abemart.wroup.common.transport.EncodedMessage;
+import com.abemart.wroup.common.transport.MessageReceiver;
+import com.abemart.wroup.common.transport.MessageSender;
+import com.abemart.wroup.common.transport.PeerDirectory;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side of the Wroup protocol.
+ * <p>
+ * It registers the device in the group owner, keeps the devices connected to the same group
+ * updated with the <code>CONNECTION_MESSAGE</code>, <code>DISCONNECTION_MESSAGE</code> and
+ * <code>REGISTERED_DEVICES</code> messages sent by the group owner, and sends messages to them.
+ * Once registered, the messages sent carry the id assigned to this device by the group owner
+ * instead of the whole device, and the senders of the messages received are resolved with the ids
+ * of the devices of the group.
+ * <p>
+ * The topics which it's subscribed to are declared in the registration and updated later with
+ * <code>SUBSCRIPTION</code> messages, so the group owner only sends it the messages published in
+ * them.
+ * <p>
+ * Every data message sent carries an id, and the copies of a message already received from the
+ * same sender are discarded before notifying it.
+ * <p>
+ * If the group owner sends the messages of the group in total order, the messages to all the group
+ * are sent through it, which stamps them with a sequence number, and they are delivered in the
+ * order of the sequence, including the ones sent by this device.
+ * <p>
+ * If the outbox is enabled, the messages sent to the devices of the group are kept on disk until
+ * they acknowledge them, and the ones which they haven't received are sent again when this device
+ * or the receiver registers in the group.
+ * <p>
+ * The device leaves the group with {@link #shutdown(long, ShutdownListener)}: the new messages are
+ * discarded, the ones queued are sent, and the sockets are released when the group owner has
+ * acknowledged the <code>DISCONNECTION_MESSAGE</code>, or at the deadline.
+ * <p>
+ * This class only works with sockets, the service discovery and the WiFi P2P connection are
+ * managed by {@link WroupClient}. Because of that it can also run in a plain JVM, for example in
+ * the group load simulator.
+ */
+public class GroupMember implements MessageReceivedListener {
+
+    private static final String TAG = GroupMember.class.getSimpleName();
+
+    private static final int CLOCK_SYNC_REQUESTS = 4;
+
+    private final Executor executor;
+    private final MessageSender messageSender;
+    private final RpcEngine rpcEngine;
+    private final ReplicatedStore replicatedStore;
+    private final WroupMetrics metrics = new WroupMetrics();
+    private final Tracer tracer = new Tracer(false);
+    private final Map<String, WroupDevice> clientsConnected = new ConcurrentHashMap<>();
+    private final PeerDirectory peerDirectory = new PeerDirectory();
+    private final Set<String> subscriptions = new CopyOnWriteArraySet<>();
+    private final MessageIdGenerator messageIdGenerator = new MessageIdGenerator();
+    private final DeliveryTracker deliveryTracker = new DeliveryTracker();
+    private final MessageIdSequence messageIds = new MessageIdSequence();
+    private final DuplicateWindow duplicateWindow = new DuplicateWindow();
+    private final ReorderBuffer reorderBuffer = new ReorderBuffer();
+
+    private DataReceivedListener dataReceivedListener;
+    private ClientConnectedListener clientConnectedListener;
+    private ClientDisconnectedListener clientDisconnectedListener;
+    private RoutingListener routingListener;
+
+    private WroupDevice thisDevice;
+    private WroupDevice serviceDevice;
+    private ServerSocket serverSocket;
+    private volatile Outbox outbox;
+    private volatile boolean closing;
+    private volatile Integer peerId;
+    private volatile boolean totalOrder;
+    private volatile HistoryRequest historyRequest;
+    private volatile boolean historyRequested;
+    private volatile CountDownLatch disconnectionAck;
+
+    /**
+     * @param executor The executor used to send the messages in background.
+     */
+    public GroupMember(Executor executor) {
+        this.executor = executor;
+        this.messageSender = new MessageSender(executor, metrics, tracer);
+        this.rpcEngine = new RpcEngine(executor, new RpcTransport() {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                sendMessage(device, message);
+            }
+        });
+        this.replicatedStore = new ReplicatedStore(new ReplicationTransport() {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                sendMessage(device, message);
+            }
+
+            @Override
+            public void sendToAll(MessageWrapper message) {
+                // Out of the group the changes are sent by the synchronization of the next registration
+                if (serviceDevice != null && thisDevice != null) {
+                    sendMessageToAllClients(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Set the device of this client. A copy is kept, since the device of the node may be shared by
+     * other roles. The port of the server socket of this client is kept if the device given hasn't
+     * one.
+     *
+     * @param thisDevice The device of this node.
+     */
+    public void setThisDevice(WroupDevice thisDevice) {
+        WroupDevice ownDevice = null;
+        if (thisDevice != null) {
+            ownDevice = new WroupDevice(thisDevice);
+            WroupDevice previousDevice = this.thisDevice;
+            if (ownDevice.getDeviceServerSocketPort() == 0 && previousDevice != null) {
+                ownDevice.setDeviceServerSocketPort(previousDevice.getDeviceServerSocketPort());
+            }
+        }
+        this.thisDevice = ownDevice;
+        replicatedStore.setReplicaId(thisDevice != null ? thisDevice.getDeviceMac() : null);
+    }
+
+    public WroupDevice getThisDevice() {
+        return thisDevice;
+    }
+
+    public void setServiceDevice(WroupDevice serviceDevice) {
+        this.serviceDevice = serviceDevice;
+        if (serviceDevice != null) {
+            peerDirectory.put(PeerDirectory.GROUP_OWNER_ID, serviceDevice);
+        }
+    }
+
+    public WroupDevice getServiceDevice() {
+        return serviceDevice;
+    }
+
+    public void setDataReceivedListener(DataReceivedListener dataReceivedListener) {
+        this.dataReceivedListener = dataReceivedListener;
+    }
+
+    public void setClientConnectedListener(ClientConnectedListener clientConnectedListener) {
+        this.clientConnectedListener = clientConnectedListener;
+    }
+
+    public void setClientDisconnectedListener(ClientDisconnectedListener clientDisconnectedListener) {
+        this.clientDisconnectedListener = clientDisconnectedListener;
+    }
+
+    /**
+     * Set the listener of the routing messages, used by a {@link GroupBridge}
+     * which connects this group with another one.
+     */
+    public void setRoutingListener(RoutingListener routingListener) {
+        this.routingListener = routingListener;
+    }
+
+    /**
+     * Obtain the metrics of the messages sent and received by this device.
+     *
+     * @return the metrics of this device.
+     */
+    public WroupMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return true if the group owner sends the messages to all the group in total order.
+     */
+    public boolean isTotalOrder() {
+        return totalOrder;
+    }
+
+    /**
+     * Obtain the ids of the devices of the group, which resolve the senders of the messages received.
+     *
+     * @return the directory of the ids of the group.
+     */
+    public PeerDirectory getPeerDirectory() {
+        return peerDirectory;
+    }
+
+    /**
+     * Obtain the tracer of the messages sent and received by this device.
+     *
+     * @return the tracer of this device.
+     */
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Obtain the engine of the remote calls made and answered by this device.
+     *
+     * @return the RPC engine of this device.
+     */
+    public RpcEngine getRpcEngine() {
+        return rpcEngine;
+    }
+
+    /**
+     * Obtain the key-value store replicated in all the devices of the group. The changes made
+     * while this device was out of the group are synchronized when it registers again.
+     *
+     * @return the replicated store of this device.
+     */
+    public ReplicatedStore getReplicatedStore() {
+        return replicatedStore;
+    }
+
+    /**
+     * Keep the messages sent to the devices of the group on disk until they acknowledge them, so
+     * the messages sent while a device is disconnected are delivered when both are in the group
+     * again, even after a restart of the application. Only the messages sent to one device without
+     * a topic are kept.
+     *
+     * @param directory The directory of the outbox, which is created if it doesn't exist.
+     */
+    public void enableOutbox(File directory) {
+        if (outbox == null) {
+            outbox = new Outbox(directory, new OutboxTransport() {
+                @Override
+                public void send(WroupDevice device, MessageWrapper message) {
+                    // The messages kept on disk may carry the id of a previous group
+                    message.setSender(thisDevice, peerId);
+                    sendMessage(device, messageSender.prepare(message, 1));
+                }
+            });
+        }
+    }
+
+    /**
+     * Obtain the outbox of the messages sent to the devices of the group.
+     *
+     * @return the outbox of this device, or null if it isn't enabled.
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Obtain the devices connected to the actual group.
+     *
+     * @return the devices connected to the actual group.
+     */
+    public Collection<WroupDevice> getClientsConnected() {
+        return clientsConnected.values();
+    }
+
+    /**
+     * Accept the messages sent to the server socket until it's closed. This method blocks, so it
+     * must be called from a background thread.
+     *
+     * @param serverSocket The server socket of this device.
+     * @throws IOException If the server socket is closed or fails accepting connections.
+     */
+    public void listen(ServerSocket serverSocket) throws IOException {
+        this.serverSocket = serverSocket;
+        MessageReceiver messageReceiver = new MessageReceiver(serverSocket, this, metrics, tracer);
+        messageReceiver.setPeerDirectory(peerDirectory);
+        messageReceiver.receive();
+    }
+
+    /**
+     * Close the server socket and forget the devices connected to the group.
+     */
+    public void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+                WroupLog.i(TAG, "ServerSocket closed");
+            } catch (IOException e) {
+                WroupLog.e(TAG, "Error closing the serverSocket");
+            }
+        }
+
+        serverSocket = null;
+        messageSender.closeLinks();
+        rpcEngine.cancelAll();
+        clientsConnected.clear();
+        peerDirectory.clear();
+        peerId = null;
+        totalOrder = false;
+        historyRequested = false;
+        reorderBuffer.clear();
+        if (serviceDevice != null) {
+            peerDirectory.put(PeerDirectory.GROUP_OWNER_ID, serviceDevice);
+        }
+        tracer.getClockOffsetEstimator().reset();
+        metrics.setMembershipSize(0);
+
+        // The outbox keeps the messages until the devices are in the same group again
+        Outbox outbox = this.outbox;
+        if (outbox != null) {
+            outbox.onAllDevicesDisconnected();
+        }
+    }
+
+    /**
+     * Send the registration message to the group owner. The group owner will answer with the
+     * devices already registered in the group.
+     */
+    public void register() {
+        RegistrationMessageContent content = new RegistrationMessageContent();
+        content.setWroupDevice(thisDevice);
+        if (!subscriptions.isEmpty()) {
+            content.setSubscriptions(new ArrayList<>(subscriptions));
+        }
+        content.setHistory(historyRequest);
+        historyRequested = historyRequest != null;
+        if (historyRequested) {
+            duplicateWindow.startCatchUp();
+        }
+
+        Gson gson = MessageCodec.GSON;
+
+        MessageWrapper negotiationMessage = new MessageWrapper();
+        negotiationMessage.setMessageType(MessageWrapper.MessageType.CONNECTION_MESSAGE);
+        negotiationMessage.setMessage(gson.toJson(content));
+
+        sendMessageToServer(negotiationMessage);
+    }
+
+    /**
+     * Send the disconnection message to the group owner, which will notify the rest of the group.
+     */
+    public void unregister() {
+        DisconnectionMessageContent content = new DisconnectionMessageContent();
+        content.setWroupDevice(thisDevice);
+
+        Gson gson = MessageCodec.GSON;
+
+        MessageWrapper disconnectionMessage = new MessageWrapper();
+        disconnectionMessage.setMessageType(MessageWrapper.MessageType.DISCONNECTION_MESSAGE);
+        disconnectionMessage.setMessage(gson.toJson(content));
+
+        sendMessageToServer(disconnectionMessage);
+    }
+
+    /**
+     * Leave the group gracefully in background: the messages sent from now on are discarded, the
+     * ones already queued are sent, the disconnection message is sent to the group owner and, once
+     * it has acknowledged it, the sockets are closed. Whatever is left at the deadline is abandoned.
+     *
+     * @param timeoutMillis    The maximum time to leave the group.
+     * @param shutdownListener The listener notified when the sockets have been closed, or null.
+     */
+    public void shutdown(final long timeoutMillis, final ShutdownListener shutdownListener) {
+        closing = true;
+        // The wait has its own thread, so it doesn't hold one of the executor which sends the messages
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                boolean graceful = messageSender.drain(timeoutMillis);
+
+                if (serviceDevice != null && thisDevice != null) {
+                    CountDownLatch acknowledgement = new CountDownLatch(1);
+                    disconnectionAck = acknowledgement;
+                    unregister();
+                    try {
+                        long remainingNanos = Math.max(0, deadlineNanos - System.nanoTime());
+                        graceful &= acknowledgement.await(remainingNanos, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        graceful = false;
+                    }
+                    disconnectionAck = null;
+                }
+
+                close();
+                closing = false;
+                if (shutdownListener != null) {
+                    shutdownListener.onShutdownCompleted(graceful);
+                }
+            }
+        }, "wroup-shutdown").start();
+    }
+
+    /**
+     * @return true while the device is leaving the group and discarding the messages sent.
+     */
+    public boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Ask the group owner for the messages of the history of the group when this device registers.
+     * They are notified to the {@link DataReceivedListener} like the rest of the messages, except
+     * the copies of the ones already received. The group owner only sends them if its history is
+     * enabled. If the group sends its messages in total order, the messages of the history are
+     * notified in that order before the ones sent since this device registered.
+     *
+     * @param historyRequest The messages requested, or null to not ask for them.
+     */
+    public void setHistoryRequest(HistoryRequest historyRequest) {
+        this.historyRequest = historyRequest;
+    }
+
+    /**
+     * Subscribe to the messages published in the topics which match the pattern. The subscription
+     * is kept when the device registers again in a group.
+     *
+     * @param pattern A topic or a prefix followed by the wildcard, like <code>sensors/*</code>.
+     */
+    public void subscribe(String pattern) {
+        TopicPatterns.checkPattern(pattern);
+        if (subscriptions.add(pattern)) {
+            SubscriptionMessageContent content = new SubscriptionMessageContent();
+            content.setSubscribed(Collections.singletonList(pattern));
+            sendSubscriptionMessage(content);
+        }
+    }
+
+    /**
+     * Unsubscribe from a pattern.
+     *
+     * @param pattern The pattern used to subscribe.
+     */
+    public void unsubscribe(String pattern) {
+        if (subscriptions.remove(pattern)) {
+            SubscriptionMessageContent content = new SubscriptionMessageContent();
+            content.setUnsubscribed(Collections.singletonList(pattern));
+            sendSubscriptionMessage(content);
+        }
+    }
+
+    /**
+     * @return the patterns which this device is subscribed to.
+     */
+    public Set<String> getSubscriptions() {
+        return Collections.unmodifiableSet(subscriptions);
+    }
+
+    /**
+     * Publish a message in a topic. It's sent to the group owner, which sends it to the devices
+     * subscribed to the topic.
+     *
+     * @param topic   The topic of the message.
+     * @param message The message to be published.
+     */
+    public void publish(String topic, MessageWrapper message) {
+        TopicPatterns.checkTopic(topic);
+        message.setTopic(topic);
+        sendMessageToServer(message);
+    }
+
+    /**
+     * Send a message to a device of this group or of another group connected through bridges. The
+     * messages to other groups are sent to the group owner, which forwards them to a bridge.
+     *
+     * @param destinationMac The MAC address of the receiver of the message.
+     * @param message        The message to be sent.
+     */
+    public void sendRoutedMessage(String destinationMac, MessageWrapper message) {
+        WroupDevice device = getDevice(destinationMac);
+        if (device != null) {
+            sendMessage(device, message);
+            return;
+        }
+
+        message.setWroupDevice(thisDevice);
+        assignId(message);
+        RoutedMessageContent content = new RoutedMessageContent();
+        content.setMessageId(messageIdGenerator.next(thisDevice.getDeviceMac()));
+        content.setDestinationMac(destinationMac);
+        content.setTtl(RoutingTable.MAX_DISTANCE);
+        content.setMessage(message);
+        forwardRoutedMessage(content);
+    }
+
+    /**
+     * Send a routed message to the group owner, which forwards it to its destination.
+     *
+     * @param content The routed message.
+     */
+    public void forwardRoutedMessage(RoutedMessageContent content) {
+        MessageWrapper messageWrapper = new MessageWrapper();
+        messageWrapper.setMessageType(MessageWrapper.MessageType.ROUTED);
+        messageWrapper.setMessage(MessageCodec.GSON.toJson(content));
+        sendMessageToServer(messageWrapper);
+    }
+
+    /**
+     * Send a message to a device of the group keeping the device which sent it originally, instead
+     * of this device.
+     *
+     * @param device  The receiver of the message.
+     * @param message The message to be forwarded.
+     */
+    public void forwardMessage(WroupDevice device, MessageWrapper message) {
+        sendMessage(device, messageSender.prepare(message, 1));
+    }
+
+    /**
+     * Send to the group owner the devices which this device reaches as a bridge.
+     *
+     * @param distances The devices reachable and the bridges crossed to reach them.
+     */
+    public void sendRouteAdvertisement(Map<String, Integer> distances) {
+        RouteAdvertisementMessageContent content = new RouteAdvertisementMessageContent();
+        content.setDistances(distances);
+
+        MessageWrapper messageWrapper = new MessageWrapper();
+        messageWrapper.setMessageType(MessageWrapper.MessageType.ROUTE_ADVERTISEMENT);
+        messageWrapper.setMessage(MessageCodec.GSON.toJson(content));
+        sendMessageToServer(messageWrapper);
+    }
+
+    private void sendSubscriptionMessage(SubscriptionMessageContent content) {
+        // Before the registration the subscriptions are sent in the registration message
+        if (serviceDevice == null || thisDevice == null) {
+            return;
+        }
+
+        MessageWrapper subscriptionMessage = new MessageWrapper();
+        subscriptionMessage.setMessageType(MessageWrapper.MessageType.SUBSCRIPTION);
+        subscriptionMessage.setMessage(MessageCodec.GSON.toJson(content));
+
+        sendMessageToServer(subscriptionMessage);
+    }
+
+    /**
+     * Estimate the offset between the clock of this device and the group owner clock, which is used
+     * to compute the stages of the traced messages which cross devices. Several requests are sent
+     * and the one with the lowest round trip delay is used.
+     */
+    public void synchronizeClock() {
+        for (int i = 0; i < CLOCK_SYNC_REQUESTS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ClockSyncMessageContent content = new ClockSyncMessageContent();
+                    content.setOriginateMicros(tracer.localMicros());
+
+                    MessageWrapper messageWrapper = new MessageWrapper();
+                    messageWrapper.setMessageType(MessageWrapper.MessageType.CLOCK_SYNC_REQUEST);
+                    messageWrapper.setMessage(MessageCodec.GSON.toJson(content));
+                    messageWrapper.setSender(thisDevice, peerId);
+
+                    messageSender.sendWithRetries(serviceDevice, messageWrapper);
+                }
+            });
+        }
+    }
+
+    /**
+     * Send a message to the service device.
+     *
+     * @param message The message to be sent.
+     */
+    public void sendMessageToServer(MessageWrapper message) {
+        sendMessage(serviceDevice, message);
+    }
+
+    /**
+     * Send a message to all the devices connected to the group, including the service device.
+     *
+     * @param message The message to be sent.
+     */
+    public void sendMessageToAllClients(MessageWrapper message) {
+        if (totalOrder && MessageWrapper.MessageType.NORMAL.equals(message.getMessageType()) && message.getTopic() == null) {
+            // The group owner stamps the message and sends it to all the group, this device included
+            message.setSender(thisDevice, peerId);
+            message.setOrdered(true);
+            assignId(message);
+            sendMessage(serviceDevice, messageSender.prepare(message, 1));
+            return;
+        }
+
+        List<WroupDevice> devices = new ArrayList<>();
+        devices.add(serviceDevice);
+        for (WroupDevice device : clientsConnected.values()) {
+            if (!device.getDeviceMac().equals(thisDevice.getDeviceMac())) {
+                devices.add(device);
+            }
+        }
+
+        // The message is encoded once for all the devices
+        message.setSender(thisDevice, peerId);
+        message.setBroadcast(true);
+        message.setOrdered(false);
+        assignId(message);
+        EncodedMessage encodedMessage = messageSender.prepare(message, devices.size());
+        for (WroupDevice device : devices) {
+            sendMessage(device, encodedMessage);
+        }
+    }
+
+    /**
+     * Send a message in background to the desired device who it's connected in the group.
+     *
+     * @param device  The receiver of the message.
+     * @param message The message to be sent.
+     */
+    public void sendMessage(final WroupDevice device, final MessageWrapper message) {
+        // Set the actual device to the message
+        message.setSender(thisDevice, peerId);
+        // The message may have been sent to all the group before, but this time it's private
+        message.setBroadcast(false);
+        message.setOrdered(false);
+        assignId(message);
+
+        Outbox outbox = this.outbox;
+        if (outbox != null && !closing && MessageWrapper.MessageType.NORMAL.equals(message.getMessageType()) && message.getTopic() == null) {
+            outbox.send(device, message);
+            return;
+        }
+        sendMessage(device, messageSender.prepare(message, 1));
+    }
+
+    private void sendMessage(WroupDevice device, EncodedMessage encodedMessage) {
+        if (closing && !MessageWrapper.MessageType.DISCONNECTION_MESSAGE.equals(encodedMessage.getMessage().getMessageType())) {
+            // The device is leaving the group, only the disconnection is sent
+            encodedMessage.release();
+            WroupLog.w(TAG, "Discarded {} sent while leaving the group", encodedMessage.getMessage().getMessageType());
+            return;
+        }
+        TraceContext trace = MessageWrapper.MessageType.NORMAL.equals(encodedMessage.getMessage().getMessageType()) ? tracer.newTraceContext() : null;
+        messageSender.enqueue(device, encodedMessage, trace);
+    }
+
+    @Override
+    public void onMessageReceived(MessageWrapper messageWrapper, InetAddress fromAddress) {
+        if (MessageWrapper.MessageType.CONNECTION_MESSAGE.equals(messageWrapper.getMessageType())) {
+            Gson gson = MessageCodec.GSON;
+
+            String messageContentStr = messageWrapper.getMessage();
+            RegistrationMessageContent registrationMessageContent = gson.fromJson(messageContentStr, RegistrationMessageContent.class);
+            WroupDevice device = registrationMessageContent.getWroupDevice();
+            clientsConnected.put(device.getDeviceMac(), device);
+            if (device.getPeerId() != null) {
+                peerDirectory.put(device.getPeerId(), device);
+            }
+            metrics.setMembershipSize(clientsConnected.size());
+
+            if (clientConnectedListener != null) {
+                clientConnectedListener.onClientConnected(device);
+            }
+
+            Outbox outbox = this.outbox;
+            if (outbox != null) {
+                outbox.onDeviceConnected(device);
+            }
+
+            WroupLog.d(TAG, "New client connected to the group: {} ({}) at {}:{}", device.getDeviceName(), device.getDeviceMac(),
+                    device.getDeviceServerSocketIP(), device.getDeviceServerSocketPort());
+        } else if (MessageWrapper.MessageType.DISCONNECTION_MESSAGE.equals(messageWrapper.getMessageType())) {
+            Gson gson = MessageCodec.GSON;
+
+            String messageContentStr = messageWrapper.getMessage();
+            DisconnectionMessageContent disconnectionMessageContent = gson.fromJson(messageContentStr, DisconnectionMessageContent.class);
+            WroupDevice device = disconnectionMessageContent.getWroupDevice();
+            WroupDevice registeredDevice = clientsConnected.remove(device.getDeviceMac());
+            peerDirectory.remove(device.getDeviceMac());
+            messageSender.closeLink(registeredDevice != null ? registeredDevice : device);
+            metrics.setMembershipSize(clientsConnected.size());
+
+            if (clientDisconnectedListener != null) {
+                clientDisconnectedListener.onClientDisconnected(device);
+            }
+
+            Outbox outbox = this.outbox;
+            if (outbox != null) {
+                outbox.onDeviceDisconnected(device.getDeviceMac());
+            }
+
+            WroupLog.d(TAG, "Client disconnected from the group: {} ({}) at {}:{}", device.getDeviceName(), device.getDeviceMac(),
+                    device.getDeviceServerSocketIP(), device.getDeviceServerSocketPort());
+        } else if (MessageWrapper.MessageType.DISCONNECTION_ACK.equals(messageWrapper.getMessageType())) {
+            CountDownLatch acknowledgement = disconnectionAck;
+            if (acknowledgement != null) {
+                acknowledgement.countDown();
+            }
+        } else if (MessageWrapper.MessageType.REGISTERED_DEVICES.equals(messageWrapper.getMessageType())) {
+            Gson gson = MessageCodec.GSON;
+
+            String messageContentStr = messageWrapper.getMessage();
+            RegisteredDevicesMessageContent registeredDevicesMessageContent = gson.fromJson(messageContentStr, RegisteredDevicesMessageContent.class);
+            List<WroupDevice> devicesConnected = registeredDevicesMessageContent.getDevicesRegistered();
+
+            // From now on the messages of this device carry the id assigned by the group owner
+            peerId = registeredDevicesMessageContent.getPeerId();
+            if (peerId != null) {
+                // The messages of this device sent in total order are received back
+                peerDirectory.put(peerId, thisDevice);
+            }
+            for (WroupDevice device : devicesConnected) {
+                clientsConnected.put(device.getDeviceMac(), device);
+                if (device.getPeerId() != null) {
+                    peerDirectory.put(device.getPeerId(), device);
+                }
+                WroupLog.d(TAG, "Client already connected to the group: {} ({}) at {}:{}", device.getDeviceName(), device.getDeviceMac(),
+                        device.getDeviceServerSocketIP(), device.getDeviceServerSocketPort());
+            }
+            metrics.setMembershipSize(clientsConnected.size());
+
+            // The messages stamped before the registration was received are delivered now, or after
+            // the history if it has been requested
+            Long nextSequence = registeredDevicesMessageContent.getNextSequence();
+            totalOrder = nextSequence != null;
+            if (totalOrder && !historyRequested) {
+                deliver(reorderBuffer.reset(nextSequence));
+            }
+
+            // The group owner has registered this device, so it can answer the clock sync requests
+            if (tracer.isEnabled()) {
+                synchronizeClock();
+            }
+            replicatedStore.synchronize(serviceDevice);
+
+            // The messages kept while this device was out of the group are sent now
+            Outbox outbox = this.outbox;
+            if (outbox != null) {
+                outbox.onDeviceConnected(serviceDevice);
+                for (WroupDevice device : devicesConnected) {
+                    outbox.onDeviceConnected(device);
+                }
+            }
+        } else if (MessageWrapper.MessageType.HISTORY.equals(messageWrapper.getMessageType())) {
+            HistoryMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), HistoryMessageContent.class);
+            if (content == null || content.getMessages() == null) {
+                return;
+            }
+
+            if (content.getNextSequence() != null) {
+                // In the order of the group, before the messages received live which have been kept
+                deliver(reorderBuffer.catchUp(content.getMessages(), content.getNextSequence()));
+                return;
+            }
+
+            // The messages received live while the history was sent are discarded as copies
+            for (MessageWrapper message : content.getMessages()) {
+                if (!isDuplicateFromHistory(message) && dataReceivedListener != null) {
+                    dataReceivedListener.onDataReceived(message);
+                }
+            }
+        } else if (MessageWrapper.MessageType.CLOCK_SYNC_RESPONSE.equals(messageWrapper.getMessageType())) {
+            long responseReceivedMicros = tracer.localMicros();
+            ClockSyncMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), ClockSyncMessageContent.class);
+            tracer.getClockOffsetEstimator().addSample(content.getOriginateMicros(), content.getReceiveMicros(),
+                    content.getTransmitMicros(), responseReceivedMicros);
+        } else if (MessageWrapper.MessageType.RPC_REQUEST.equals(messageWrapper.getMessageType())) {
+            WroupDevice caller = messageWrapper.getWroupDevice() != null ? getDevice(messageWrapper.getWroupDevice().getDeviceMac()) : null;
+            rpcEngine.onRequest(messageWrapper, caller);
+        } else if (MessageWrapper.MessageType.RPC_RESPONSE.equals(messageWrapper.getMessageType())) {
+            rpcEngine.onResponse(messageWrapper);
+        } else if (MessageWrapper.MessageType.STATE_DELTA.equals(messageWrapper.getMessageType())) {
+            replicatedStore.onDelta(messageWrapper);
+        } else if (MessageWrapper.MessageType.STATE_SYNC.equals(messageWrapper.getMessageType())) {
+            WroupDevice device = messageWrapper.getWroupDevice() != null ? getDevice(messageWrapper.getWroupDevice().getDeviceMac()) : null;
+            replicatedStore.onSync(messageWrapper, device);
+        } else if (MessageWrapper.MessageType.OUTBOX_ACK.equals(messageWrapper.getMessageType())) {
+            Outbox outbox = this.outbox;
+            OutboxAckMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), OutboxAckMessageContent.class);
+            if (outbox != null && content != null && messageWrapper.getWroupDevice() != null) {
+                outbox.onAcknowledgement(messageWrapper.getWroupDevice().getDeviceMac(), content);
+            }
+        } else if (MessageWrapper.MessageType.ROUTED.equals(messageWrapper.getMessageType())
+                || MessageWrapper.MessageType.ROUTE_ADVERTISEMENT.equals(messageWrapper.getMessageType())) {
+            if (routingListener != null) {
+                routingListener.onRoutingMessageReceived(messageWrapper);
+            }
+        } else {
+            if (isDuplicate(messageWrapper)) {
+                return;
+            }
+
+            if (messageWrapper.getSequence() != null) {
+                long skipped = reorderBuffer.getMessagesSkipped();
+                deliver(reorderBuffer.offer(messageWrapper));
+                if (reorderBuffer.getMessagesSkipped() != skipped) {
+                    WroupLog.w(TAG, "Skipped {} messages of the group which never arrived", reorderBuffer.getMessagesSkipped() - skipped);
+                }
+                return;
+            }
+
+            if (dataReceivedListener != null) {
+                dataReceivedListener.onDataReceived(messageWrapper);
+            }
+        }
+    }
+
+    private void deliver(List<MessageWrapper> messages) {
+        if (dataReceivedListener != null) {
+            for (MessageWrapper message : messages) {
+                dataReceivedListener.onDataReceived(message);
+            }
+        }
+    }
+
+    /**
+     * Check if a data message is a copy of one already received. The messages of an outbox are
+     * acknowledged and checked by their position in it, and the rest by their id.
+     */
+    private boolean isDuplicate(MessageWrapper message) {
+        boolean duplicate;
+        if (message.getOutboxStamp() != null) {
+            duplicate = !acceptFromOutbox(message);
+        } else {
+            duplicate = !duplicateWindow.accept(message);
+        }
+        if (duplicate) {
+            metrics.onDuplicateDiscarded();
+        }
+        return duplicate;
+    }
+
+    /**
+     * Check if a message of the history of the group is a copy of one already received, before
+     * this device registered or live since then.
+     */
+    private boolean isDuplicateFromHistory(MessageWrapper message) {
+        boolean duplicate = !duplicateWindow.acceptFromHistory(message);
+        if (duplicate) {
+            metrics.onDuplicateDiscarded();
+        }
+        return duplicate;
+    }
+
+    /**
+     * Give a new id to a data message sent by this device, so the receivers can discard its
+     * copies.
+     */
+    private void assignId(MessageWrapper message) {
+        if (MessageWrapper.MessageType.NORMAL.equals(message.getMessageType())) {
+            message.setId(messageIds.next());
+        }
+    }
+
+    /**
+     * Acknowledge a message sent from the outbox of a device of the group.
+     *
+     * @return true if the message must be delivered, false if it's a duplicate.
+     */
+    private boolean acceptFromOutbox(MessageWrapper message) {
+        WroupDevice sender = message.getWroupDevice() != null ? getDevice(message.getWroupDevice().getDeviceMac()) : null;
+        if (sender == null) {
+            return true;
+        }
+
+        boolean accepted = deliveryTracker.accept(sender.getDeviceMac(), message.getOutboxStamp());
+        OutboxAckMessageContent content = new OutboxAckMessageContent();
+        content.setEpoch(message.getOutboxStamp().getEpoch());
+        content.setSequence(deliveryTracker.getAcknowledged(sender.getDeviceMac()));
+
+        MessageWrapper ack = new MessageWrapper();
+        ack.setMessageType(MessageWrapper.MessageType.OUTBOX_ACK);
+        ack.setMessage(MessageCodec.GSON.toJson(content));
+        sendMessage(sender, ack);
+        return accepted;
+    }
+
+    /**
+     * Find a device of the group: the service device or one of the clients.
+     *
+     * @param deviceMac The MAC address of the device.
+     * @return the device with its server socket address, or null if it isn't in the group.
+     */
+    public WroupDevice getDevice(String deviceMac) {
+        if (deviceMac == null) {
+            return null;
+        }
+        if (serviceDevice != null && deviceMac.equals(serviceDevice.getDeviceMac())) {
+            return serviceDevice;
+        }
+        return clientsConnected.get(deviceMac);
+    }
+
+}
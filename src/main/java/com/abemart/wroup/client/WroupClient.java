@@ -11,43 +11,53 @@ import android.net.wifi.p2p.WifiP2pManager.DnsSdTxtRecordListener;
 import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
 import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
 import android.os.AsyncTask;
-import android.os.Handler;
-import android.util.Log;
 
 import com.abemart.wroup.common.WiFiP2PError;
 import com.abemart.wroup.common.WiFiP2PInstance;
 import com.abemart.wroup.common.WroupDevice;
 import com.abemart.wroup.common.WroupServiceDevice;
+import com.abemart.wroup.common.advertisement.MetadataCache;
+import com.abemart.wroup.common.advertisement.ServiceAdvertisement;
 import com.abemart.wroup.common.direct.WiFiDirectUtils;
+import com.abemart.wroup.common.history.HistoryRequest;
+import com.abemart.wroup.common.listeners.CallbackListeners;
 import com.abemart.wroup.common.listeners.ClientDisconnectedListener;
 import com.abemart.wroup.common.listeners.ClientConnectedListener;
 import com.abemart.wroup.common.listeners.DataReceivedListener;
+import com.abemart.wroup.common.listeners.MetricsListener;
 import com.abemart.wroup.common.listeners.PeerConnectedListener;
+import com.abemart.wroup.common.listeners.RpcRequestListener;
+import com.abemart.wroup.common.listeners.RpcResponseListener;
 import com.abemart.wroup.common.listeners.ServiceConnectedListener;
 import com.abemart.wroup.common.listeners.ServiceDisconnectedListener;
 import com.abemart.wroup.common.listeners.ServiceDiscoveredListener;
-import com.abemart.wroup.common.messages.DisconnectionMessageContent;
+import com.abemart.wroup.common.listeners.ServiceMetadataListener;
+import com.abemart.wroup.common.listeners.ShutdownListener;
+import com.abemart.wroup.common.listeners.TracingListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageCodec;
 import com.abemart.wroup.common.messages.MessageWrapper;
-import com.abemart.wroup.common.messages.RegisteredDevicesMessageContent;
-import com.abemart.wroup.common.messages.RegistrationMessageContent;
+import com.abemart.wroup.common.metrics.MetricsSnapshot;
+import com.abemart.wroup.common.replication.ReplicatedStore;
+import com.abemart.wroup.common.rpc.RpcEngine;
+import com.abemart.wroup.common.rpc.RpcError;
 import com.abemart.wroup.service.WroupService;
-import com.google.gson.Gson;
-
-import org.apache.commons.io.IOUtils;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
- * Singleton class acting as a client device.
+ * Class acting as a client device.
  * <p>
  * Wroup Library will allow you to create a "Server" device and multiple "Client" devices. The
  * {@link WroupService} can register a service which could be discover by the multiple client
@@ -58,9 +68,14 @@ import java.util.Map;
  * the same local network but only a WroupClient instance will found services registered by a
  * WroupService device.
  * <p>
+ * The clients are created with a {@link Builder}, which configures the executors and the delays of
+ * each one, so a process can run many of them. The steps of the discovery and the connection run in
+ * the thread of the <code>WiFiP2PInstance</code>, and the listeners of the client are called in its
+ * callback executor, the main thread by default.
+ * <p>
  * To discover the Wroup services registered you only need to do the following:
  * <pre>
- * {@code wiFiP2PClient = WroupClient.getInstance(getApplicationContext());
+ * {@code wiFiP2PClient = new WroupClient.Builder(getApplicationContext()).build();
  * wiFiP2PClient.discoverServices(5000L, new ServiceDiscoveredListener() {
  *
  *  public void onNewServiceDeviceDiscovered(WroupServiceDevice serviceDevice) {
@@ -88,39 +103,54 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
 
     private static WroupClient instance;
 
-    private List<WroupServiceDevice> serviceDevices = new ArrayList<>();
+
+    private final List<WroupServiceDevice> serviceDevices = new CopyOnWriteArrayList<>();
+    private final MetadataCache metadataCache = new MetadataCache();
 
     private DnsSdTxtRecordListener dnsSdTxtRecordListener;
     private DnsSdServiceResponseListener dnsSdServiceResponseListener;
     private ServiceConnectedListener serviceConnectedListener;
-    private DataReceivedListener dataReceivedListener;
     private ServiceDisconnectedListener serviceDisconnectedListener;
-    private ClientConnectedListener clientConnectedListener;
-    private ClientDisconnectedListener clientDisconnectedListener;
 
     private ServerSocket serverSocket;
 
-    private WiFiP2PInstance wiFiP2PInstance;
-    private WroupDevice serviceDevice;
-    private Map<String, WroupDevice> clientsConnected;
-    private Boolean isRegistered = false;
-
-    private WroupClient(Context context) {
-        wiFiP2PInstance = WiFiP2PInstance.getInstance(context);
-        wiFiP2PInstance.setPeerConnectedListener(this);
-        wiFiP2PInstance.setServerDisconnectedListener(this);
-        this.clientsConnected = new HashMap<>();
+    private final WiFiP2PInstance wiFiP2PInstance;
+    private final int serverPort;
+    private final Executor executor;
+    private final Executor callbackExecutor;
+    private final long registrationDelayMillis;
+    private final long disconnectionTimeoutMillis;
+    private volatile WroupDevice serviceDevice;
+    private final GroupMember groupMember;
+    private volatile boolean isRegistered = false;
+
+    private WroupClient(Builder builder) {
+        wiFiP2PInstance = builder.wiFiP2PInstance != null ? builder.wiFiP2PInstance : WiFiP2PInstance.getInstance(builder.context);
+        serverPort = builder.serverPort;
+        executor = builder.executor;
+        callbackExecutor = builder.callbackExecutor != null ? builder.callbackExecutor : wiFiP2PInstance.getCallbackExecutor();
+        registrationDelayMillis = builder.registrationDelayMillis;
+        disconnectionTimeoutMillis = builder.disconnectionTimeoutMillis;
+        groupMember = new GroupMember(executor);
+        if (builder.rpcCallbackExecutor != null) {
+            groupMember.getRpcEngine().setCallbackExecutor(builder.rpcCallbackExecutor);
+        }
+        wiFiP2PInstance.addPeerConnectedListener(this);
+        wiFiP2PInstance.addServerDisconnectedListener(this);
     }
 
     /**
-     * Return the WroupClient instance. If the instance doesn't exist yet, it's created and returned.
+     * Return the WroupClient shared by the application. If the instance doesn't exist yet, it's
+     * created with the default configuration and returned.
      *
      * @param context The application context.
-     * @return The actual WroupClient instance.
+     * @return The shared WroupClient instance.
+     * @deprecated Create the clients with a {@link Builder}.
      */
-    public static WroupClient getInstance(Context context) {
+    @Deprecated
+    public static synchronized WroupClient getInstance(Context context) {
         if (instance == null && context != null) {
-            instance = new WroupClient(context);
+            instance = new Builder(context).build();
         }
         return instance;
     }
@@ -149,14 +179,14 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
 
             @Override
             public void onSuccess() {
-                Log.d(TAG, "Success adding service request");
+                WroupLog.d(TAG, "Success adding service request");
             }
 
             @Override
             public void onFailure(int reason) {
                 WiFiP2PError wiFiP2PError = WiFiP2PError.fromReason(reason);
-                Log.e(TAG, "Error adding service request. Reason: " + WiFiP2PError.fromReason(reason));
-                serviceDiscoveredListener.onError(wiFiP2PError);
+                WroupLog.e(TAG, "Error adding service request. Reason: {}", WiFiP2PError.fromReason(reason));
+                notifyError(serviceDiscoveredListener, wiFiP2PError);
             }
 
         });
@@ -165,25 +195,30 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
 
             @Override
             public void onSuccess() {
-                Log.d(TAG, "Success initiating disconvering services");
+                WroupLog.d(TAG, "Success initiating disconvering services");
             }
 
             @Override
             public void onFailure(int reason) {
                 WiFiP2PError wiFiP2PError = WiFiP2PError.fromReason(reason);
                 if (wiFiP2PError != null) {
-                    Log.e(TAG, "Error discovering services. Reason: " + wiFiP2PError.name());
-                    serviceDiscoveredListener.onError(wiFiP2PError);
+                    WroupLog.e(TAG, "Error discovering services. Reason: {}", wiFiP2PError.name());
+                    notifyError(serviceDiscoveredListener, wiFiP2PError);
                 }
             }
 
         });
 
-        Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
+        wiFiP2PInstance.getHandler().postDelayed(new Runnable() {
             @Override
             public void run() {
-                serviceDiscoveredListener.onFinishServiceDeviceDiscovered(serviceDevices);
+                final List<WroupServiceDevice> discovered = new ArrayList<>(serviceDevices);
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serviceDiscoveredListener.onFinishServiceDeviceDiscovered(discovered);
+                    }
+                });
             }
         }, discoveringTimeInMillis);
     }
@@ -203,6 +238,7 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
      */
     public void connectToService(final WroupServiceDevice serviceDevice, ServiceConnectedListener serviceConnectedListener) {
         this.serviceDevice = serviceDevice;
+        this.groupMember.setServiceDevice(serviceDevice);
         this.serviceConnectedListener = serviceConnectedListener;
 
         WifiP2pConfig wifiP2pConfig = new WifiP2pConfig();
@@ -211,14 +247,66 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
         wiFiP2PInstance.getWifiP2pManager().connect(wiFiP2PInstance.getChannel(), wifiP2pConfig, new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
-                Log.i(TAG, "Initiated connection to device: ");
-                Log.i(TAG, "\tDevice name: " + serviceDevice.getDeviceName());
-                Log.i(TAG, "\tDevice address: " + serviceDevice.getDeviceMac());
+                WroupLog.i(TAG, "Initiated connection to device: {} ({})", serviceDevice.getDeviceName(), serviceDevice.getDeviceMac());
             }
 
             @Override
             public void onFailure(int reason) {
-                Log.e(TAG, "Fail initiation connection. Reason: " + WiFiP2PError.fromReason(reason));
+                WroupLog.e(TAG, "Fail initiation connection. Reason: {}", WiFiP2PError.fromReason(reason));
+            }
+        });
+    }
+
+    /**
+     * Obtain the extended metadata of the service connected, the custom properties of its
+     * registration. The services only advertise the hash of their metadata, so it's fetched from
+     * the group owner the first time it's needed, and cached by its hash for all the clients of
+     * the process. The listener is called in the callback executor.
+     *
+     * @param timeoutMillis           The time to wait for the group owner if it isn't cached.
+     * @param serviceMetadataListener The listener notified with the metadata or the error.
+     */
+    public void fetchServiceMetadata(long timeoutMillis, final ServiceMetadataListener serviceMetadataListener) {
+        WroupDevice device = serviceDevice;
+        ServiceAdvertisement advertisement = device instanceof WroupServiceDevice ? ((WroupServiceDevice) device).getAdvertisement() : null;
+
+        Map<String, String> metadata = null;
+        if (advertisement != null && advertisement.getLegacyMetadata() != null) {
+            metadata = advertisement.getLegacyMetadata();
+        } else if (advertisement != null && advertisement.getMetadataHash() == null) {
+            metadata = Collections.emptyMap();
+        } else if (advertisement != null) {
+            metadata = metadataCache.get(advertisement.getMetadataHash());
+        }
+
+        if (metadata != null) {
+            notifyMetadata(serviceMetadataListener, metadata);
+            return;
+        }
+
+        groupMember.getRpcEngine().call(groupMember.getServiceDevice(), WroupService.METADATA_METHOD, null, timeoutMillis, new RpcResponseListener() {
+            @Override
+            public void onRpcResponse(String result) {
+                Map<String, String> fetched;
+                try {
+                    fetched = MessageCodec.GSON.fromJson(result, new TypeToken<Map<String, String>>() {
+                    }.getType());
+                } catch (JsonParseException e) {
+                    onRpcError(RpcError.HANDLER_FAILED, "Invalid metadata: " + e.getMessage());
+                    return;
+                }
+                notifyMetadata(serviceMetadataListener, metadataCache.put(fetched != null ? fetched : Collections.<String, String>emptyMap()));
+            }
+
+            @Override
+            public void onRpcError(final RpcError rpcError, final String message) {
+                WroupLog.e(TAG, "Error fetching the metadata of the service: {} {}", rpcError, message);
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serviceMetadataListener.onMetadataError(rpcError, message);
+                    }
+                });
             }
         });
     }
@@ -226,11 +314,12 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
     /**
      * Set the listener to know when data is received from the service device or other client devices
      * connected to the same group.
+     * The listener is called in the callback executor.
      *
      * @param dataReceivedListener The <code>DataReceivedListener</code> to notify data entries.
      */
     public void setDataReceivedListener(DataReceivedListener dataReceivedListener) {
-        this.dataReceivedListener = dataReceivedListener;
+        groupMember.setDataReceivedListener(CallbackListeners.dataReceived(callbackExecutor, dataReceivedListener));
     }
 
     /**
@@ -250,7 +339,7 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
      *                                 connections in the group.
      */
     public void setClientConnectedListener(ClientConnectedListener clientConnectedListener) {
-        this.clientConnectedListener = clientConnectedListener;
+        groupMember.setClientConnectedListener(CallbackListeners.clientConnected(callbackExecutor, clientConnectedListener));
     }
 
     /**
@@ -260,48 +349,112 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
      *                                   client disconnections.
      */
     public void setClientDisconnectedListener(ClientDisconnectedListener clientDisconnectedListener) {
-        this.clientDisconnectedListener = clientDisconnectedListener;
+        groupMember.setClientDisconnectedListener(CallbackListeners.clientDisconnected(callbackExecutor, clientDisconnectedListener));
+    }
+
+    /**
+     * Obtain a snapshot of the metrics of the messages sent and received by this device.
+     *
+     * @return the actual values of the metrics.
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return groupMember.getMetrics().snapshot();
+    }
+
+    /**
+     * Set the listener to receive periodically a snapshot of the metrics of this device. The
+     * listener is called from a background thread.
+     *
+     * @param metricsListener The <code>MetricsListener</code> to notify the metrics, or null to
+     *                        stop the notifications.
+     * @param periodMillis    The time in milliseconds between two notifications.
+     */
+    public void setMetricsListener(MetricsListener metricsListener, long periodMillis) {
+        groupMember.getMetrics().startReporting(metricsListener, periodMillis);
+    }
+
+    /**
+     * Set the listener to receive the breakdown of every message received from other devices of
+     * the group: queueing, connection, serialization, transmission, decoding and dispatch times.
+     * Setting a listener enables the tracing of the messages sent by this device too. The listener
+     * is called from a background thread.
+     *
+     * @param tracingListener The <code>TracingListener</code> to notify the traces, or null to
+     *                        disable the tracing.
+     */
+    public void setTracingListener(TracingListener tracingListener) {
+        groupMember.getTracer().setTracingListener(tracingListener);
+
+        if (tracingListener != null && isRegistered) {
+            groupMember.synchronizeClock();
+        }
+    }
+
+    /**
+     * Estimate again the offset between the clock of this device and the group owner clock. The
+     * offset is estimated when the device is registered in the group if the tracing is enabled, but
+     * the clocks drift over time.
+     */
+    public void synchronizeClock() {
+        groupMember.synchronizeClock();
     }
 
     @Override
     public void onPeerConnected(WifiP2pInfo wifiP2pInfo) {
-        Log.i(TAG, "OnPeerConnected...");
+        WroupLog.i(TAG, "OnPeerConnected...");
 
         if (wifiP2pInfo.groupFormed && wifiP2pInfo.isGroupOwner) {
-            Log.e(TAG, "I shouldn't be the group owner, I'am a client!");
+            WroupLog.e(TAG, "I shouldn't be the group owner, I'am a client!");
         }
 
         if (wifiP2pInfo.groupFormed && serviceDevice != null && !isRegistered) {
             serviceDevice.setDeviceServerSocketIP(wifiP2pInfo.groupOwnerAddress.getHostAddress());
-            Log.i(TAG, "The Server Address is: " + wifiP2pInfo.groupOwnerAddress.getHostAddress());
+            WroupLog.i(TAG, "The Server Address is: {}", wifiP2pInfo.groupOwnerAddress.getHostAddress());
 
             // We are connected to the server. Create a server socket to receive messages
             createServerSocket();
 
             // FIXME - Change this into a server socket creation listener or similar
-            // Wait 2 seconds for the server socket creation
-            Handler handler = new Handler();
-            handler.postDelayed(new Runnable() {
+            // Wait for the server socket creation
+            wiFiP2PInstance.getHandler().postDelayed(new Runnable() {
                 public void run() {
                     // We send the negotiation message to the server
-                    sendServerRegistrationMessage();
-                    if (serviceConnectedListener != null) {
-                        serviceConnectedListener.onServiceConnected(serviceDevice);
-                    }
-
+                    groupMember.register();
                     isRegistered = true;
+
+                    final ServiceConnectedListener listener = serviceConnectedListener;
+                    final WroupDevice device = serviceDevice;
+                    if (listener != null && device != null) {
+                        callbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onServiceConnected(device);
+                            }
+                        });
+                    }
                 }
-            }, 2000);
+            }, registrationDelayMillis);
         }
     }
 
     @Override
     public void onServerDisconnectedListener() {
-        // If the server is disconnected the client is cleared
-        disconnect();
+        // The WiFiP2PInstance can be shared with clients which aren't connected to a service
+        if (serviceDevice == null) {
+            return;
+        }
+
+        // If the server is disconnected the client is cleared, there is nobody to acknowledge it
+        disconnect(0, null);
 
-        if (serviceDisconnectedListener != null) {
-            serviceDisconnectedListener.onServerDisconnectedListener();
+        final ServiceDisconnectedListener listener = serviceDisconnectedListener;
+        if (listener != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onServerDisconnectedListener();
+                }
+            });
         }
     }
 
@@ -311,7 +464,7 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
      * @param message The message to be sent.
      */
     public void sendMessageToServer(MessageWrapper message) {
-        sendMessage(serviceDevice, message);
+        groupMember.sendMessageToServer(message);
     }
 
     /**
@@ -320,13 +473,7 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
      * @param message The message to be sent.
      */
     public void sendMessageToAllClients(MessageWrapper message) {
-        sendMessageToServer(message);
-
-        for (WroupDevice device : clientsConnected.values()) {
-            if (!device.getDeviceMac().equals(wiFiP2PInstance.getThisDevice().getDeviceMac())) {
-                sendMessage(device, message);
-            }
-        }
+        groupMember.sendMessageToAllClients(message);
     }
 
     /**
@@ -336,70 +483,226 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
      * @param message The message to be sent.
      */
     public void sendMessage(final WroupDevice device, MessageWrapper message) {
-        // Set the actual device to the message
-        message.setWroupDevice(wiFiP2PInstance.getThisDevice());
+        groupMember.sendMessage(device, message);
+    }
 
-        new AsyncTask<MessageWrapper, Void, Void>() {
-            @Override
-            protected Void doInBackground(MessageWrapper... params) {
-                if (device != null && device.getDeviceServerSocketIP() != null) {
-                    try {
-                        Socket socket = new Socket();
-                        socket.bind(null);
+    /**
+     * Send a message to a device which may be in another group, connected to this one through
+     * bridges. If it isn't in this group the service device forwards it along its route.
+     *
+     * @param destinationMac The MAC address of the receiver of the message.
+     * @param message        The message to be sent.
+     */
+    public void sendRoutedMessage(String destinationMac, MessageWrapper message) {
+        groupMember.sendRoutedMessage(destinationMac, message);
+    }
 
-                        InetSocketAddress hostAddres = new InetSocketAddress(device.getDeviceServerSocketIP(), device.getDeviceServerSocketPort());
-                        socket.connect(hostAddres, 2000);
+    /**
+     * Publish a message in a topic. The service device sends it only to the devices subscribed to
+     * a pattern which matches the topic.
+     *
+     * @param topic   The topic of the message, like <code>sensors/temperature</code>.
+     * @param message The message to be published.
+     */
+    public void publish(String topic, MessageWrapper message) {
+        groupMember.publish(topic, message);
+    }
 
-                        Gson gson = new Gson();
-                        String messageJson = gson.toJson(params[0]);
+    /**
+     * Subscribe to the messages published in the topics which match the pattern. They are received
+     * in the <code>DataReceivedListener</code>. The subscriptions made before connecting to a
+     * service are declared in the registration.
+     *
+     * @param pattern A topic or a prefix followed by '*', like <code>sensors/*</code>.
+     */
+    public void subscribe(String pattern) {
+        groupMember.subscribe(pattern);
+    }
 
-                        OutputStream outputStream = socket.getOutputStream();
-                        outputStream.write(messageJson.getBytes(), 0, messageJson.getBytes().length);
+    /**
+     * Unsubscribe from a pattern.
+     *
+     * @param pattern The pattern used to subscribe.
+     */
+    public void unsubscribe(String pattern) {
+        groupMember.unsubscribe(pattern);
+    }
 
-                        Log.d(TAG, "Sending data: " + params[0]);
+    /**
+     * Register the handler of the remote calls of a method made by the other devices of the
+     * group. The handler is run in the RPC callback executor and its result is sent back to the
+     * caller.
+     *
+     * @param method             The name of the method.
+     * @param rpcRequestListener The handler of the calls.
+     */
+    public void registerRpcHandler(String method, RpcRequestListener rpcRequestListener) {
+        groupMember.getRpcEngine().registerHandler(method, rpcRequestListener);
+    }
 
-                        socket.close();
-                        outputStream.close();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error creating client socket: " + e.getMessage());
-                    }
-                }
+    /**
+     * Unregister the handler of the remote calls of a method. The calls received later fail with
+     * <code>RpcError.METHOD_NOT_FOUND</code>.
+     *
+     * @param method The name of the method.
+     */
+    public void unregisterRpcHandler(String method) {
+        groupMember.getRpcEngine().unregisterHandler(method);
+    }
 
-                return null;
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, message);
+    /**
+     * Call a method of a device of the group. The listener receives the result, or the error if
+     * the device doesn't answer before the timeout.
+     *
+     * @param device              The device called.
+     * @param method              The name of the method.
+     * @param params              The parameters of the call.
+     * @param timeoutMillis       The time to wait for the response.
+     * @param rpcResponseListener The listener notified with the result of the call.
+     */
+    public void call(WroupDevice device, String method, String params, long timeoutMillis, RpcResponseListener rpcResponseListener) {
+        groupMember.getRpcEngine().call(device, method, params, timeoutMillis, rpcResponseListener);
     }
 
     /**
-     * Disconnect from the actual group connected. Before the disconnection, the client sends a
-     * message to the service device to notify the disconnection.
+     * Call a method of the service device.
+     *
+     * @param method              The name of the method.
+     * @param params              The parameters of the call.
+     * @param timeoutMillis       The time to wait for the response.
+     * @param rpcResponseListener The listener notified with the result of the call.
      */
-    public void disconnect() {
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-                Log.i(TAG, "ServerSocket closed");
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing the serverSocket");
-            }
-        }
+    public void callServer(String method, String params, long timeoutMillis, RpcResponseListener rpcResponseListener) {
+        groupMember.getRpcEngine().call(groupMember.getServiceDevice(), method, params, timeoutMillis, rpcResponseListener);
+    }
 
-        sendDisconnectionMessage();
+    /**
+     * Set the executor which runs the RPC handlers and response listeners. By default they run in
+     * the executor of the client.
+     *
+     * @param executor The executor of the RPC callbacks.
+     */
+    public void setRpcCallbackExecutor(Executor executor) {
+        groupMember.getRpcEngine().setCallbackExecutor(executor);
+    }
 
-        // FIXME - Change this into a message sent it listener
-        // Wait 2 seconds to disconnection message was sent
-        Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
-            public void run() {
-                WiFiDirectUtils.clearServiceRequest(wiFiP2PInstance);
-                WiFiDirectUtils.stopPeerDiscovering(wiFiP2PInstance);
-                WiFiDirectUtils.removeGroup(wiFiP2PInstance);
+    /**
+     * Set the maximum number of calls waiting for a response from the same device. The default
+     * value is {@link RpcEngine#DEFAULT_MAX_IN_FLIGHT_PER_PEER}.
+     *
+     * @param maxInFlightCalls The maximum number of calls in flight per device.
+     */
+    public void setMaxInFlightCallsPerPeer(int maxInFlightCalls) {
+        groupMember.getRpcEngine().setMaxInFlightPerPeer(maxInFlightCalls);
+    }
 
-                serverSocket = null;
-                isRegistered = false;
-                clientsConnected.clear();
+    /**
+     * Obtain the key-value store replicated in all the devices of the group. Its registers,
+     * counters and sets can be changed by any device, and the changes are merged in all of them
+     * without conflicts. The changes made while this device is out of the group are synchronized
+     * when it connects again. Set a <code>StateChangedListener</code> in the store to be notified
+     * of the changes received from the other devices.
+     *
+     * @return the replicated store of this device.
+     */
+    public ReplicatedStore getReplicatedStore() {
+        groupMember.setThisDevice(wiFiP2PInstance.getThisDevice());
+        return groupMember.getReplicatedStore();
+    }
+
+    /**
+     * Keep the messages sent to the devices of the group on disk until they acknowledge them, so the messages
+     * sent while a device is out of range are delivered when it connects again, even after a
+     * restart of the application. Only the messages sent with <code>sendMessage</code> are kept, the
+     * ones sent to all the group or published in a topic aren't.
+     * <p>
+     * The directory is usually private to the application, like
+     * <code>new File(context.getFilesDir(), "wroup-outbox")</code>.
+     *
+     * @param directory The directory of the outbox, which is created if it doesn't exist.
+     */
+    public void enableOutbox(File directory) {
+        groupMember.enableOutbox(directory);
+    }
+
+    /**
+     * Ask the service device for the last messages of the group when this client registers, so it
+     * catches up with the conversation. They are notified to the <code>DataReceivedListener</code>
+     * in a batch after the registration, and only the services advertised with
+     * {@link ServiceAdvertisement#CAPABILITY_HISTORY} send them.
+     *
+     * @param historyRequest The messages requested, like <code>HistoryRequest.lastMessages(50)</code>,
+     *                       or null to not ask for them.
+     */
+    public void setHistoryRequest(HistoryRequest historyRequest) {
+        groupMember.setHistoryRequest(historyRequest);
+    }
+
+    /**
+     * @return true if the service device of the actual group sends the messages to all the group
+     * in total order, so this client delivers them in the same order as the rest of the devices.
+     */
+    public boolean isTotalOrder() {
+        return groupMember.isTotalOrder();
+    }
+
+    /**
+     * Disconnect from the actual group connected. Before the disconnection, the client sends the
+     * messages queued and notifies the disconnection to the service device.
+     */
+    public void disconnect() {
+        disconnect(null);
+    }
+
+    /**
+     * Disconnect from the actual group connected. The messages sent from now on are discarded, the
+     * ones queued are sent, and the client leaves the WiFi P2P group once the service device has
+     * acknowledged the disconnection, or when the disconnection timeout of the client expires.
+     *
+     * @param shutdownListener The listener notified in the callback executor when the client has
+     *                         left the group, or null.
+     */
+    public void disconnect(ShutdownListener shutdownListener) {
+        disconnect(disconnectionTimeoutMillis, shutdownListener);
+    }
+
+    private void disconnect(long timeoutMillis, final ShutdownListener shutdownListener) {
+        groupMember.shutdown(timeoutMillis, new ShutdownListener() {
+            @Override
+            public void onShutdownCompleted(final boolean graceful) {
+                wiFiP2PInstance.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        WiFiDirectUtils.clearServiceRequest(wiFiP2PInstance);
+                        WiFiDirectUtils.stopPeerDiscovering(wiFiP2PInstance);
+                        WiFiDirectUtils.removeGroup(wiFiP2PInstance);
+
+                        serverSocket = null;
+                        isRegistered = false;
+
+                        if (shutdownListener != null) {
+                            callbackExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    shutdownListener.onShutdownCompleted(graceful);
+                                }
+                            });
+                        }
+                    }
+                });
             }
-        }, 2000);
+        });
+    }
+
+    /**
+     * Stop listening to the events of the <code>WiFiP2PInstance</code> and close the connections
+     * of the client, which can't be used after releasing it. If it's connected to a group,
+     * {@link #disconnect()} has to be called before.
+     */
+    public void release() {
+        wiFiP2PInstance.removePeerConnectedListener(this);
+        wiFiP2PInstance.removeServerDisconnectedListener(this);
+        groupMember.close();
     }
 
     /**
@@ -408,7 +711,25 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
      * @return the devices connected to the actual group.
      */
     public Collection<WroupDevice> getClientsConnected() {
-        return clientsConnected.values();
+        return groupMember.getClientsConnected();
+    }
+
+    private void notifyMetadata(final ServiceMetadataListener serviceMetadataListener, final Map<String, String> metadata) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                serviceMetadataListener.onMetadataAvailable(metadata);
+            }
+        });
+    }
+
+    private void notifyError(final ServiceDiscoveredListener serviceDiscoveredListener, final WiFiP2PError wiFiP2PError) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                serviceDiscoveredListener.onError(wiFiP2PError);
+            }
+        });
     }
 
     private void setupDnsListeners(WiFiP2PInstance wiFiP2PInstance, ServiceDiscoveredListener serviceDiscoveredListener) {
@@ -426,27 +747,28 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
             @Override
             public void onDnsSdTxtRecordAvailable(String fullDomainName, Map<String, String> txtRecordMap, WifiP2pDevice device) {
 
-                if (txtRecordMap.containsKey(WroupService.SERVICE_NAME_PROPERTY) && txtRecordMap.get(WroupService.SERVICE_NAME_PROPERTY).equalsIgnoreCase(WroupService.SERVICE_NAME_VALUE)) {
-                    Integer servicePort = Integer.valueOf(txtRecordMap.get(WroupService.SERVICE_PORT_PROPERTY));
-                    WroupServiceDevice serviceDevice = new WroupServiceDevice(device);
-                    serviceDevice.setDeviceServerSocketPort(servicePort);
+                ServiceAdvertisement advertisement = fullDomainName != null && fullDomainName.contains(WroupService.SERVICE_TYPE)
+                        ? ServiceAdvertisement.fromTxtRecord(txtRecordMap) : null;
+                if (advertisement != null) {
+                    final WroupServiceDevice serviceDevice = new WroupServiceDevice(device);
+                    serviceDevice.setDeviceServerSocketPort(advertisement.getPort());
                     serviceDevice.setTxtRecordMap(txtRecordMap);
+                    serviceDevice.setAdvertisement(advertisement);
 
                     if (!serviceDevices.contains(serviceDevice)) {
-                        Log.i(TAG, "Found a new Wroup service: ");
-                        Log.i(TAG, "\tDomain Name: " + fullDomainName);
-                        Log.i(TAG, "\tDevice Name: " + device.deviceName);
-                        Log.i(TAG, "\tDevice Address: " + device.deviceAddress);
-                        Log.i(TAG, "\tServer socket Port: " + serviceDevice.getDeviceServerSocketPort());
+                        WroupLog.i(TAG, "Found a new Wroup service: {} in {} ({}), port {}", fullDomainName, device.deviceName,
+                                device.deviceAddress, serviceDevice.getDeviceServerSocketPort());
 
                         serviceDevices.add(serviceDevice);
-                        serviceDiscoveredListener.onNewServiceDeviceDiscovered(serviceDevice);
+                        callbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serviceDiscoveredListener.onNewServiceDeviceDiscovered(serviceDevice);
+                            }
+                        });
                     }
                 } else {
-                    Log.d(TAG, "Found a new service: ");
-                    Log.d(TAG, "\tDomain Name: " + fullDomainName);
-                    Log.d(TAG, "\tDevice Name: " + device.deviceName);
-                    Log.d(TAG, "\tDevice Address: " + device.deviceAddress);
+                    WroupLog.d(TAG, "Found a new service: {} in {} ({})", fullDomainName, device.deviceName, device.deviceAddress);
                 }
             }
         };
@@ -470,117 +792,145 @@ public class WroupClient implements PeerConnectedListener, ServiceDisconnectedLi
                 protected Void doInBackground(Void... params) {
 
                     try {
-                        serverSocket = new ServerSocket(0);
+                        serverSocket = new ServerSocket(serverPort);
 
                         int port = serverSocket.getLocalPort();
-                        wiFiP2PInstance.getThisDevice().setDeviceServerSocketPort(port);
+                        // The device of the node is shared with the other clients and services of the process
+                        WroupDevice thisDevice = new WroupDevice(wiFiP2PInstance.getThisDevice());
+                        thisDevice.setDeviceServerSocketPort(port);
+                        groupMember.setThisDevice(thisDevice);
 
-                        Log.i(TAG, "Client ServerSocket created. Accepting requests...");
-                        Log.i(TAG, "\tPort: " + port);
+                        WroupLog.i(TAG, "Client ServerSocket created in port {}. Accepting requests...", port);
 
-                        while (true) {
-                            Socket socket = serverSocket.accept();
-
-                            String dataReceived = IOUtils.toString(socket.getInputStream());
-                            Log.i(TAG, "Data received: " + dataReceived);
-                            Log.i(TAG, "From IP: " + socket.getInetAddress().getHostAddress());
-
-                            Gson gson = new Gson();
-                            MessageWrapper messageWrapper = gson.fromJson(dataReceived, MessageWrapper.class);
-                            onMessageReceived(messageWrapper);
-                        }
+                        groupMember.listen(serverSocket);
                     } catch (IOException e) {
-                        Log.e(TAG, "Error creating/closing client ServerSocket: " + e.getMessage());
+                        WroupLog.e(TAG, "Error creating/closing client ServerSocket: {}", e.getMessage());
                     }
 
                     return null;
                 }
 
-            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }.executeOnExecutor(executor);
         }
     }
 
-    private void onMessageReceived(MessageWrapper messageWrapper) {
-        if (MessageWrapper.MessageType.CONNECTION_MESSAGE.equals(messageWrapper.getMessageType())) {
-            Gson gson = new Gson();
-
-            String messageContentStr = messageWrapper.getMessage();
-            RegistrationMessageContent registrationMessageContent = gson.fromJson(messageContentStr, RegistrationMessageContent.class);
-            WroupDevice device = registrationMessageContent.getWroupDevice();
-            clientsConnected.put(device.getDeviceMac(), device);
-
-            if (clientConnectedListener != null) {
-                clientConnectedListener.onClientConnected(device);
-            }
+    /**
+     * Builder of the <code>WroupClient</code> instances.
+     */
+    public static class Builder {
+
+        private final Context context;
+        private WiFiP2PInstance wiFiP2PInstance;
+        private int serverPort;
+        private Executor executor = AsyncTask.THREAD_POOL_EXECUTOR;
+        private Executor rpcCallbackExecutor;
+        private Executor callbackExecutor;
+        private long registrationDelayMillis = 2000;
+        private long disconnectionTimeoutMillis = 2000;
+
+        /**
+         * @param context The application context.
+         */
+        public Builder(Context context) {
+            this.context = context;
+        }
 
-            Log.d(TAG, "New client connected to the group:");
-            Log.d(TAG, "\tDevice name: " + device.getDeviceName());
-            Log.d(TAG, "\tDecive mac: " + device.getDeviceMac());
-            Log.d(TAG, "\tDevice IP: " + device.getDeviceServerSocketIP());
-            Log.d(TAG, "\tDevice ServerSocket port: " + device.getDeviceServerSocketPort());
-        } else if (MessageWrapper.MessageType.DISCONNECTION_MESSAGE.equals(messageWrapper.getMessageType())) {
-            Gson gson = new Gson();
-
-            String messageContentStr = messageWrapper.getMessage();
-            DisconnectionMessageContent disconnectionMessageContent = gson.fromJson(messageContentStr, DisconnectionMessageContent.class);
-            WroupDevice device = disconnectionMessageContent.getWroupDevice();
-            clientsConnected.remove(device.getDeviceMac());
-
-            if (clientDisconnectedListener != null) {
-                clientDisconnectedListener.onClientDisconnected(device);
-            }
+        /**
+         * Set the <code>WiFiP2PInstance</code> of the client. By default the one returned by
+         * {@link WiFiP2PInstance#getInstance(Context)} is used.
+         *
+         * @param wiFiP2PInstance The WiFi P2P channel of the client.
+         * @return this builder.
+         */
+        public Builder setWiFiP2PInstance(WiFiP2PInstance wiFiP2PInstance) {
+            this.wiFiP2PInstance = wiFiP2PInstance;
+            return this;
+        }
 
-            Log.d(TAG, "Client disconnected from the group:");
-            Log.d(TAG, "\tDevice name: " + device.getDeviceName());
-            Log.d(TAG, "\tDecive mac: " + device.getDeviceMac());
-            Log.d(TAG, "\tDevice IP: " + device.getDeviceServerSocketIP());
-            Log.d(TAG, "\tDevice ServerSocket port: " + device.getDeviceServerSocketPort());
-        } else if (MessageWrapper.MessageType.REGISTERED_DEVICES.equals(messageWrapper.getMessageType())) {
-            Gson gson = new Gson();
-
-            String messageContentStr = messageWrapper.getMessage();
-            RegisteredDevicesMessageContent registeredDevicesMessageContent = gson.fromJson(messageContentStr, RegisteredDevicesMessageContent.class);
-            List<WroupDevice> devicesConnected = registeredDevicesMessageContent.getDevicesRegistered();
-
-            for (WroupDevice device : devicesConnected) {
-                clientsConnected.put(device.getDeviceMac(), device);
-                Log.d(TAG, "Client already connected to the group:");
-                Log.d(TAG, "\tDevice name: " + device.getDeviceName());
-                Log.d(TAG, "\tDecive mac: " + device.getDeviceMac());
-                Log.d(TAG, "\tDevice IP: " + device.getDeviceServerSocketIP());
-                Log.d(TAG, "\tDevice ServerSocket port: " + device.getDeviceServerSocketPort());
-            }
-        } else {
-            if (dataReceivedListener != null) {
-                dataReceivedListener.onDataReceived(messageWrapper);
+        /**
+         * Set the port of the server socket which receives the messages of the group. The port is
+         * sent to the group owner when the client registers. By default it's 0, any free port.
+         *
+         * @param serverPort The port of the server socket, or 0.
+         * @return this builder.
+         */
+        public Builder setServerPort(int serverPort) {
+            if (serverPort < 0 || serverPort > 65535) {
+                throw new IllegalArgumentException("Invalid port: " + serverPort);
             }
+            this.serverPort = serverPort;
+            return this;
         }
-    }
-
-    private void sendServerRegistrationMessage() {
-        RegistrationMessageContent content = new RegistrationMessageContent();
-        content.setWroupDevice(wiFiP2PInstance.getThisDevice());
 
-        Gson gson = new Gson();
+        /**
+         * Set the executor which accepts the connections and sends the messages in background. By
+         * default it's the <code>AsyncTask.THREAD_POOL_EXECUTOR</code>.
+         *
+         * @param executor The executor of the client.
+         * @return this builder.
+         */
+        public Builder setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
 
-        MessageWrapper negotiationMessage = new MessageWrapper();
-        negotiationMessage.setMessageType(MessageWrapper.MessageType.CONNECTION_MESSAGE);
-        negotiationMessage.setMessage(gson.toJson(content));
+        /**
+         * Set the executor which runs the RPC handlers and response listeners. By default it's the
+         * executor of the client.
+         *
+         * @param rpcCallbackExecutor The executor of the RPC callbacks.
+         * @return this builder.
+         */
+        public Builder setRpcCallbackExecutor(Executor rpcCallbackExecutor) {
+            this.rpcCallbackExecutor = rpcCallbackExecutor;
+            return this;
+        }
 
-        sendMessageToServer(negotiationMessage);
-    }
+        /**
+         * Set the executor which runs the listeners of the discovery, the connection, the
+         * disconnection, the data received and the clients of the group. By default it's the
+         * callback executor of the <code>WiFiP2PInstance</code>, which runs them in the main
+         * thread.
+         *
+         * @param callbackExecutor The executor of the listeners.
+         * @return this builder.
+         */
+        public Builder setCallbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
 
-    private void sendDisconnectionMessage() {
-        DisconnectionMessageContent content = new DisconnectionMessageContent();
-        content.setWroupDevice(wiFiP2PInstance.getThisDevice());
+        /**
+         * Set the time waited after joining the group before registering in the group owner, while
+         * the server socket of the client is created. 2 seconds by default.
+         *
+         * @param registrationDelayMillis The delay of the registration.
+         * @return this builder.
+         */
+        public Builder setRegistrationDelayMillis(long registrationDelayMillis) {
+            this.registrationDelayMillis = registrationDelayMillis;
+            return this;
+        }
 
-        Gson gson = new Gson();
+        /**
+         * Set the maximum time to send the messages queued and get the disconnection acknowledged
+         * by the group owner before leaving the group. 2 seconds by default.
+         *
+         * @param disconnectionTimeoutMillis The deadline of the disconnection.
+         * @return this builder.
+         */
+        public Builder setDisconnectionTimeoutMillis(long disconnectionTimeoutMillis) {
+            this.disconnectionTimeoutMillis = disconnectionTimeoutMillis;
+            return this;
+        }
 
-        MessageWrapper disconnectionMessage = new MessageWrapper();
-        disconnectionMessage.setMessageType(MessageWrapper.MessageType.DISCONNECTION_MESSAGE);
-        disconnectionMessage.setMessage(gson.toJson(content));
+        public WroupClient build() {
+            if (context == null && wiFiP2PInstance == null) {
+                throw new IllegalStateException("A context or a WiFiP2PInstance is required");
+            }
+            return new WroupClient(this);
+        }
 
-        sendMessageToServer(disconnectionMessage);
     }
 
 }
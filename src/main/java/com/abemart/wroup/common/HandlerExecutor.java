@@ -0,0 +1,32 @@
+package com.abemart.wroup.common;
+
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor which runs the tasks in the thread of a <code>Looper</code>, like the main thread of the
+ * application.
+ */
+public class HandlerExecutor implements Executor {
+
+    private final Handler handler;
+
+    /**
+     * @param looper The looper whose thread runs the tasks.
+     */
+    public HandlerExecutor(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!handler.post(command)) {
+            throw new RejectedExecutionException("The looper has quit");
+        }
+    }
+
+}
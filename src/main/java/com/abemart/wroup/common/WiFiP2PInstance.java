@@ -2,42 +2,105 @@ package com.abemart.wroup.common;
 
 
 import android.content.Context;
+import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager;
-import android.util.Log;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 
 import com.abemart.wroup.common.listeners.PeerConnectedListener;
+import com.abemart.wroup.common.listeners.PeersChangedListener;
 import com.abemart.wroup.common.listeners.ServiceDisconnectedListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.peers.PeerChanges;
+import com.abemart.wroup.common.peers.PeerTable;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class WiFiP2PInstance implements WifiP2pManager.ConnectionInfoListener {
+
+/**
+ * The WiFi P2P channel of the application and the state of this device.
+ * <p>
+ * Every <code>WroupService</code> and <code>WroupClient</code> registers itself as a listener of
+ * the instance which it's built with, so many of them can share it. A private instance can be
+ * created for a service or a client with its own channel, whose broadcast receiver has to be
+ * registered as well.
+ * <p>
+ * The channel delivers the results of the WiFi P2P framework in a thread of the instance, so the
+ * discovery and the connection of the devices don't wait for the main thread of the application
+ * while it's busy. The listeners of the application are called in the callback executor, which
+ * runs them in the main thread by default.
+ * <p>
+ * The broadcasts of changes of the peers are debounced: the first one schedules a request of the
+ * list of peers after {@link #DEFAULT_PEERS_DEBOUNCE_MILLIS}, and the ones received meanwhile are
+ * coalesced in it. The list is compared with the previous one in a {@link PeerTable} and only the
+ * differences are notified to the {@link PeersChangedListener}s. The list isn't requested while
+ * there isn't any of them.
+ */
+public class WiFiP2PInstance implements WifiP2pManager.ConnectionInfoListener, WifiP2pManager.PeerListListener {
 
     private static final String TAG = WiFiP2PInstance.class.getSimpleName();
 
+    public static final long DEFAULT_PEERS_DEBOUNCE_MILLIS = 500;
+
     private static WiFiP2PInstance instance;
 
     private WifiP2pManager wifiP2pManager;
     private WifiP2pManager.Channel channel;
     private WiFiDirectBroadcastReceiver broadcastReceiver;
 
-    private WroupDevice thisDevice;
+    private volatile WroupDevice thisDevice;
 
-    private PeerConnectedListener peerConnectedListener;
-    private ServiceDisconnectedListener serviceDisconnectedListener;
+    private final List<PeerConnectedListener> peerConnectedListeners = new CopyOnWriteArrayList<>();
+    private final List<ServiceDisconnectedListener> serviceDisconnectedListeners = new CopyOnWriteArrayList<>();
+    private final List<PeersChangedListener> peersChangedListeners = new CopyOnWriteArrayList<>();
 
-    private WiFiP2PInstance() {
-    }
+    private final HandlerThread thread;
+    private final Handler handler;
+    private volatile Executor callbackExecutor;
+    private final PeerTable peerTable = new PeerTable();
+    private volatile long peersDebounceMillis = DEFAULT_PEERS_DEBOUNCE_MILLIS;
+    private final AtomicBoolean peersRequestScheduled = new AtomicBoolean();
 
-    private WiFiP2PInstance(Context context) {
-        this();
+    private final Runnable requestPeers = new Runnable() {
+        @Override
+        public void run() {
+            peersRequestScheduled.set(false);
+            if (!peersChangedListeners.isEmpty()) {
+                wifiP2pManager.requestPeers(channel, WiFiP2PInstance.this);
+            }
+        }
+    };
+
+    /**
+     * Create an instance with its own WiFi P2P channel and thread.
+     *
+     * @param context The application context.
+     */
+    public WiFiP2PInstance(Context context) {
+        thread = new HandlerThread("wroup-p2p");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        callbackExecutor = new HandlerExecutor(context.getMainLooper());
 
         wifiP2pManager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
-        channel = wifiP2pManager.initialize(context, context.getMainLooper(), null);
+        channel = wifiP2pManager.initialize(context, thread.getLooper(), null);
         broadcastReceiver = new WiFiDirectBroadcastReceiver(this);
     }
 
 
-    public static WiFiP2PInstance getInstance(Context context) {
+    /**
+     * Return the instance shared by the services and the clients built without one. If the
+     * instance doesn't exist yet, it's created and returned.
+     *
+     * @param context The application context.
+     * @return The shared <code>WiFiP2PInstance</code>.
+     */
+    public static synchronized WiFiP2PInstance getInstance(Context context) {
         if (instance == null) {
             instance = new WiFiP2PInstance(context);
         }
@@ -57,6 +120,37 @@ public class WiFiP2PInstance implements WifiP2pManager.ConnectionInfoListener {
         return broadcastReceiver;
     }
 
+    /**
+     * @return the looper of the thread which receives the results of the WiFi P2P channel.
+     */
+    public Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    /**
+     * @return a handler of the thread which receives the results of the WiFi P2P channel, where
+     * the services and the clients schedule their steps.
+     */
+    public Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Set the executor which runs the listeners of the application, the main thread by default.
+     *
+     * @param callbackExecutor The executor of the listeners.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        if (callbackExecutor == null) {
+            throw new IllegalArgumentException("The callback executor can't be null");
+        }
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
     public void setThisDevice(WroupDevice thisDevice) {
         this.thisDevice = thisDevice;
     }
@@ -65,39 +159,167 @@ public class WiFiP2PInstance implements WifiP2pManager.ConnectionInfoListener {
         return thisDevice;
     }
 
+    public void addPeerConnectedListener(PeerConnectedListener peerConnectedListener) {
+        if (!peerConnectedListeners.contains(peerConnectedListener)) {
+            peerConnectedListeners.add(peerConnectedListener);
+        }
+    }
+
+    public void removePeerConnectedListener(PeerConnectedListener peerConnectedListener) {
+        peerConnectedListeners.remove(peerConnectedListener);
+    }
+
+    public void addServerDisconnectedListener(ServiceDisconnectedListener serviceDisconnectedListener) {
+        if (!serviceDisconnectedListeners.contains(serviceDisconnectedListener)) {
+            serviceDisconnectedListeners.add(serviceDisconnectedListener);
+        }
+    }
+
+    public void removeServerDisconnectedListener(ServiceDisconnectedListener serviceDisconnectedListener) {
+        serviceDisconnectedListeners.remove(serviceDisconnectedListener);
+    }
+
+    /**
+     * Add a listener of the changes of the peers discovered, which is called in the callback
+     * executor. The list of peers
+     * is requested again, and when the first listener is added all the peers are notified as
+     * added. The next listeners receive only the changes, the current peers are in
+     * {@link #getPeerTable()}.
+     */
+    public void addPeersChangedListener(PeersChangedListener peersChangedListener) {
+        if (!peersChangedListeners.contains(peersChangedListener)) {
+            if (peersChangedListeners.isEmpty()) {
+                // The table isn't updated without listeners, so it starts again from the next list
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        peerTable.clear();
+                    }
+                });
+            }
+            peersChangedListeners.add(peersChangedListener);
+            onPeersChanged();
+        }
+    }
+
+    public void removePeersChangedListener(PeersChangedListener peersChangedListener) {
+        peersChangedListeners.remove(peersChangedListener);
+    }
+
+    /**
+     * Set the time the requests of the list of peers are delayed after a change is broadcast, so
+     * the changes broadcast meanwhile are coalesced.
+     *
+     * @param peersDebounceMillis The delay in milliseconds, 0 to request the list immediately.
+     */
+    public void setPeersDebounceMillis(long peersDebounceMillis) {
+        if (peersDebounceMillis < 0) {
+            throw new IllegalArgumentException("The debounce delay can't be negative");
+        }
+        this.peersDebounceMillis = peersDebounceMillis;
+    }
+
+    public long getPeersDebounceMillis() {
+        return peersDebounceMillis;
+    }
+
+    /**
+     * @return the peers discovered in the last list received, indexed by their MAC address.
+     */
+    public PeerTable getPeerTable() {
+        return peerTable;
+    }
+
+    /**
+     * @deprecated The instance notifies many listeners, use
+     * {@link #addPeerConnectedListener(PeerConnectedListener)}, which this method calls.
+     */
+    @Deprecated
     public void setPeerConnectedListener(PeerConnectedListener peerConnectedListener) {
-        this.peerConnectedListener = peerConnectedListener;
+        addPeerConnectedListener(peerConnectedListener);
     }
 
+    /**
+     * @deprecated The instance notifies many listeners, use
+     * {@link #addServerDisconnectedListener(ServiceDisconnectedListener)}, which this method calls.
+     */
+    @Deprecated
     public void setServerDisconnectedListener(ServiceDisconnectedListener serviceDisconnectedListener) {
-        this.serviceDisconnectedListener = serviceDisconnectedListener;
+        addServerDisconnectedListener(serviceDisconnectedListener);
     }
 
     public void startPeerDiscovering() {
         wifiP2pManager.discoverPeers(channel, new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
-                Log.i(TAG, "Peers discovering initialized");
+                WroupLog.i(TAG, "Peers discovering initialized");
             }
 
             @Override
             public void onFailure(int reason) {
-                Log.e(TAG, "Error initiating peer disconvering. Reason: " + reason);
+                WroupLog.e(TAG, "Error initiating peer disconvering. Reason: {}", reason);
             }
         });
     }
 
     @Override
     public void onConnectionInfoAvailable(WifiP2pInfo info) {
-        if (peerConnectedListener != null) {
+        for (PeerConnectedListener peerConnectedListener : peerConnectedListeners) {
             peerConnectedListener.onPeerConnected(info);
         }
     }
 
-    public void onServerDeviceDisconnected() {
-        if (serviceDisconnectedListener != null) {
-            serviceDisconnectedListener.onServerDisconnectedListener();
+    /**
+     * Schedule a request of the list of peers, unless one is already scheduled. It's called by the
+     * broadcast receiver when the peers have changed.
+     */
+    public void onPeersChanged() {
+        if (peersChangedListeners.isEmpty() || !peersRequestScheduled.compareAndSet(false, true)) {
+            return;
         }
+        handler.postDelayed(requestPeers, peersDebounceMillis);
+    }
+
+    @Override
+    public void onPeersAvailable(WifiP2pDeviceList peers) {
+        final PeerChanges peerChanges = peerTable.update(peers.getDeviceList());
+        if (peerChanges.isEmpty()) {
+            return;
+        }
+
+        WroupLog.d(TAG, "Peers changed: {}", peerChanges);
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (PeersChangedListener peersChangedListener : peersChangedListeners) {
+                    peersChangedListener.onPeersChanged(peerChanges);
+                }
+            }
+        });
+    }
+
+    /**
+     * Notify the services and the clients that the device has left the WiFi P2P group, in the
+     * thread of the instance. It's called by the broadcast receiver.
+     */
+    public void onServerDeviceDisconnected() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ServiceDisconnectedListener serviceDisconnectedListener : serviceDisconnectedListeners) {
+                    serviceDisconnectedListener.onServerDisconnectedListener();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the thread of a private instance. Its channel can't be used after releasing it, and the
+     * shared instance must not be released.
+     */
+    public void release() {
+        handler.removeCallbacksAndMessages(null);
+        thread.quit();
     }
 
 }
@@ -12,11 +12,26 @@ public class WroupDevice {
     private int deviceServerSocketPort;
 
     private String customName;
+    private Integer peerId;
 
     public WroupDevice() {
 
     }
 
+    /**
+     * Copy a device, so the copy can be changed without changing the original one.
+     *
+     * @param device The device copied.
+     */
+    public WroupDevice(WroupDevice device) {
+        this.deviceName = device.deviceName;
+        this.deviceMac = device.deviceMac;
+        this.deviceServerSocketIP = device.deviceServerSocketIP;
+        this.deviceServerSocketPort = device.deviceServerSocketPort;
+        this.customName = device.customName;
+        this.peerId = device.peerId;
+    }
+
     public WroupDevice(WifiP2pDevice device) {
         this.deviceName = device.deviceName;
         this.deviceMac = device.deviceAddress;
@@ -62,6 +77,20 @@ public class WroupDevice {
         this.customName = customName;
     }
 
+    /**
+     * Obtain the id assigned to the device by the group owner when it registered. The messages of
+     * the device carry this id instead of the device.
+     *
+     * @return the id of the device in the group, or null if it hasn't been assigned.
+     */
+    public Integer getPeerId() {
+        return peerId;
+    }
+
+    public void setPeerId(Integer peerId) {
+        this.peerId = peerId;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder().append("WroupDevice[deviceName=").append(deviceName).append("][deviceMac=").append(deviceMac).append("][deviceServerSocketIP=").append(deviceServerSocketIP).append("][deviceServerSocketPort=").append(deviceServerSocketPort).append("]").toString();
@@ -3,12 +3,15 @@ package com.abemart.wroup.common;
 
 import android.net.wifi.p2p.WifiP2pDevice;
 
+import com.abemart.wroup.common.advertisement.ServiceAdvertisement;
+
 import java.util.Map;
 
 public class WroupServiceDevice extends WroupDevice {
 
 
     private Map<String, String> txtRecordMap;
+    private ServiceAdvertisement advertisement;
 
     public WroupServiceDevice(WifiP2pDevice wifiP2pDevice) {
         super(wifiP2pDevice);
@@ -22,4 +25,28 @@ public class WroupServiceDevice extends WroupDevice {
         this.txtRecordMap = txtRecordMap;
     }
 
+    /**
+     * @return the compact description of the service read from its TXT record: the name of the
+     * group, its capabilities and the hash of its extended metadata.
+     */
+    public ServiceAdvertisement getAdvertisement() {
+        return advertisement;
+    }
+
+    public void setAdvertisement(ServiceAdvertisement advertisement) {
+        this.advertisement = advertisement;
+    }
+
+    public String getGroupName() {
+        return advertisement != null ? advertisement.getGroupName() : null;
+    }
+
+    /**
+     * @param capability A <code>ServiceAdvertisement.CAPABILITY_*</code> flag.
+     * @return true if the service has advertised the capability.
+     */
+    public boolean hasCapability(int capability) {
+        return advertisement != null && advertisement.hasCapability(capability);
+    }
+
 }
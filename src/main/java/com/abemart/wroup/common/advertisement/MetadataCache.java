@@ -0,0 +1,64 @@
+package com.abemart.wroup.common.advertisement;
+
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The extended metadata of the services fetched by the clients, indexed by its hash, so the
+ * metadata of a service is fetched only once while it doesn't change, even from other groups which
+ * advertise the same one. The least recently used entries are evicted.
+ */
+public class MetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private final Map<String, Map<String, String>> entries;
+
+    public MetadataCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries The maximum number of versions of metadata kept.
+     */
+    public MetadataCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param hash The hash of the metadata advertised by a service.
+     * @return the metadata, or null if it isn't cached.
+     */
+    public synchronized Map<String, String> get(String hash) {
+        return entries.get(hash);
+    }
+
+    /**
+     * Cache the metadata fetched from a service under its own hash, which is the one advertised
+     * unless the metadata has changed since it was discovered.
+     *
+     * @param metadata The metadata of the service.
+     * @return the metadata cached, which can't be modified.
+     */
+    public synchronized Map<String, String> put(Map<String, String> metadata) {
+        Map<String, String> copy = Collections.unmodifiableMap(new HashMap<>(metadata));
+        String hash = ServiceAdvertisement.hash(copy);
+        if (hash != null) {
+            entries.put(hash, copy);
+        }
+        return copy;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.abemart.wroup.common.advertisement;
+
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The compact description of a Wroup service which is advertised in its DNS-SD TXT record.
+ * <p>
+ * The record only contains short keys: the version of the advertisement, the port of the server
+ * socket, the name of the group, a bitmap of the capabilities of the service and the hash of its
+ * extended metadata. The metadata itself isn't advertised, the clients fetch it from the group
+ * owner when they need it and cache it by its hash, so the records stay small however large the
+ * metadata is.
+ * <p>
+ * The records of the services of previous versions, with the <code>SERVICE_NAME</code>,
+ * <code>SERVICE_PORT</code> and <code>GROUP_NAME</code> keys, are also read. Their properties are
+ * kept as the metadata of the service. The records written don't carry those keys, so the clients
+ * of previous versions don't find the services of this one, whose framed messages they can't read.
+ */
+public final class ServiceAdvertisement {
+
+    public static final int VERSION = 1;
+
+    public static final int CAPABILITY_TOPICS = 1;
+    public static final int CAPABILITY_RPC = 1 << 1;
+    public static final int CAPABILITY_REPLICATION = 1 << 2;
+    public static final int CAPABILITY_ROUTING = 1 << 3;
+    public static final int CAPABILITY_OUTBOX = 1 << 4;
+    public static final int CAPABILITY_METADATA = 1 << 5;
+    public static final int CAPABILITY_HISTORY = 1 << 6;
+    public static final int CAPABILITY_TOTAL_ORDER = 1 << 7;
+
+    static final String VERSION_KEY = "v";
+    static final String PORT_KEY = "p";
+    static final String GROUP_NAME_KEY = "g";
+    static final String CAPABILITIES_KEY = "c";
+    static final String METADATA_HASH_KEY = "h";
+
+    private static final String LEGACY_NAME_KEY = "SERVICE_NAME";
+    private static final String LEGACY_NAME_VALUE = "WROUP";
+    private static final String LEGACY_PORT_KEY = "SERVICE_PORT";
+    private static final String LEGACY_GROUP_NAME_KEY = "GROUP_NAME";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int HASH_BYTES = 8;
+
+    private final int version;
+    private final int port;
+    private final String groupName;
+    private final int capabilities;
+    private final String metadataHash;
+    private final Map<String, String> legacyMetadata;
+
+    /**
+     * @param port         The port of the server socket of the service.
+     * @param groupName    The name of the group.
+     * @param capabilities The <code>CAPABILITY_*</code> flags of the service.
+     * @param metadataHash The hash of the extended metadata, or null if it hasn't metadata.
+     */
+    public ServiceAdvertisement(int port, String groupName, int capabilities, String metadataHash) {
+        this(VERSION, port, groupName, metadataHash != null ? capabilities | CAPABILITY_METADATA : capabilities, metadataHash, null);
+    }
+
+    private ServiceAdvertisement(int version, int port, String groupName, int capabilities, String metadataHash,
+                                 Map<String, String> legacyMetadata) {
+        this.version = version;
+        this.port = port;
+        this.groupName = groupName;
+        this.capabilities = capabilities;
+        this.metadataHash = metadataHash;
+        this.legacyMetadata = legacyMetadata;
+    }
+
+    /**
+     * Read the advertisement of a TXT record.
+     *
+     * @param txtRecord The TXT record of a service.
+     * @return the advertisement, or null if the record isn't of a Wroup service.
+     */
+    public static ServiceAdvertisement fromTxtRecord(Map<String, String> txtRecord) {
+        try {
+            if (txtRecord.containsKey(VERSION_KEY)) {
+                String capabilities = txtRecord.get(CAPABILITIES_KEY);
+                return new ServiceAdvertisement(Integer.parseInt(txtRecord.get(VERSION_KEY)),
+                        Integer.parseInt(txtRecord.get(PORT_KEY)), txtRecord.get(GROUP_NAME_KEY),
+                        capabilities != null ? Integer.parseInt(capabilities, 16) : 0, txtRecord.get(METADATA_HASH_KEY), null);
+            }
+
+            if (LEGACY_NAME_VALUE.equalsIgnoreCase(txtRecord.get(LEGACY_NAME_KEY))) {
+                Map<String, String> metadata = new HashMap<>(txtRecord);
+                metadata.remove(LEGACY_NAME_KEY);
+                metadata.remove(LEGACY_PORT_KEY);
+                metadata.remove(LEGACY_GROUP_NAME_KEY);
+                return new ServiceAdvertisement(0, Integer.parseInt(txtRecord.get(LEGACY_PORT_KEY)),
+                        txtRecord.get(LEGACY_GROUP_NAME_KEY), 0, hash(metadata), metadata);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * @return the keys and values of the TXT record of the advertisement.
+     */
+    public Map<String, String> toTxtRecord() {
+        Map<String, String> txtRecord = new HashMap<>();
+        txtRecord.put(VERSION_KEY, String.valueOf(version));
+        txtRecord.put(PORT_KEY, String.valueOf(port));
+        if (groupName != null) {
+            txtRecord.put(GROUP_NAME_KEY, groupName);
+        }
+        txtRecord.put(CAPABILITIES_KEY, Integer.toHexString(capabilities));
+        if (metadataHash != null) {
+            txtRecord.put(METADATA_HASH_KEY, metadataHash);
+        }
+        return txtRecord;
+    }
+
+    /**
+     * Compute the hash which identifies a version of the metadata of a service: the first 8 bytes
+     * of the SHA-1 digest of its entries sorted by key, in hexadecimal.
+     *
+     * @param metadata The metadata of a service.
+     * @return the hash, or null if the metadata is null or empty.
+     */
+    public static String hash(Map<String, String> metadata) {
+        if (metadata == null || metadata.isEmpty()) {
+            return null;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 isn't available", e);
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<>(metadata).entrySet()) {
+            update(digest, entry.getKey());
+            update(digest, entry.getValue());
+        }
+
+        byte[] bytes = digest.digest();
+        char[] hex = new char[HASH_BYTES * 2];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        // Every string is prefixed with its length, so the entries can't be confused
+        byte[] bytes = value != null ? value.getBytes(UTF_8) : new byte[0];
+        int length = value != null ? bytes.length : -1;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        digest.update(bytes);
+    }
+
+    /**
+     * @return the version of the advertisement, 0 for the records of previous versions.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * @param capability A <code>CAPABILITY_*</code> flag.
+     * @return true if the service has advertised the capability.
+     */
+    public boolean hasCapability(int capability) {
+        return (capabilities & capability) == capability;
+    }
+
+    /**
+     * @return the hash of the extended metadata of the service, or null if it hasn't metadata.
+     */
+    public String getMetadataHash() {
+        return metadataHash;
+    }
+
+    /**
+     * @return the properties of the record of a service of a previous version, which are its
+     * metadata, or null if the record is compact.
+     */
+    public Map<String, String> getLegacyMetadata() {
+        return legacyMetadata;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceAdvertisement{" +
+                "version=" + version +
+                ", port=" + port +
+                ", groupName='" + groupName + '\'' +
+                ", capabilities=" + Integer.toHexString(capabilities) +
+                ", metadataHash='" + metadataHash + '\'' +
+                '}';
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.abemart.wroup.common.dedup;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sliding window of the ids of the messages received recently from every sender, used to discard
+ * the copies of a message which arrive again, sent by a retry or through another path.
+ * <p>
+ * Every sender has a bitmap of the last {@link #WINDOW_SIZE} sequence numbers below the highest
+ * one received, like the anti-replay window of IPsec. The messages older than the window are
+ * considered duplicates, since the ids of a sender increase and the messages which arrive so late
+ * are retries. Only the {@link #DEFAULT_MAX_SENDERS} senders seen most recently are kept, so the
+ * memory used doesn't grow with the traffic or the number of senders: a sender forgotten starts a
+ * new window with its next message.
+ * <p>
+ * The senders of the messages are identified by their id in the group, which the messages carry
+ * once the group owner has assigned it, so the messages whose sender isn't resolved yet are also
+ * checked.
+ * <p>
+ * The messages of the history of the group arrive after the ones sent live since the device
+ * registered, so they can be older than the window without being duplicates. The window remembers
+ * the highest id of every sender when the device registers and the first one received after it,
+ * and the messages of the history between both are accepted whatever their age.
+ */
+public class DuplicateWindow {
+
+    /**
+     * Number of sequence numbers remembered per sender.
+     */
+    public static final int WINDOW_SIZE = 1024;
+
+    public static final int DEFAULT_MAX_SENDERS = 256;
+
+    private final Map<Object, SenderWindow> senders;
+
+    public DuplicateWindow() {
+        this(DEFAULT_MAX_SENDERS);
+    }
+
+    public DuplicateWindow(final int maxSenders) {
+        this.senders = new LinkedHashMap<Object, SenderWindow>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, SenderWindow> eldest) {
+                return size() > maxSenders;
+            }
+        };
+    }
+
+    /**
+     * Remember the id of a message received.
+     *
+     * @param senderMac The MAC address of the sender of the message.
+     * @param messageId The id of the message, generated by a {@link MessageIdSequence}.
+     * @return true if it's the first copy of the message, false if it's a duplicate.
+     */
+    public boolean accept(String senderMac, long messageId) {
+        return acceptFrom(senderMac, messageId);
+    }
+
+    /**
+     * Remember the id of a data message received. The sender is identified by the id which the
+     * message carries, or by the id or the MAC address of its device if it carries the whole
+     * device.
+     *
+     * @param message The message received.
+     * @return true if it's the first copy of the message, or it hasn't id or sender, false if it's
+     * a duplicate.
+     */
+    public boolean accept(MessageWrapper message) {
+        Long messageId = message.getId();
+        Object sender = getSender(message);
+        return messageId == null || sender == null || acceptFrom(sender, messageId);
+    }
+
+    /**
+     * Start to remember the first id received from every sender, when the device registers and
+     * asks for the history of the group.
+     */
+    public synchronized void startCatchUp() {
+        for (SenderWindow window : senders.values()) {
+            window.highestBeforeCatchUp = window.highest;
+            window.firstAfterCatchUp = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Remember the id of a message of the history of the group. It's only a duplicate if it was
+     * received before the device registered, or live since then.
+     *
+     * @param message The message of the history, with the whole device as sender.
+     * @return true if it's the first copy of the message, or it hasn't id or sender, false if it's
+     * a duplicate.
+     */
+    public boolean acceptFromHistory(MessageWrapper message) {
+        Long messageId = message.getId();
+        Object sender = getSender(message);
+        return messageId == null || sender == null || acceptFromHistory(sender, messageId);
+    }
+
+    public synchronized void clear() {
+        senders.clear();
+    }
+
+    private static Object getSender(MessageWrapper message) {
+        Object sender = message.getSenderId();
+        WroupDevice device = message.getWroupDevice();
+        if (sender == null && device != null) {
+            sender = device.getPeerId() != null ? device.getPeerId() : device.getDeviceMac();
+        }
+        return sender;
+    }
+
+    private synchronized boolean acceptFromHistory(Object sender, long messageId) {
+        long session = MessageIdSequence.session(messageId);
+        long sequence = MessageIdSequence.sequence(messageId);
+
+        SenderWindow window = senders.get(sender);
+        if (window != null && window.session != session && window.firstAfterCatchUp != Long.MAX_VALUE) {
+            // Sent by a previous execution of the sender, the window of the current one is kept
+            return true;
+        }
+        if (window != null && window.session == session
+                && sequence > window.highestBeforeCatchUp && sequence < window.firstAfterCatchUp) {
+            // Sent while the device was out of the group, so it can't have been received
+            return window.acceptMissed(sequence);
+        }
+        return acceptFrom(sender, messageId);
+    }
+
+    private synchronized boolean acceptFrom(Object sender, long messageId) {
+        long session = MessageIdSequence.session(messageId);
+        long sequence = MessageIdSequence.sequence(messageId);
+
+        SenderWindow window = senders.get(sender);
+        if (window == null || window.session != session) {
+            // A new sender or a new execution of the sender
+            window = new SenderWindow(session, sequence);
+            senders.put(sender, window);
+            return true;
+        }
+        if (!window.accept(sequence)) {
+            return false;
+        }
+        if (sequence > window.highestBeforeCatchUp) {
+            window.firstAfterCatchUp = Math.min(window.firstAfterCatchUp, sequence);
+        }
+        return true;
+    }
+
+    private static class SenderWindow {
+
+        private final long session;
+        private final long[] bits = new long[WINDOW_SIZE / 64];
+        private long highest;
+        private long highestBeforeCatchUp = Long.MIN_VALUE;
+        private long firstAfterCatchUp;
+
+        SenderWindow(long session, long sequence) {
+            this.session = session;
+            this.highest = sequence;
+            this.firstAfterCatchUp = sequence;
+            set(sequence);
+        }
+
+        boolean accept(long sequence) {
+            if (sequence > highest) {
+                // Slide the window, forgetting the sequence numbers which leave it
+                if (sequence - highest >= WINDOW_SIZE) {
+                    for (int i = 0; i < bits.length; i++) {
+                        bits[i] = 0;
+                    }
+                } else {
+                    for (long cleared = highest + 1; cleared < sequence; cleared++) {
+                        clear(cleared);
+                    }
+                }
+                highest = sequence;
+                set(sequence);
+                return true;
+            }
+
+            if (highest - sequence >= WINDOW_SIZE || isSet(sequence)) {
+                return false;
+            }
+            set(sequence);
+            return true;
+        }
+
+        /**
+         * Accept a message which can't have been received, remembering it only if it isn't older
+         * than the window.
+         */
+        boolean acceptMissed(long sequence) {
+            if (sequence > highest) {
+                return accept(sequence);
+            }
+            if (highest - sequence >= WINDOW_SIZE) {
+                return true;
+            }
+            if (isSet(sequence)) {
+                return false;
+            }
+            set(sequence);
+            return true;
+        }
+
+        private boolean isSet(long sequence) {
+            int bit = (int) (sequence % WINDOW_SIZE);
+            return (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(long sequence) {
+            int bit = (int) (sequence % WINDOW_SIZE);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(long sequence) {
+            int bit = (int) (sequence % WINDOW_SIZE);
+            bits[bit >>> 6] &= ~(1L << bit);
+        }
+
+    }
+
+}
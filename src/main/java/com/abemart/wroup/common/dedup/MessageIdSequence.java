@@ -0,0 +1,47 @@
+package com.abemart.wroup.common.dedup;
+
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of the ids of the data messages sent by a device. An id is a positive long which
+ * contains a random session, different in every execution, in its 23 high bits and a sequence
+ * number in its 40 low bits, so it's encoded in a few bytes and the receivers can keep the ids
+ * seen from every sender in a {@link DuplicateWindow}.
+ * <p>
+ * The ids are only unique among the messages of the same sender, which is identified by its id in
+ * the group, or by the MAC address of the device of the message before it's assigned one.
+ */
+public class MessageIdSequence {
+
+    static final int SEQUENCE_BITS = 40;
+    static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long session;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public MessageIdSequence() {
+        this(1 + new Random().nextInt((1 << (63 - SEQUENCE_BITS)) - 1));
+    }
+
+    MessageIdSequence(long session) {
+        this.session = session << SEQUENCE_BITS;
+    }
+
+    /**
+     * @return the id of the next message.
+     */
+    public long next() {
+        return session | (sequence.incrementAndGet() & SEQUENCE_MASK);
+    }
+
+    static long session(long messageId) {
+        return messageId >>> SEQUENCE_BITS;
+    }
+
+    static long sequence(long messageId) {
+        return messageId & SEQUENCE_MASK;
+    }
+
+}
@@ -3,10 +3,10 @@ package com.abemart.wroup.common.direct;
 
 import android.net.wifi.p2p.WifiP2pGroup;
 import android.net.wifi.p2p.WifiP2pManager;
-import android.util.Log;
 
 import com.abemart.wroup.common.WiFiP2PError;
 import com.abemart.wroup.common.WiFiP2PInstance;
+import com.abemart.wroup.common.logging.WroupLog;
 
 public class WiFiDirectUtils {
 
@@ -17,12 +17,12 @@ public class WiFiDirectUtils {
 
             @Override
             public void onSuccess() {
-                Log.d(TAG, "Success clearing service request");
+                WroupLog.d(TAG, "Success clearing service request");
             }
 
             @Override
             public void onFailure(int reason) {
-                Log.e(TAG, "Error clearing service request: " + reason);
+                WroupLog.e(TAG, "Error clearing service request: {}", reason);
             }
 
         });
@@ -33,12 +33,12 @@ public class WiFiDirectUtils {
 
             @Override
             public void onSuccess() {
-                Log.d(TAG, "Local services cleared");
+                WroupLog.d(TAG, "Local services cleared");
             }
 
             @Override
             public void onFailure(int reason) {
-                Log.e(TAG, "Error clearing local services: " + WiFiP2PError.fromReason(reason));
+                WroupLog.e(TAG, "Error clearing local services: {}", WiFiP2PError.fromReason(reason));
             }
 
         });
@@ -49,12 +49,12 @@ public class WiFiDirectUtils {
 
             @Override
             public void onSuccess() {
-                Log.d(TAG, "Connect canceled successfully");
+                WroupLog.d(TAG, "Connect canceled successfully");
             }
 
             @Override
             public void onFailure(int reason) {
-                Log.e(TAG, "Error canceling connect: " + WiFiP2PError.fromReason(reason));
+                WroupLog.e(TAG, "Error canceling connect: {}", WiFiP2PError.fromReason(reason));
             }
 
         });
@@ -67,12 +67,12 @@ public class WiFiDirectUtils {
                 wiFiP2PInstance.getWifiP2pManager().removeGroup(wiFiP2PInstance.getChannel(), new WifiP2pManager.ActionListener() {
                     @Override
                     public void onSuccess() {
-                        Log.i(TAG, "Group removed: " + group.getNetworkName());
+                        WroupLog.i(TAG, "Group removed: {}", group.getNetworkName());
                     }
 
                     @Override
                     public void onFailure(int reason) {
-                        Log.e(TAG, "Fail disconnecting from group. Reason: " + WiFiP2PError.fromReason(reason));
+                        WroupLog.e(TAG, "Fail disconnecting from group. Reason: {}", WiFiP2PError.fromReason(reason));
                     }
                 });
             }
@@ -84,12 +84,12 @@ public class WiFiDirectUtils {
 
             @Override
             public void onSuccess() {
-                Log.d(TAG, "Peer disconvering stopped");
+                WroupLog.d(TAG, "Peer disconvering stopped");
             }
 
             @Override
             public void onFailure(int reason) {
-                Log.e(TAG, "Error stopping peer discovering: " + WiFiP2PError.fromReason(reason));
+                WroupLog.e(TAG, "Error stopping peer discovering: {}", WiFiP2PError.fromReason(reason));
             }
 
         });
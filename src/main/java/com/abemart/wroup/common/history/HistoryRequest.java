@@ -0,0 +1,67 @@
+package com.abemart.wroup.common.history;
+
+
+/**
+ * The messages of the history of the group which a client asks for when it registers.
+ * <p>
+ * The time is measured with the clock of the group owner, which stamps the messages when it sends
+ * or receives them.
+ */
+public class HistoryRequest {
+
+    private Integer lastMessages;
+    private Long sinceMillis;
+
+    private HistoryRequest() {
+    }
+
+    /**
+     * Ask for the last messages of the history.
+     *
+     * @param lastMessages The maximum number of messages, the most recent ones.
+     * @return the request.
+     */
+    public static HistoryRequest lastMessages(int lastMessages) {
+        if (lastMessages <= 0) {
+            throw new IllegalArgumentException("The number of messages must be positive");
+        }
+        HistoryRequest request = new HistoryRequest();
+        request.lastMessages = lastMessages;
+        return request;
+    }
+
+    /**
+     * Ask for the messages of the history sent since a time.
+     *
+     * @param sinceMillis The time in milliseconds since the epoch of the oldest message.
+     * @return the request.
+     */
+    public static HistoryRequest since(long sinceMillis) {
+        HistoryRequest request = new HistoryRequest();
+        request.sinceMillis = sinceMillis;
+        return request;
+    }
+
+    /**
+     * @return the maximum number of messages, or null to send all the ones since the time.
+     */
+    public Integer getLastMessages() {
+        return lastMessages;
+    }
+
+    /**
+     * @return the time of the oldest message, or null to send the last messages.
+     */
+    public Long getSinceMillis() {
+        return sinceMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryRequest{" +
+                "lastMessages=" + lastMessages +
+                ", sinceMillis=" + sinceMillis +
+                '}';
+    }
+
+}
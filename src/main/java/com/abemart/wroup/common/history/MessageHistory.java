@@ -0,0 +1,218 @@
+package com.abemart.wroup.common.history;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.topics.TopicPatterns;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Bounded history of the data messages of the group, kept by the group owner so the clients which
+ * join later can catch up.
+ * <p>
+ * The messages are kept encoded as JSON in a ring of a fixed number of bytes, which can be
+ * allocated out of the Java heap. When a new message doesn't fit, the oldest ones are overwritten,
+ * so the memory used never grows beyond the budget, and the messages larger than the whole ring
+ * aren't kept. The binary payloads of the messages aren't kept either.
+ * <p>
+ * The messages are encoded before taking the lock of the history, and the ones selected for a
+ * client are only copied under it, so the catch-up of a client doesn't delay the messages sent to
+ * the group.
+ */
+public class MessageHistory {
+
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+    public static final int DEFAULT_MAX_MESSAGES = 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer ring;
+    private final int maxMessages;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int writePosition;
+    private long messagesDiscarded;
+
+    /**
+     * @param maxBytes    The size of the ring, the maximum number of bytes of the messages kept.
+     * @param maxMessages The maximum number of messages kept.
+     * @param offHeap     True to allocate the ring out of the Java heap.
+     */
+    public MessageHistory(int maxBytes, int maxMessages, boolean offHeap) {
+        if (maxBytes <= 0 || maxMessages <= 0) {
+            throw new IllegalArgumentException("The size of the history must be positive");
+        }
+        this.ring = offHeap ? ByteBuffer.allocateDirect(maxBytes) : ByteBuffer.allocate(maxBytes);
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Keep a data message sent to the group. The sender is kept as the whole device, since the
+     * clients which receive it later may not know its id, and the sequence number of the messages
+     * sent in total order is kept so they are delivered in the same order.
+     *
+     * @param message    The message sent to the group.
+     * @param timeMillis The time when it was sent or received.
+     * @return true if the message is kept, false if it's larger than the history.
+     */
+    public boolean add(MessageWrapper message, long timeMillis) {
+        MessageWrapper copy = new MessageWrapper();
+        copy.setId(message.getId());
+        copy.setMessageType(message.getMessageType());
+        copy.setMessage(message.getMessage());
+        copy.setTopic(message.getTopic());
+        copy.setSequence(message.getSequence());
+        copy.setWroupDevice(message.getWroupDevice());
+        byte[] bytes = MessageCodec.GSON.toJson(copy).getBytes(UTF_8);
+
+        WroupDevice sender = message.getWroupDevice();
+        String senderMac = sender != null ? sender.getDeviceMac() : null;
+        return append(bytes, timeMillis, senderMac, message.getTopic());
+    }
+
+    private synchronized boolean append(byte[] bytes, long timeMillis, String senderMac, String topic) {
+        int capacity = ring.capacity();
+        if (bytes.length > capacity) {
+            messagesDiscarded++;
+            return false;
+        }
+
+        if (writePosition + bytes.length > capacity) {
+            // The tail of the ring is too small, the message is written at its start
+            evict(writePosition, capacity);
+            writePosition = 0;
+        }
+        evict(writePosition, writePosition + bytes.length);
+        while (entries.size() >= maxMessages) {
+            entries.removeFirst();
+        }
+
+        ByteBuffer target = ring.duplicate();
+        target.position(writePosition);
+        target.put(bytes);
+        entries.addLast(new Entry(writePosition, bytes.length, timeMillis, senderMac, topic));
+        writePosition += bytes.length;
+        return true;
+    }
+
+    /**
+     * Remove the oldest messages which are written between two positions of the ring.
+     */
+    private void evict(int start, int end) {
+        while (!entries.isEmpty()) {
+            Entry oldest = entries.peekFirst();
+            if (oldest.offset < start || oldest.offset >= end) {
+                return;
+            }
+            entries.removeFirst();
+        }
+    }
+
+    /**
+     * Select the messages of the history requested by a client.
+     *
+     * @param request       The messages requested.
+     * @param clientMac     The MAC address of the client, whose own messages aren't selected.
+     * @param subscriptions The topic patterns which the client is subscribed to. The messages
+     *                      published in other topics aren't selected.
+     * @return the JSON text of the messages selected, from the oldest to the newest.
+     */
+    public List<String> select(HistoryRequest request, String clientMac, Collection<String> subscriptions) {
+        int lastMessages = request.getLastMessages() != null ? request.getLastMessages() : Integer.MAX_VALUE;
+        long sinceMillis = request.getSinceMillis() != null ? request.getSinceMillis() : Long.MIN_VALUE;
+
+        List<byte[]> selected = new ArrayList<>();
+        synchronized (this) {
+            ByteBuffer source = ring.duplicate();
+            Iterator<Entry> newestFirst = entries.descendingIterator();
+            while (newestFirst.hasNext() && selected.size() < lastMessages) {
+                Entry entry = newestFirst.next();
+                if (entry.timeMillis < sinceMillis) {
+                    break;
+                }
+                if ((clientMac != null && clientMac.equals(entry.senderMac)) || !isSubscribed(entry.topic, subscriptions)) {
+                    continue;
+                }
+                byte[] bytes = new byte[entry.length];
+                source.position(entry.offset);
+                source.get(bytes);
+                selected.add(bytes);
+            }
+        }
+
+        List<String> messages = new ArrayList<>(selected.size());
+        for (byte[] bytes : selected) {
+            messages.add(new String(bytes, UTF_8));
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    private static boolean isSubscribed(String topic, Collection<String> subscriptions) {
+        if (topic == null) {
+            return true;
+        }
+        for (String pattern : subscriptions) {
+            if (TopicPatterns.matches(pattern, topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of messages kept.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of bytes of the ring, which is the memory used by the history.
+     */
+    public int getMaxBytes() {
+        return ring.capacity();
+    }
+
+    /**
+     * @return the number of messages which weren't kept because they were larger than the history.
+     */
+    public synchronized long getMessagesDiscarded() {
+        return messagesDiscarded;
+    }
+
+    /**
+     * Forget all the messages.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        writePosition = 0;
+    }
+
+    private static final class Entry {
+
+        final int offset;
+        final int length;
+        final long timeMillis;
+        final String senderMac;
+        final String topic;
+
+        Entry(int offset, int length, long timeMillis, String senderMac, String topic) {
+            this.offset = offset;
+            this.length = length;
+            this.timeMillis = timeMillis;
+            this.senderMac = senderMac;
+            this.topic = topic;
+        }
+
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Adapters of the listeners of the application which are notified by the threads of the group, so
+ * they run in the callback executor of the service or the client instead, like the rest of its
+ * listeners. An executor which runs the tasks in order, like the main thread, keeps the order in
+ * which the messages and the changes of the group are received.
+ */
+public final class CallbackListeners {
+
+    private CallbackListeners() {
+    }
+
+    /**
+     * @return a listener which notifies the data received to the listener in the executor, or null
+     * if the listener is null.
+     */
+    public static DataReceivedListener dataReceived(final Executor callbackExecutor, final DataReceivedListener dataReceivedListener) {
+        if (dataReceivedListener == null) {
+            return null;
+        }
+        return new DataReceivedListener() {
+            @Override
+            public void onDataReceived(final MessageWrapper messageWrapper) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dataReceivedListener.onDataReceived(messageWrapper);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @return a listener which notifies the clients connected to the listener in the executor, or
+     * null if the listener is null.
+     */
+    public static ClientConnectedListener clientConnected(final Executor callbackExecutor, final ClientConnectedListener clientConnectedListener) {
+        if (clientConnectedListener == null) {
+            return null;
+        }
+        return new ClientConnectedListener() {
+            @Override
+            public void onClientConnected(final WroupDevice wroupDevice) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        clientConnectedListener.onClientConnected(wroupDevice);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @return a listener which notifies the clients disconnected to the listener in the executor,
+     * or null if the listener is null.
+     */
+    public static ClientDisconnectedListener clientDisconnected(final Executor callbackExecutor, final ClientDisconnectedListener clientDisconnectedListener) {
+        if (clientDisconnectedListener == null) {
+            return null;
+        }
+        return new ClientDisconnectedListener() {
+            @Override
+            public void onClientDisconnected(final WroupDevice wroupDevice) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        clientDisconnectedListener.onClientDisconnected(wroupDevice);
+                    }
+                });
+            }
+        };
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.net.InetAddress;
+
+public interface MessageReceivedListener {
+
+    void onMessageReceived(MessageWrapper messageWrapper, InetAddress fromAddress);
+
+}
@@ -0,0 +1,10 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.metrics.MetricsSnapshot;
+
+public interface MetricsListener {
+
+    void onMetricsSnapshot(MetricsSnapshot metricsSnapshot);
+
+}
@@ -0,0 +1,17 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.peers.PeerChanges;
+
+public interface PeersChangedListener {
+
+    /**
+     * Called in the callback executor of the <code>WiFiP2PInstance</code> when the list of peers
+     * discovered has changed, at most once per debounce window.
+     *
+     * @param peerChanges The peers added, removed and changed since the previous call, and the
+     *                    current list of peers.
+     */
+    void onPeersChanged(PeerChanges peerChanges);
+
+}
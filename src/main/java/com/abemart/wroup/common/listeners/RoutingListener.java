@@ -0,0 +1,14 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+public interface RoutingListener {
+
+    /**
+     * Called with the <code>ROUTED</code> and <code>ROUTE_ADVERTISEMENT</code> messages received
+     * by a device which bridges two groups.
+     */
+    void onRoutingMessageReceived(MessageWrapper messageWrapper);
+
+}
@@ -0,0 +1,18 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.WroupDevice;
+
+public interface RpcRequestListener {
+
+    /**
+     * Handle a remote call of the method which the listener is registered for.
+     *
+     * @param caller The device which made the call.
+     * @param params The parameters of the call, in the format agreed by the devices.
+     * @return the result returned to the caller.
+     * @throws Exception If the call fails. The caller receives the message of the exception.
+     */
+    String onRpcRequest(WroupDevice caller, String params) throws Exception;
+
+}
@@ -0,0 +1,12 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.rpc.RpcError;
+
+public interface RpcResponseListener {
+
+    void onRpcResponse(String result);
+
+    void onRpcError(RpcError rpcError, String message);
+
+}
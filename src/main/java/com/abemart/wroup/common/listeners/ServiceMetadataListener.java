@@ -0,0 +1,25 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.rpc.RpcError;
+
+import java.util.Map;
+
+public interface ServiceMetadataListener {
+
+    /**
+     * Called with the extended metadata of the service, from the cache or from the group owner.
+     *
+     * @param metadata The metadata, empty if the service hasn't metadata.
+     */
+    void onMetadataAvailable(Map<String, String> metadata);
+
+    /**
+     * Called when the metadata isn't cached and it couldn't be fetched from the group owner.
+     *
+     * @param rpcError The reason of the error.
+     * @param message  The description of the error.
+     */
+    void onMetadataError(RpcError rpcError, String message);
+
+}
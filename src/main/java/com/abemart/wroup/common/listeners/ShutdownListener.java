@@ -0,0 +1,14 @@
+package com.abemart.wroup.common.listeners;
+
+
+public interface ShutdownListener {
+
+    /**
+     * Called when the device has left the group and released its sockets.
+     *
+     * @param graceful True if the messages queued were sent and the disconnection was acknowledged
+     *                 before the deadline, false if the sockets were released at the deadline.
+     */
+    void onShutdownCompleted(boolean graceful);
+
+}
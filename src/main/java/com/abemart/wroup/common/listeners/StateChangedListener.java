@@ -0,0 +1,14 @@
+package com.abemart.wroup.common.listeners;
+
+
+public interface StateChangedListener {
+
+    /**
+     * Called when a key of the replicated store changes with the changes received from other
+     * devices of the group.
+     *
+     * @param key The key which has changed.
+     */
+    void onStateChanged(String key);
+
+}
@@ -0,0 +1,10 @@
+package com.abemart.wroup.common.listeners;
+
+
+import com.abemart.wroup.common.tracing.MessageTrace;
+
+public interface TracingListener {
+
+    void onMessageTraced(MessageTrace messageTrace);
+
+}
@@ -0,0 +1,19 @@
+package com.abemart.wroup.common.logging;
+
+
+import android.util.Log;
+
+/**
+ * Sink which writes the messages in the Android log, the default one.
+ */
+public class AndroidLogSink implements LogSink {
+
+    @Override
+    public void log(int level, String tag, String message, Throwable throwable) {
+        if (throwable != null) {
+            message = message + '\n' + Log.getStackTraceString(throwable);
+        }
+        Log.println(level, tag, message);
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.abemart.wroup.common.logging;
+
+
+/**
+ * Destination of the messages logged by the library through {@link WroupLog}. The messages are
+ * already formatted and filtered by level when they reach the sink.
+ */
+public interface LogSink {
+
+    /**
+     * @param level     The level of the message, one of the {@link WroupLog} levels.
+     * @param tag       The tag of the class which logs the message.
+     * @param message   The message formatted.
+     * @param throwable The error logged with the message, or null.
+     */
+    void log(int level, String tag, String message, Throwable throwable);
+
+}
@@ -0,0 +1,302 @@
+package com.abemart.wroup.common.logging;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging facade of the library.
+ * <p>
+ * The level is checked before formatting anything, so a message filtered out doesn't build any
+ * string. The messages take their values as parameters, which replace the <code>{}</code> of the
+ * message in order, and the overloads with up to three parameters don't allocate anything when
+ * the level is filtered out. If the last parameter is a <code>Throwable</code> which has no
+ * <code>{}</code> left, it's logged as the error of the message.
+ * <p>
+ * Only the messages of level {@link #INFO} or higher are logged by default, in the Android log.
+ * The application can change the level, disable the logging with {@link #OFF} or install its own
+ * {@link LogSink}.
+ * <p>
+ * The contents of the messages are never logged as they are: {@link #payload(Object)} logs only
+ * their length unless a preview is enabled with {@link #setPayloadPreview(int)}, and the logs of
+ * every message sent or received can be sampled with {@link #setSampleRate(int)}.
+ */
+public final class WroupLog {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int OFF = Integer.MAX_VALUE;
+
+    private static volatile LogSink sink = new AndroidLogSink();
+    private static volatile int level = INFO;
+    private static volatile int payloadPreviewChars;
+    private static volatile int sampleRate = 1;
+    private static final AtomicLong sampled = new AtomicLong();
+
+    private WroupLog() {
+    }
+
+    /**
+     * Install the sink of the messages.
+     *
+     * @param logSink The sink, or null to discard all the messages.
+     */
+    public static void setSink(LogSink logSink) {
+        sink = logSink;
+    }
+
+    /**
+     * Set the minimum level of the messages logged.
+     *
+     * @param minimumLevel One of the levels, or {@link #OFF} to log nothing.
+     */
+    public static void setLevel(int minimumLevel) {
+        level = minimumLevel;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * Set how many characters of the contents of the messages are logged. By default it's 0 and
+     * only their length is logged, so the data of the application doesn't reach the log.
+     *
+     * @param maxChars The maximum number of characters logged of every content.
+     */
+    public static void setPayloadPreview(int maxChars) {
+        payloadPreviewChars = Math.max(0, maxChars);
+    }
+
+    /**
+     * Log only one of every <code>rate</code> logs of the messages sent and received, which are
+     * too many to log them all in a busy group. By default they are all logged.
+     *
+     * @param rate The sampling rate, 1 to log them all.
+     */
+    public static void setSampleRate(int rate) {
+        sampleRate = Math.max(1, rate);
+    }
+
+    /**
+     * @return true if the messages of the level are logged.
+     */
+    public static boolean isLoggable(int messageLevel) {
+        return messageLevel >= level && sink != null;
+    }
+
+    /**
+     * Check if a log of a message sent or received has to be written, sampling them.
+     *
+     * @return true if the messages of the level are logged and this one is in the sample.
+     */
+    public static boolean isSampled(int messageLevel) {
+        if (!isLoggable(messageLevel)) {
+            return false;
+        }
+        int rate = sampleRate;
+        return rate == 1 || sampled.getAndIncrement() % rate == 0;
+    }
+
+    /**
+     * Wrap the content of a message to log it as a parameter. It's rendered as its length and, if
+     * the preview is enabled, its first characters.
+     *
+     * @param content The content, which is only converted to a string if it's logged.
+     * @return the parameter to log.
+     */
+    public static Object payload(Object content) {
+        return new Payload(content);
+    }
+
+    public static void d(String tag, String message) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, message, null, 0);
+        }
+    }
+
+    public static void d(String tag, String message, Object arg) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, message, new Object[]{arg}, 1);
+        }
+    }
+
+    public static void d(String tag, String message, Object arg1, Object arg2) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, message, new Object[]{arg1, arg2}, 2);
+        }
+    }
+
+    public static void d(String tag, String message, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, message, new Object[]{arg1, arg2, arg3}, 3);
+        }
+    }
+
+    public static void d(String tag, String message, Object... args) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, tag, message, args, args.length);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (isLoggable(INFO)) {
+            log(INFO, tag, message, null, 0);
+        }
+    }
+
+    public static void i(String tag, String message, Object arg) {
+        if (isLoggable(INFO)) {
+            log(INFO, tag, message, new Object[]{arg}, 1);
+        }
+    }
+
+    public static void i(String tag, String message, Object arg1, Object arg2) {
+        if (isLoggable(INFO)) {
+            log(INFO, tag, message, new Object[]{arg1, arg2}, 2);
+        }
+    }
+
+    public static void i(String tag, String message, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(INFO)) {
+            log(INFO, tag, message, new Object[]{arg1, arg2, arg3}, 3);
+        }
+    }
+
+    public static void i(String tag, String message, Object... args) {
+        if (isLoggable(INFO)) {
+            log(INFO, tag, message, args, args.length);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, message, null, 0);
+        }
+    }
+
+    public static void w(String tag, String message, Object arg) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, message, new Object[]{arg}, 1);
+        }
+    }
+
+    public static void w(String tag, String message, Object arg1, Object arg2) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, message, new Object[]{arg1, arg2}, 2);
+        }
+    }
+
+    public static void w(String tag, String message, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, message, new Object[]{arg1, arg2, arg3}, 3);
+        }
+    }
+
+    public static void w(String tag, String message, Object... args) {
+        if (isLoggable(WARN)) {
+            log(WARN, tag, message, args, args.length);
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, null, 0);
+        }
+    }
+
+    public static void e(String tag, String message, Object arg) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, new Object[]{arg}, 1);
+        }
+    }
+
+    public static void e(String tag, String message, Object arg1, Object arg2) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, new Object[]{arg1, arg2}, 2);
+        }
+    }
+
+    public static void e(String tag, String message, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, new Object[]{arg1, arg2, arg3}, 3);
+        }
+    }
+
+    public static void e(String tag, String message, Object... args) {
+        if (isLoggable(ERROR)) {
+            log(ERROR, tag, message, args, args.length);
+        }
+    }
+
+    private static void log(int messageLevel, String tag, String message, Object[] args, int argCount) {
+        LogSink logSink = sink;
+        if (logSink == null) {
+            return;
+        }
+
+        Throwable throwable = null;
+        if (argCount > 0 && args[argCount - 1] instanceof Throwable && countPlaceholders(message) < argCount) {
+            throwable = (Throwable) args[argCount - 1];
+            argCount--;
+        }
+        logSink.log(messageLevel, tag, argCount > 0 ? format(message, args, argCount) : message, throwable);
+    }
+
+    static String format(String message, Object[] args, int argCount) {
+        StringBuilder builder = new StringBuilder(message.length() + 16 * argCount);
+        int start = 0;
+        int arg = 0;
+        while (arg < argCount) {
+            int placeholder = message.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            builder.append(message, start, placeholder).append(args[arg++]);
+            start = placeholder + 2;
+        }
+        return builder.append(message, start, message.length()).toString();
+    }
+
+    private static int countPlaceholders(String message) {
+        int count = 0;
+        int index = message.indexOf("{}");
+        while (index >= 0) {
+            count++;
+            index = message.indexOf("{}", index + 2);
+        }
+        return count;
+    }
+
+    /**
+     * The content of a message logged as a parameter.
+     */
+    private static final class Payload {
+
+        private final Object content;
+
+        Payload(Object content) {
+            this.content = content;
+        }
+
+        @Override
+        public String toString() {
+            if (content == null) {
+                return "null";
+            }
+            String text = content.toString();
+            int previewChars = payloadPreviewChars;
+            if (previewChars == 0) {
+                return "[" + text.length() + " chars]";
+            }
+            if (text.length() <= previewChars) {
+                return text;
+            }
+            return text.substring(0, previewChars) + "...[" + text.length() + " chars]";
+        }
+
+    }
+
+}
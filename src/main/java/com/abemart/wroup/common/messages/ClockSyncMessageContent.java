@@ -0,0 +1,43 @@
+package com.abemart.wroup.common.messages;
+
+
+public class ClockSyncMessageContent {
+
+    private long originateMicros;
+    private long receiveMicros;
+    private long transmitMicros;
+
+    /**
+     * @return when the client sent the request, in the client clock.
+     */
+    public long getOriginateMicros() {
+        return originateMicros;
+    }
+
+    public void setOriginateMicros(long originateMicros) {
+        this.originateMicros = originateMicros;
+    }
+
+    /**
+     * @return when the group owner received the request, in the group owner clock.
+     */
+    public long getReceiveMicros() {
+        return receiveMicros;
+    }
+
+    public void setReceiveMicros(long receiveMicros) {
+        this.receiveMicros = receiveMicros;
+    }
+
+    /**
+     * @return when the group owner sent the response, in the group owner clock.
+     */
+    public long getTransmitMicros() {
+        return transmitMicros;
+    }
+
+    public void setTransmitMicros(long transmitMicros) {
+        this.transmitMicros = transmitMicros;
+    }
+
+}
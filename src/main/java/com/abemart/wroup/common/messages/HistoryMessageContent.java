@@ -0,0 +1,35 @@
+package com.abemart.wroup.common.messages;
+
+
+import java.util.List;
+
+public class HistoryMessageContent {
+
+    private Long nextSequence;
+    private List<MessageWrapper> messages;
+
+    /**
+     * @return the sequence number of the first message sent to the device after the history, or
+     * null if the messages aren't sent in total order.
+     */
+    public Long getNextSequence() {
+        return nextSequence;
+    }
+
+    public void setNextSequence(Long nextSequence) {
+        this.nextSequence = nextSequence;
+    }
+
+    /**
+     * @return the messages of the history of the group, from the oldest to the newest, with their
+     * sequence numbers if they were sent in total order.
+     */
+    public List<MessageWrapper> getMessages() {
+        return messages;
+    }
+
+    public void setMessages(List<MessageWrapper> messages) {
+        this.messages = messages;
+    }
+
+}
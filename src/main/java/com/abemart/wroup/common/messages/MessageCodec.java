@@ -0,0 +1,72 @@
+package com.abemart.wroup.common.messages;
+
+
+import com.abemart.wroup.common.tracing.TraceContext;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * JSON encoding of the messages exchanged by the devices of the group.
+ * <p>
+ * <code>Gson</code> instances are thread safe and cache the adapters of every class they
+ * serialize, so all the messages are encoded and decoded with the same instance instead of
+ * creating one per message.
+ */
+public final class MessageCodec {
+
+    public static final Gson GSON = new Gson();
+
+    private static final TypeAdapter<MessageWrapper> MESSAGE_WRAPPER_ADAPTER = GSON.getAdapter(MessageWrapper.class);
+    private static final TypeAdapter<TraceContext> TRACE_CONTEXT_ADAPTER = GSON.getAdapter(TraceContext.class);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Decode a message from the JSON text read from the reader.
+     *
+     * @param reader The reader of the JSON text of the message.
+     * @return the message decoded.
+     * @throws IOException If the text read isn't a valid message.
+     */
+    public static MessageWrapper decodeMessage(Reader reader) throws IOException {
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setLenient(true);
+        return MESSAGE_WRAPPER_ADAPTER.read(jsonReader);
+    }
+
+    /**
+     * Decode the trace stamps of a message from the JSON text read from the reader.
+     *
+     * @param reader The reader of the JSON text of the trace.
+     * @return the trace decoded.
+     * @throws IOException If the text read isn't a valid trace.
+     */
+    public static TraceContext decodeTrace(Reader reader) throws IOException {
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.setLenient(true);
+        return TRACE_CONTEXT_ADAPTER.read(jsonReader);
+    }
+
+    /**
+     * Encode a message as JSON text written to the writer. The payload and the trace of the message
+     * aren't part of the JSON text.
+     *
+     * @param messageWrapper The message to encode.
+     * @param writer         The writer of the JSON text.
+     * @throws IOException If the writer fails.
+     */
+    public static void encodeMessage(MessageWrapper messageWrapper, Writer writer) throws IOException {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.setSerializeNulls(false);
+        MESSAGE_WRAPPER_ADAPTER.write(jsonWriter, messageWrapper);
+        jsonWriter.flush();
+    }
+
+}
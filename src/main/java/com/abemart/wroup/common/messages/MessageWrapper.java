@@ -2,24 +2,102 @@ package com.abemart.wroup.common.messages;
 
 
 import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.outbox.OutboxStamp;
+import com.abemart.wroup.common.tracing.TraceContext;
+import com.abemart.wroup.common.transport.MessageChannel;
+
+import java.nio.ByteBuffer;
 
 public class MessageWrapper {
 
     public enum MessageType {
-        NORMAL, CONNECTION_MESSAGE, DISCONNECTION_MESSAGE, REGISTERED_DEVICES;
+        NORMAL, CONNECTION_MESSAGE, DISCONNECTION_MESSAGE, REGISTERED_DEVICES, CLOCK_SYNC_REQUEST, CLOCK_SYNC_RESPONSE, SUBSCRIPTION, RPC_REQUEST, RPC_RESPONSE, ROUTED, ROUTE_ADVERTISEMENT, STATE_DELTA, STATE_SYNC, OUTBOX_ACK, DISCONNECTION_ACK, HISTORY;
     }
 
+    private Long id;
     private String message;
     private MessageType messageType;
     private WroupDevice wroupDevice;
+    private Integer senderId;
+    private String topic;
+    private Boolean broadcast;
+    private Boolean ordered;
+    private Long sequence;
+    private OutboxStamp outbox;
+    private transient WroupDevice sender;
+    private transient TraceContext trace;
+    private transient ByteBuffer payload;
+    private transient MessageChannel channel;
+
+
+    /**
+     * Obtain the id of the message, which is unique among the messages of the same sender and is
+     * used by the receivers to discard the duplicates. It's set when a data message is sent.
+     *
+     * @return the id of the message, or null if it hasn't id.
+     */
+    public Long getId() {
+        return id;
+    }
 
+    public void setId(Long id) {
+        this.id = id;
+    }
 
+    /**
+     * Set the sender of the message, which is sent with all its fields.
+     *
+     * @param wroupDevice The sender of the message.
+     */
     public void setWroupDevice(WroupDevice wroupDevice) {
         this.wroupDevice = wroupDevice;
+        this.senderId = null;
+        this.sender = null;
     }
 
+    /**
+     * Obtain the sender of the message. If the message only carries the id of its sender, it's the
+     * device resolved by the receiver in its membership.
+     *
+     * @return the sender of the message, or null if it's unknown.
+     */
     public WroupDevice getWroupDevice() {
-        return wroupDevice;
+        return wroupDevice != null ? wroupDevice : sender;
+    }
+
+    /**
+     * Set the sender of the message, which is sent only as its id if the group owner has assigned
+     * it one.
+     *
+     * @param wroupDevice The sender of the message.
+     * @param senderId    The id of the sender in the group, or null to send the whole device.
+     */
+    public void setSender(WroupDevice wroupDevice, Integer senderId) {
+        if (senderId == null) {
+            setWroupDevice(wroupDevice);
+            return;
+        }
+        this.wroupDevice = null;
+        this.senderId = senderId;
+        this.sender = wroupDevice;
+    }
+
+    /**
+     * Obtain the id in the group of the sender of the message.
+     *
+     * @return the id of the sender, or null if the message carries the whole device.
+     */
+    public Integer getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Set the device resolved from the id of the sender when the message is received.
+     *
+     * @param sender The device with the id of the sender.
+     */
+    public void resolveSender(WroupDevice sender) {
+        this.sender = sender;
     }
 
     public String getMessage() {
@@ -38,12 +116,139 @@ public class MessageWrapper {
         this.messageType = messageType;
     }
 
+    /**
+     * Obtain the topic of the message. The messages with a topic which are sent to the group owner
+     * are routed to the devices subscribed to the topic.
+     *
+     * @return the topic of the message or null if it wasn't published in a topic.
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    /**
+     * @return true if the message has been sent to all the group by a client, so the group owner
+     * keeps it in the history of the group.
+     */
+    public boolean isBroadcast() {
+        return broadcast != null && broadcast;
+    }
+
+    public void setBroadcast(boolean broadcast) {
+        // Only sent when it's true
+        this.broadcast = broadcast ? Boolean.TRUE : null;
+    }
+
+    /**
+     * @return true if the message has been sent to the group owner to be stamped with a sequence
+     * number and sent to all the group in total order.
+     */
+    public boolean isOrdered() {
+        return ordered != null && ordered;
+    }
+
+    public void setOrdered(boolean ordered) {
+        // Only sent when it's true
+        this.ordered = ordered ? Boolean.TRUE : null;
+    }
+
+    /**
+     * Obtain the position of the message in the total order of the group, stamped by the group
+     * owner. All the devices deliver the messages with a sequence number in the same order.
+     *
+     * @return the sequence number of the message, or null if it isn't ordered.
+     */
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Obtain the position of the message in the outbox of its sender.
+     *
+     * @return the position of the message or null if it wasn't sent through an outbox.
+     */
+    public OutboxStamp getOutboxStamp() {
+        return outbox;
+    }
+
+    public void setOutboxStamp(OutboxStamp outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * Obtain the trace stamps of the message. They are only present in the messages received while
+     * the tracing is enabled.
+     *
+     * @return the trace stamps of the message or null if it wasn't traced.
+     */
+    public TraceContext getTrace() {
+        return trace;
+    }
+
+    public void setTrace(TraceContext trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Obtain the binary payload of the message, which is sent after the message without being
+     * encoded as JSON.
+     *
+     * @return the binary payload of the message or null if it hasn't payload.
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * Set a binary payload to be sent with the message. The bytes between the position and the
+     * limit of the buffer are sent, and the buffer must not be modified until the message has been
+     * sent to all its receivers.
+     *
+     * @param payload The binary payload, or null to send the message without payload.
+     */
+    public void setPayload(ByteBuffer payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * Obtain the channel where the message is sent, if it was chosen by the sender.
+     *
+     * @return the channel of the message, or null to choose it by its type and size.
+     */
+    public MessageChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Set the channel where the message is sent. By default the group management messages are
+     * sent in the {@link MessageChannel#CONTROL} channel, and the data messages in the
+     * {@link MessageChannel#INTERACTIVE} or {@link MessageChannel#BULK} ones depending on their
+     * size.
+     *
+     * @param channel The channel of the message, or null to choose it by its type and size.
+     */
+    public void setChannel(MessageChannel channel) {
+        this.channel = channel;
+    }
+
     @Override
     public String toString() {
         return "MessageWrapper{" +
-                "message='" + message + '\'' +
+                "id=" + id +
+                ", message='" + message + '\'' +
                 ", messageType=" + messageType +
-                ", wroupDevice=" + wroupDevice +
+                ", topic=" + topic +
+                ", sequence=" + sequence +
+                ", wroupDevice=" + getWroupDevice() +
+                ", senderId=" + senderId +
                 '}';
     }
 
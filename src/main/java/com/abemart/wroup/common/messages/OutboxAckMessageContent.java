@@ -0,0 +1,29 @@
+package com.abemart.wroup.common.messages;
+
+
+/**
+ * Content of the <code>OUTBOX_ACK</code> messages, which acknowledge to the sender of the messages
+ * of an outbox all the messages received in order up to a sequence number.
+ */
+public class OutboxAckMessageContent {
+
+    private long epoch;
+    private long sequence;
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+}
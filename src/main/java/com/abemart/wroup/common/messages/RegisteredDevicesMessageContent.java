@@ -8,6 +8,8 @@ import java.util.List;
 public class RegisteredDevicesMessageContent {
 
     private List<WroupDevice> devicesRegistered;
+    private Integer peerId;
+    private Long nextSequence;
 
     public List<WroupDevice> getDevicesRegistered() {
         return devicesRegistered;
@@ -17,4 +19,32 @@ public class RegisteredDevicesMessageContent {
         this.devicesRegistered = devicesRegistered;
     }
 
+    /**
+     * Obtain the id assigned by the group owner to the device which has registered.
+     *
+     * @return the id of the device in the group, or null if the group owner doesn't assign ids.
+     */
+    public Integer getPeerId() {
+        return peerId;
+    }
+
+    public void setPeerId(Integer peerId) {
+        this.peerId = peerId;
+    }
+
+    /**
+     * Obtain the sequence number of the first message sent in total order to the device which has
+     * registered.
+     *
+     * @return the next sequence number, or null if the group doesn't send the messages in total
+     * order.
+     */
+    public Long getNextSequence() {
+        return nextSequence;
+    }
+
+    public void setNextSequence(Long nextSequence) {
+        this.nextSequence = nextSequence;
+    }
+
 }
@@ -2,10 +2,15 @@ package com.abemart.wroup.common.messages;
 
 
 import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.history.HistoryRequest;
+
+import java.util.List;
 
 public class RegistrationMessageContent {
 
     private WroupDevice wroupDevice;
+    private List<String> subscriptions;
+    private HistoryRequest history;
 
     public WroupDevice getWroupDevice() {
         return wroupDevice;
@@ -15,4 +20,28 @@ public class RegistrationMessageContent {
         this.wroupDevice = wroupDevice;
     }
 
+    /**
+     * @return the topic patterns which the device is subscribed to, or null if it isn't subscribed
+     * to any topic.
+     */
+    public List<String> getSubscriptions() {
+        return subscriptions;
+    }
+
+    public void setSubscriptions(List<String> subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * @return the messages of the history of the group which the device asks for, or null if it
+     * doesn't need them.
+     */
+    public HistoryRequest getHistory() {
+        return history;
+    }
+
+    public void setHistory(HistoryRequest history) {
+        this.history = history;
+    }
+
 }
@@ -0,0 +1,23 @@
+package com.abemart.wroup.common.messages;
+
+
+import java.util.Map;
+
+/**
+ * Content of the <code>ROUTE_ADVERTISEMENT</code> messages exchanged by the group owners and the
+ * bridges. It contains all the devices which the sender can reach and the number of bridges which
+ * have to be crossed to reach them, so it replaces the previous advertisement of the same sender.
+ */
+public class RouteAdvertisementMessageContent {
+
+    private Map<String, Integer> distances;
+
+    public Map<String, Integer> getDistances() {
+        return distances;
+    }
+
+    public void setDistances(Map<String, Integer> distances) {
+        this.distances = distances;
+    }
+
+}
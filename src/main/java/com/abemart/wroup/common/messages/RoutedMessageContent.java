@@ -0,0 +1,57 @@
+package com.abemart.wroup.common.messages;
+
+
+/**
+ * Content of the <code>ROUTED</code> messages, which carry a message to a device of another group
+ * through the bridges between the groups.
+ */
+public class RoutedMessageContent {
+
+    private String messageId;
+    private String destinationMac;
+    private int ttl;
+    private MessageWrapper message;
+
+    /**
+     * @return the id of the message, unique in all the groups, used to discard the copies which
+     * arrive through different paths.
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getDestinationMac() {
+        return destinationMac;
+    }
+
+    public void setDestinationMac(String destinationMac) {
+        this.destinationMac = destinationMac;
+    }
+
+    /**
+     * @return the number of hops which the message can still do before being discarded.
+     */
+    public int getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the message routed, with the device which sent it originally.
+     */
+    public MessageWrapper getMessage() {
+        return message;
+    }
+
+    public void setMessage(MessageWrapper message) {
+        this.message = message;
+    }
+
+}
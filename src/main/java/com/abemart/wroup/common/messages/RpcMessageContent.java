@@ -0,0 +1,59 @@
+package com.abemart.wroup.common.messages;
+
+
+/**
+ * Content of the <code>RPC_REQUEST</code> and <code>RPC_RESPONSE</code> messages. The response
+ * carries the call id of the request, and either the result or the error of the call.
+ */
+public class RpcMessageContent {
+
+    private long callId;
+    private String method;
+    private String body;
+    private String error;
+    private String errorMessage;
+
+    public long getCallId() {
+        return callId;
+    }
+
+    public void setCallId(long callId) {
+        this.callId = callId;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    /**
+     * @return the parameters of a request or the result of a response.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    public void setBody(String body) {
+        this.body = body;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+}
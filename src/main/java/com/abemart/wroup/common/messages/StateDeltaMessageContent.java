@@ -0,0 +1,25 @@
+package com.abemart.wroup.common.messages;
+
+
+import com.abemart.wroup.common.replication.StateEntry;
+
+import java.util.List;
+
+/**
+ * Content of the <code>STATE_DELTA</code> messages, which send to all the group the changes made
+ * by a device in its replicated store. Every entry only contains the change, not the full value of
+ * the key.
+ */
+public class StateDeltaMessageContent {
+
+    private List<StateEntry> entries;
+
+    public List<StateEntry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<StateEntry> entries) {
+        this.entries = entries;
+    }
+
+}
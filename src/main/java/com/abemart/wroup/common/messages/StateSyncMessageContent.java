@@ -0,0 +1,62 @@
+package com.abemart.wroup.common.messages;
+
+
+import com.abemart.wroup.common.replication.StateEntry;
+
+import java.util.List;
+
+/**
+ * Content of the <code>STATE_SYNC</code> messages exchanged by two devices to find and repair the
+ * differences between their replicated stores. It carries either the hashes of some nodes of a
+ * level of the hash tree, or the entries of some leaves, in which case the receiver may be asked
+ * to answer with its own entries of the same leaves.
+ */
+public class StateSyncMessageContent {
+
+    private int level;
+    private List<Integer> nodes;
+    private List<Long> hashes;
+    private List<StateEntry> entries;
+    private boolean entriesRequested;
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public List<Integer> getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(List<Integer> nodes) {
+        this.nodes = nodes;
+    }
+
+    public List<Long> getHashes() {
+        return hashes;
+    }
+
+    public void setHashes(List<Long> hashes) {
+        this.hashes = hashes;
+    }
+
+    public List<StateEntry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<StateEntry> entries) {
+        this.entries = entries;
+    }
+
+    public boolean isEntriesRequested() {
+        return entriesRequested;
+    }
+
+    public void setEntriesRequested(boolean entriesRequested) {
+        this.entriesRequested = entriesRequested;
+    }
+
+}
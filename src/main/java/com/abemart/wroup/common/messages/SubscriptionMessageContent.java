@@ -0,0 +1,31 @@
+package com.abemart.wroup.common.messages;
+
+
+import java.util.List;
+
+/**
+ * Content of the messages sent by a client to the group owner to change the topics which it's
+ * subscribed to after its registration.
+ */
+public class SubscriptionMessageContent {
+
+    private List<String> subscribed;
+    private List<String> unsubscribed;
+
+    public List<String> getSubscribed() {
+        return subscribed;
+    }
+
+    public void setSubscribed(List<String> subscribed) {
+        this.subscribed = subscribed;
+    }
+
+    public List<String> getUnsubscribed() {
+        return unsubscribed;
+    }
+
+    public void setUnsubscribed(List<String> unsubscribed) {
+        this.unsubscribed = unsubscribed;
+    }
+
+}
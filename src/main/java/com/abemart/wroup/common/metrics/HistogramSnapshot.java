@@ -0,0 +1,81 @@
+package com.abemart.wroup.common.metrics;
+
+
+/**
+ * Values of a {@link LatencyHistogram} at a given moment. All the values are in microseconds.
+ */
+public class HistogramSnapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+
+    HistogramSnapshot(long[] counts, long sum) {
+        this.counts = counts;
+        this.sum = sum;
+
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        this.count = total;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * Obtain an upper bound of the percentile indicated.
+     *
+     * @param percentile The percentile, between 0 and 1.
+     * @return the upper bound in microseconds of the bucket which contains the percentile.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile * count);
+        long accumulated = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            accumulated += counts[bucket];
+            if (accumulated >= rank) {
+                return bucket == 0 ? 0 : (1L << bucket) - 1;
+            }
+        }
+        return (1L << (counts.length - 1)) - 1;
+    }
+
+    public long getP50() {
+        return getPercentile(0.50);
+    }
+
+    public long getP90() {
+        return getPercentile(0.90);
+    }
+
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    public long[] getBucketCounts() {
+        return counts.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot{" +
+                "count=" + count +
+                ", mean=" + getMean() +
+                ", p50=" + getP50() +
+                ", p90=" + getP90() +
+                ", p99=" + getP99() +
+                '}';
+    }
+
+}
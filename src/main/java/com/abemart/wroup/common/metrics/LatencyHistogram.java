@@ -0,0 +1,60 @@
+package com.abemart.wroup.common.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in microseconds with power of two buckets: the bucket
+ * <code>i</code> contains the values between <code>2^(i-1)</code> and <code>2^i - 1</code>, so
+ * the percentiles are reported with a precision of a factor of two, which is enough to detect
+ * regressions and costs a single atomic increment per value.
+ * <p>
+ * Like {@link StripedCounter}, every thread updates its own stripe of buckets.
+ */
+public class LatencyHistogram {
+
+    static final int BUCKETS = 40;
+
+    // Every stripe is padded to a multiple of the cache line (8 longs)
+    private static final int STRIDE = ((BUCKETS + 1 + StripedCounter.PADDING - 1) / StripedCounter.PADDING) * StripedCounter.PADDING;
+    private static final int SUM_INDEX = BUCKETS;
+
+    private final AtomicLongArray cells = new AtomicLongArray(StripedCounter.STRIPES * STRIDE);
+
+    /**
+     * Record the time elapsed since the value of <code>System.nanoTime()</code> indicated.
+     *
+     * @param startNanos The start time obtained with <code>System.nanoTime()</code>.
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * @param micros The latency in microseconds.
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        int base = StripedCounter.stripe() * STRIDE;
+        cells.incrementAndGet(base + bucket);
+        cells.addAndGet(base + SUM_INDEX, micros);
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long sum = 0;
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            int base = stripe * STRIDE;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts[bucket] += cells.get(base + bucket);
+            }
+            sum += cells.get(base + SUM_INDEX);
+        }
+        return new HistogramSnapshot(counts, sum);
+    }
+
+}
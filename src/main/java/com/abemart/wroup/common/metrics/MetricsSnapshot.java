@@ -0,0 +1,156 @@
+package com.abemart.wroup.common.metrics;
+
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Values of the {@link WroupMetrics} of a device at a given moment.
+ */
+public class MetricsSnapshot {
+
+    private final long timestamp;
+    private final Map<String, PeerMetricsSnapshot> peers;
+    private final long connectFailures;
+    private final long sendFailures;
+    private final long duplicatesDiscarded;
+    private final long messagesThrottled;
+    private final long relaysThrottled;
+    private final long linkMessagesReceived;
+    private final HistogramSnapshot sendLatency;
+    private final HistogramSnapshot dispatchLatency;
+    private final int sendQueueDepth;
+    private final int acceptLoopDepth;
+    private final int membershipSize;
+
+    MetricsSnapshot(long timestamp, Map<String, PeerMetricsSnapshot> peers, long connectFailures, long sendFailures,
+                    long duplicatesDiscarded, long messagesThrottled, long relaysThrottled, long linkMessagesReceived, HistogramSnapshot sendLatency, HistogramSnapshot dispatchLatency, int sendQueueDepth,
+                    int acceptLoopDepth, int membershipSize) {
+        this.timestamp = timestamp;
+        this.peers = Collections.unmodifiableMap(peers);
+        this.connectFailures = connectFailures;
+        this.sendFailures = sendFailures;
+        this.duplicatesDiscarded = duplicatesDiscarded;
+        this.messagesThrottled = messagesThrottled;
+        this.relaysThrottled = relaysThrottled;
+        this.linkMessagesReceived = linkMessagesReceived;
+        this.sendLatency = sendLatency;
+        this.dispatchLatency = dispatchLatency;
+        this.sendQueueDepth = sendQueueDepth;
+        this.acceptLoopDepth = acceptLoopDepth;
+        this.membershipSize = membershipSize;
+    }
+
+    /**
+     * @return the time in milliseconds, as <code>System.currentTimeMillis()</code>, when the
+     * snapshot was taken.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the traffic counters of every peer, by its MAC address (or IP address if the MAC
+     * isn't known).
+     */
+    public Map<String, PeerMetricsSnapshot> getPeers() {
+        return peers;
+    }
+
+    /**
+     * @return the sends which couldn't establish the connection with the peer.
+     */
+    public long getConnectFailures() {
+        return connectFailures;
+    }
+
+    /**
+     * @return the sends which failed after the connection was established.
+     */
+    public long getSendFailures() {
+        return sendFailures;
+    }
+
+    /**
+     * @return the copies of messages already received which have been discarded.
+     */
+    public long getDuplicatesDiscarded() {
+        return duplicatesDiscarded;
+    }
+
+    /**
+     * @return the messages received which exceeded the inbound rate of their peer.
+     */
+    public long getMessagesThrottled() {
+        return messagesThrottled;
+    }
+
+    /**
+     * @return the messages which exceeded the relay rate of their sender and weren't forwarded.
+     */
+    public long getRelaysThrottled() {
+        return relaysThrottled;
+    }
+
+    /**
+     * @return the messages received through the persistent links of the peers.
+     */
+    public long getLinkMessagesReceived() {
+        return linkMessagesReceived;
+    }
+
+    /**
+     * @return the time since a message is queued to be sent until it has been written.
+     */
+    public HistogramSnapshot getSendLatency() {
+        return sendLatency;
+    }
+
+    /**
+     * @return the time spent handling a received message, including the listeners.
+     */
+    public HistogramSnapshot getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    /**
+     * @return the messages queued to be sent or being sent.
+     */
+    public int getSendQueueDepth() {
+        return sendQueueDepth;
+    }
+
+    /**
+     * @return the connections accepted by the server socket which haven't been dispatched yet.
+     */
+    public int getAcceptLoopDepth() {
+        return acceptLoopDepth;
+    }
+
+    /**
+     * @return the devices connected to the group known by this device.
+     */
+    public int getMembershipSize() {
+        return membershipSize;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{" +
+                "timestamp=" + timestamp +
+                ", peers=" + peers.values() +
+                ", connectFailures=" + connectFailures +
+                ", sendFailures=" + sendFailures +
+                ", duplicatesDiscarded=" + duplicatesDiscarded +
+                ", messagesThrottled=" + messagesThrottled +
+                ", relaysThrottled=" + relaysThrottled +
+                ", linkMessagesReceived=" + linkMessagesReceived +
+                ", sendLatency=" + sendLatency +
+                ", dispatchLatency=" + dispatchLatency +
+                ", sendQueueDepth=" + sendQueueDepth +
+                ", acceptLoopDepth=" + acceptLoopDepth +
+                ", membershipSize=" + membershipSize +
+                '}';
+    }
+
+}
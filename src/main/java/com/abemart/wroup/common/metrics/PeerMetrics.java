@@ -0,0 +1,23 @@
+package com.abemart.wroup.common.metrics;
+
+
+/**
+ * Traffic counters of a single peer of the group.
+ */
+public class PeerMetrics {
+
+    final StripedCounter messagesSent = new StripedCounter();
+    final StripedCounter bytesSent = new StripedCounter();
+    final StripedCounter messagesReceived = new StripedCounter();
+    final StripedCounter bytesReceived = new StripedCounter();
+    final StripedCounter connectFailures = new StripedCounter();
+    final StripedCounter sendFailures = new StripedCounter();
+    final StripedCounter messagesThrottled = new StripedCounter();
+    final StripedCounter relaysThrottled = new StripedCounter();
+
+    PeerMetricsSnapshot snapshot(String peer) {
+        return new PeerMetricsSnapshot(peer, messagesSent.sum(), bytesSent.sum(), messagesReceived.sum(),
+                bytesReceived.sum(), connectFailures.sum(), sendFailures.sum(), messagesThrottled.sum(), relaysThrottled.sum());
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.abemart.wroup.common.metrics;
+
+
+/**
+ * Values of the {@link PeerMetrics} of a peer at a given moment.
+ */
+public class PeerMetricsSnapshot {
+
+    private final String peer;
+    private final long messagesSent;
+    private final long bytesSent;
+    private final long messagesReceived;
+    private final long bytesReceived;
+    private final long connectFailures;
+    private final long sendFailures;
+    private final long messagesThrottled;
+    private final long relaysThrottled;
+
+    PeerMetricsSnapshot(String peer, long messagesSent, long bytesSent, long messagesReceived, long bytesReceived,
+                        long connectFailures, long sendFailures, long messagesThrottled, long relaysThrottled) {
+        this.peer = peer;
+        this.messagesSent = messagesSent;
+        this.bytesSent = bytesSent;
+        this.messagesReceived = messagesReceived;
+        this.bytesReceived = bytesReceived;
+        this.connectFailures = connectFailures;
+        this.sendFailures = sendFailures;
+        this.messagesThrottled = messagesThrottled;
+        this.relaysThrottled = relaysThrottled;
+    }
+
+    /**
+     * @return the MAC address of the peer, or its IP address if the MAC isn't known.
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getConnectFailures() {
+        return connectFailures;
+    }
+
+    public long getSendFailures() {
+        return sendFailures;
+    }
+
+    /**
+     * @return the messages received from the peer which exceeded its inbound rate and were
+     * delayed, or discarded if they didn't arrive through a link.
+     */
+    public long getMessagesThrottled() {
+        return messagesThrottled;
+    }
+
+    /**
+     * @return the messages of the peer which exceeded its relay rate and weren't forwarded to the
+     * rest of the group.
+     */
+    public long getRelaysThrottled() {
+        return relaysThrottled;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerMetricsSnapshot{" +
+                "peer='" + peer + '\'' +
+                ", messagesSent=" + messagesSent +
+                ", bytesSent=" + bytesSent +
+                ", messagesReceived=" + messagesReceived +
+                ", bytesReceived=" + bytesReceived +
+                ", connectFailures=" + connectFailures +
+                ", sendFailures=" + sendFailures +
+                ", messagesThrottled=" + messagesThrottled +
+                ", relaysThrottled=" + relaysThrottled +
+                '}';
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.abemart.wroup.common.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter which spreads the updates of different threads over several cells, so the threads don't
+ * compete for the same cache line. Reading the value sums all the cells, which is only done when
+ * a snapshot of the metrics is taken.
+ * <p>
+ * It's a small version of <code>java.util.concurrent.atomic.LongAdder</code>, which isn't
+ * available in all the Android versions supported.
+ */
+public class StripedCounter {
+
+    // A long is 8 bytes, so 8 longs keep every cell in its own 64 bytes cache line
+    static final int PADDING = 8;
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        cells.addAndGet(stripe() * PADDING, value);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (STRIPES - 1));
+    }
+
+    private static int stripes() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors * 2 && stripes < 16) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+}
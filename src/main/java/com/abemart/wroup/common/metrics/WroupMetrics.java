@@ -0,0 +1,240 @@
+package com.abemart.wroup.common.metrics;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.listeners.MetricsListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runtime metrics of the messages sent and received by a device of the group.
+ * <p>
+ * The hot paths only update striped counters, lock free histograms and atomic gauges, the values
+ * are aggregated when a {@link MetricsSnapshot} is requested, either with {@link #snapshot()} or
+ * periodically through a {@link MetricsListener}.
+ */
+public class WroupMetrics {
+
+    private final ConcurrentHashMap<String, PeerMetrics> peers = new ConcurrentHashMap<>();
+
+    private final StripedCounter connectFailures = new StripedCounter();
+    private final StripedCounter sendFailures = new StripedCounter();
+    private final StripedCounter duplicatesDiscarded = new StripedCounter();
+    private final StripedCounter messagesThrottled = new StripedCounter();
+    private final StripedCounter relaysThrottled = new StripedCounter();
+    private final StripedCounter linkMessagesReceived = new StripedCounter();
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+    private final AtomicInteger sendQueueDepth = new AtomicInteger();
+    private final AtomicInteger acceptLoopDepth = new AtomicInteger();
+    private final AtomicInteger membershipSize = new AtomicInteger();
+
+    private ScheduledExecutorService reportingExecutor;
+    private ScheduledFuture<?> reportingTask;
+
+    /**
+     * A message has been queued to be sent.
+     */
+    public void onSendQueued() {
+        sendQueueDepth.incrementAndGet();
+    }
+
+    /**
+     * A message queued has been sent, or its sending has failed.
+     *
+     * @param queuedNanos The value of <code>System.nanoTime()</code> when it was queued.
+     */
+    public void onSendFinished(long queuedNanos) {
+        sendQueueDepth.decrementAndGet();
+        sendLatency.recordSince(queuedNanos);
+    }
+
+    public void onMessageSent(WroupDevice device, int bytes) {
+        PeerMetrics peerMetrics = peer(device);
+        peerMetrics.messagesSent.increment();
+        peerMetrics.bytesSent.add(bytes);
+    }
+
+    public void onConnectFailed(WroupDevice device) {
+        connectFailures.increment();
+        peer(device).connectFailures.increment();
+    }
+
+    public void onSendFailed(WroupDevice device) {
+        sendFailures.increment();
+        peer(device).sendFailures.increment();
+    }
+
+    /**
+     * A copy of a message already received has been discarded.
+     */
+    public void onDuplicateDiscarded() {
+        duplicatesDiscarded.increment();
+    }
+
+    /**
+     * A message received from a peer has exceeded its inbound rate, so it has been delayed or
+     * discarded.
+     */
+    public void onMessageThrottled(String peer) {
+        messagesThrottled.increment();
+        peer(peer).messagesThrottled.increment();
+    }
+
+    /**
+     * A message of a peer has exceeded its relay rate, so it hasn't been forwarded.
+     */
+    public void onRelayThrottled(String peer) {
+        relaysThrottled.increment();
+        peer(peer).relaysThrottled.increment();
+    }
+
+    /**
+     * A connection has been accepted by the server socket.
+     */
+    public void onConnectionAccepted() {
+        acceptLoopDepth.incrementAndGet();
+    }
+
+    public void onMessageReceived(String peer, int bytes) {
+        PeerMetrics peerMetrics = peer(peer);
+        peerMetrics.messagesReceived.increment();
+        peerMetrics.bytesReceived.add(bytes);
+    }
+
+    /**
+     * A connection accepted has been completely handled.
+     *
+     * @param dispatchStartNanos The value of <code>System.nanoTime()</code> when the message
+     *                           started to be dispatched, or -1 if it couldn't be read or
+     *                           its sender isn't known yet.
+     */
+    public void onConnectionHandled(long dispatchStartNanos) {
+        acceptLoopDepth.decrementAndGet();
+        if (dispatchStartNanos >= 0) {
+            dispatchLatency.recordSince(dispatchStartNanos);
+        }
+    }
+
+    /**
+     * A message received through a persistent link has been completely handled. The links aren't
+     * counted as connections, since every one carries many messages.
+     *
+     * @param dispatchStartNanos The value of <code>System.nanoTime()</code> when the message
+     *                           started to be dispatched, or -1 if it couldn't be decoded
+     *                           or its sender isn't known yet.
+     */
+    public void onLinkMessageHandled(long dispatchStartNanos) {
+        linkMessagesReceived.increment();
+        if (dispatchStartNanos >= 0) {
+            dispatchLatency.recordSince(dispatchStartNanos);
+        }
+    }
+
+    /**
+     * Forget the counters of a peer which has left the group, by its MAC address and by its IP
+     * address.
+     *
+     * @param device The peer.
+     */
+    public void removePeer(WroupDevice device) {
+        if (device.getDeviceMac() != null) {
+            peers.remove(device.getDeviceMac());
+        }
+        if (device.getDeviceServerSocketIP() != null) {
+            peers.remove(device.getDeviceServerSocketIP());
+        }
+    }
+
+    /**
+     * Forget the counters of all the peers, when this device leaves the group.
+     */
+    public void clearPeers() {
+        peers.clear();
+    }
+
+    public void setMembershipSize(int size) {
+        membershipSize.set(size);
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, PeerMetricsSnapshot> peerSnapshots = new HashMap<>();
+        for (Map.Entry<String, PeerMetrics> entry : peers.entrySet()) {
+            peerSnapshots.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+
+        return new MetricsSnapshot(System.currentTimeMillis(), peerSnapshots, connectFailures.sum(), sendFailures.sum(),
+                duplicatesDiscarded.sum(), messagesThrottled.sum(), relaysThrottled.sum(), linkMessagesReceived.sum(), sendLatency.snapshot(), dispatchLatency.snapshot(), sendQueueDepth.get(), acceptLoopDepth.get(),
+                membershipSize.get());
+    }
+
+    /**
+     * Notify a snapshot of the metrics periodically in a background thread. A previous listener is
+     * replaced.
+     *
+     * @param metricsListener The listener to notify, or null to stop the notifications.
+     * @param periodMillis    The time in milliseconds between two notifications.
+     */
+    public synchronized void startReporting(final MetricsListener metricsListener, long periodMillis) {
+        stopReporting();
+        if (metricsListener == null) {
+            return;
+        }
+
+        if (reportingExecutor == null) {
+            reportingExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "wroup-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        reportingTask = reportingExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                metricsListener.onMetricsSnapshot(snapshot());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopReporting() {
+        if (reportingTask != null) {
+            reportingTask.cancel(false);
+            reportingTask = null;
+        }
+    }
+
+    private PeerMetrics peer(WroupDevice device) {
+        String peer = device.getDeviceMac() != null ? device.getDeviceMac() : device.getDeviceServerSocketIP();
+        return peer(peer);
+    }
+
+    private PeerMetrics peer(String peer) {
+        if (peer == null) {
+            peer = "unknown";
+        }
+
+        PeerMetrics peerMetrics = peers.get(peer);
+        if (peerMetrics == null) {
+            PeerMetrics newPeerMetrics = new PeerMetrics();
+            peerMetrics = peers.putIfAbsent(peer, newPeerMetrics);
+            if (peerMetrics == null) {
+                peerMetrics = newPeerMetrics;
+            }
+        }
+        return peerMetrics;
+    }
+
+}
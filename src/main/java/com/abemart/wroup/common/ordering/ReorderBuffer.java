@@ -0,0 +1,188 @@
+package com.abemart.wroup.common.ordering;
+
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Delivery in order of the messages stamped with a sequence number by the group owner.
+ * <p>
+ * The messages can arrive out of order, since they are sent in different channels and a failed
+ * send is retried in a new connection, so the ones which arrive before the next one expected are
+ * kept until it arrives. At most {@link #getWindow()} messages are kept: when a message doesn't fit,
+ * the missing ones are considered lost and skipped, so a lost message only delays the rest until
+ * the window is full. The messages older than the next one expected are discarded.
+ * <p>
+ * The next sequence number is set when the device registers, and the messages which arrive before
+ * are kept until then. A device which asks for the history of the group sets it when the history
+ * arrives instead, so the messages of the history are delivered before the ones kept.
+ */
+public class ReorderBuffer {
+
+    public static final int DEFAULT_WINDOW = 256;
+
+    private final int window;
+    private final TreeMap<Long, MessageWrapper> pending = new TreeMap<>();
+    private long nextSequence = -1;
+    private long messagesSkipped;
+    private long messagesDiscarded;
+
+    public ReorderBuffer() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window The maximum number of messages kept while waiting for a missing one.
+     */
+    public ReorderBuffer(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("The window must be positive");
+        }
+        this.window = window;
+    }
+
+    /**
+     * Set the sequence number of the next message to deliver, discarding the messages kept which
+     * are older.
+     *
+     * @param nextSequence The sequence number of the first message sent to the device.
+     * @return the messages kept which can be delivered now, in order.
+     */
+    public synchronized List<MessageWrapper> reset(long nextSequence) {
+        this.nextSequence = nextSequence;
+        while (!pending.isEmpty() && pending.firstKey() < nextSequence) {
+            pending.pollFirstEntry();
+            messagesDiscarded++;
+        }
+        List<MessageWrapper> deliverable = new ArrayList<>();
+        drain(deliverable);
+        return deliverable;
+    }
+
+    /**
+     * Deliver the messages of the history of the group, which were sent before the device
+     * registered, and then set the sequence number of the next message. The messages of the
+     * history are delivered in the order of their sequence numbers without waiting for the ones
+     * missing among them, which weren't selected for the device. They are discarded if the delivery
+     * has already started.
+     *
+     * @param history      The messages of the history, the ones without sequence number being the
+     *                     oldest ones.
+     * @param nextSequence The sequence number of the first message sent to the device.
+     * @return the messages which can be delivered now, in order: the ones of the history and then
+     * the ones kept.
+     */
+    public synchronized List<MessageWrapper> catchUp(List<MessageWrapper> history, long nextSequence) {
+        List<MessageWrapper> deliverable = new ArrayList<>();
+        if (this.nextSequence >= 0) {
+            messagesDiscarded += history.size();
+            deliverable.addAll(reset(Math.max(this.nextSequence, nextSequence)));
+            return deliverable;
+        }
+
+        TreeMap<Long, MessageWrapper> ordered = new TreeMap<>();
+        for (MessageWrapper message : history) {
+            Long sequence = message.getSequence();
+            if (sequence == null) {
+                deliverable.add(message);
+            } else if (sequence < nextSequence) {
+                ordered.put(sequence, message);
+            } else {
+                // It's sent to the device too
+                messagesDiscarded++;
+            }
+        }
+        deliverable.addAll(ordered.values());
+        deliverable.addAll(reset(nextSequence));
+        return deliverable;
+    }
+
+    /**
+     * Add a message received.
+     *
+     * @param message The message, with its sequence number.
+     * @return the messages which can be delivered now, in order, which may be none.
+     */
+    public synchronized List<MessageWrapper> offer(MessageWrapper message) {
+        long sequence = message.getSequence();
+        if (nextSequence >= 0 && sequence < nextSequence) {
+            messagesDiscarded++;
+            return Collections.emptyList();
+        }
+
+        pending.put(sequence, message);
+        if (nextSequence < 0) {
+            if (pending.size() > window) {
+                // The registration hasn't arrived, the oldest message kept is the first one
+                nextSequence = pending.firstKey();
+            } else {
+                return Collections.emptyList();
+            }
+        }
+
+        List<MessageWrapper> deliverable = new ArrayList<>();
+        drain(deliverable);
+        while (pending.size() > window) {
+            long firstSequence = pending.firstKey();
+            messagesSkipped += firstSequence - nextSequence;
+            nextSequence = firstSequence;
+            drain(deliverable);
+        }
+        return deliverable;
+    }
+
+    private void drain(List<MessageWrapper> deliverable) {
+        while (!pending.isEmpty()) {
+            Map.Entry<Long, MessageWrapper> first = pending.firstEntry();
+            if (first.getKey() != nextSequence) {
+                return;
+            }
+            pending.pollFirstEntry();
+            deliverable.add(first.getValue());
+            nextSequence++;
+        }
+    }
+
+    /**
+     * Forget the messages kept and the next sequence number, when the device leaves the group.
+     */
+    public synchronized void clear() {
+        pending.clear();
+        nextSequence = -1;
+    }
+
+    /**
+     * @return the maximum number of messages kept while waiting for a missing one.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the number of messages kept now.
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of messages which never arrived and were skipped.
+     */
+    public synchronized long getMessagesSkipped() {
+        return messagesSkipped;
+    }
+
+    /**
+     * @return the number of messages discarded because they arrived after the later ones were
+     * delivered.
+     */
+    public synchronized long getMessagesDiscarded() {
+        return messagesDiscarded;
+    }
+
+}
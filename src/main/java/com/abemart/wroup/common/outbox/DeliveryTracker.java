@@ -0,0 +1,70 @@
+package com.abemart.wroup.common.outbox;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Receiver side of the outboxes: it keeps the last message received in order from the outbox of
+ * every sender, to discard the messages sent again and the ones which arrive after a gap.
+ * <p>
+ * The senders retransmit all the messages after the last one acknowledged, so a message is only
+ * accepted if it's the next one of its outbox, and the receiver acknowledges the last one
+ * accepted after every message. When the log of a sender changes, because it was deleted, the
+ * messages are accepted from the last one acknowledged to the sender, which it sends in every
+ * message.
+ */
+public class DeliveryTracker {
+
+    private final Map<String, Position> positions = new HashMap<>();
+
+    /**
+     * Check if a message of an outbox must be delivered.
+     *
+     * @param senderMac The MAC address of the sender of the message.
+     * @param stamp     The position of the message in the outbox of the sender.
+     * @return true if the message is the next one of the outbox, false if it's a duplicate or it
+     * arrived out of order.
+     */
+    public synchronized boolean accept(String senderMac, OutboxStamp stamp) {
+        Position position = positions.get(senderMac);
+        if (position == null || position.epoch != stamp.getEpoch()) {
+            position = new Position(stamp.getEpoch(), stamp.getAcknowledged());
+            positions.put(senderMac, position);
+        }
+
+        // The sender never retransmits the messages already acknowledged
+        position.highest = Math.max(position.highest, stamp.getAcknowledged());
+        if (stamp.getSequence() != position.highest + 1) {
+            return false;
+        }
+        position.highest = stamp.getSequence();
+        return true;
+    }
+
+    /**
+     * @return the sequence number of the last message accepted in order from the outbox of a
+     * sender, which is acknowledged to it.
+     */
+    public synchronized long getAcknowledged(String senderMac) {
+        Position position = positions.get(senderMac);
+        return position != null ? position.highest : 0;
+    }
+
+    public synchronized void clear() {
+        positions.clear();
+    }
+
+    private static class Position {
+
+        private final long epoch;
+        private long highest;
+
+        Position(long epoch, long highest) {
+            this.epoch = epoch;
+            this.highest = highest;
+        }
+
+    }
+
+}
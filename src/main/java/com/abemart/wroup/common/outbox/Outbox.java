@@ -0,0 +1,352 @@
+package com.abemart.wroup.common.outbox;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.OutboxAckMessageContent;
+import com.abemart.wroup.common.transport.BufferPool;
+import com.abemart.wroup.common.transport.ByteBufferReader;
+import com.abemart.wroup.common.transport.ByteBufferWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable outbox of the messages sent to the devices of the group, which keeps them on disk until
+ * their receiver acknowledges them, so the messages sent while the receiver is out of range or
+ * disconnected are delivered when it's connected again, even after a restart of the application.
+ * <p>
+ * Every destination has a {@link SegmentLog} in a directory named after its MAC address. The
+ * messages are appended to it and sent in order, at most {@link #WINDOW} of them without
+ * acknowledgement, and every message carries its {@link OutboxStamp} so the receiver discards the
+ * duplicates and acknowledges the last one received in order with an <code>OUTBOX_ACK</code>
+ * message. If the acknowledgements stop arriving, the messages after the last one acknowledged are
+ * sent again with an exponential backoff, and they are also sent again when the device connects.
+ * <p>
+ * The messages survive the death of the process as soon as they are appended, but the data of the
+ * files mapped is written to the disk by the system, so they can be lost if the device shuts down
+ * without flushing it.
+ */
+public class Outbox {
+
+    private static final String TAG = Outbox.class.getSimpleName();
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Maximum number of messages sent to a device and not acknowledged yet.
+     */
+    public static final int WINDOW = 256;
+
+    private static final long MIN_RETRANSMIT_MILLIS = 1000;
+    private static final long MAX_RETRANSMIT_MILLIS = 30 * 1000;
+
+    private final File directory;
+    private final OutboxTransport transport;
+    private final int segmentSize;
+    private final BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 2, false);
+    private final ByteBufferReader reader = new ByteBufferReader();
+    private final Map<String, Destination> destinations = new HashMap<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    private boolean closed;
+
+    /**
+     * @param directory The directory of the logs, which is created if it doesn't exist.
+     * @param transport The transport of the messages.
+     */
+    public Outbox(File directory, OutboxTransport transport) {
+        this(directory, transport, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory   The directory of the logs, which is created if it doesn't exist.
+     * @param transport   The transport of the messages.
+     * @param segmentSize The size of the segment files of the logs.
+     */
+    public Outbox(File directory, OutboxTransport transport, int segmentSize) {
+        this.directory = directory;
+        this.transport = transport;
+        this.segmentSize = segmentSize;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wroup-outbox");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Append a message to the log of a device and send it if the device is connected. If the
+     * message can't be written to the disk it's sent without being kept.
+     *
+     * @param device  The receiver of the message.
+     * @param message The message to be sent. It isn't modified, so it can be sent again.
+     */
+    public synchronized void send(WroupDevice device, MessageWrapper message) {
+        Destination destination;
+        long sequence;
+        try {
+            if (closed) {
+                throw new IOException("The outbox is closed");
+            }
+            destination = getDestination(device.getDeviceMac());
+            destination.update(device);
+            sequence = append(destination.log, message);
+        } catch (IOException e) {
+            WroupLog.e(TAG, "Error appending the message to the outbox, it's sent without being kept", e);
+            transport.send(device, message);
+            return;
+        }
+
+        // The message appended is sent without reading it back if it's the next one to send
+        if (sequence == destination.nextToSend && destination.canSend()) {
+            transport.send(destination.device, stamped(message, destination, sequence));
+            destination.nextToSend++;
+            scheduleRetransmission(destination);
+        } else {
+            pump(destination);
+        }
+    }
+
+    /**
+     * Process an acknowledgement received from a device, deleting the messages acknowledged and
+     * sending the next ones.
+     *
+     * @param deviceMac The MAC address of the sender of the acknowledgement.
+     * @param content   The acknowledgement.
+     */
+    public synchronized void onAcknowledgement(String deviceMac, OutboxAckMessageContent content) {
+        Destination destination = destinations.get(deviceMac);
+        if (destination == null || content.getEpoch() != destination.log.getEpoch()
+                || content.getSequence() <= destination.log.getAcknowledged()) {
+            return;
+        }
+
+        destination.log.acknowledge(content.getSequence());
+        destination.nextToSend = Math.max(destination.nextToSend, destination.log.getAcknowledged() + 1);
+        destination.lastProgressMillis = System.currentTimeMillis();
+        destination.retransmitMillis = MIN_RETRANSMIT_MILLIS;
+        pump(destination);
+    }
+
+    /**
+     * Notify that a device has connected, so the messages which it hasn't acknowledged are sent
+     * again, including the ones kept in the log before a restart.
+     *
+     * @param device The device connected.
+     */
+    public synchronized void onDeviceConnected(WroupDevice device) {
+        if (closed) {
+            return;
+        }
+        Destination destination = destinations.get(device.getDeviceMac());
+        if (destination == null) {
+            if (!new File(directory, directoryName(device.getDeviceMac())).isDirectory()) {
+                return;
+            }
+            try {
+                destination = getDestination(device.getDeviceMac());
+            } catch (IOException e) {
+                WroupLog.e(TAG, "Error opening the outbox of {}", device.getDeviceMac(), e);
+                return;
+            }
+        }
+
+        destination.update(device);
+        destination.connected = true;
+        destination.nextToSend = destination.log.getAcknowledged() + 1;
+        destination.retransmitMillis = MIN_RETRANSMIT_MILLIS;
+        pump(destination);
+    }
+
+    /**
+     * Notify that a device has disconnected, so the messages are kept until it connects again.
+     *
+     * @param deviceMac The MAC address of the device disconnected.
+     */
+    public synchronized void onDeviceDisconnected(String deviceMac) {
+        Destination destination = destinations.get(deviceMac);
+        if (destination != null) {
+            destination.connected = false;
+        }
+    }
+
+    /**
+     * Notify that this device has left the group, so the messages are kept until the devices
+     * connect again.
+     */
+    public synchronized void onAllDevicesDisconnected() {
+        for (Destination destination : destinations.values()) {
+            destination.connected = false;
+        }
+    }
+
+    /**
+     * @return the number of messages of a device which haven't been acknowledged yet.
+     */
+    public synchronized long getPending(String deviceMac) {
+        Destination destination = destinations.get(deviceMac);
+        return destination != null ? destination.log.getLastSequence() - destination.log.getAcknowledged() : 0;
+    }
+
+    /**
+     * Stop sending the messages. They are kept in the logs and sent when a new outbox is created
+     * in the same directory.
+     */
+    public synchronized void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        for (Destination destination : destinations.values()) {
+            destination.log.close();
+        }
+        destinations.clear();
+    }
+
+    private Destination getDestination(String deviceMac) throws IOException {
+        Destination destination = destinations.get(deviceMac);
+        if (destination == null) {
+            SegmentLog log = new SegmentLog(new File(directory, directoryName(deviceMac)), segmentSize);
+            destination = new Destination(deviceMac, log);
+            destinations.put(deviceMac, destination);
+        }
+        return destination;
+    }
+
+    private long append(SegmentLog log, MessageWrapper message) throws IOException {
+        ByteBufferWriter writer = new ByteBufferWriter(bufferPool);
+        MessageCodec.encodeMessage(message, writer);
+        ByteBuffer header = writer.getBuffer();
+        try {
+            return log.append(header, message.getPayload());
+        } finally {
+            bufferPool.release(header);
+        }
+    }
+
+    /**
+     * Send the messages of the log of a device which haven't been sent yet, within the window.
+     */
+    private void pump(Destination destination) {
+        while (destination.nextToSend <= destination.log.getLastSequence() && destination.canSend()) {
+            long sequence = destination.nextToSend;
+            ByteBuffer[] record = destination.log.read(sequence);
+            if (record == null) {
+                break;
+            }
+
+            MessageWrapper message;
+            try {
+                reader.reset(record[0]);
+                message = MessageCodec.decodeMessage(reader);
+            } catch (IOException | RuntimeException e) {
+                WroupLog.e(TAG, "Error decoding the message {} of the outbox", sequence, e);
+                break;
+            }
+            message.setPayload(record[1]);
+            message.setOutboxStamp(new OutboxStamp(destination.log.getEpoch(), sequence, destination.log.getAcknowledged()));
+            transport.send(destination.device, message);
+            destination.nextToSend++;
+        }
+        scheduleRetransmission(destination);
+    }
+
+    /**
+     * Check later if the device has acknowledged the messages sent, and send them again if it
+     * hasn't. Only one check is scheduled per device, and only while it has messages pending.
+     */
+    private void scheduleRetransmission(final Destination destination) {
+        if (destination.retransmissionScheduled || !destination.connected || closed
+                || destination.log.getAcknowledged() >= destination.log.getLastSequence()) {
+            return;
+        }
+
+        destination.retransmissionScheduled = true;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Outbox.this) {
+                    destination.retransmissionScheduled = false;
+                    if (closed || destinations.get(destination.deviceMac) != destination) {
+                        return;
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - destination.lastProgressMillis >= destination.retransmitMillis) {
+                        // Go back to the first message not acknowledged
+                        destination.nextToSend = destination.log.getAcknowledged() + 1;
+                        destination.lastProgressMillis = now;
+                        destination.retransmitMillis = Math.min(destination.retransmitMillis * 2, MAX_RETRANSMIT_MILLIS);
+                        pump(destination);
+                    } else {
+                        scheduleRetransmission(destination);
+                    }
+                }
+            }
+        }, destination.retransmitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static MessageWrapper stamped(MessageWrapper message, Destination destination, long sequence) {
+        MessageWrapper copy = new MessageWrapper();
+        copy.setMessage(message.getMessage());
+        copy.setMessageType(message.getMessageType());
+        copy.setSender(message.getWroupDevice(), message.getSenderId());
+        copy.setTopic(message.getTopic());
+        copy.setPayload(message.getPayload());
+        copy.setChannel(message.getChannel());
+        copy.setOutboxStamp(new OutboxStamp(destination.log.getEpoch(), sequence, destination.log.getAcknowledged()));
+        return copy;
+    }
+
+    private static String directoryName(String deviceMac) {
+        return deviceMac.replaceAll("[^A-Za-z0-9]", "_");
+    }
+
+    /**
+     * The log of a device and the state of the messages sent to it.
+     */
+    private static class Destination {
+
+        private final String deviceMac;
+        private final SegmentLog log;
+        private WroupDevice device;
+        private boolean connected = true;
+        private long nextToSend;
+        private long lastProgressMillis = System.currentTimeMillis();
+        private long retransmitMillis = MIN_RETRANSMIT_MILLIS;
+        private boolean retransmissionScheduled;
+
+        Destination(String deviceMac, SegmentLog log) {
+            this.deviceMac = deviceMac;
+            this.log = log;
+            this.nextToSend = log.getAcknowledged() + 1;
+        }
+
+        /**
+         * Keep the last device which has been sent a message, keeping the address known if the new
+         * one hasn't address.
+         */
+        void update(WroupDevice newDevice) {
+            if (device == null || newDevice.getDeviceServerSocketIP() != null) {
+                device = newDevice;
+            }
+        }
+
+        boolean canSend() {
+            return connected && device != null && device.getDeviceServerSocketIP() != null
+                    && nextToSend - log.getAcknowledged() <= WINDOW;
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.abemart.wroup.common.outbox;
+
+
+/**
+ * Position of a message in the outbox of its sender, sent with the message so the receiver can
+ * acknowledge it and discard the copies sent again.
+ */
+public class OutboxStamp {
+
+    private long epoch;
+    private long sequence;
+    private long acknowledged;
+
+    public OutboxStamp() {
+    }
+
+    OutboxStamp(long epoch, long sequence, long acknowledged) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.acknowledged = acknowledged;
+    }
+
+    /**
+     * @return the id of the log of the sender, which changes if the log is deleted.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the sequence number of the message in the log of the sender.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the last sequence number acknowledged to the sender when the message was sent.
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.abemart.wroup.common.outbox;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+/**
+ * Sends the messages of an {@link Outbox} to the devices of the group.
+ */
+public interface OutboxTransport {
+
+    void send(WroupDevice device, MessageWrapper message);
+
+}
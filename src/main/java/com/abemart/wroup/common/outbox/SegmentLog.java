@@ -0,0 +1,366 @@
+package com.abemart.wroup.common.outbox;
+
+
+import com.abemart.wroup.common.logging.WroupLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the messages of an outbox for one destination, stored in memory-mapped
+ * segment files of a directory.
+ * <p>
+ * Every record is written in the mapped segment and its length is written the last, so a record
+ * is only visible once it's complete, and the records survive the death of the process as soon as
+ * they are appended, without any system call. A checksum of every record discards the ones torn by
+ * a crash of the system. The last sequence number acknowledged by the destination is kept in a
+ * mapped checkpoint file, and the segments whose records have all been acknowledged are deleted.
+ * <p>
+ * The layout of a record is:
+ * <pre>
+ * length        4 bytes, the size of the record including this header
+ * checksum      4 bytes, CRC32 of the rest of the record
+ * sequence      8 bytes
+ * header length 4 bytes
+ * header        the message as UTF-8 JSON
+ * payload       the binary payload of the message, until the end of the record
+ * </pre>
+ * This class isn't thread safe.
+ */
+final class SegmentLog {
+
+    private static final String TAG = SegmentLog.class.getSimpleName();
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int CHECKPOINT_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    private final File directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private final MappedByteBuffer checkpoint;
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[4096];
+    private final long epoch;
+
+    private long lastSequence;
+    private long acknowledged;
+
+    /**
+     * Open the log of a directory, recovering the records appended before, or create it.
+     *
+     * @param directory   The directory of the log.
+     * @param segmentSize The size of the segment files.
+     * @throws IOException If the directory or its files can't be created or mapped.
+     */
+    SegmentLog(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("The directory " + directory + " can't be created");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        File checkpointFile = new File(directory, CHECKPOINT_FILE);
+        boolean created = checkpointFile.length() < CHECKPOINT_SIZE;
+        checkpoint = map(checkpointFile, CHECKPOINT_SIZE);
+        if (created) {
+            long newEpoch = new Random().nextLong();
+            epoch = newEpoch != 0 ? newEpoch : 1;
+            checkpoint.putLong(8, 0);
+            checkpoint.putLong(0, epoch);
+        } else {
+            epoch = checkpoint.getLong(0);
+            acknowledged = checkpoint.getLong(8);
+        }
+
+        recover();
+    }
+
+    /**
+     * @return the id of the log, which is different for every log created.
+     */
+    long getEpoch() {
+        return epoch;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Append a record to the log.
+     *
+     * @param header  The message encoded as JSON, between its position and its limit.
+     * @param payload The payload of the message, or null.
+     * @return the sequence number of the record.
+     * @throws IOException If a new segment can't be created.
+     */
+    long append(ByteBuffer header, ByteBuffer payload) throws IOException {
+        int headerLength = header.remaining();
+        int payloadLength = payload != null ? payload.remaining() : 0;
+        int recordSize = RECORD_HEADER_SIZE + headerLength + payloadLength;
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.writePosition + recordSize > segment.buffer.capacity()) {
+            segment = newSegment(lastSequence + 1, Math.max(segmentSize, recordSize));
+        }
+
+        long sequence = lastSequence + 1;
+        crc.reset();
+        ByteBuffer.wrap(scratch, 0, 12).putLong(sequence).putInt(headerLength);
+        crc.update(scratch, 0, 12);
+        updateChecksum(header);
+        if (payload != null) {
+            updateChecksum(payload);
+        }
+
+        ByteBuffer buffer = segment.buffer;
+        int position = segment.writePosition;
+        buffer.position(position + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.putLong(sequence);
+        buffer.putInt(headerLength);
+        buffer.put(header.duplicate());
+        if (payload != null) {
+            buffer.put(payload.duplicate());
+        }
+        // The length makes the record visible, so it's written the last
+        buffer.putInt(position, recordSize);
+
+        segment.addRecord(position);
+        segment.writePosition = position + recordSize;
+        lastSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * Read a record which hasn't been acknowledged yet.
+     *
+     * @return the header and the payload of the record, or null if it isn't in the log.
+     */
+    ByteBuffer[] read(long sequence) {
+        if (sequence <= acknowledged || sequence > lastSequence) {
+            return null;
+        }
+
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            if (sequence >= segment.baseSequence) {
+                if (sequence - segment.baseSequence >= segment.records) {
+                    return null;
+                }
+
+                ByteBuffer record = segment.buffer.duplicate();
+                int position = segment.offsets[(int) (sequence - segment.baseSequence)];
+                int recordSize = record.getInt(position);
+                int headerLength = record.getInt(position + 16);
+
+                ByteBuffer header = ByteBuffer.allocate(headerLength);
+                record.limit(position + RECORD_HEADER_SIZE + headerLength).position(position + RECORD_HEADER_SIZE);
+                header.put(record).flip();
+
+                ByteBuffer payload = null;
+                int payloadLength = recordSize - RECORD_HEADER_SIZE - headerLength;
+                if (payloadLength > 0) {
+                    payload = ByteBuffer.allocate(payloadLength);
+                    record.limit(position + recordSize);
+                    payload.put(record).flip();
+                }
+                return new ByteBuffer[]{header, payload};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record that the destination has received all the records up to a sequence number, and
+     * delete the segments which only contain records acknowledged.
+     */
+    void acknowledge(long sequence) {
+        sequence = Math.min(sequence, lastSequence);
+        if (sequence <= acknowledged) {
+            return;
+        }
+        acknowledged = sequence;
+        checkpoint.putLong(8, acknowledged);
+
+        // The last segment is kept to append the next records
+        while (segments.size() > 1 && segments.get(0).lastSequence() <= acknowledged) {
+            delete(segments.remove(0));
+        }
+    }
+
+    /**
+     * Forget the mapped segments. The buffers are unmapped when they are garbage collected.
+     */
+    void close() {
+        segments.clear();
+    }
+
+    private void recover() throws IOException {
+        List<Segment> recovered = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long baseSequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        recovered.add(new Segment(file, baseSequence, null));
+                    } catch (NumberFormatException e) {
+                        WroupLog.w(TAG, "Ignored file {} in the outbox", file);
+                    }
+                }
+            }
+        }
+        Collections.sort(recovered, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment first, Segment second) {
+                return first.baseSequence < second.baseSequence ? -1 : (first.baseSequence == second.baseSequence ? 0 : 1);
+            }
+        });
+
+        long nextSequence = -1;
+        for (Segment segment : recovered) {
+            // The segments after a gap or an empty file are left by a crash, their records are lost
+            if (segment.file.length() == 0 || (nextSequence >= 0 && segment.baseSequence != nextSequence)) {
+                delete(segment);
+                continue;
+            }
+
+            segment.buffer = map(segment.file, (int) segment.file.length());
+            scan(segment);
+            if (segment.records == 0 && segment.lastSequence() <= acknowledged && segment != recovered.get(recovered.size() - 1)) {
+                delete(segment);
+                continue;
+            }
+            segments.add(segment);
+            nextSequence = segment.baseSequence + segment.records;
+        }
+
+        if (nextSequence - 1 < acknowledged) {
+            // The records lost are behind the checkpoint, the next ones start a new segment
+            for (Segment segment : segments) {
+                delete(segment);
+            }
+            segments.clear();
+        }
+        lastSequence = Math.max(acknowledged, nextSequence - 1);
+        while (segments.size() > 1 && segments.get(0).lastSequence() <= acknowledged) {
+            delete(segments.remove(0));
+        }
+    }
+
+    /**
+     * Find the valid records of a segment, until the first one which is incomplete or corrupted.
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int recordSize = buffer.getInt(position);
+            if (recordSize < RECORD_HEADER_SIZE || recordSize > buffer.capacity() - position
+                    || buffer.getLong(position + 8) != segment.baseSequence + segment.records) {
+                break;
+            }
+
+            ByteBuffer body = buffer.duplicate();
+            body.limit(position + recordSize).position(position + 8);
+            crc.reset();
+            updateChecksum(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                WroupLog.w(TAG, "Discarded corrupted record {} of the outbox", segment.baseSequence + segment.records);
+                break;
+            }
+
+            segment.addRecord(position);
+            position += recordSize;
+        }
+        segment.writePosition = position;
+    }
+
+    private void updateChecksum(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            int length = Math.min(scratch.length, source.remaining());
+            source.get(scratch, 0, length);
+            crc.update(scratch, 0, length);
+        }
+    }
+
+    private Segment newSegment(long baseSequence, int size) throws IOException {
+        File file = new File(directory, String.format("%020d", baseSequence) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(file, baseSequence, map(file, size));
+        segments.add(segment);
+        return segment;
+    }
+
+    private void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            WroupLog.w(TAG, "Error deleting the outbox segment {}", segment.file);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after closing the file
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * A segment file, the positions of its records and the position where the next one is
+     * appended.
+     */
+    private static class Segment {
+
+        private final File file;
+        private final long baseSequence;
+        private MappedByteBuffer buffer;
+        private int[] offsets = new int[64];
+        private int records;
+        private int writePosition;
+
+        Segment(File file, long baseSequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseSequence = baseSequence;
+            this.buffer = buffer;
+        }
+
+        void addRecord(int position) {
+            if (records == offsets.length) {
+                offsets = Arrays.copyOf(offsets, records * 2);
+            }
+            offsets[records++] = position;
+        }
+
+        long lastSequence() {
+            return baseSequence + records - 1;
+        }
+
+    }
+
+}
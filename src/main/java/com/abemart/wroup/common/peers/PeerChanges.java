@@ -0,0 +1,70 @@
+package com.abemart.wroup.common.peers;
+
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The differences between two consecutive lists of peers of a {@link PeerTable}.
+ */
+public class PeerChanges {
+
+    private final List<WifiP2pDevice> added;
+    private final List<WifiP2pDevice> removed;
+    private final List<WifiP2pDevice> changed;
+    private final Collection<WifiP2pDevice> peers;
+
+    PeerChanges(List<WifiP2pDevice> added, List<WifiP2pDevice> removed, List<WifiP2pDevice> changed,
+                Collection<WifiP2pDevice> peers) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+        this.peers = Collections.unmodifiableCollection(peers);
+    }
+
+    /**
+     * @return the peers which weren't in the previous list.
+     */
+    public List<WifiP2pDevice> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the peers of the previous list which aren't in the new one, as they were last seen.
+     */
+    public List<WifiP2pDevice> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the peers whose name, status or group owner role have changed.
+     */
+    public List<WifiP2pDevice> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return all the peers of the new list.
+     */
+    public Collection<WifiP2pDevice> getPeers() {
+        return peers;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "PeerChanges{" +
+                "added=" + added.size() +
+                ", removed=" + removed.size() +
+                ", changed=" + changed.size() +
+                ", peers=" + peers.size() +
+                '}';
+    }
+
+}
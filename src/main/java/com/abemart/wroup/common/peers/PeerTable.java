@@ -0,0 +1,102 @@
+package com.abemart.wroup.common.peers;
+
+
+import android.net.wifi.p2p.WifiP2pDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The peers discovered, indexed by their MAC address.
+ * <p>
+ * Every list of peers received from the framework replaces the previous one and is compared with
+ * it, so only the differences are notified. The table is updated in one thread, and it can be
+ * read from any thread, as the maps of the peers are replaced instead of modified.
+ */
+public class PeerTable {
+
+    private volatile Map<String, WifiP2pDevice> peers = new LinkedHashMap<>();
+
+    /**
+     * Replace the peers of the table.
+     *
+     * @param devices The new list of peers.
+     * @return the differences with the previous list.
+     */
+    public PeerChanges update(Collection<WifiP2pDevice> devices) {
+        Map<String, WifiP2pDevice> newPeers = new LinkedHashMap<>(Math.max(16, devices.size() * 2));
+        List<WifiP2pDevice> added = new ArrayList<>();
+        List<WifiP2pDevice> changed = new ArrayList<>();
+
+        for (WifiP2pDevice device : devices) {
+            if (device.deviceAddress == null) {
+                continue;
+            }
+            if (newPeers.put(device.deviceAddress, device) != null) {
+                continue;
+            }
+
+            WifiP2pDevice previous = peers.get(device.deviceAddress);
+            if (previous == null) {
+                added.add(device);
+            } else if (hasChanged(previous, device)) {
+                changed.add(device);
+            }
+        }
+
+        // Some previous peers are missing only if the new list doesn't contain all of them
+        List<WifiP2pDevice> removed = new ArrayList<>();
+        if (peers.size() + added.size() > newPeers.size()) {
+            for (WifiP2pDevice previous : peers.values()) {
+                if (!newPeers.containsKey(previous.deviceAddress)) {
+                    removed.add(previous);
+                }
+            }
+        }
+
+        // The previous map isn't modified, it's still seen by the changes notified before
+        peers = newPeers;
+        return new PeerChanges(added, removed, changed, newPeers.values());
+    }
+
+    /**
+     * @param deviceAddress The MAC address of a peer.
+     * @return the peer with the given address, or null if it isn't in the table.
+     */
+    public WifiP2pDevice get(String deviceAddress) {
+        return peers.get(deviceAddress);
+    }
+
+    /**
+     * @return the peers of the table, in the order of the last list received.
+     */
+    public Collection<WifiP2pDevice> getPeers() {
+        return Collections.unmodifiableCollection(peers.values());
+    }
+
+    public int size() {
+        return peers.size();
+    }
+
+    /**
+     * Forget all the peers, so the next list is notified as added.
+     */
+    public void clear() {
+        peers = new LinkedHashMap<>();
+    }
+
+    private static boolean hasChanged(WifiP2pDevice previous, WifiP2pDevice device) {
+        return previous.status != device.status
+                || previous.isGroupOwner() != device.isGroupOwner()
+                || !equals(previous.deviceName, device.deviceName);
+    }
+
+    private static boolean equals(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.abemart.wroup.common.replication;
+
+
+/**
+ * Last-writer-wins register. Every write is stamped with a timestamp and the replica which made
+ * it, and the merge keeps the write with the greatest timestamp, or of the greatest replica when
+ * both are equal, so all the replicas keep the same value regardless of the order of the writes.
+ */
+public class LwwRegister {
+
+    private String value;
+    private long timestamp;
+    private String replicaId;
+
+    public LwwRegister() {
+    }
+
+    LwwRegister(String value, long timestamp, String replicaId) {
+        this.value = value;
+        this.timestamp = timestamp;
+        this.replicaId = replicaId;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getReplicaId() {
+        return replicaId;
+    }
+
+    /**
+     * Keep the write of other register if it's newer than the one of this register.
+     *
+     * @return true if the value of this register has changed.
+     */
+    boolean merge(LwwRegister other) {
+        if (!other.isNewerThan(this)) {
+            return false;
+        }
+        value = other.value;
+        timestamp = other.timestamp;
+        replicaId = other.replicaId;
+        return true;
+    }
+
+    private boolean isNewerThan(LwwRegister other) {
+        if (timestamp != other.timestamp) {
+            return timestamp > other.timestamp;
+        }
+        return replicaId != null && (other.replicaId == null || replicaId.compareTo(other.replicaId) > 0);
+    }
+
+    long digest() {
+        return StateHash.add(StateHash.add(StateHash.of(value), timestamp), replicaId);
+    }
+
+}
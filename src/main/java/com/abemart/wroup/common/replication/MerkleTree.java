@@ -0,0 +1,72 @@
+package com.abemart.wroup.common.replication;
+
+
+import java.util.Arrays;
+
+/**
+ * Hash tree of the entries of a {@link ReplicatedStore}, used to find the keys which differ
+ * between two devices exchanging only the hashes of the ranges which differ.
+ * <p>
+ * Every key belongs to a leaf chosen by the high bits of its hash, and the hash of every node is
+ * the sum of the hashes of the entries below it, so a change only updates one node per level. Two
+ * devices compare the root first, then the children of the nodes which differ, until the leaves,
+ * and only the entries of the leaves which differ are sent.
+ */
+final class MerkleTree {
+
+    /**
+     * Bits of the key hash which choose the child at every level.
+     */
+    static final int BITS_PER_LEVEL = 4;
+
+    static final int FANOUT = 1 << BITS_PER_LEVEL;
+
+    /**
+     * Level of the leaves, the root is the level 0.
+     */
+    static final int LEAF_LEVEL = 3;
+
+    private final long[][] levels = new long[LEAF_LEVEL + 1][];
+
+    MerkleTree() {
+        for (int level = 0; level <= LEAF_LEVEL; level++) {
+            levels[level] = new long[1 << (BITS_PER_LEVEL * level)];
+        }
+    }
+
+    /**
+     * @return the node of a level which contains a key.
+     */
+    static int node(long keyHash, int level) {
+        return level == 0 ? 0 : (int) (keyHash >>> (64 - BITS_PER_LEVEL * level));
+    }
+
+    /**
+     * Replace the hash of an entry.
+     *
+     * @param keyHash      The hash of the key of the entry.
+     * @param oldEntryHash The previous hash of the entry, 0 if it's new.
+     * @param newEntryHash The new hash of the entry.
+     */
+    void update(long keyHash, long oldEntryHash, long newEntryHash) {
+        long difference = newEntryHash - oldEntryHash;
+        for (int level = 0; level <= LEAF_LEVEL; level++) {
+            levels[level][node(keyHash, level)] += difference;
+        }
+    }
+
+    long hash(int level, int node) {
+        return levels[level][node];
+    }
+
+    boolean isValidNode(int level, int node) {
+        return level >= 0 && level <= LEAF_LEVEL && node >= 0 && node < levels[level].length;
+    }
+
+    void clear() {
+        for (long[] level : levels) {
+            Arrays.fill(level, 0);
+        }
+    }
+
+}
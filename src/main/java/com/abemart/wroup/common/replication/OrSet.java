@@ -0,0 +1,109 @@
+package com.abemart.wroup.common.replication;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Observed-remove set. Every addition of an element is identified by a unique tag, and a removal
+ * only removes the tags which the replica has observed, so an element added concurrently with its
+ * removal stays in the set. The tags removed are kept as tombstones, to discard the additions
+ * which arrive after their removal.
+ */
+public class OrSet {
+
+    private Map<String, Set<String>> additions = new HashMap<>();
+    private Set<String> removals = new HashSet<>();
+
+    public Set<String> getElements() {
+        return new HashSet<>(additions.keySet());
+    }
+
+    public boolean contains(String element) {
+        return additions.containsKey(element);
+    }
+
+    /**
+     * Add an element with a new tag.
+     *
+     * @return the delta with the addition.
+     */
+    OrSet add(String element, String tag) {
+        OrSet delta = new OrSet();
+        Set<String> tags = new HashSet<>();
+        tags.add(tag);
+        delta.additions.put(element, tags);
+        merge(delta);
+        return delta;
+    }
+
+    /**
+     * Remove the tags of an element observed by this replica.
+     *
+     * @return the delta with the removal, or null if the element isn't in the set.
+     */
+    OrSet remove(String element) {
+        Set<String> tags = additions.get(element);
+        if (tags == null) {
+            return null;
+        }
+
+        OrSet delta = new OrSet();
+        delta.removals.addAll(tags);
+        merge(delta);
+        return delta;
+    }
+
+    /**
+     * Add the additions and the removals of other set.
+     *
+     * @return true if the elements or the tombstones of this set have changed.
+     */
+    boolean merge(OrSet other) {
+        boolean changed = false;
+        if (other.removals != null && removals.addAll(other.removals)) {
+            changed = true;
+            for (String element : new ArrayList<>(additions.keySet())) {
+                Set<String> tags = additions.get(element);
+                tags.removeAll(other.removals);
+                if (tags.isEmpty()) {
+                    additions.remove(element);
+                }
+            }
+        }
+
+        if (other.additions != null) {
+            for (Map.Entry<String, Set<String>> entry : other.additions.entrySet()) {
+                for (String tag : entry.getValue()) {
+                    if (removals.contains(tag)) {
+                        continue;
+                    }
+                    Set<String> tags = additions.get(entry.getKey());
+                    if (tags == null) {
+                        tags = new HashSet<>();
+                        additions.put(entry.getKey(), tags);
+                    }
+                    changed |= tags.add(tag);
+                }
+            }
+        }
+        return changed;
+    }
+
+    long digest() {
+        long digest = 0;
+        for (Map.Entry<String, Set<String>> entry : additions.entrySet()) {
+            for (String tag : entry.getValue()) {
+                digest += StateHash.add(StateHash.of(entry.getKey()), tag);
+            }
+        }
+        for (String tag : removals) {
+            digest += StateHash.add(StateHash.of(tag), -1L);
+        }
+        return digest;
+    }
+
+}
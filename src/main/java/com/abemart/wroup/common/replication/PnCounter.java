@@ -0,0 +1,88 @@
+package com.abemart.wroup.common.replication;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counter which can be incremented and decremented by every replica. Every replica only changes
+ * its own totals of increments and decrements, and the merge keeps the greatest total of every
+ * replica, so the concurrent changes are never lost. The value is the sum of the increments minus
+ * the sum of the decrements.
+ */
+public class PnCounter {
+
+    private Map<String, Long> increments = new HashMap<>();
+    private Map<String, Long> decrements = new HashMap<>();
+
+    public long getValue() {
+        long value = 0;
+        for (Long increment : increments.values()) {
+            value += increment;
+        }
+        for (Long decrement : decrements.values()) {
+            value -= decrement;
+        }
+        return value;
+    }
+
+    /**
+     * Add an amount to the totals of a replica.
+     *
+     * @return the delta with the new totals of the replica.
+     */
+    PnCounter add(String replicaId, long amount) {
+        Map<String, Long> totals = amount >= 0 ? increments : decrements;
+        Long total = totals.get(replicaId);
+        totals.put(replicaId, (total != null ? total : 0) + Math.abs(amount));
+
+        PnCounter delta = new PnCounter();
+        copyTotal(increments, delta.increments, replicaId);
+        copyTotal(decrements, delta.decrements, replicaId);
+        return delta;
+    }
+
+    /**
+     * Keep the greatest totals of every replica.
+     *
+     * @return true if any total of this counter has changed.
+     */
+    boolean merge(PnCounter other) {
+        boolean changed = mergeTotals(increments, other.increments);
+        return mergeTotals(decrements, other.decrements) || changed;
+    }
+
+    long digest() {
+        return StateHash.add(digest(increments), digest(decrements));
+    }
+
+    private static void copyTotal(Map<String, Long> from, Map<String, Long> to, String replicaId) {
+        Long total = from.get(replicaId);
+        if (total != null) {
+            to.put(replicaId, total);
+        }
+    }
+
+    private static boolean mergeTotals(Map<String, Long> totals, Map<String, Long> otherTotals) {
+        boolean changed = false;
+        if (otherTotals != null) {
+            for (Map.Entry<String, Long> entry : otherTotals.entrySet()) {
+                Long total = totals.get(entry.getKey());
+                if (total == null || total < entry.getValue()) {
+                    totals.put(entry.getKey(), entry.getValue());
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static long digest(Map<String, Long> totals) {
+        long digest = 0;
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            digest += StateHash.add(StateHash.of(entry.getKey()), entry.getValue());
+        }
+        return digest;
+    }
+
+}
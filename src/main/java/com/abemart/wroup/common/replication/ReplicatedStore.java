@@ -0,0 +1,429 @@
+package com.abemart.wroup.common.replication;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.listeners.StateChangedListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.StateDeltaMessageContent;
+import com.abemart.wroup.common.messages.StateSyncMessageContent;
+import com.abemart.wroup.common.routing.MessageIdGenerator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Key-value store replicated in all the devices of the group.
+ * <p>
+ * Every key holds one of the replicated data types: a last-writer-wins register, a counter or an
+ * observed-remove set. They are merged in the same way regardless of the order of the changes, so
+ * the devices which have received the same changes have the same state. Every change made in a
+ * device is sent to the rest of the group as a <code>STATE_DELTA</code> message, which only
+ * contains the change, so the traffic depends on the size of the changes instead of the size of
+ * the state.
+ * <p>
+ * The changes made while a device was out of the group are repaired with <code>STATE_SYNC</code>
+ * messages when it joins again: the devices compare the hashes of a {@link MerkleTree} of their
+ * entries from the root to the leaves, and only exchange the entries of the leaves which differ.
+ * <p>
+ * The removals of the sets are kept as tombstones, so the sets which change often grow with the
+ * elements removed.
+ */
+public class ReplicatedStore {
+
+    private static final String TAG = ReplicatedStore.class.getSimpleName();
+
+    private final ReplicationTransport transport;
+    private final Map<String, StateEntry> entries = new HashMap<>();
+    private final Map<String, Long> entryHashes = new HashMap<>();
+    private final MerkleTree merkleTree = new MerkleTree();
+    private final MessageIdGenerator tagGenerator = new MessageIdGenerator();
+
+    private volatile String replicaId;
+    private volatile StateChangedListener stateChangedListener;
+
+    /**
+     * @param transport The transport which sends the messages to the devices.
+     */
+    public ReplicatedStore(ReplicationTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Set the id of this replica, the MAC address of the device, which identifies its changes.
+     */
+    public void setReplicaId(String replicaId) {
+        this.replicaId = replicaId;
+    }
+
+    /**
+     * Set the listener of the changes received from the other devices of the group. It's called
+     * from the thread which receives the messages.
+     */
+    public void setStateChangedListener(StateChangedListener stateChangedListener) {
+        this.stateChangedListener = stateChangedListener;
+    }
+
+    /**
+     * @return the value of a register, or null if it has never been written.
+     */
+    public synchronized String getRegister(String key) {
+        StateEntry entry = entries.get(key);
+        return entry != null && entry.getRegister() != null ? entry.getRegister().getValue() : null;
+    }
+
+    /**
+     * Write a register. The concurrent writes of other devices are resolved keeping the last one.
+     *
+     * @param key   The key of the register.
+     * @param value The value written.
+     */
+    public void putRegister(String key, String value) {
+        String actualReplicaId = checkReplicaId();
+        StateEntry delta = new StateEntry(key);
+        synchronized (this) {
+            StateEntry entry = entries.get(key);
+            if (entry != null && entry.getRegister() == null) {
+                throw new IllegalStateException("The key " + key + " isn't a register");
+            }
+            long timestamp = System.currentTimeMillis();
+            if (entry != null) {
+                // The writes of this device are always newer than the values already seen
+                timestamp = Math.max(timestamp, entry.getRegister().getTimestamp() + 1);
+            }
+            delta.setRegister(new LwwRegister(value, timestamp, actualReplicaId));
+            apply(delta);
+        }
+        sendDelta(delta);
+    }
+
+    /**
+     * @return the value of a counter, 0 if it has never been changed.
+     */
+    public synchronized long getCounter(String key) {
+        StateEntry entry = entries.get(key);
+        return entry != null && entry.getCounter() != null ? entry.getCounter().getValue() : 0;
+    }
+
+    /**
+     * Add an amount to a counter. The concurrent changes of all the devices are added.
+     *
+     * @param key    The key of the counter.
+     * @param amount The amount added, negative to decrement the counter.
+     */
+    public void incrementCounter(String key, long amount) {
+        String actualReplicaId = checkReplicaId();
+        StateEntry delta = new StateEntry(key);
+        synchronized (this) {
+            StateEntry entry = entries.get(key);
+            if (entry != null && entry.getCounter() == null) {
+                throw new IllegalStateException("The key " + key + " isn't a counter");
+            }
+
+            // The delta is built from a copy, so the entry is only changed by apply
+            PnCounter counter = new PnCounter();
+            if (entry != null) {
+                counter.merge(entry.getCounter());
+            }
+            delta.setCounter(counter.add(actualReplicaId, amount));
+            apply(delta);
+        }
+        sendDelta(delta);
+    }
+
+    /**
+     * @return the elements of a set, empty if it has never been changed.
+     */
+    public synchronized Set<String> getSet(String key) {
+        StateEntry entry = entries.get(key);
+        return entry != null && entry.getSet() != null ? entry.getSet().getElements() : Collections.<String>emptySet();
+    }
+
+    /**
+     * Add an element to a set. An element added concurrently with its removal in other device
+     * stays in the set.
+     *
+     * @param key     The key of the set.
+     * @param element The element added.
+     */
+    public void addToSet(String key, String element) {
+        String actualReplicaId = checkReplicaId();
+        StateEntry delta = new StateEntry(key);
+        synchronized (this) {
+            existingSet(key);
+            delta.setSet(new OrSet().add(element, tagGenerator.next(actualReplicaId)));
+            apply(delta);
+        }
+        sendDelta(delta);
+    }
+
+    /**
+     * Remove an element from a set. Only the additions seen by this device are removed.
+     *
+     * @param key     The key of the set.
+     * @param element The element removed.
+     */
+    public void removeFromSet(String key, String element) {
+        checkReplicaId();
+        StateEntry delta = new StateEntry(key);
+        synchronized (this) {
+            OrSet existingSet = existingSet(key);
+            if (existingSet == null) {
+                return;
+            }
+            OrSet set = new OrSet();
+            set.merge(existingSet);
+            OrSet removal = set.remove(element);
+            if (removal == null) {
+                return;
+            }
+            delta.setSet(removal);
+            apply(delta);
+        }
+        sendDelta(delta);
+    }
+
+    /**
+     * @return the keys of the store.
+     */
+    public synchronized Set<String> getKeys() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /**
+     * @return the hash of all the state of the store, equal in the devices with the same state.
+     */
+    public synchronized long getStateHash() {
+        return merkleTree.hash(0, 0);
+    }
+
+    /**
+     * Start the synchronization of the state of this device with other device, which repairs the
+     * changes missed by any of them. It's done when a device joins the group.
+     *
+     * @param device The device which this device synchronizes with.
+     */
+    public void synchronize(WroupDevice device) {
+        MessageWrapper message;
+        synchronized (this) {
+            message = digestMessage(0, Collections.singletonList(0));
+        }
+        transport.send(device, message);
+    }
+
+    /**
+     * Merge the changes of a <code>STATE_DELTA</code> message received from other device.
+     */
+    public void onDelta(MessageWrapper messageWrapper) {
+        StateDeltaMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), StateDeltaMessageContent.class);
+        if (content == null || content.getEntries() == null) {
+            return;
+        }
+
+        List<String> changedKeys = new ArrayList<>();
+        synchronized (this) {
+            for (StateEntry entry : content.getEntries()) {
+                if (apply(entry)) {
+                    changedKeys.add(entry.getKey());
+                }
+            }
+        }
+        notifyChanges(changedKeys);
+    }
+
+    /**
+     * Handle a <code>STATE_SYNC</code> message of other device: merge the entries which it
+     * contains, and answer with the hashes of the children of the nodes which differ, or with the
+     * entries of the leaves which differ.
+     *
+     * @param messageWrapper The <code>STATE_SYNC</code> message.
+     * @param device         The device which sent it, with its server socket address.
+     */
+    public void onSync(MessageWrapper messageWrapper, WroupDevice device) {
+        StateSyncMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), StateSyncMessageContent.class);
+        if (content == null || device == null || content.getNodes() == null) {
+            WroupLog.w(TAG, "Discarded state sync without content or from an unknown device");
+            return;
+        }
+        int level = content.getLevel();
+        for (Integer node : content.getNodes()) {
+            if (node == null || !merkleTree.isValidNode(level, node)) {
+                WroupLog.w(TAG, "Discarded state sync with invalid node {} in level {}", node, level);
+                return;
+            }
+        }
+
+        MessageWrapper response = null;
+        List<String> changedKeys = new ArrayList<>();
+        synchronized (this) {
+            // The entries requested are the ones of this device before merging the ones received
+            if (content.isEntriesRequested() && level == MerkleTree.LEAF_LEVEL) {
+                response = entriesMessage(content.getNodes(), false);
+            }
+
+            if (content.getEntries() != null) {
+                for (StateEntry entry : content.getEntries()) {
+                    if (apply(entry)) {
+                        changedKeys.add(entry.getKey());
+                    }
+                }
+            }
+
+            List<Long> hashes = content.getHashes();
+            if (hashes != null && hashes.size() == content.getNodes().size()) {
+                List<Integer> differentNodes = new ArrayList<>();
+                for (int i = 0; i < hashes.size(); i++) {
+                    int node = content.getNodes().get(i);
+                    if (hashes.get(i) == null || merkleTree.hash(level, node) != hashes.get(i)) {
+                        differentNodes.add(node);
+                    }
+                }
+
+                if (!differentNodes.isEmpty()) {
+                    if (level < MerkleTree.LEAF_LEVEL) {
+                        List<Integer> children = new ArrayList<>();
+                        for (int node : differentNodes) {
+                            for (int child = 0; child < MerkleTree.FANOUT; child++) {
+                                children.add(node * MerkleTree.FANOUT + child);
+                            }
+                        }
+                        response = digestMessage(level + 1, children);
+                    } else {
+                        response = entriesMessage(differentNodes, true);
+                    }
+                }
+            }
+        }
+
+        if (response != null) {
+            transport.send(device, response);
+        }
+        notifyChanges(changedKeys);
+    }
+
+    /**
+     * Remove all the entries of this device. It isn't sent to the other devices.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        entryHashes.clear();
+        merkleTree.clear();
+    }
+
+    /**
+     * Merge an entry into the one of the same key, and update the hash tree if it changes.
+     *
+     * @return true if the entry of the key has changed.
+     */
+    private boolean apply(StateEntry delta) {
+        if (delta == null || !delta.isValid()) {
+            return false;
+        }
+
+        String key = delta.getKey();
+        StateEntry entry = entries.get(key);
+        boolean created = entry == null;
+        if (created) {
+            entry = delta.emptyCopy();
+        } else if (!entry.hasSameType(delta)) {
+            WroupLog.w(TAG, "Discarded change of {} with a different type", key);
+            return false;
+        }
+
+        if (!entry.merge(delta)) {
+            return false;
+        }
+        if (created) {
+            entries.put(key, entry);
+        }
+
+        long entryHash = entry.digest();
+        Long previousHash = entryHashes.put(key, entryHash);
+        merkleTree.update(StateHash.of(key), previousHash != null ? previousHash : 0, entryHash);
+        return true;
+    }
+
+    /**
+     * @return the set of a key, or null if the key doesn't exist yet.
+     * @throws IllegalStateException If the key exists with other type.
+     */
+    private OrSet existingSet(String key) {
+        StateEntry entry = entries.get(key);
+        if (entry != null && entry.getSet() == null) {
+            throw new IllegalStateException("The key " + key + " isn't a set");
+        }
+        return entry != null ? entry.getSet() : null;
+    }
+
+    private String checkReplicaId() {
+        String actualReplicaId = replicaId;
+        if (actualReplicaId == null) {
+            throw new IllegalStateException("The device must be set before changing the replicated state");
+        }
+        return actualReplicaId;
+    }
+
+    private MessageWrapper digestMessage(int level, List<Integer> nodes) {
+        List<Long> hashes = new ArrayList<>(nodes.size());
+        for (int node : nodes) {
+            hashes.add(merkleTree.hash(level, node));
+        }
+
+        StateSyncMessageContent content = new StateSyncMessageContent();
+        content.setLevel(level);
+        content.setNodes(nodes);
+        content.setHashes(hashes);
+        return syncMessage(content);
+    }
+
+    private MessageWrapper entriesMessage(List<Integer> leaves, boolean entriesRequested) {
+        Set<Integer> leafSet = new HashSet<>(leaves);
+        List<StateEntry> leafEntries = new ArrayList<>();
+        for (StateEntry entry : entries.values()) {
+            if (leafSet.contains(MerkleTree.node(StateHash.of(entry.getKey()), MerkleTree.LEAF_LEVEL))) {
+                leafEntries.add(entry);
+            }
+        }
+
+        StateSyncMessageContent content = new StateSyncMessageContent();
+        content.setLevel(MerkleTree.LEAF_LEVEL);
+        content.setNodes(leaves);
+        content.setEntries(leafEntries);
+        content.setEntriesRequested(entriesRequested);
+        return syncMessage(content);
+    }
+
+    private static MessageWrapper syncMessage(StateSyncMessageContent content) {
+        // Serialized while holding the lock, the entries are changed by the merges
+        MessageWrapper message = new MessageWrapper();
+        message.setMessageType(MessageWrapper.MessageType.STATE_SYNC);
+        message.setMessage(MessageCodec.GSON.toJson(content));
+        return message;
+    }
+
+    private void sendDelta(StateEntry delta) {
+        StateDeltaMessageContent content = new StateDeltaMessageContent();
+        content.setEntries(Collections.singletonList(delta));
+
+        MessageWrapper message = new MessageWrapper();
+        message.setMessageType(MessageWrapper.MessageType.STATE_DELTA);
+        message.setMessage(MessageCodec.GSON.toJson(content));
+        transport.sendToAll(message);
+    }
+
+    private void notifyChanges(List<String> changedKeys) {
+        StateChangedListener listener = stateChangedListener;
+        if (listener != null) {
+            for (String key : changedKeys) {
+                listener.onStateChanged(key);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.abemart.wroup.common.replication;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+/**
+ * Sends the messages of a {@link ReplicatedStore} to the devices of the group.
+ */
+public interface ReplicationTransport {
+
+    void send(WroupDevice device, MessageWrapper message);
+
+    void sendToAll(MessageWrapper message);
+
+}
@@ -0,0 +1,108 @@
+package com.abemart.wroup.common.replication;
+
+
+/**
+ * A key of the {@link ReplicatedStore} and its value, which is one of the replicated data types.
+ * The same class is used for the full state of the key and for the deltas of its changes, which are
+ * merged in the same way.
+ */
+public class StateEntry {
+
+    private String key;
+    private LwwRegister register;
+    private PnCounter counter;
+    private OrSet set;
+
+    public StateEntry() {
+    }
+
+    StateEntry(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public LwwRegister getRegister() {
+        return register;
+    }
+
+    void setRegister(LwwRegister register) {
+        this.register = register;
+    }
+
+    public PnCounter getCounter() {
+        return counter;
+    }
+
+    void setCounter(PnCounter counter) {
+        this.counter = counter;
+    }
+
+    public OrSet getSet() {
+        return set;
+    }
+
+    void setSet(OrSet set) {
+        this.set = set;
+    }
+
+    /**
+     * @return true if both entries hold the same data type.
+     */
+    boolean hasSameType(StateEntry other) {
+        return (register != null) == (other.register != null)
+                && (counter != null) == (other.counter != null)
+                && (set != null) == (other.set != null);
+    }
+
+    /**
+     * Merge other entry of the same key and type into this one.
+     *
+     * @return true if the value of this entry has changed.
+     */
+    boolean merge(StateEntry other) {
+        if (register != null) {
+            return register.merge(other.register);
+        } else if (counter != null) {
+            return counter.merge(other.counter);
+        } else if (set != null) {
+            return set.merge(other.set);
+        }
+        return false;
+    }
+
+    /**
+     * Create an empty entry of the same key and type, which the entry can be merged into.
+     */
+    StateEntry emptyCopy() {
+        StateEntry entry = new StateEntry(key);
+        if (register != null) {
+            entry.register = new LwwRegister();
+        } else if (counter != null) {
+            entry.counter = new PnCounter();
+        } else if (set != null) {
+            entry.set = new OrSet();
+        }
+        return entry;
+    }
+
+    boolean isValid() {
+        int values = (register != null ? 1 : 0) + (counter != null ? 1 : 0) + (set != null ? 1 : 0);
+        return key != null && values == 1;
+    }
+
+    long digest() {
+        long valueDigest;
+        if (register != null) {
+            valueDigest = StateHash.add(1, register.digest());
+        } else if (counter != null) {
+            valueDigest = StateHash.add(2, counter.digest());
+        } else {
+            valueDigest = StateHash.add(3, set != null ? set.digest() : 0);
+        }
+        return StateHash.add(StateHash.of(key), valueDigest);
+    }
+
+}
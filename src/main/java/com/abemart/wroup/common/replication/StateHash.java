@@ -0,0 +1,41 @@
+package com.abemart.wroup.common.replication;
+
+
+/**
+ * 64 bit FNV-1a hash used to compare the replicated state of two devices. The hashes of the
+ * elements of maps and sets are added, so they don't depend on the iteration order.
+ */
+final class StateHash {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private StateHash() {
+    }
+
+    static long of(String value) {
+        return add(OFFSET_BASIS, value);
+    }
+
+    static long add(long hash, String value) {
+        if (value == null) {
+            return add(hash, 0L);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * PRIME;
+            hash = (hash ^ (c >>> 8)) * PRIME;
+        }
+        // The length separates the consecutive strings
+        return add(hash, value.length());
+    }
+
+    static long add(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+}
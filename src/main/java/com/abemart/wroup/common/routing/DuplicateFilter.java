@@ -0,0 +1,43 @@
+package com.abemart.wroup.common.routing;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of the ids of the messages routed recently by a device, used to discard the copies
+ * of a message which arrive again through another path. The oldest ids are forgotten first.
+ */
+public class DuplicateFilter {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final Map<String, Boolean> messageIds;
+
+    public DuplicateFilter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DuplicateFilter(final int capacity) {
+        this.messageIds = new LinkedHashMap<String, Boolean>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Remember a message id.
+     *
+     * @return true if the id hadn't been seen before.
+     */
+    public synchronized boolean add(String messageId) {
+        return messageIds.put(messageId, Boolean.TRUE) == null;
+    }
+
+    public synchronized void clear() {
+        messageIds.clear();
+    }
+
+}
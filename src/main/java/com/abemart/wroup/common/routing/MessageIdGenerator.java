@@ -0,0 +1,20 @@
+package com.abemart.wroup.common.routing;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of the ids of the messages routed by a device. The ids contain the MAC address of the
+ * device and the time when the generator was created, so they don't collide with the ids of a
+ * previous execution which are still remembered by the {@link DuplicateFilter}s of the group.
+ */
+public class MessageIdGenerator {
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong sequence = new AtomicLong();
+
+    public String next(String deviceMac) {
+        return deviceMac + "/" + epoch + "/" + sequence.incrementAndGet();
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.abemart.wroup.common.routing;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Distance vector routing table of a group owner or a bridge.
+ * <p>
+ * The neighbors are the devices which send route advertisements to this device: the bridges of
+ * the group for a group owner, and the group owners of both groups for a bridge. Every
+ * advertisement contains all the devices which the neighbor reaches, so it replaces the previous
+ * one of the same neighbor and the routes withdrawn disappear with it. The best route to every
+ * device is the one of the neighbor which reaches it crossing the fewest bridges, and the routes
+ * of {@link #MAX_DISTANCE} or more bridges are considered unreachable, which bounds the counting
+ * to infinity when a bridge leaves a loop of groups.
+ * <p>
+ * The devices are identified by their MAC address.
+ */
+public class RoutingTable {
+
+    /**
+     * Number of bridges from which a device is unreachable.
+     */
+    public static final int MAX_DISTANCE = 16;
+
+    /**
+     * A route to a device: the neighbor which the messages are sent to and the number of bridges
+     * which they cross.
+     */
+    public static class Route {
+
+        private final String nextHop;
+        private final int distance;
+
+        Route(String nextHop, int distance) {
+            this.nextHop = nextHop;
+            this.distance = distance;
+        }
+
+        public String getNextHop() {
+            return nextHop;
+        }
+
+        public int getDistance() {
+            return distance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Route route = (Route) o;
+            return distance == route.distance && nextHop.equals(route.nextHop);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * nextHop.hashCode() + distance;
+        }
+
+    }
+
+    private final int neighborCost;
+    private final Map<String, Map<String, Integer>> advertisements = new HashMap<>();
+    private Map<String, Route> routes = new HashMap<>();
+
+    /**
+     * @param neighborCost The bridges crossed to reach a neighbor: 0 for a group owner, which is
+     *                     in the same group as its bridges, and 1 for a bridge, which crosses
+     *                     itself to reach the other group.
+     */
+    public RoutingTable(int neighborCost) {
+        this.neighborCost = neighborCost;
+    }
+
+    /**
+     * Replace the advertisement of a neighbor.
+     *
+     * @param neighbor  The MAC address of the neighbor.
+     * @param distances The devices which the neighbor reaches and the bridges crossed from it.
+     * @return true if any best route has changed.
+     */
+    public synchronized boolean update(String neighbor, Map<String, Integer> distances) {
+        advertisements.put(neighbor, distances != null ? new HashMap<>(distances) : Collections.<String, Integer>emptyMap());
+        return recompute();
+    }
+
+    /**
+     * Forget the routes of a neighbor which has left the group.
+     *
+     * @return true if any best route has changed.
+     */
+    public synchronized boolean removeNeighbor(String neighbor) {
+        return advertisements.remove(neighbor) != null && recompute();
+    }
+
+    public synchronized boolean isNeighbor(String deviceMac) {
+        return advertisements.containsKey(deviceMac);
+    }
+
+    public synchronized Collection<String> getNeighbors() {
+        return Collections.unmodifiableCollection(new ArrayList<>(advertisements.keySet()));
+    }
+
+    /**
+     * @return the best route to a device, or null if it's unreachable.
+     */
+    public synchronized Route getRoute(String deviceMac) {
+        return routes.get(deviceMac);
+    }
+
+    /**
+     * @return the best routes to all the devices reachable.
+     */
+    public synchronized Map<String, Route> getRoutes() {
+        return Collections.unmodifiableMap(routes);
+    }
+
+    /**
+     * Build the advertisement sent to a neighbor: the local devices, at distance 0, and the best
+     * routes of the table except the ones learned from the neighbor itself (split horizon).
+     *
+     * @param neighbor     The MAC address of the neighbor which receives the advertisement.
+     * @param localDevices The devices which this device reaches without crossing bridges.
+     * @return the devices reachable and the bridges which the neighbor crosses to reach them
+     * through this device.
+     */
+    public synchronized Map<String, Integer> advertisementFor(String neighbor, Collection<String> localDevices) {
+        Map<String, Integer> distances = new HashMap<>();
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            Route route = entry.getValue();
+            if (!route.nextHop.equals(neighbor)) {
+                distances.put(entry.getKey(), route.distance);
+            }
+        }
+        for (String localDevice : localDevices) {
+            distances.put(localDevice, 0);
+        }
+        distances.remove(neighbor);
+        return distances;
+    }
+
+    public synchronized void clear() {
+        advertisements.clear();
+        routes = new HashMap<>();
+    }
+
+    private boolean recompute() {
+        Map<String, Route> newRoutes = new HashMap<>();
+        for (Map.Entry<String, Map<String, Integer>> advertisement : advertisements.entrySet()) {
+            String neighbor = advertisement.getKey();
+            for (Map.Entry<String, Integer> entry : advertisement.getValue().entrySet()) {
+                int distance = entry.getValue() + neighborCost;
+                if (distance >= MAX_DISTANCE || entry.getKey().equals(neighbor)) {
+                    continue;
+                }
+                Route best = newRoutes.get(entry.getKey());
+                // Ties are broken by the neighbor address, so the choice doesn't depend on the order
+                if (best == null || distance < best.distance
+                        || (distance == best.distance && neighbor.compareTo(best.nextHop) < 0)) {
+                    newRoutes.put(entry.getKey(), new Route(neighbor, distance));
+                }
+            }
+            // A neighbor is reached directly
+            newRoutes.put(neighbor, new Route(neighbor, neighborCost));
+        }
+
+        boolean changed = !newRoutes.equals(routes);
+        routes = newRoutes;
+        return changed;
+    }
+
+}
@@ -0,0 +1,317 @@
+package com.abemart.wroup.common.rpc;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.listeners.RpcRequestListener;
+import com.abemart.wroup.common.listeners.RpcResponseListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.RpcMessageContent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request/response calls between the devices of the group over <code>RPC_REQUEST</code> and
+ * <code>RPC_RESPONSE</code> messages.
+ * <p>
+ * Every call has an id unique in the caller, which the response carries back, so the pending calls
+ * are found with a hash lookup and their deadlines are expired by a {@link TimingWheel}. The calls
+ * in flight with every device are limited, so a device which doesn't answer can't accumulate calls
+ * without bound. The handlers of the requests and the listeners of the responses are run in the
+ * callback executor, never in the thread which receives the messages.
+ * <p>
+ * This class doesn't depend on the Android framework, the messages are sent with the
+ * {@link RpcTransport} of the group owner or the group member.
+ */
+public class RpcEngine {
+
+    private static final String TAG = RpcEngine.class.getSimpleName();
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_PEER = 64;
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SLOTS = 512;
+
+    private final RpcTransport transport;
+    private final Map<String, RpcRequestListener> handlers = new ConcurrentHashMap<>();
+    private final Map<Long, PendingCall> pendingCalls = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> callsInFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextCallId = new AtomicLong();
+    private final TimingWheel timingWheel = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS);
+
+    private volatile Executor callbackExecutor;
+    private volatile int maxInFlightPerPeer = DEFAULT_MAX_IN_FLIGHT_PER_PEER;
+
+    /**
+     * @param callbackExecutor The executor which runs the handlers and the response listeners.
+     * @param transport        The transport which sends the messages to the devices.
+     */
+    public RpcEngine(Executor callbackExecutor, RpcTransport transport) {
+        this.callbackExecutor = callbackExecutor;
+        this.transport = transport;
+    }
+
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Set the maximum number of calls waiting for a response from the same device. The calls over
+     * the limit fail with {@link RpcError#TOO_MANY_IN_FLIGHT} without being sent.
+     */
+    public void setMaxInFlightPerPeer(int maxInFlightPerPeer) {
+        if (maxInFlightPerPeer <= 0) {
+            throw new IllegalArgumentException("The maximum number of calls in flight must be positive");
+        }
+        this.maxInFlightPerPeer = maxInFlightPerPeer;
+    }
+
+    /**
+     * Register the handler of the calls of a method made by the other devices. A previous handler
+     * of the same method is replaced.
+     *
+     * @param method             The name of the method.
+     * @param rpcRequestListener The handler of the calls.
+     */
+    public void registerHandler(String method, RpcRequestListener rpcRequestListener) {
+        handlers.put(method, rpcRequestListener);
+    }
+
+    /**
+     * Unregister the handler of the calls of a method. The calls received later fail with
+     * {@link RpcError#METHOD_NOT_FOUND}.
+     *
+     * @param method The name of the method.
+     */
+    public void unregisterHandler(String method) {
+        handlers.remove(method);
+    }
+
+    /**
+     * Call a method of a device. The listener is notified once, with the result of the call or
+     * with the error which prevented it.
+     *
+     * @param device              The device called.
+     * @param method              The name of the method.
+     * @param params              The parameters of the call.
+     * @param timeoutMillis       The time to wait for the response.
+     * @param rpcResponseListener The listener notified with the result of the call.
+     */
+    public void call(WroupDevice device, String method, String params, long timeoutMillis, RpcResponseListener rpcResponseListener) {
+        if (device == null || device.getDeviceServerSocketIP() == null) {
+            notifyError(rpcResponseListener, RpcError.NOT_CONNECTED, "The device isn't connected to the group");
+            return;
+        }
+
+        String peer = device.getDeviceMac() != null ? device.getDeviceMac() : device.getDeviceServerSocketIP();
+        AtomicInteger inFlight = callsInFlight.get(peer);
+        if (inFlight == null) {
+            AtomicInteger newInFlight = new AtomicInteger();
+            inFlight = callsInFlight.putIfAbsent(peer, newInFlight);
+            if (inFlight == null) {
+                inFlight = newInFlight;
+            }
+        }
+        if (inFlight.incrementAndGet() > maxInFlightPerPeer) {
+            inFlight.decrementAndGet();
+            notifyError(rpcResponseListener, RpcError.TOO_MANY_IN_FLIGHT, maxInFlightPerPeer + " calls in flight with " + peer);
+            return;
+        }
+
+        PendingCall pendingCall = new PendingCall(nextCallId.incrementAndGet(), device.getDeviceMac(), inFlight, rpcResponseListener);
+        pendingCalls.put(pendingCall.callId, pendingCall);
+        timingWheel.schedule(pendingCall, timeoutMillis);
+
+        RpcMessageContent content = new RpcMessageContent();
+        content.setCallId(pendingCall.callId);
+        content.setMethod(method);
+        content.setBody(params);
+
+        MessageWrapper request = new MessageWrapper();
+        request.setMessageType(MessageWrapper.MessageType.RPC_REQUEST);
+        request.setMessage(MessageCodec.GSON.toJson(content));
+        try {
+            transport.send(device, request);
+        } catch (RejectedExecutionException e) {
+            pendingCall.complete(null, RpcError.NOT_CONNECTED, "The request couldn't be sent");
+        }
+    }
+
+    /**
+     * Handle a request received from another device: run the handler of the method in the callback
+     * executor and send the response to the caller.
+     *
+     * @param request The <code>RPC_REQUEST</code> message.
+     * @param caller  The device which made the call, with its server socket address.
+     */
+    public void onRequest(MessageWrapper request, final WroupDevice caller) {
+        final RpcMessageContent content = MessageCodec.GSON.fromJson(request.getMessage(), RpcMessageContent.class);
+        if (content == null || caller == null) {
+            WroupLog.w(TAG, "Discarded RPC request without content or from an unknown device");
+            return;
+        }
+
+        final RpcRequestListener handler = content.getMethod() != null ? handlers.get(content.getMethod()) : null;
+        if (handler == null) {
+            sendResponse(caller, content.getCallId(), null, RpcError.METHOD_NOT_FOUND, content.getMethod());
+            return;
+        }
+
+        try {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String result;
+                    try {
+                        result = handler.onRpcRequest(caller, content.getBody());
+                    } catch (Exception e) {
+                        sendResponse(caller, content.getCallId(), null, RpcError.HANDLER_FAILED, e.getMessage());
+                        return;
+                    }
+                    sendResponse(caller, content.getCallId(), result, null, null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sendResponse(caller, content.getCallId(), null, RpcError.HANDLER_FAILED, "The handler couldn't be run");
+        }
+    }
+
+    /**
+     * Complete the pending call of a response received from another device. The responses of
+     * calls already completed, or which come from a device different of the called one, are
+     * discarded.
+     *
+     * @param response The <code>RPC_RESPONSE</code> message.
+     */
+    public void onResponse(MessageWrapper response) {
+        RpcMessageContent content = MessageCodec.GSON.fromJson(response.getMessage(), RpcMessageContent.class);
+        if (content == null) {
+            return;
+        }
+
+        PendingCall pendingCall = pendingCalls.get(content.getCallId());
+        if (pendingCall == null) {
+            return;
+        }
+        String responderMac = response.getWroupDevice() != null ? response.getWroupDevice().getDeviceMac() : null;
+        if (pendingCall.deviceMac != null && responderMac != null && !pendingCall.deviceMac.equals(responderMac)) {
+            WroupLog.w(TAG, "Discarded RPC response of call {} from an unexpected device", content.getCallId());
+            return;
+        }
+
+        if (content.getError() != null) {
+            pendingCall.complete(null, RpcError.fromName(content.getError()), content.getErrorMessage());
+        } else {
+            pendingCall.complete(content.getBody(), null, null);
+        }
+    }
+
+    /**
+     * Fail all the pending calls with {@link RpcError#CANCELLED}.
+     */
+    public void cancelAll() {
+        List<PendingCall> calls = new ArrayList<>(pendingCalls.values());
+        for (PendingCall pendingCall : calls) {
+            pendingCall.complete(null, RpcError.CANCELLED, "This device left the group");
+        }
+    }
+
+    /**
+     * @return the number of calls waiting for a response.
+     */
+    public int getPendingCalls() {
+        return pendingCalls.size();
+    }
+
+    private void sendResponse(WroupDevice caller, long callId, String result, RpcError rpcError, String errorMessage) {
+        RpcMessageContent content = new RpcMessageContent();
+        content.setCallId(callId);
+        content.setBody(result);
+        if (rpcError != null) {
+            content.setError(rpcError.name());
+            content.setErrorMessage(errorMessage);
+        }
+
+        MessageWrapper response = new MessageWrapper();
+        response.setMessageType(MessageWrapper.MessageType.RPC_RESPONSE);
+        response.setMessage(MessageCodec.GSON.toJson(content));
+        try {
+            transport.send(caller, response);
+        } catch (RejectedExecutionException e) {
+            WroupLog.e(TAG, "Error sending the RPC response of call {}", callId);
+        }
+    }
+
+    private void notifyError(final RpcResponseListener rpcResponseListener, final RpcError rpcError, final String message) {
+        runCallback(new Runnable() {
+            @Override
+            public void run() {
+                rpcResponseListener.onRpcError(rpcError, message);
+            }
+        });
+    }
+
+    private void runCallback(Runnable callback) {
+        try {
+            callbackExecutor.execute(callback);
+        } catch (RejectedExecutionException e) {
+            // The listener must be notified anyway
+            callback.run();
+        }
+    }
+
+    /**
+     * A call waiting for its response, and its deadline in the timing wheel.
+     */
+    private class PendingCall extends TimingWheel.Timeout {
+
+        private final long callId;
+        private final String deviceMac;
+        private final AtomicInteger inFlight;
+        private final RpcResponseListener rpcResponseListener;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        PendingCall(long callId, String deviceMac, AtomicInteger inFlight, RpcResponseListener rpcResponseListener) {
+            this.callId = callId;
+            this.deviceMac = deviceMac;
+            this.inFlight = inFlight;
+            this.rpcResponseListener = rpcResponseListener;
+        }
+
+        @Override
+        void onExpired() {
+            complete(null, RpcError.TIMEOUT, "No response in time");
+        }
+
+        void complete(final String result, final RpcError rpcError, final String errorMessage) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            pendingCalls.remove(callId);
+            inFlight.decrementAndGet();
+
+            runCallback(new Runnable() {
+                @Override
+                public void run() {
+                    if (rpcError != null) {
+                        rpcResponseListener.onRpcError(rpcError, errorMessage);
+                    } else {
+                        rpcResponseListener.onRpcResponse(result);
+                    }
+                }
+            });
+        }
+
+    }
+
+}
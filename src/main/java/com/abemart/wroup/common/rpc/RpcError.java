@@ -0,0 +1,49 @@
+package com.abemart.wroup.common.rpc;
+
+
+/**
+ * Reasons why a remote call didn't return a result.
+ */
+public enum RpcError {
+
+    /**
+     * The reply didn't arrive before the deadline of the call.
+     */
+    TIMEOUT,
+
+    /**
+     * The calls in flight with the same device reached the limit, so the call wasn't sent.
+     */
+    TOO_MANY_IN_FLIGHT,
+
+    /**
+     * The device called doesn't have a handler registered for the method.
+     */
+    METHOD_NOT_FOUND,
+
+    /**
+     * The handler of the device called failed or couldn't be run.
+     */
+    HANDLER_FAILED,
+
+    /**
+     * The device called isn't connected to the group.
+     */
+    NOT_CONNECTED,
+
+    /**
+     * The call was cancelled because this device left the group.
+     */
+    CANCELLED;
+
+    static RpcError fromName(String name) {
+        for (RpcError rpcError : RpcError.values()) {
+            if (rpcError.name().equals(name)) {
+                return rpcError;
+            }
+        }
+
+        return HANDLER_FAILED;
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.abemart.wroup.common.rpc;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+/**
+ * Sends the requests and the responses of an {@link RpcEngine} to the devices of the group.
+ */
+public interface RpcTransport {
+
+    void send(WroupDevice device, MessageWrapper message);
+
+}
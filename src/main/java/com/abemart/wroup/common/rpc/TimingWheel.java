@@ -0,0 +1,126 @@
+package com.abemart.wroup.common.rpc;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel which expires the deadlines of the pending calls.
+ * <p>
+ * The deadlines are stored in the slot of their tick, so scheduling one costs O(1) regardless of
+ * the number of deadlines pending, and every tick only visits the deadlines of one slot. The
+ * deadlines aren't removed when the call completes before: the timeout checks it when it expires.
+ * The wheel only ticks while it has deadlines, so an idle device doesn't wake up.
+ */
+final class TimingWheel {
+
+    /**
+     * A deadline stored in the wheel.
+     */
+    abstract static class Timeout {
+
+        private long deadlineTick;
+
+        /**
+         * Called from the thread of the wheel when the deadline is reached.
+         */
+        abstract void onExpired();
+
+    }
+
+    private final long tickMillis;
+    private final List<List<Timeout>> slots;
+    private final long startNanos = System.nanoTime();
+    private final ScheduledThreadPoolExecutor ticker;
+
+    private long currentTick;
+    private int size;
+    private ScheduledFuture<?> tickTask;
+
+    TimingWheel(long tickMillis, int slotCount) {
+        this.tickMillis = tickMillis;
+        slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayList<Timeout>());
+        }
+
+        ticker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wroup-rpc-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ticker.setKeepAliveTime(1, TimeUnit.SECONDS);
+        ticker.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Expire a timeout after a delay, rounded up to the next tick.
+     */
+    synchronized void schedule(Timeout timeout, long delayMillis) {
+        long deadlineTick = (elapsedMillis() + Math.max(0, delayMillis) + tickMillis - 1) / tickMillis;
+        timeout.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+        slots.get((int) (timeout.deadlineTick % slots.size())).add(timeout);
+        size++;
+
+        if (tickTask == null) {
+            tickTask = ticker.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the number of deadlines stored, including the ones of the calls already completed.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private void tick() {
+        List<Timeout> expired = new ArrayList<>();
+        synchronized (this) {
+            long nowTick = elapsedMillis() / tickMillis;
+            // A late tick processes all the slots which it has skipped, at most one full turn
+            long firstTick = Math.max(currentTick + 1, nowTick - slots.size() + 1);
+            for (long tick = firstTick; tick <= nowTick; tick++) {
+                List<Timeout> slot = slots.get((int) (tick % slots.size()));
+                int kept = 0;
+                for (int i = 0; i < slot.size(); i++) {
+                    Timeout timeout = slot.get(i);
+                    if (timeout.deadlineTick <= nowTick) {
+                        expired.add(timeout);
+                    } else {
+                        slot.set(kept++, timeout);
+                    }
+                }
+                slot.subList(kept, slot.size()).clear();
+            }
+            currentTick = Math.max(currentTick, nowTick);
+            size -= expired.size();
+
+            if (size == 0 && tickTask != null) {
+                tickTask.cancel(false);
+                tickTask = null;
+            }
+        }
+
+        for (Timeout timeout : expired) {
+            timeout.onExpired();
+        }
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.abemart.wroup.common.throttling;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rate limits applied to every peer of the group on its own, with a {@link TokenBucket} per peer
+ * created with its first event.
+ * <p>
+ * The limiter is disabled until a limit is set, and while it's disabled every event is allowed
+ * without creating buckets, so it doesn't cost anything to the groups which don't use it.
+ */
+public class RateLimiter {
+
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private volatile double permitsPerSecond;
+    private volatile int burst;
+
+    /**
+     * Set the limit of every peer. The buckets of the previous limit are discarded.
+     *
+     * @param permitsPerSecond The average rate allowed to every peer, or 0 to remove the limit.
+     * @param burst            The number of events allowed at once to every peer.
+     */
+    public synchronized void setLimit(double permitsPerSecond, int burst) {
+        if (permitsPerSecond < 0 || (permitsPerSecond > 0 && burst <= 0)) {
+            throw new IllegalArgumentException("The rate can't be negative and the burst must be positive");
+        }
+        this.burst = burst;
+        this.permitsPerSecond = permitsPerSecond;
+        buckets.clear();
+    }
+
+    /**
+     * @return true if a limit has been set.
+     */
+    public boolean isEnabled() {
+        return permitsPerSecond > 0;
+    }
+
+    /**
+     * Take some tokens of a peer if it hasn't exceeded its rate.
+     *
+     * @param peer    The peer which causes the event.
+     * @param permits The number of tokens taken by the event.
+     * @return true if the event is allowed, false if it exceeds the rate of the peer.
+     */
+    public boolean tryAcquire(String peer, int permits) {
+        TokenBucket bucket = getBucket(peer);
+        return bucket == null || bucket.tryAcquire(permits);
+    }
+
+    /**
+     * Take some tokens of a peer, even if it has exceeded its rate.
+     *
+     * @param peer    The peer which causes the event.
+     * @param permits The number of tokens taken by the event.
+     * @return the nanoseconds to wait before the event to keep the rate of the peer, 0 if it
+     * isn't exceeded.
+     */
+    public long reserve(String peer, int permits) {
+        TokenBucket bucket = getBucket(peer);
+        return bucket != null ? bucket.reserve(permits) : 0;
+    }
+
+    /**
+     * Forget the bucket of a peer which has left the group.
+     */
+    public void remove(String peer) {
+        if (peer != null) {
+            buckets.remove(peer);
+        }
+    }
+
+    /**
+     * Forget the buckets of all the peers, keeping the limit.
+     */
+    public void clear() {
+        buckets.clear();
+    }
+
+    private TokenBucket getBucket(String peer) {
+        double actualPermitsPerSecond = permitsPerSecond;
+        if (actualPermitsPerSecond <= 0 || peer == null) {
+            return null;
+        }
+
+        TokenBucket bucket = buckets.get(peer);
+        if (bucket == null) {
+            TokenBucket newBucket = new TokenBucket(actualPermitsPerSecond, burst);
+            bucket = buckets.putIfAbsent(peer, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.abemart.wroup.common.throttling;
+
+
+/**
+ * Token bucket which limits the average rate of some events and lets a burst of them pass at once.
+ * <p>
+ * The bucket is refilled with <code>permitsPerSecond</code> tokens per second up to
+ * <code>burst</code> tokens, and every event takes some tokens. The events can be refused while
+ * there aren't tokens enough, with {@link #tryAcquire(int)}, or taken in advance, with
+ * {@link #reserve(int)}, which leaves the bucket in debt and returns the time to wait until it's
+ * paid, so the events which can't be refused are delayed instead.
+ */
+public class TokenBucket {
+
+    /**
+     * Source of the time of the bucket.
+     */
+    interface Clock {
+
+        long nanoTime();
+
+    }
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final Clock clock;
+    private final double permitsPerNano;
+    private final double burst;
+
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param permitsPerSecond The average rate of the events.
+     * @param burst            The maximum number of tokens kept, which is the number of events
+     *                         allowed at once after a quiet period. The bucket starts full.
+     */
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param clock The source of the time, so the tests can control it.
+     */
+    TokenBucket(double permitsPerSecond, int burst, Clock clock) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("The rate and the burst must be positive");
+        }
+        this.clock = clock;
+        this.permitsPerNano = permitsPerSecond / NANOS_PER_SECOND;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefillNanos = clock.nanoTime();
+    }
+
+    /**
+     * Take some tokens if the bucket has them.
+     *
+     * @param permits The number of tokens taken by the event.
+     * @return true if the tokens have been taken, false if the event exceeds the rate.
+     */
+    public synchronized boolean tryAcquire(int permits) {
+        refill(clock.nanoTime());
+        if (tokens < permits) {
+            return false;
+        }
+        tokens -= permits;
+        return true;
+    }
+
+    /**
+     * Take some tokens, even if the bucket doesn't have them.
+     *
+     * @param permits The number of tokens taken by the event.
+     * @return the nanoseconds to wait before the event to keep the rate, 0 if it isn't exceeded.
+     */
+    public synchronized long reserve(int permits) {
+        refill(clock.nanoTime());
+        tokens -= permits;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / permitsPerNano);
+    }
+
+    private void refill(long nowNanos) {
+        long elapsedNanos = nowNanos - lastRefillNanos;
+        if (elapsedNanos > 0) {
+            tokens = Math.min(burst, tokens + elapsedNanos * permitsPerNano);
+            lastRefillNanos = nowNanos;
+        }
+    }
+
+}
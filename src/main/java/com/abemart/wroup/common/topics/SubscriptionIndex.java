@@ -0,0 +1,168 @@
+package com.abemart.wroup.common.topics;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the topics which every device of the group is subscribed to, used by the group owner
+ * to send the published messages only to the devices interested in them.
+ * <p>
+ * The exact topics are looked up in a hash map, and the prefix patterns are checked one by one,
+ * so looking up the subscribers of a topic costs one lookup plus one comparison per distinct
+ * prefix, regardless of the size of the group. The devices are identified by their MAC address.
+ */
+public class SubscriptionIndex {
+
+    private final Map<String, Set<String>> topicSubscribers = new HashMap<>();
+    private final Map<String, Set<String>> prefixSubscribers = new HashMap<>();
+    private final Map<String, Set<String>> deviceSubscriptions = new HashMap<>();
+
+    /**
+     * Subscribe a device to the topics which match a pattern.
+     *
+     * @param deviceMac The MAC address of the device.
+     * @param pattern   The subscription pattern.
+     * @return true if the device wasn't already subscribed to the pattern.
+     */
+    public synchronized boolean subscribe(String deviceMac, String pattern) {
+        TopicPatterns.checkPattern(pattern);
+
+        Set<String> subscriptions = deviceSubscriptions.get(deviceMac);
+        if (subscriptions == null) {
+            subscriptions = new HashSet<>();
+            deviceSubscriptions.put(deviceMac, subscriptions);
+        }
+        if (!subscriptions.add(pattern)) {
+            return false;
+        }
+
+        Map<String, Set<String>> subscribersByPattern = subscribersByPattern(pattern);
+        Set<String> subscribers = subscribersByPattern.get(patternKey(pattern));
+        if (subscribers == null) {
+            subscribers = new HashSet<>();
+            subscribersByPattern.put(patternKey(pattern), subscribers);
+        }
+        subscribers.add(deviceMac);
+        return true;
+    }
+
+    /**
+     * Unsubscribe a device from a pattern it was subscribed to.
+     *
+     * @param deviceMac The MAC address of the device.
+     * @param pattern   The subscription pattern.
+     * @return true if the device was subscribed to the pattern.
+     */
+    public synchronized boolean unsubscribe(String deviceMac, String pattern) {
+        Set<String> subscriptions = deviceSubscriptions.get(deviceMac);
+        if (subscriptions == null || !subscriptions.remove(pattern)) {
+            return false;
+        }
+        if (subscriptions.isEmpty()) {
+            deviceSubscriptions.remove(deviceMac);
+        }
+
+        removeSubscriber(subscribersByPattern(pattern), patternKey(pattern), deviceMac);
+        return true;
+    }
+
+    /**
+     * Remove all the subscriptions of a device, for example when it leaves the group.
+     *
+     * @param deviceMac The MAC address of the device.
+     */
+    public synchronized void removeDevice(String deviceMac) {
+        Set<String> subscriptions = deviceSubscriptions.remove(deviceMac);
+        if (subscriptions != null) {
+            for (String pattern : subscriptions) {
+                removeSubscriber(subscribersByPattern(pattern), patternKey(pattern), deviceMac);
+            }
+        }
+    }
+
+    /**
+     * Replace all the subscriptions of a device.
+     *
+     * @param deviceMac The MAC address of the device.
+     * @param patterns  The new subscription patterns of the device, or null to remove them.
+     * @throws IllegalArgumentException If a pattern is invalid. The subscriptions of the device
+     *                                  are kept.
+     */
+    public synchronized void setSubscriptions(String deviceMac, Collection<String> patterns) {
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                TopicPatterns.checkPattern(pattern);
+            }
+        }
+
+        removeDevice(deviceMac);
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                subscribe(deviceMac, pattern);
+            }
+        }
+    }
+
+    /**
+     * Obtain the devices subscribed to a topic.
+     *
+     * @param topic The topic of a message.
+     * @return the MAC addresses of the devices with a pattern which matches the topic.
+     */
+    public synchronized Set<String> getSubscribers(String topic) {
+        Set<String> subscribers = new HashSet<>();
+
+        Set<String> exactSubscribers = topicSubscribers.get(topic);
+        if (exactSubscribers != null) {
+            subscribers.addAll(exactSubscribers);
+        }
+        for (Map.Entry<String, Set<String>> prefix : prefixSubscribers.entrySet()) {
+            if (topic.startsWith(prefix.getKey())) {
+                subscribers.addAll(prefix.getValue());
+            }
+        }
+        return subscribers;
+    }
+
+    /**
+     * @param deviceMac The MAC address of the device.
+     * @return the subscription patterns of the device.
+     */
+    public synchronized Set<String> getSubscriptions(String deviceMac) {
+        Set<String> subscriptions = deviceSubscriptions.get(deviceMac);
+        if (subscriptions == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(subscriptions);
+    }
+
+    public synchronized void clear() {
+        topicSubscribers.clear();
+        prefixSubscribers.clear();
+        deviceSubscriptions.clear();
+    }
+
+    private Map<String, Set<String>> subscribersByPattern(String pattern) {
+        return TopicPatterns.isPrefixPattern(pattern) ? prefixSubscribers : topicSubscribers;
+    }
+
+    private static String patternKey(String pattern) {
+        return TopicPatterns.isPrefixPattern(pattern) ? pattern.substring(0, pattern.length() - 1) : pattern;
+    }
+
+    private static void removeSubscriber(Map<String, Set<String>> subscribersByPattern, String key, String deviceMac) {
+        Set<String> subscribers = subscribersByPattern.get(key);
+        if (subscribers != null) {
+            subscribers.remove(deviceMac);
+            if (subscribers.isEmpty()) {
+                subscribersByPattern.remove(key);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.abemart.wroup.common.topics;
+
+
+/**
+ * Topics and subscription patterns of the publish/subscribe messages.
+ * <p>
+ * A topic is any non empty string without wildcards, usually a path like
+ * <code>sensors/temperature</code>. A pattern is either a topic, which only matches that topic, or
+ * a prefix followed by the {@link #WILDCARD}, which matches all the topics that start with the
+ * prefix: <code>sensors/*</code> matches <code>sensors/temperature</code> and <code>*</code>
+ * matches every topic.
+ */
+public final class TopicPatterns {
+
+    public static final char WILDCARD = '*';
+
+    private TopicPatterns() {
+    }
+
+    /**
+     * @param pattern The subscription pattern.
+     * @return true if the pattern ends with the wildcard, false if it's a topic.
+     */
+    public static boolean isPrefixPattern(String pattern) {
+        return pattern.charAt(pattern.length() - 1) == WILDCARD;
+    }
+
+    /**
+     * @param pattern The subscription pattern.
+     * @param topic   The topic of a message.
+     * @return true if the topic matches the pattern.
+     */
+    public static boolean matches(String pattern, String topic) {
+        if (isPrefixPattern(pattern)) {
+            return topic.regionMatches(0, pattern, 0, pattern.length() - 1);
+        }
+        return pattern.equals(topic);
+    }
+
+    /**
+     * Check that a topic is valid to publish a message.
+     *
+     * @param topic The topic of a message.
+     * @throws IllegalArgumentException If the topic is empty or contains wildcards.
+     */
+    public static void checkTopic(String topic) {
+        if (topic == null || topic.isEmpty() || topic.indexOf(WILDCARD) >= 0) {
+            throw new IllegalArgumentException("Invalid topic: " + topic);
+        }
+    }
+
+    /**
+     * Check that a pattern is valid to subscribe.
+     *
+     * @param pattern The subscription pattern.
+     * @throws IllegalArgumentException If the pattern is empty or contains wildcards which are not
+     *                                  at the end.
+     */
+    public static void checkPattern(String pattern) {
+        int wildcard = pattern != null ? pattern.indexOf(WILDCARD) : -1;
+        if (pattern == null || pattern.isEmpty() || wildcard >= 0 && wildcard != pattern.length() - 1) {
+            throw new IllegalArgumentException("Invalid subscription pattern: " + pattern);
+        }
+    }
+
+}
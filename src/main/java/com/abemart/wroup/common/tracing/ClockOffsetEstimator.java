@@ -0,0 +1,73 @@
+package com.abemart.wroup.common.tracing;
+
+
+/**
+ * NTP style estimation of the offset between the local clock and the clock of the group owner.
+ * <p>
+ * Every exchange provides the four timestamps of NTP: the request sent (t0) and the response
+ * received (t3) in the local clock, and the request received (t1) and the response sent (t2) in
+ * the group owner clock. The offset of the sample is <code>((t1 - t0) + (t2 - t3)) / 2</code> and
+ * its error is bounded by half the round trip delay <code>(t3 - t0) - (t2 - t1)</code>, so the
+ * sample with the lowest delay of the last ones is used, as the NTP clock filter does.
+ */
+public class ClockOffsetEstimator {
+
+    private static final int SAMPLES = 8;
+
+    private final long[] offsets = new long[SAMPLES];
+    private final long[] delays = new long[SAMPLES];
+    private int samples;
+    private int next;
+
+    private volatile long offsetMicros;
+    private volatile long uncertaintyMicros;
+    private volatile boolean synchronizedClock;
+
+    public synchronized void addSample(long t0, long t1, long t2, long t3) {
+        long delay = Math.max(0, (t3 - t0) - (t2 - t1));
+        long offset = ((t1 - t0) + (t2 - t3)) / 2;
+
+        offsets[next] = offset;
+        delays[next] = delay;
+        next = (next + 1) % SAMPLES;
+        samples = Math.min(samples + 1, SAMPLES);
+
+        int best = 0;
+        for (int i = 1; i < samples; i++) {
+            if (delays[i] < delays[best]) {
+                best = i;
+            }
+        }
+
+        offsetMicros = offsets[best];
+        uncertaintyMicros = delays[best] / 2;
+        synchronizedClock = true;
+    }
+
+    /**
+     * @return the microseconds to add to the local clock to obtain the group owner clock.
+     */
+    public long getOffsetMicros() {
+        return offsetMicros;
+    }
+
+    public long getUncertaintyMicros() {
+        return uncertaintyMicros;
+    }
+
+    public boolean isSynchronized() {
+        return synchronizedClock;
+    }
+
+    /**
+     * Forget the samples, for example when the device leaves the group.
+     */
+    public synchronized void reset() {
+        samples = 0;
+        next = 0;
+        offsetMicros = 0;
+        uncertaintyMicros = 0;
+        synchronizedClock = false;
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.abemart.wroup.common.tracing;
+
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+/**
+ * Breakdown of the time spent by a traced message since <code>sendMessage</code> was called in the
+ * sender until the <code>DataReceivedListener</code> returned in the receiver. All the times are
+ * in microseconds.
+ * <p>
+ * The stages which cross devices (transmit and end to end) are computed with the clock offsets
+ * estimated against the group owner, so their error is bounded by {@link #getClockUncertaintyMicros()}.
+ */
+public class MessageTrace {
+
+    private final long traceId;
+    private final MessageWrapper messageWrapper;
+    private final long queueingMicros;
+    private final long connectMicros;
+    private final long serializationMicros;
+    private final long transmitMicros;
+    private final long decodeMicros;
+    private final long dispatchMicros;
+    private final long endToEndMicros;
+    private final long clockUncertaintyMicros;
+
+    MessageTrace(long traceId, MessageWrapper messageWrapper, long queueingMicros, long connectMicros,
+                 long serializationMicros, long transmitMicros, long decodeMicros, long dispatchMicros,
+                 long endToEndMicros, long clockUncertaintyMicros) {
+        this.traceId = traceId;
+        this.messageWrapper = messageWrapper;
+        this.queueingMicros = queueingMicros;
+        this.connectMicros = connectMicros;
+        this.serializationMicros = serializationMicros;
+        this.transmitMicros = transmitMicros;
+        this.decodeMicros = decodeMicros;
+        this.dispatchMicros = dispatchMicros;
+        this.endToEndMicros = endToEndMicros;
+        this.clockUncertaintyMicros = clockUncertaintyMicros;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return the message traced.
+     */
+    public MessageWrapper getMessageWrapper() {
+        return messageWrapper;
+    }
+
+    /**
+     * @return the time waiting in the sender executor.
+     */
+    public long getQueueingMicros() {
+        return queueingMicros;
+    }
+
+    /**
+     * @return the time establishing the connection with the receiver.
+     */
+    public long getConnectMicros() {
+        return connectMicros;
+    }
+
+    /**
+     * @return the time serializing the message in the sender.
+     */
+    public long getSerializationMicros() {
+        return serializationMicros;
+    }
+
+    /**
+     * @return the time since the message started to be written until it was completely read by
+     * the receiver.
+     */
+    public long getTransmitMicros() {
+        return transmitMicros;
+    }
+
+    /**
+     * @return the time decoding the message in the receiver.
+     */
+    public long getDecodeMicros() {
+        return decodeMicros;
+    }
+
+    /**
+     * @return the time handling the message in the receiver, including the listeners.
+     */
+    public long getDispatchMicros() {
+        return dispatchMicros;
+    }
+
+    public long getEndToEndMicros() {
+        return endToEndMicros;
+    }
+
+    /**
+     * @return the maximum error of the clock offsets of the sender and the receiver.
+     */
+    public long getClockUncertaintyMicros() {
+        return clockUncertaintyMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageTrace{" +
+                "traceId=" + traceId +
+                ", queueing=" + queueingMicros +
+                ", connect=" + connectMicros +
+                ", serialization=" + serializationMicros +
+                ", transmit=" + transmitMicros +
+                ", decode=" + decodeMicros +
+                ", dispatch=" + dispatchMicros +
+                ", endToEnd=" + endToEndMicros +
+                ", clockUncertainty=" + clockUncertaintyMicros +
+                '}';
+    }
+
+}
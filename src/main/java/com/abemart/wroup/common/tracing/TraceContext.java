@@ -0,0 +1,68 @@
+package com.abemart.wroup.common.tracing;
+
+
+/**
+ * Trace stamps carried by a traced {@link com.abemart.wroup.common.messages.MessageWrapper}. All
+ * the stamps are in microseconds of the group clock, which is the clock of the group owner.
+ */
+public class TraceContext {
+
+    private long traceId;
+    private long createdMicros;
+    private long dequeuedMicros;
+    private long connectedMicros;
+    private long serializedMicros;
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(long traceId) {
+        this.traceId = traceId;
+    }
+
+    /**
+     * @return when the message was passed to <code>sendMessage</code>.
+     */
+    public long getCreatedMicros() {
+        return createdMicros;
+    }
+
+    public void setCreatedMicros(long createdMicros) {
+        this.createdMicros = createdMicros;
+    }
+
+    /**
+     * @return when the message started to be sent in background.
+     */
+    public long getDequeuedMicros() {
+        return dequeuedMicros;
+    }
+
+    public void setDequeuedMicros(long dequeuedMicros) {
+        this.dequeuedMicros = dequeuedMicros;
+    }
+
+    /**
+     * @return when the connection with the receiver was established.
+     */
+    public long getConnectedMicros() {
+        return connectedMicros;
+    }
+
+    public void setConnectedMicros(long connectedMicros) {
+        this.connectedMicros = connectedMicros;
+    }
+
+    /**
+     * @return when the message was serialized and started to be written.
+     */
+    public long getSerializedMicros() {
+        return serializedMicros;
+    }
+
+    public void setSerializedMicros(long serializedMicros) {
+        this.serializedMicros = serializedMicros;
+    }
+
+}
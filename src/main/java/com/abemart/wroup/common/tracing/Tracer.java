@@ -0,0 +1,100 @@
+package com.abemart.wroup.common.tracing;
+
+
+import com.abemart.wroup.common.listeners.TracingListener;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.util.Random;
+
+/**
+ * Optional tracing of the messages sent and received by a device.
+ * <p>
+ * Tracing is enabled setting a {@link TracingListener}. While it's disabled the messages don't
+ * carry any {@link TraceContext} and the hot paths only read a volatile flag.
+ */
+public class Tracer {
+
+    private final long baseWallMicros = System.currentTimeMillis() * 1000;
+    private final long baseNanos = System.nanoTime();
+    private final Random random = new Random();
+    private final ClockOffsetEstimator clockOffsetEstimator = new ClockOffsetEstimator();
+    private final boolean groupOwner;
+
+    private volatile TracingListener tracingListener;
+
+    /**
+     * @param groupOwner True if this device is the group owner, whose clock is the group clock.
+     */
+    public Tracer(boolean groupOwner) {
+        this.groupOwner = groupOwner;
+    }
+
+    public boolean isEnabled() {
+        return tracingListener != null;
+    }
+
+    public void setTracingListener(TracingListener tracingListener) {
+        this.tracingListener = tracingListener;
+    }
+
+    public ClockOffsetEstimator getClockOffsetEstimator() {
+        return clockOffsetEstimator;
+    }
+
+    /**
+     * @return the local clock in microseconds. It's a wall clock which doesn't go backwards.
+     */
+    public long localMicros() {
+        return baseWallMicros + (System.nanoTime() - baseNanos) / 1000;
+    }
+
+    /**
+     * @return the group clock in microseconds, that is, the local clock corrected with the offset
+     * estimated against the group owner.
+     */
+    public long groupMicros() {
+        return localMicros() + clockOffsetEstimator.getOffsetMicros();
+    }
+
+    /**
+     * Create the context of a message which is going to be sent, or null if tracing is disabled.
+     */
+    public TraceContext newTraceContext() {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        TraceContext traceContext = new TraceContext();
+        traceContext.setTraceId(random.nextLong());
+        traceContext.setCreatedMicros(groupMicros());
+        return traceContext;
+    }
+
+    /**
+     * Notify the breakdown of a traced message received.
+     *
+     * @param messageWrapper  The message received, which carries the sender stamps.
+     * @param readMicros      When the message was completely read, in the group clock.
+     * @param decodedMicros   When the message was decoded, in the group clock.
+     * @param dispatchedMicros When the message was handled, in the group clock.
+     */
+    public void onMessageReceived(MessageWrapper messageWrapper, long readMicros, long decodedMicros, long dispatchedMicros) {
+        TracingListener listener = tracingListener;
+        TraceContext trace = messageWrapper.getTrace();
+        if (listener == null || trace == null) {
+            return;
+        }
+
+        long uncertainty = groupOwner ? 0 : clockOffsetEstimator.getUncertaintyMicros();
+        listener.onMessageTraced(new MessageTrace(trace.getTraceId(), messageWrapper,
+                trace.getDequeuedMicros() - trace.getCreatedMicros(),
+                trace.getConnectedMicros() - trace.getDequeuedMicros(),
+                trace.getSerializedMicros() - trace.getConnectedMicros(),
+                readMicros - trace.getSerializedMicros(),
+                decodedMicros - readMicros,
+                dispatchedMicros - decodedMicros,
+                dispatchedMicros - trace.getCreatedMicros(),
+                uncertainty));
+    }
+
+}
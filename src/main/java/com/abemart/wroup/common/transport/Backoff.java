@@ -0,0 +1,35 @@
+package com.abemart.wroup.common.transport;
+
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for the retries of the operations with a peer.
+ * <p>
+ * The delay doubles with every attempt up to a maximum, and a random half of it is subtracted, so
+ * the devices which fail at the same time, like all the clients of a group owner which is moving
+ * out of range, don't retry at the same time.
+ */
+final class Backoff {
+
+    private static final Random RANDOM = new Random();
+
+    private Backoff() {
+    }
+
+    /**
+     * @param attempt    The number of attempts failed before, starting at 0.
+     * @param baseMillis The delay of the first retry, before the jitter.
+     * @param maxMillis  The maximum delay, before the jitter.
+     * @return the delay before the next attempt, between half and all of the exponential delay.
+     */
+    static long delayMillis(int attempt, long baseMillis, long maxMillis) {
+        long delay = baseMillis << Math.min(attempt, 30);
+        if (delay <= 0 || delay > maxMillis) {
+            delay = maxMillis;
+        }
+        long half = delay / 2;
+        return half + (long) (RANDOM.nextDouble() * half);
+    }
+
+}
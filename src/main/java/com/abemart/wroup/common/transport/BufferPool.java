@@ -0,0 +1,107 @@
+package com.abemart.wroup.common.transport;
+
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of the buffers used to read the messages received.
+ * <p>
+ * The buffers have the same capacity, so most of the messages fit in one of them. Larger messages
+ * grow a buffer which isn't returned to the pool, so the memory retained by the pool never
+ * exceeds <code>bufferSize * maxPooledBuffers</code> bytes.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 4;
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final Queue<ByteBuffer> buffers;
+    private final AtomicLong allocations = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+    /**
+     * @param bufferSize       The capacity in bytes of the pooled buffers.
+     * @param maxPooledBuffers The maximum number of buffers kept in the pool.
+     */
+    public BufferPool(int bufferSize, int maxPooledBuffers) {
+        this(bufferSize, maxPooledBuffers, false);
+    }
+
+    /**
+     * @param bufferSize       The capacity in bytes of the pooled buffers.
+     * @param maxPooledBuffers The maximum number of buffers kept in the pool.
+     * @param direct           True to allocate direct buffers, which are written to the sockets
+     *                         without being copied first.
+     */
+    public BufferPool(int bufferSize, int maxPooledBuffers, boolean direct) {
+        if (bufferSize <= 0 || maxPooledBuffers <= 0) {
+            throw new IllegalArgumentException("The buffer size and the number of buffers must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+    /**
+     * Take an empty buffer from the pool, or allocate a new one if the pool is empty.
+     *
+     * @return an empty buffer ready to be written.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            buffer = allocate(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Replace a full buffer with one with twice its capacity and the same content. The full buffer
+     * is returned to the pool.
+     *
+     * @param buffer The full buffer, ready to be written.
+     * @return the new buffer, ready to continue being written.
+     */
+    public ByteBuffer grow(ByteBuffer buffer) {
+        allocations.incrementAndGet();
+        ByteBuffer grownBuffer = allocate(buffer.capacity() * 2);
+        buffer.flip();
+        grownBuffer.put(buffer);
+        release(buffer);
+        return grownBuffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffers grown and the ones which don't fit in the pool are
+     * discarded.
+     *
+     * @param buffer The buffer which is not going to be used anymore.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize) {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return the number of buffers allocated because the pool was empty or a message didn't fit.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.abemart.wroup.common.transport;
+
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of the UTF-8 text contained in a heap buffer, which decodes the bytes directly into the
+ * characters requested, without intermediate strings or buffers. It can be reset to read other
+ * buffer, so the same instance is reused for all the messages received by a device.
+ * <p>
+ * Malformed sequences are replaced with U+FFFD, as <code>new String(bytes)</code> does. This class
+ * isn't thread safe.
+ */
+public class ByteBufferReader extends Reader {
+
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+    private ByteBuffer buffer;
+    private char pendingLowSurrogate;
+
+    /**
+     * Start reading other buffer.
+     *
+     * @param buffer The heap buffer to read, from its position to its limit.
+     */
+    public void reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.pendingLowSurrogate = 0;
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        if (pendingLowSurrogate != 0) {
+            chars[offset + count++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+
+        byte[] array = buffer.array();
+        int position = buffer.arrayOffset() + buffer.position();
+        int limit = buffer.arrayOffset() + buffer.limit();
+
+        while (count < length && position < limit) {
+            int firstByte = array[position];
+            if (firstByte >= 0) {
+                chars[offset + count++] = (char) firstByte;
+                position++;
+                continue;
+            }
+
+            int continuationBytes;
+            int codePoint;
+            if ((firstByte & 0xe0) == 0xc0) {
+                continuationBytes = 1;
+                codePoint = firstByte & 0x1f;
+            } else if ((firstByte & 0xf0) == 0xe0) {
+                continuationBytes = 2;
+                codePoint = firstByte & 0x0f;
+            } else if ((firstByte & 0xf8) == 0xf0) {
+                continuationBytes = 3;
+                codePoint = firstByte & 0x07;
+            } else {
+                chars[offset + count++] = REPLACEMENT_CHARACTER;
+                position++;
+                continue;
+            }
+
+            if (position + continuationBytes >= limit) {
+                chars[offset + count++] = REPLACEMENT_CHARACTER;
+                position = limit;
+                continue;
+            }
+
+            boolean malformed = false;
+            for (int i = 1; i <= continuationBytes; i++) {
+                int continuationByte = array[position + i];
+                if ((continuationByte & 0xc0) != 0x80) {
+                    malformed = true;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (continuationByte & 0x3f);
+            }
+            if (malformed) {
+                chars[offset + count++] = REPLACEMENT_CHARACTER;
+                position++;
+                continue;
+            }
+            position += continuationBytes + 1;
+
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                // Character.highSurrogate and lowSurrogate are not available before API 19
+                int supplementaryBits = codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+                char lowSurrogate = (char) (Character.MIN_LOW_SURROGATE + (supplementaryBits & 0x3ff));
+                chars[offset + count++] = (char) (Character.MIN_HIGH_SURROGATE + (supplementaryBits >>> 10));
+                if (count < length) {
+                    chars[offset + count++] = lowSurrogate;
+                } else {
+                    pendingLowSurrogate = lowSurrogate;
+                }
+            } else {
+                chars[offset + count++] = (char) codePoint;
+            }
+        }
+
+        buffer.position(position - buffer.arrayOffset());
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.abemart.wroup.common.transport;
+
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Writer which encodes the characters written as UTF-8 directly into a buffer taken from a
+ * {@link BufferPool}, without intermediate strings or byte arrays. When the buffer is full it's
+ * replaced with a larger one, so the text written must be obtained with {@link #getBuffer()}.
+ * <p>
+ * Unpaired surrogates are encoded as '?', as <code>String.getBytes</code> does. This class isn't
+ * thread safe.
+ */
+public class ByteBufferWriter extends Writer {
+
+    private static final int MAX_BYTES_PER_CHARACTER = 4;
+
+    private final BufferPool bufferPool;
+
+    private ByteBuffer buffer;
+    private char pendingHighSurrogate;
+
+    /**
+     * @param bufferPool The pool of the buffers where the text is written.
+     */
+    public ByteBufferWriter(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire();
+    }
+
+    /**
+     * @return the buffer which contains the text written, ready to be written to a channel. It
+     * must be returned to the pool once it has been sent.
+     */
+    public ByteBuffer getBuffer() {
+        if (pendingHighSurrogate != 0) {
+            ensureRemaining();
+            buffer.put((byte) '?');
+            pendingHighSurrogate = 0;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void write(int character) {
+        writeChar((char) character);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            writeChar(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            writeChar(string.charAt(i));
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void writeChar(char character) {
+        ensureRemaining();
+
+        if (pendingHighSurrogate != 0) {
+            char highSurrogate = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(character)) {
+                int codePoint = Character.toCodePoint(highSurrogate, character);
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+                return;
+            }
+            buffer.put((byte) '?');
+            ensureRemaining();
+        }
+
+        if (character < 0x80) {
+            buffer.put((byte) character);
+        } else if (character < 0x800) {
+            buffer.put((byte) (0xc0 | (character >> 6)));
+            buffer.put((byte) (0x80 | (character & 0x3f)));
+        } else if (Character.isHighSurrogate(character)) {
+            pendingHighSurrogate = character;
+        } else if (Character.isLowSurrogate(character)) {
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xe0 | (character >> 12)));
+            buffer.put((byte) (0x80 | ((character >> 6) & 0x3f)));
+            buffer.put((byte) (0x80 | (character & 0x3f)));
+        }
+    }
+
+    private void ensureRemaining() {
+        if (buffer.remaining() < MAX_BYTES_PER_CHARACTER) {
+            buffer = bufferPool.grow(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message prepared to be sent to one or more devices.
+ * <p>
+ * The header is encoded by the first send, in a background thread, into a buffer of the pool of
+ * the {@link MessageSender}, and the rest of the sends reuse it. The buffer is returned to the pool
+ * when the message has been released once per recipient.
+ */
+public class EncodedMessage {
+
+    private final BufferPool bufferPool;
+    private final MessageWrapper message;
+    private final AtomicInteger pendingRecipients;
+
+    private ByteBuffer header;
+
+    EncodedMessage(BufferPool bufferPool, MessageWrapper message, int recipients) {
+        this.bufferPool = bufferPool;
+        this.message = message;
+        this.pendingRecipients = new AtomicInteger(recipients);
+    }
+
+    public MessageWrapper getMessage() {
+        return message;
+    }
+
+    /**
+     * @return a view of the encoded header, which is encoded the first time it's requested.
+     */
+    synchronized ByteBuffer getHeader() throws IOException {
+        if (header == null) {
+            ByteBufferWriter writer = new ByteBufferWriter(bufferPool);
+            MessageCodec.encodeMessage(message, writer);
+            header = writer.getBuffer();
+        }
+        return header.duplicate();
+    }
+
+    /**
+     * @return a view of the payload of the message, or null if it hasn't payload.
+     */
+    ByteBuffer getPayload() {
+        ByteBuffer payload = message.getPayload();
+        return payload != null ? payload.duplicate() : null;
+    }
+
+    /**
+     * Notify that the message has been sent, or discarded, for one of its recipients.
+     */
+    public void release() {
+        if (pendingRecipients.decrementAndGet() == 0) {
+            synchronized (this) {
+                if (header != null) {
+                    bufferPool.release(header);
+                    header = null;
+                }
+            }
+        }
+    }
+
+}
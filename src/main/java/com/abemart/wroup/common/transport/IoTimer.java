@@ -0,0 +1,118 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.logging.WroupLog;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timer of the senders: it runs the retries delayed by a backoff and enforces the timeouts of the
+ * writes in the socket channels, which don't have their own timeout in blocking mode.
+ * <p>
+ * Every write registers the deadline of its channel, and a check every
+ * {@link #CHECK_INTERVAL_MILLIS}, scheduled only while there are writes in progress, closes the
+ * channels whose deadline has passed, so the write blocked fails. The thread of the timer finishes
+ * when it's idle.
+ */
+final class IoTimer {
+
+    private static final String TAG = IoTimer.class.getSimpleName();
+
+    static final long CHECK_INTERVAL_MILLIS = 100;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ConcurrentHashMap<SocketChannel, Long> deadlines = new ConcurrentHashMap<>();
+    private final AtomicBoolean checkScheduled = new AtomicBoolean();
+
+    IoTimer() {
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wroup-io-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setKeepAliveTime(1, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a task after a delay.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException If the task can't be scheduled.
+     */
+    void schedule(Runnable task, long delayMillis) {
+        scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write some buffers completely in a channel in blocking mode, closing the channel if it takes
+     * longer than the timeout.
+     *
+     * @return the number of bytes written, which is <code>bytes</code>.
+     * @throws SocketTimeoutException If the timeout has expired. The channel is closed.
+     * @throws IOException            If the write fails.
+     */
+    long write(SocketChannel channel, ByteBuffer[] buffers, int offset, int length, long bytes, long timeoutNanos) throws IOException {
+        deadlines.put(channel, System.nanoTime() + timeoutNanos);
+        scheduleCheck();
+
+        long written = 0;
+        try {
+            while (written < bytes) {
+                written += channel.write(buffers, offset, length);
+            }
+        } catch (IOException e) {
+            if (deadlines.remove(channel) == null) {
+                // The deadline has been removed by the check which has closed the channel
+                SocketTimeoutException timeoutException = new SocketTimeoutException("Write timed out after "
+                        + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+                timeoutException.initCause(e);
+                throw timeoutException;
+            }
+            throw e;
+        }
+        deadlines.remove(channel);
+        return written;
+    }
+
+    private void scheduleCheck() {
+        if (checkScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            }, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (Map.Entry<SocketChannel, Long> entry : deadlines.entrySet()) {
+            if (now - entry.getValue() >= 0 && deadlines.remove(entry.getKey(), entry.getValue())) {
+                try {
+                    entry.getKey().close();
+                } catch (IOException e) {
+                    WroupLog.e(TAG, "Error closing a channel timed out: {}", e.getMessage());
+                }
+            }
+        }
+
+        checkScheduled.set(false);
+        if (!deadlines.isEmpty()) {
+            scheduleCheck();
+        }
+    }
+
+}
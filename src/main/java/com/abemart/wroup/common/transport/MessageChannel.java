@@ -0,0 +1,86 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+/**
+ * Logical channels multiplexed over the link with every peer.
+ * <p>
+ * The messages are written in chunks, and before every chunk the link chooses the channel to
+ * serve: the channels with the lowest priority value always go first, and the channels with the
+ * same priority share the link in proportion to their weight. Because of that the control
+ * messages are never delayed by the data messages, and a small message is delayed at most by one
+ * chunk of a large one.
+ */
+public enum MessageChannel {
+
+    /**
+     * Group management messages: registrations, disconnections, subscriptions, route
+     * advertisements and clock sync.
+     */
+    CONTROL(0, 1),
+
+    /**
+     * Small data messages and remote calls, which fit in one chunk.
+     */
+    INTERACTIVE(1, 8),
+
+    /**
+     * Large data messages, like file transfers.
+     */
+    BULK(1, 1);
+
+    private final int priority;
+    private final int weight;
+
+    MessageChannel(int priority, int weight) {
+        this.priority = priority;
+        this.weight = weight;
+    }
+
+    /**
+     * @return the priority of the channel, lower values are served first.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the weight of the channel among the channels with the same priority.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Choose the channel of a message. The channel set in the message is used if there is one,
+     * otherwise it depends on the type and the size of the message.
+     *
+     * @param message   The message to be sent.
+     * @param frameSize The size of the message frame in bytes.
+     * @return the channel of the message.
+     */
+    static MessageChannel forMessage(MessageWrapper message, long frameSize) {
+        if (message.getChannel() != null) {
+            return message.getChannel();
+        }
+        if (message.getMessageType() == null) {
+            return CONTROL;
+        }
+        switch (message.getMessageType()) {
+            case NORMAL:
+            case RPC_REQUEST:
+            case RPC_RESPONSE:
+            case ROUTED:
+            case STATE_DELTA:
+            case STATE_SYNC:
+                return frameSize > MessageFrame.CHUNK_SIZE ? BULK : INTERACTIVE;
+            case HISTORY:
+                // The catch-up of a client which joins never delays the messages of the group
+                return BULK;
+            default:
+                return CONTROL;
+        }
+    }
+
+}
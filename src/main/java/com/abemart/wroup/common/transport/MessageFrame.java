@@ -0,0 +1,95 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.tracing.TraceContext;
+import com.abemart.wroup.common.tracing.Tracer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Layout of the messages written in the connections between the devices of the group:
+ * <pre>
+ * version      1 byte
+ * headerLength 4 bytes, big endian
+ * traceLength  4 bytes, big endian, 0 if the message isn't traced
+ * header       the {@link com.abemart.wroup.common.messages.MessageWrapper} as UTF-8 JSON
+ * trace        the {@link com.abemart.wroup.common.tracing.TraceContext} as UTF-8 JSON
+ * payload      the binary payload of the message until the end of the stream
+ * </pre>
+ * The sections are written with a gathering write, so the header shared by all the recipients of
+ * a broadcast and the payload of the caller are never copied into a single buffer.
+ * <p>
+ * Messages which start with '{' are plain JSON messages without payload, as they were sent before
+ * the frames were introduced, and they are still accepted by the receivers.
+ * <p>
+ * The connections which start with {@link #LINK_VERSION} are persistent links which carry many
+ * messages. Every message frame is split in chunks, and the chunks of the messages of different
+ * {@link MessageChannel}s are interleaved:
+ * <pre>
+ * version      1 byte, {@link #LINK_VERSION}
+ * flags        1 byte, {@link #FIRST_CHUNK} and {@link #LAST_CHUNK}
+ * channel      1 byte, the ordinal of the {@link MessageChannel}
+ * messageId    4 bytes, big endian, unique in the link
+ * chunkLength  4 bytes, big endian
+ * chunk        the next bytes of the message frame
+ * </pre>
+ */
+final class MessageFrame {
+
+    static final byte VERSION = 1;
+    static final int PREFIX_SIZE = 9;
+
+    static final byte LINK_VERSION = 2;
+    static final int CHUNK_HEADER_SIZE = 11;
+    static final int CHUNK_SIZE = 16 * 1024;
+    static final int FIRST_CHUNK = 1;
+    static final int LAST_CHUNK = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private MessageFrame() {
+    }
+
+    /**
+     * Build the frame of a message, with the current time of the tracer as the end of the
+     * serialization if the message is traced.
+     *
+     * @return the sections of the frame, ready to be written with a gathering write.
+     */
+    static ByteBuffer[] build(EncodedMessage encodedMessage, TraceContext trace, Tracer tracer) throws IOException {
+        ByteBuffer header = encodedMessage.getHeader();
+        ByteBuffer traceBuffer = EMPTY_BUFFER;
+        if (trace != null) {
+            trace.setSerializedMicros(tracer.groupMicros());
+            traceBuffer = ByteBuffer.wrap(MessageCodec.GSON.toJson(trace).getBytes(UTF_8));
+        }
+        ByteBuffer payload = encodedMessage.getPayload();
+        if (payload == null) {
+            payload = EMPTY_BUFFER;
+        }
+
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+        prefix.put(VERSION);
+        prefix.putInt(header.remaining());
+        prefix.putInt(traceBuffer.remaining());
+        prefix.flip();
+
+        return new ByteBuffer[]{prefix, header, traceBuffer, payload};
+    }
+
+    /**
+     * @return the bytes remaining to be written of the frame.
+     */
+    static long remaining(ByteBuffer[] frame) {
+        long remaining = 0;
+        for (ByteBuffer buffer : frame) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of the messages received in the connections accepted by a device.
+ * <p>
+ * The bytes of the message are read into a buffer taken from a {@link BufferPool} and decoded
+ * directly from it, so receiving a message only allocates the decoded message itself. This class
+ * isn't thread safe, every accept loop uses its own instance.
+ */
+public class MessageReader {
+
+    /**
+     * Size of the largest message read by default, so a peer can't make the device allocate
+     * buffers without limit.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+    private final BufferPool bufferPool;
+    private final ByteBufferReader byteBufferReader = new ByteBufferReader();
+
+    private int maxMessageBytes = DEFAULT_MAX_MESSAGE_BYTES;
+    private int bytesRead;
+
+    public MessageReader() {
+        this(new BufferPool());
+    }
+
+    /**
+     * @param bufferPool The pool of the buffers where the messages are read.
+     */
+    public MessageReader(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Set the size of the largest message read. The larger ones fail with an {@link IOException}.
+     *
+     * @param maxMessageBytes The maximum size in bytes of a message, including its payload.
+     */
+    public void setMaxMessageBytes(int maxMessageBytes) {
+        if (maxMessageBytes <= 0) {
+            throw new IllegalArgumentException("The maximum size of the messages must be positive");
+        }
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * @return the size in bytes of the largest message read.
+     */
+    public int getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    /**
+     * Read a message until the end of the stream and decode it.
+     *
+     * @param inputStream The stream of the connection which contains the message.
+     * @return the message decoded.
+     * @throws IOException If the stream cannot be read or it doesn't contain a valid message.
+     */
+    public MessageWrapper read(InputStream inputStream) throws IOException {
+        ByteBuffer buffer = readBuffer(inputStream);
+        try {
+            return decode(buffer);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Read the bytes of a message until the end of the stream into a pooled buffer. The buffer must
+     * be released once the message has been decoded.
+     *
+     * @param inputStream The stream of the connection which contains the message.
+     * @return the buffer with the bytes of the message, ready to be read.
+     * @throws IOException If the stream cannot be read or the message is larger than the maximum.
+     */
+    public ByteBuffer readBuffer(InputStream inputStream) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            int read;
+            while ((read = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())) != -1) {
+                buffer.position(buffer.position() + read);
+                if (buffer.position() > maxMessageBytes) {
+                    throw new IOException("The message exceeds " + maxMessageBytes + " bytes");
+                }
+                if (!buffer.hasRemaining()) {
+                    buffer = bufferPool.grow(buffer);
+                }
+            }
+        } catch (IOException e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+
+        buffer.flip();
+        bytesRead = buffer.remaining();
+        return buffer;
+    }
+
+    /**
+     * Decode the message contained in a buffer, either a {@link MessageFrame} or a plain JSON
+     * message.
+     *
+     * @param buffer The buffer with the bytes of the message, ready to be read.
+     * @return the message decoded.
+     * @throws IOException If the buffer doesn't contain a valid message.
+     */
+    public MessageWrapper decode(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining() || buffer.get(buffer.position()) != MessageFrame.VERSION) {
+            // Plain JSON message
+            return decodeJson(buffer);
+        }
+
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (limit - start < MessageFrame.PREFIX_SIZE) {
+            throw new IOException("Truncated message frame");
+        }
+        int headerLength = buffer.getInt(start + 1);
+        int traceLength = buffer.getInt(start + 5);
+        int headerStart = start + MessageFrame.PREFIX_SIZE;
+        if (headerLength < 0 || traceLength < 0 || headerLength > limit - headerStart - traceLength) {
+            throw new IOException("Malformed message frame");
+        }
+        int traceStart = headerStart + headerLength;
+        int payloadStart = traceStart + traceLength;
+
+        buffer.limit(traceStart);
+        buffer.position(headerStart);
+        MessageWrapper messageWrapper = decodeJson(buffer);
+
+        if (traceLength > 0) {
+            buffer.limit(payloadStart);
+            buffer.position(traceStart);
+            byteBufferReader.reset(buffer);
+            try {
+                messageWrapper.setTrace(MessageCodec.decodeTrace(byteBufferReader));
+            } finally {
+                byteBufferReader.close();
+            }
+        }
+
+        buffer.limit(limit);
+        buffer.position(payloadStart);
+        if (buffer.hasRemaining()) {
+            // The buffer returns to the pool, so the payload is copied
+            ByteBuffer payload = ByteBuffer.allocate(buffer.remaining());
+            payload.put(buffer);
+            payload.flip();
+            messageWrapper.setPayload(payload);
+        }
+        return messageWrapper;
+    }
+
+    private MessageWrapper decodeJson(ByteBuffer buffer) throws IOException {
+        byteBufferReader.reset(buffer);
+        try {
+            return MessageCodec.decodeMessage(byteBufferReader);
+        } finally {
+            byteBufferReader.close();
+        }
+    }
+
+    /**
+     * Return the buffer of a message to the pool.
+     *
+     * @param buffer The buffer returned by {@link #readBuffer(InputStream)}.
+     */
+    public void release(ByteBuffer buffer) {
+        bufferPool.release(buffer);
+    }
+
+    /**
+     * @return the size in bytes of the last message read.
+     */
+    public int getBytesRead() {
+        return bytesRead;
+    }
+
+}
@@ -0,0 +1,522 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.listeners.MessageReceivedListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.metrics.WroupMetrics;
+import com.abemart.wroup.common.throttling.RateLimiter;
+import com.abemart.wroup.common.tracing.Tracer;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accept loop of the server socket of a device of the group.
+ * <p>
+ * The connections which contain one message are read until the end of the stream into a pooled
+ * buffer, decoded directly from it and passed to the {@link MessageReceivedListener}. The
+ * persistent links opened by the {@link PeerLink}s of the peers are read in their own thread,
+ * which reassembles the chunks of every message. The loop finishes when the server socket is
+ * closed.
+ * <p>
+ * The memory and the threads which a peer can take are bounded: the messages larger than
+ * {@link #setMaxMessageBytes(int)} fail, a link which interleaves more than
+ * {@link #MAX_PARTIAL_MESSAGES} messages at once is closed, and the links beyond
+ * {@link #setMaxLinks(int)} are refused.
+ * <p>
+ * If a {@link RateLimiter} is set, the data messages of every peer are limited to its rate before
+ * they are reassembled or decoded: the thread of a link waits before reading the first chunk of a
+ * message which exceeds it, so the peer is slowed down by the flow control of TCP without delaying
+ * the other links, and the messages which exceed it in their own connection are discarded without
+ * decoding them, since waiting would block the accept loop. The channel of the chunks tells the
+ * control messages of the links, which are never limited, but the channel of a message in its own
+ * connection isn't known until it's decoded, so those are limited by the address of the peer
+ * whatever their type.
+ * <p>
+ * If a {@link PeerDirectory} is set, a message which carries the id of a sender which isn't in it
+ * yet is kept until the id arrives, since the peers send their messages directly to each other
+ * and they may arrive before the group owner announces the sender. The messages kept are
+ * delivered in order after the message which adds the id, and discarded if it doesn't arrive in
+ * {@link #UNRESOLVED_TIMEOUT_MILLIS}, so a message is never delivered without its sender.
+ */
+public class MessageReceiver {
+
+    private static final String TAG = MessageReceiver.class.getSimpleName();
+
+    /**
+     * Time after which an idle link is closed.
+     */
+    static final int LINK_IDLE_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Time to wait for the data of a connection which contains one message, so a peer which
+     * disappears while sending doesn't block the accept loop.
+     */
+    static final int MESSAGE_READ_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Messages being reassembled at once in a link. The senders interleave one message of every
+     * {@link MessageChannel}, the rest of the room is for the messages restarted.
+     */
+    static final int MAX_PARTIAL_MESSAGES = 2 * MessageChannel.values().length;
+
+    /**
+     * Links read at once by default, every one in its own thread.
+     */
+    public static final int DEFAULT_MAX_LINKS = 256;
+
+    /**
+     * Messages from unknown senders kept at once. The oldest one is discarded to keep a new one.
+     */
+    static final int MAX_UNRESOLVED_MESSAGES = 256;
+
+    /**
+     * Time to wait for the id of the sender of a message.
+     */
+    static final long UNRESOLVED_TIMEOUT_MILLIS = 5000;
+
+    private static final MessageChannel[] CHANNELS = MessageChannel.values();
+
+    private final ServerSocket serverSocket;
+    private final MessageReceivedListener messageReceivedListener;
+    private final WroupMetrics metrics;
+    private final Tracer tracer;
+    private final BufferPool bufferPool = new BufferPool();
+    private final MessageReader messageReader = new MessageReader(bufferPool);
+    private final Object dispatchLock = new Object();
+    private final ArrayDeque<Unresolved> unresolvedMessages = new ArrayDeque<>();
+    private final Set<Socket> linkSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final ThreadPoolExecutor linkExecutor = new ThreadPoolExecutor(0, DEFAULT_MAX_LINKS, LINK_IDLE_TIMEOUT_MILLIS,
+            TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "wroup-link");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile int maxMessageBytes = MessageReader.DEFAULT_MAX_MESSAGE_BYTES;
+    private volatile RateLimiter rateLimiter;
+    private volatile PeerDirectory peerDirectory;
+
+    public MessageReceiver(ServerSocket serverSocket, MessageReceivedListener messageReceivedListener) {
+        this(serverSocket, messageReceivedListener, new WroupMetrics(), new Tracer(false));
+    }
+
+    /**
+     * @param serverSocket            The server socket which accepts the connections.
+     * @param messageReceivedListener The listener to notify the messages received. The messages
+     *                                are notified one at a time, even if they come from different
+     *                                links.
+     * @param metrics                 The metrics updated with the messages received.
+     * @param tracer                  The tracer notified with the traced messages received.
+     */
+    public MessageReceiver(ServerSocket serverSocket, MessageReceivedListener messageReceivedListener, WroupMetrics metrics, Tracer tracer) {
+        this.serverSocket = serverSocket;
+        this.messageReceivedListener = messageReceivedListener;
+        this.metrics = metrics;
+        this.tracer = tracer;
+    }
+
+    /**
+     * Limit the rate of the data messages received from every peer. The control messages sent
+     * through the links, like registrations and disconnections, are never limited.
+     *
+     * @param rateLimiter The limiter of the messages per second of every peer, or null to remove
+     *                    the limit.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Resolve the senders of the messages which carry only their id with the devices of a
+     * directory. The messages with an id which isn't in the directory are kept until it is.
+     *
+     * @param peerDirectory The ids of the devices of the group, or null if the messages carry
+     *                      their senders.
+     */
+    public void setPeerDirectory(PeerDirectory peerDirectory) {
+        this.peerDirectory = peerDirectory;
+    }
+
+    /**
+     * Set the size of the largest message received. The connections and the links which carry a
+     * larger one are closed.
+     *
+     * @param maxMessageBytes The maximum size in bytes of a message, including its payload.
+     */
+    public void setMaxMessageBytes(int maxMessageBytes) {
+        messageReader.setMaxMessageBytes(maxMessageBytes);
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * Set the number of links read at once. The links opened beyond it are closed, and their peers
+     * send the messages again in a new one.
+     *
+     * @param maxLinks The maximum number of links, {@link #DEFAULT_MAX_LINKS} by default.
+     */
+    public void setMaxLinks(int maxLinks) {
+        if (maxLinks <= 0) {
+            throw new IllegalArgumentException("The maximum number of links must be positive");
+        }
+        linkExecutor.setMaximumPoolSize(maxLinks);
+    }
+
+    /**
+     * Accept connections until the server socket is closed. This method blocks, so it must be
+     * called from a background thread. The links still open are closed when it finishes.
+     *
+     * @throws IOException If the server socket is closed or fails accepting connections.
+     */
+    public void receive() throws IOException {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                metrics.onConnectionAccepted();
+
+                long dispatchStartNanos = -1;
+                boolean link = false;
+                try {
+                    socket.setSoTimeout(MESSAGE_READ_TIMEOUT_MILLIS);
+                    PushbackInputStream inputStream = new PushbackInputStream(socket.getInputStream());
+                    int version = inputStream.read();
+                    if (version == MessageFrame.LINK_VERSION) {
+                        inputStream.unread(version);
+                        startLinkReader(socket, inputStream);
+                        link = true;
+                        continue;
+                    }
+                    if (version != -1) {
+                        inputStream.unread(version);
+                    }
+
+                    ByteBuffer buffer = messageReader.readBuffer(inputStream);
+                    if (!admitConnection(socket.getInetAddress(), buffer.remaining())) {
+                        messageReader.release(buffer);
+                        continue;
+                    }
+                    dispatchStartNanos = dispatch(messageReader, buffer, socket.getInetAddress(), null);
+                } catch (IOException e) {
+                    // The connection has failed, not the server socket, so the loop goes on
+                    WroupLog.e(TAG, "Error reading a message from {}: {}", socket.getInetAddress().getHostAddress(), e.getMessage());
+                } finally {
+                    if (!link) {
+                        IOUtils.closeQuietly(socket);
+                    }
+                    metrics.onConnectionHandled(dispatchStartNanos);
+                }
+            }
+        } finally {
+            linkExecutor.shutdown();
+            for (Socket linkSocket : linkSockets) {
+                IOUtils.closeQuietly(linkSocket);
+            }
+        }
+    }
+
+    /**
+     * Decode a message, release its buffer and notify it to the listener.
+     *
+     * @param link The link which the message has been read from, which learns its peer from it, or
+     *             null if it came in its own connection.
+     * @return the value of <code>System.nanoTime()</code> when the message started to be
+     * dispatched, or -1 if it has been kept because its sender is unknown.
+     */
+    private long dispatch(MessageReader reader, ByteBuffer buffer, InetAddress address, Link link) throws IOException {
+        int bytesRead = buffer.remaining();
+        boolean tracing = tracer.isEnabled();
+        long readMicros = tracing ? tracer.groupMicros() : 0;
+
+        MessageWrapper messageWrapper;
+        try {
+            messageWrapper = reader.decode(buffer);
+        } finally {
+            reader.release(buffer);
+        }
+
+        // The content is only logged as its length, and only the messages sampled are logged
+        if (WroupLog.isSampled(WroupLog.DEBUG)) {
+            WroupLog.d(TAG, "Received {} ({} bytes) from IP: {}, content {}", messageWrapper.getMessageType(), bytesRead,
+                    address.getHostAddress(), WroupLog.payload(messageWrapper.getMessage()));
+        }
+        PeerDirectory actualPeerDirectory = peerDirectory;
+        if (actualPeerDirectory != null && !actualPeerDirectory.resolveSender(messageWrapper)) {
+            synchronized (dispatchLock) {
+                // The id is added by a message dispatched under the lock, so it may have arrived meanwhile
+                if (!actualPeerDirectory.resolveSender(messageWrapper)) {
+                    metrics.onMessageReceived(address.getHostAddress(), bytesRead);
+                    keepUnresolved(messageWrapper, address);
+                    return -1;
+                }
+            }
+        }
+        String peer = getPeer(messageWrapper, address);
+        metrics.onMessageReceived(peer, bytesRead);
+        if (link != null && link.peer == null && messageWrapper.getWroupDevice() != null) {
+            link.peer = messageWrapper.getWroupDevice().getDeviceMac();
+        }
+
+        long dispatchStartNanos = System.nanoTime();
+        long decodedMicros = tracing ? tracer.groupMicros() : 0;
+        synchronized (dispatchLock) {
+            messageReceivedListener.onMessageReceived(messageWrapper, address);
+            if (!unresolvedMessages.isEmpty()) {
+                dispatchResolved(actualPeerDirectory);
+            }
+        }
+
+        if (tracing && messageWrapper.getTrace() != null) {
+            tracer.onMessageReceived(messageWrapper, readMicros, decodedMicros, tracer.groupMicros());
+        }
+        return dispatchStartNanos;
+    }
+
+    /**
+     * Keep a message whose sender is unknown until its id arrives. Called under the dispatch lock.
+     */
+    private void keepUnresolved(MessageWrapper messageWrapper, InetAddress address) {
+        if (unresolvedMessages.size() >= MAX_UNRESOLVED_MESSAGES) {
+            Unresolved oldest = unresolvedMessages.removeFirst();
+            WroupLog.w(TAG, "Discarded {} from the unknown peer {} at {}", oldest.message.getMessageType(),
+                    oldest.message.getSenderId(), oldest.address.getHostAddress());
+        }
+        unresolvedMessages.addLast(new Unresolved(messageWrapper, address, System.nanoTime()));
+    }
+
+    /**
+     * Dispatch in order the messages kept whose sender is known now, and discard the ones which
+     * have waited too long. Called under the dispatch lock.
+     */
+    private void dispatchResolved(PeerDirectory peerDirectory) {
+        long expiredNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(UNRESOLVED_TIMEOUT_MILLIS);
+        Iterator<Unresolved> iterator = unresolvedMessages.iterator();
+        while (iterator.hasNext()) {
+            Unresolved unresolved = iterator.next();
+            if (peerDirectory != null && peerDirectory.resolveSender(unresolved.message)) {
+                iterator.remove();
+                messageReceivedListener.onMessageReceived(unresolved.message, unresolved.address);
+            } else if (unresolved.keptNanos - expiredNanos < 0) {
+                iterator.remove();
+                WroupLog.w(TAG, "Discarded {} from the unknown peer {} at {}", unresolved.message.getMessageType(),
+                        unresolved.message.getSenderId(), unresolved.address.getHostAddress());
+            }
+        }
+    }
+
+    /**
+     * Apply the rate limit of the address of a connection which contains one message, before
+     * decoding it.
+     *
+     * @return true if the message has to be dispatched, false if it has to be discarded.
+     */
+    private boolean admitConnection(InetAddress address, int bytesRead) {
+        RateLimiter actualRateLimiter = rateLimiter;
+        if (actualRateLimiter == null || !actualRateLimiter.isEnabled()) {
+            return true;
+        }
+
+        String peer = address.getHostAddress();
+        if (actualRateLimiter.tryAcquire(peer, 1)) {
+            return true;
+        }
+        metrics.onMessageReceived(peer, bytesRead);
+        metrics.onMessageThrottled(peer);
+        WroupLog.w(TAG, "Discarded a message of {} bytes from {}, it exceeds its rate", bytesRead, peer);
+        return false;
+    }
+
+    /**
+     * Apply the rate limit of the peer of a link to a message from the channel of its first chunk,
+     * waiting before reading it if the peer has exceeded its rate.
+     */
+    private void admitLinkMessage(Link link, MessageChannel channel) {
+        RateLimiter actualRateLimiter = rateLimiter;
+        if (actualRateLimiter == null || !actualRateLimiter.isEnabled() || channel == MessageChannel.CONTROL) {
+            return;
+        }
+
+        String peer = link.peer != null ? link.peer : link.socket.getInetAddress().getHostAddress();
+        long waitNanos = actualRateLimiter.reserve(peer, 1);
+        if (waitNanos > 0) {
+            metrics.onMessageThrottled(peer);
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void startLinkReader(final Socket socket, final InputStream inputStream) throws IOException {
+        socket.setSoTimeout(LINK_IDLE_TIMEOUT_MILLIS);
+        linkSockets.add(socket);
+
+        try {
+            linkExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Thread.currentThread().setName("wroup-link-" + socket.getInetAddress().getHostAddress());
+                    try {
+                        readLink(socket, inputStream);
+                    } catch (IOException e) {
+                        WroupLog.d(TAG, "Link with {} closed: {}", socket.getInetAddress().getHostAddress(), e.getMessage());
+                    } finally {
+                        linkSockets.remove(socket);
+                        IOUtils.closeQuietly(socket);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            linkSockets.remove(socket);
+            IOUtils.closeQuietly(socket);
+            WroupLog.w(TAG, "Refused a link with {}, there are {} links open", socket.getInetAddress().getHostAddress(),
+                    linkExecutor.getActiveCount());
+        }
+    }
+
+    /**
+     * Read the chunks of a link until it's closed, and dispatch every message when its last chunk
+     * arrives.
+     *
+     * @throws IOException If the link fails, or the peer sends a message larger than the maximum or
+     *                     too many messages at once.
+     */
+    private void readLink(Socket socket, InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+        MessageReader linkReader = new MessageReader(bufferPool);
+        Link link = new Link(socket);
+        int maxBytes = maxMessageBytes;
+        Map<Integer, ByteBuffer> partialMessages = new HashMap<>();
+        try {
+            while (true) {
+                int version;
+                try {
+                    version = dataInputStream.readUnsignedByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (version != MessageFrame.LINK_VERSION) {
+                    throw new IOException("Unknown link version " + version);
+                }
+                int flags = dataInputStream.readUnsignedByte();
+                int channel = dataInputStream.readUnsignedByte();
+                int messageId = dataInputStream.readInt();
+                int chunkLength = dataInputStream.readInt();
+                if (chunkLength < 0 || chunkLength > MessageFrame.CHUNK_SIZE || channel >= CHANNELS.length) {
+                    throw new IOException("Malformed chunk of " + chunkLength + " bytes in channel " + channel);
+                }
+
+                ByteBuffer buffer;
+                if ((flags & MessageFrame.FIRST_CHUNK) != 0) {
+                    if (!partialMessages.containsKey(messageId) && partialMessages.size() >= MAX_PARTIAL_MESSAGES) {
+                        throw new IOException("More than " + MAX_PARTIAL_MESSAGES + " messages at once");
+                    }
+                    admitLinkMessage(link, CHANNELS[channel]);
+                    buffer = bufferPool.acquire();
+                    ByteBuffer previous = partialMessages.put(messageId, buffer);
+                    if (previous != null) {
+                        bufferPool.release(previous);
+                    }
+                } else {
+                    buffer = partialMessages.get(messageId);
+                    if (buffer == null) {
+                        throw new IOException("Chunk of unknown message " + messageId);
+                    }
+                }
+
+                if (buffer.position() + chunkLength > maxBytes) {
+                    throw new IOException("Message " + messageId + " exceeds " + maxBytes + " bytes");
+                }
+                while (buffer.remaining() < chunkLength) {
+                    buffer = bufferPool.grow(buffer);
+                    partialMessages.put(messageId, buffer);
+                }
+                dataInputStream.readFully(buffer.array(), buffer.arrayOffset() + buffer.position(), chunkLength);
+                buffer.position(buffer.position() + chunkLength);
+
+                if ((flags & MessageFrame.LAST_CHUNK) != 0) {
+                    partialMessages.remove(messageId);
+                    buffer.flip();
+
+                    long dispatchStartNanos = -1;
+                    try {
+                        dispatchStartNanos = dispatch(linkReader, buffer, socket.getInetAddress(), link);
+                    } catch (IOException e) {
+                        WroupLog.e(TAG, "Error decoding a message from {}: {}", socket.getInetAddress().getHostAddress(), e.getMessage());
+                    } finally {
+                        metrics.onLinkMessageHandled(dispatchStartNanos);
+                    }
+                }
+            }
+        } finally {
+            for (ByteBuffer buffer : partialMessages.values()) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    private static String getPeer(MessageWrapper messageWrapper, InetAddress address) {
+        if (messageWrapper.getWroupDevice() != null && messageWrapper.getWroupDevice().getDeviceMac() != null) {
+            return messageWrapper.getWroupDevice().getDeviceMac();
+        }
+        return address.getHostAddress();
+    }
+
+    /**
+     * A message kept until the id of its sender arrives.
+     */
+    private static class Unresolved {
+
+        final MessageWrapper message;
+        final InetAddress address;
+        final long keptNanos;
+
+        Unresolved(MessageWrapper message, InetAddress address, long keptNanos) {
+            this.message = message;
+            this.address = address;
+            this.keptNanos = keptNanos;
+        }
+
+    }
+
+    /**
+     * A link being read, and its peer. The links are opened by the {@link PeerLink} of a peer, so
+     * the peer is learned from the first message which carries its sender.
+     */
+    private static class Link {
+
+        private final Socket socket;
+        private String peer;
+
+        Link(Socket socket) {
+            this.socket = socket;
+        }
+
+    }
+
+}
@@ -0,0 +1,412 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.metrics.WroupMetrics;
+import com.abemart.wroup.common.tracing.TraceContext;
+import com.abemart.wroup.common.tracing.Tracer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sender of {@link MessageWrapper} objects to the server socket of a device of the group.
+ * <p>
+ * The messages are encoded as {@link MessageFrame}s, with the header encoded as UTF-8 JSON directly
+ * into pooled direct buffers and written with the payload of the message in gathering writes.
+ * The messages queued with {@link #enqueue(WroupDevice, EncodedMessage, TraceContext)} are sent
+ * through a persistent {@link PeerLink} with every device, which multiplexes the
+ * {@link MessageChannel}s, and the ones sent with <code>send</code> are sent in their own
+ * connection, blocking until they have been written.
+ * <p>
+ * The sender keeps the {@link PeerHealth} of every device: the timeouts of the connections and
+ * the writes adapt to the round trip time measured with it, the sends which fail are retried with
+ * a jittered exponential backoff, and after several consecutive failures the device is considered
+ * unhealthy and the messages to it fail at once for a while.
+ * This class doesn't depend on the Android framework, so it can be used from a background thread
+ * of the {@link com.abemart.wroup.service.WroupService} or {@link com.abemart.wroup.client.WroupClient}
+ * and also from plain JVM tools like the benchmarks.
+ */
+public class MessageSender {
+
+    private static final String TAG = MessageSender.class.getSimpleName();
+
+    private final Executor executor;
+    private final WroupMetrics metrics;
+    private final Tracer tracer;
+    private final BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT_MAX_POOLED_BUFFERS, true);
+    private final ConcurrentHashMap<String, PeerLink> peerLinks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> peerWeights = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PeerHealth> peerHealths = new ConcurrentHashMap<>();
+    private final IoTimer ioTimer = new IoTimer();
+
+    /**
+     * @param executor The executor which runs the tasks that write in the links with the devices.
+     */
+    public MessageSender(Executor executor) {
+        this(executor, new WroupMetrics(), new Tracer(false));
+    }
+
+    /**
+     * @param executor The executor which runs the tasks that write in the links with the devices.
+     * @param metrics  The metrics updated with the messages sent and the failures.
+     * @param tracer   The tracer which provides the group clock to stamp the traced messages.
+     */
+    public MessageSender(Executor executor, WroupMetrics metrics, Tracer tracer) {
+        this.executor = executor;
+        this.metrics = metrics;
+        this.tracer = tracer;
+    }
+
+    /**
+     * Prepare a message to be sent to some devices. Its header is encoded only once, in the first
+     * send, and shared by all the sends.
+     *
+     * @param message    The message to be sent.
+     * @param recipients The number of devices which the message is going to be sent to. The
+     *                   message must be released once per recipient, even if it isn't sent.
+     * @return the message prepared to be sent.
+     */
+    public EncodedMessage prepare(MessageWrapper message, int recipients) {
+        return new EncodedMessage(bufferPool, message, recipients);
+    }
+
+    /**
+     * Send the message to the server socket of the device indicated. This method blocks until the
+     * message has been written, so it must not be called from the main thread.
+     *
+     * @param device  The receiver of the message.
+     * @param message The message to be sent.
+     * @return the number of bytes written.
+     * @throws IOException If the connection cannot be established or the message cannot be written.
+     */
+    public int send(WroupDevice device, MessageWrapper message) throws IOException {
+        EncodedMessage encodedMessage = prepare(message, 1);
+        try {
+            return send(device, encodedMessage, null);
+        } finally {
+            encodedMessage.release();
+        }
+    }
+
+    /**
+     * Send a prepared message to the server socket of the device indicated with the trace stamps
+     * of the sender. This method blocks until the message has been written, so it must not be
+     * called from the main thread. The send isn't retried if it fails, the messages which have to
+     * be retried are sent with {@link #sendWithRetries(WroupDevice, MessageWrapper)}. The message
+     * isn't released.
+     *
+     * @param device         The receiver of the message.
+     * @param encodedMessage The message to be sent.
+     * @param trace          The trace stamps of the message, or null if it isn't traced.
+     * @return the number of bytes written.
+     * @throws PeerUnavailableException If the device has failed too many times recently.
+     * @throws IOException              If the connection cannot be established or the message
+     *                                  cannot be written.
+     */
+    public int send(WroupDevice device, EncodedMessage encodedMessage, TraceContext trace) throws IOException {
+        PeerHealth health = getPeerHealth(device);
+        if (!health.isAvailable()) {
+            throw new PeerUnavailableException("The circuit of " + device.getDeviceServerSocketIP() + " is open");
+        }
+
+        try {
+            int written = sendOnce(device, encodedMessage, trace, health);
+            health.onSuccess();
+            return written;
+        } catch (IOException e) {
+            health.onFailure(e instanceof SocketTimeoutException);
+            throw e;
+        }
+    }
+
+    /**
+     * Send the message to the server socket of the device indicated in its own connection, and
+     * retry it after a backoff if it fails, up to {@link PeerLink#MAX_ATTEMPTS} times. The first
+     * attempt blocks like {@link #send(WroupDevice, MessageWrapper)}, so it must not be called from
+     * the main thread, but the retries are scheduled in the timer of the sender and run in the
+     * executor, so no thread waits for them. The failures are logged.
+     *
+     * @param device  The receiver of the message.
+     * @param message The message to be sent.
+     */
+    public void sendWithRetries(WroupDevice device, MessageWrapper message) {
+        new RetriedSend(device, prepare(message, 1)).run();
+    }
+
+    private int sendOnce(WroupDevice device, EncodedMessage encodedMessage, TraceContext trace, PeerHealth health) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            InetSocketAddress hostAddres = new InetSocketAddress(device.getDeviceServerSocketIP(), device.getDeviceServerSocketPort());
+            try {
+                long connectStartNanos = System.nanoTime();
+                socketChannel.socket().connect(hostAddres, health.connectTimeoutMillis());
+                health.onConnected(System.nanoTime() - connectStartNanos);
+            } catch (IOException e) {
+                metrics.onConnectFailed(device);
+                throw e;
+            }
+
+            if (trace != null) {
+                trace.setConnectedMicros(tracer.groupMicros());
+            }
+
+            ByteBuffer[] frame = MessageFrame.build(encodedMessage, trace, tracer);
+            long frameSize = MessageFrame.remaining(frame);
+            try {
+                ioTimer.write(socketChannel, frame, 0, frame.length, frameSize, health.ioTimeoutNanos(frameSize));
+            } catch (IOException e) {
+                metrics.onSendFailed(device);
+                throw e;
+            }
+
+            metrics.onMessageSent(device, (int) frameSize);
+            if (WroupLog.isSampled(WroupLog.DEBUG)) {
+                WroupLog.d(TAG, "Sent {} ({} bytes) to IP: {}", encodedMessage.getMessage().getMessageType(), frameSize,
+                        device.getDeviceServerSocketIP());
+            }
+            return (int) frameSize;
+        } finally {
+            socketChannel.close();
+        }
+    }
+
+    /**
+     * Queue a prepared message to be sent in the {@link MessageChannel} of the message through the
+     * persistent link with the device, without blocking. The message is released once it has been
+     * sent or it has failed.
+     *
+     * @param device         The receiver of the message.
+     * @param encodedMessage The message to be sent.
+     * @param trace          The trace stamps of the message, or null if it isn't traced.
+     * @throws RejectedExecutionException If the executor doesn't accept more tasks. The message is
+     *                                    released before.
+     */
+    public void enqueue(WroupDevice device, EncodedMessage encodedMessage, TraceContext trace) {
+        if (device == null || device.getDeviceServerSocketIP() == null) {
+            encodedMessage.release();
+            return;
+        }
+
+        String key = peerKey(device);
+        PeerLink peerLink = peerLinks.get(key);
+        if (peerLink == null) {
+            PeerLink newPeerLink = new PeerLink(device, executor, metrics, tracer, getPeerHealth(device), ioTimer);
+            newPeerLink.setWeight(getPeerWeight(device.getDeviceMac()));
+            peerLink = peerLinks.putIfAbsent(key, newPeerLink);
+            if (peerLink == null) {
+                peerLink = newPeerLink;
+            }
+        }
+        peerLink.enqueue(encodedMessage, trace);
+    }
+
+    /**
+     * Check if the last sends to a device have succeeded. After several consecutive failures the
+     * device is unhealthy, and the messages to it fail without trying to send them until a
+     * backoff period expires.
+     *
+     * @param device The device.
+     * @return true if the device is healthy.
+     */
+    public boolean isPeerHealthy(WroupDevice device) {
+        PeerHealth health = device.getDeviceServerSocketIP() != null ? peerHealths.get(peerKey(device)) : null;
+        return health == null || health.isHealthy();
+    }
+
+    /**
+     * Obtain the round trip time with a device, measured when the connections with it are opened.
+     *
+     * @param device The device.
+     * @return the smoothed round trip time in microseconds, or -1 if it hasn't been measured yet.
+     */
+    public long getRoundTripMicros(WroupDevice device) {
+        PeerHealth health = device.getDeviceServerSocketIP() != null ? peerHealths.get(peerKey(device)) : null;
+        long rttNanos = health != null ? health.getSmoothedRttNanos() : -1;
+        return rttNanos >= 0 ? rttNanos / 1000 : -1;
+    }
+
+    /**
+     * Set the share of the sending threads which the link with a device takes when the links with
+     * other devices have messages to send too. The weight is kept for the links opened later.
+     *
+     * @param deviceMac The MAC address of the device.
+     * @param weight    The weight of the device, 1 by default.
+     */
+    public void setPeerWeight(String deviceMac, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("The weight must be positive");
+        }
+        if (weight == 1) {
+            peerWeights.remove(deviceMac);
+        } else {
+            peerWeights.put(deviceMac, weight);
+        }
+
+        for (PeerLink peerLink : peerLinks.values()) {
+            if (deviceMac.equals(peerLink.getDevice().getDeviceMac())) {
+                peerLink.setWeight(weight);
+            }
+        }
+    }
+
+    /**
+     * @return the weight of the link with a device.
+     */
+    public int getPeerWeight(String deviceMac) {
+        Integer weight = deviceMac != null ? peerWeights.get(deviceMac) : null;
+        return weight != null ? weight : 1;
+    }
+
+    private PeerHealth getPeerHealth(WroupDevice device) {
+        String key = peerKey(device);
+        PeerHealth health = peerHealths.get(key);
+        if (health == null) {
+            PeerHealth newHealth = new PeerHealth();
+            health = peerHealths.putIfAbsent(key, newHealth);
+            if (health == null) {
+                health = newHealth;
+            }
+        }
+        return health;
+    }
+
+    private static String peerKey(WroupDevice device) {
+        return device.getDeviceServerSocketIP() + ":" + device.getDeviceServerSocketPort();
+    }
+
+    /**
+     * Wait until the links with all the devices have sent the messages queued, or failed them after
+     * the retries. The messages queued during the wait are waited for too.
+     *
+     * @param timeoutMillis The maximum time to wait.
+     * @return true if all the messages have been sent or failed, false if the time is up or the
+     * thread is interrupted.
+     */
+    public boolean drain(long timeoutMillis) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (PeerLink peerLink : peerLinks.values()) {
+                if (!peerLink.awaitIdle(deadlineNanos)) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget a device which has left the group. The link with it is closed once the messages queued
+     * for it have been sent, like the acknowledgement of its disconnection, and then its health and
+     * its metrics are discarded.
+     *
+     * @param device The device which has left the group.
+     */
+    public void closeLink(final WroupDevice device) {
+        if (device == null || device.getDeviceServerSocketIP() == null) {
+            return;
+        }
+
+        final String key = peerKey(device);
+        final PeerHealth health = peerHealths.get(key);
+        Runnable forget = new Runnable() {
+            @Override
+            public void run() {
+                // The device may have joined again meanwhile with a new health
+                if (health != null) {
+                    peerHealths.remove(key, health);
+                }
+                metrics.removePeer(device);
+            }
+        };
+        PeerLink peerLink = peerLinks.remove(key);
+        if (peerLink != null) {
+            peerLink.closeWhenIdle(forget);
+        } else {
+            forget.run();
+        }
+    }
+
+    /**
+     * Close the persistent links with all the devices and forget their health and their metrics.
+     * The messages still queued are sent in new links.
+     */
+    public void closeLinks() {
+        for (PeerLink peerLink : peerLinks.values()) {
+            peerLink.close();
+        }
+        peerLinks.clear();
+        peerHealths.clear();
+        metrics.clearPeers();
+    }
+
+    /**
+     * A message sent in its own connection, which schedules its next attempt when it fails.
+     */
+    private class RetriedSend implements Runnable {
+
+        private final WroupDevice device;
+        private final EncodedMessage encodedMessage;
+        private int attempt;
+
+        RetriedSend(WroupDevice device, EncodedMessage encodedMessage) {
+            this.device = device;
+            this.encodedMessage = encodedMessage;
+        }
+
+        @Override
+        public void run() {
+            try {
+                send(device, encodedMessage, null);
+            } catch (IOException e) {
+                if (e instanceof PeerUnavailableException || ++attempt >= PeerLink.MAX_ATTEMPTS || !scheduleRetry(e)) {
+                    WroupLog.e(TAG, "Error sending {} to {}: {}", encodedMessage.getMessage().getMessageType(),
+                            device.getDeviceServerSocketIP(), e.getMessage());
+                    encodedMessage.release();
+                }
+                return;
+            }
+            encodedMessage.release();
+        }
+
+        /**
+         * @return true if the next attempt has been scheduled, false if the timer or the executor
+         * don't accept it.
+         */
+        private boolean scheduleRetry(IOException e) {
+            long delayMillis = Backoff.delayMillis(attempt - 1, PeerLink.RETRY_BASE_MILLIS, PeerLink.RETRY_MAX_MILLIS);
+            WroupLog.w(TAG, "Error sending to {}, retrying in {} ms: {}", device.getDeviceServerSocketIP(), delayMillis, e.getMessage());
+            try {
+                ioTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            executor.execute(RetriedSend.this);
+                        } catch (RejectedExecutionException rejectedException) {
+                            WroupLog.e(TAG, "Discarded {} to {}, the executor is shut down",
+                                    encodedMessage.getMessage().getMessageType(), device.getDeviceServerSocketIP());
+                            encodedMessage.release();
+                        }
+                    }
+                }, delayMillis);
+            } catch (RejectedExecutionException rejectedException) {
+                return false;
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ids of the devices of the group, which the messages carry instead of their senders.
+ * <p>
+ * The group owner assigns an id to every client when it registers, and always has the id
+ * {@link #GROUP_OWNER_ID}. A client which registers again with the same MAC keeps its id, so the
+ * messages sent before it reconnected are still resolved. The clients learn the ids of the other
+ * devices from the registration messages, and the receivers resolve the sender of every message
+ * with them. The devices which leave the group are kept to resolve the messages which they sent
+ * before leaving, as the disconnection messages go before the data messages already queued. They
+ * are forgotten, with their ids, after {@link #DEPARTED_TIMEOUT_MILLIS}, when those messages have
+ * been written or failed, and only the last {@link #MAX_DEPARTED_DEVICES} are kept, so a group
+ * with a lot of churn doesn't grow the directory without limit.
+ */
+public class PeerDirectory {
+
+    /**
+     * The id of the group owner, which isn't assigned to any client.
+     */
+    public static final int GROUP_OWNER_ID = 0;
+
+    /**
+     * Time a device which has left the group is kept, the longest that a message queued before it
+     * left can take to be written.
+     */
+    static final long DEPARTED_TIMEOUT_MILLIS = 60 * 1000;
+
+    /**
+     * Devices which have left the group kept at once. The oldest one is forgotten to keep a new one.
+     */
+    static final int MAX_DEPARTED_DEVICES = 256;
+
+    private final long departedTimeoutNanos;
+    private final int maxDepartedDevices;
+    private final ConcurrentHashMap<Integer, WroupDevice> devices = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Integer, Departed> departedDevices = new LinkedHashMap<>();
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(GROUP_OWNER_ID + 1);
+
+    public PeerDirectory() {
+        this(DEPARTED_TIMEOUT_MILLIS, MAX_DEPARTED_DEVICES);
+    }
+
+    /**
+     * @param departedTimeoutMillis The time a device which has left the group is kept.
+     * @param maxDepartedDevices    The number of devices which have left the group kept at once.
+     */
+    PeerDirectory(long departedTimeoutMillis, int maxDepartedDevices) {
+        this.departedTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(departedTimeoutMillis);
+        this.maxDepartedDevices = maxDepartedDevices;
+    }
+
+    /**
+     * Assign an id to a device which has registered in the group owner, and set it in the device.
+     *
+     * @param device The device registered, with its MAC.
+     * @return the id of the device.
+     */
+    public int register(WroupDevice device) {
+        Integer id = ids.get(device.getDeviceMac());
+        if (id == null) {
+            Integer newId = nextId.getAndIncrement();
+            id = ids.putIfAbsent(device.getDeviceMac(), newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        device.setPeerId(id);
+        devices.put(id, device);
+        synchronized (departedDevices) {
+            departedDevices.remove(id);
+        }
+        return id;
+    }
+
+    /**
+     * Add a device with the id assigned by the group owner.
+     *
+     * @param peerId The id of the device.
+     * @param device The device.
+     */
+    public void put(int peerId, WroupDevice device) {
+        devices.put(peerId, device);
+        synchronized (departedDevices) {
+            departedDevices.remove(peerId);
+        }
+        if (device.getDeviceMac() != null) {
+            ids.put(device.getDeviceMac(), peerId);
+        }
+    }
+
+    /**
+     * Remove a device which has left the group. Until it's forgotten its id is kept, and assigned
+     * again to it if it registers again, and the messages which it sent before leaving are still
+     * resolved.
+     *
+     * @param deviceMac The MAC of the device.
+     */
+    public void remove(String deviceMac) {
+        if (deviceMac == null) {
+            return;
+        }
+        Integer id = ids.get(deviceMac);
+        if (id != null) {
+            WroupDevice device = devices.remove(id);
+            if (device != null) {
+                long nowNanos = System.nanoTime();
+                synchronized (departedDevices) {
+                    forgetDeparted(nowNanos);
+                    departedDevices.put(id, new Departed(device, nowNanos));
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the devices which left the group long ago, and the oldest ones beyond the maximum
+     * with room for one more. Called holding the lock of the departed devices, which are in the
+     * order they left.
+     */
+    private void forgetDeparted(long nowNanos) {
+        Iterator<Map.Entry<Integer, Departed>> iterator = departedDevices.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Departed> entry = iterator.next();
+            if (departedDevices.size() < maxDepartedDevices && nowNanos - entry.getValue().departedNanos < departedTimeoutNanos) {
+                return;
+            }
+            iterator.remove();
+            String deviceMac = entry.getValue().device.getDeviceMac();
+            if (deviceMac != null && !devices.containsKey(entry.getKey())) {
+                ids.remove(deviceMac, entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return the device with the id, or null if it isn't in the group.
+     */
+    public WroupDevice get(int peerId) {
+        return devices.get(peerId);
+    }
+
+    /**
+     * @return the number of devices in the directory.
+     */
+    public int size() {
+        return devices.size();
+    }
+
+    /**
+     * Remove all the devices and forget their ids.
+     */
+    public void clear() {
+        devices.clear();
+        synchronized (departedDevices) {
+            departedDevices.clear();
+        }
+        ids.clear();
+        nextId.set(GROUP_OWNER_ID + 1);
+    }
+
+    /**
+     * Resolve the sender of a message which carries only its id, which can also be a device which
+     * has left the group.
+     *
+     * @param message The message received.
+     * @return false if the message carries an id which isn't in the directory, true otherwise.
+     */
+    public boolean resolveSender(MessageWrapper message) {
+        Integer senderId = message.getSenderId();
+        if (senderId == null) {
+            return true;
+        }
+        WroupDevice sender = devices.get(senderId);
+        if (sender == null) {
+            synchronized (departedDevices) {
+                Departed departed = departedDevices.get(senderId);
+                sender = departed != null ? departed.device : null;
+            }
+        }
+        message.resolveSender(sender);
+        return sender != null;
+    }
+
+    /**
+     * A device which has left the group, and when it left.
+     */
+    private static class Departed {
+
+        final WroupDevice device;
+        final long departedNanos;
+
+        Departed(WroupDevice device, long departedNanos) {
+            this.device = device;
+            this.departedNanos = departedNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.abemart.wroup.common.transport;
+
+
+/**
+ * Health of the connections with a peer: the estimation of its round trip time, which gives the
+ * timeouts of the operations with it, and a circuit breaker which stops trying to reach it after
+ * several consecutive failures.
+ * <p>
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the circuit opens and the messages to the
+ * peer fail at once during a backoff period, which grows every time the circuit opens again. When
+ * the period expires the next attempt is a probe: if it succeeds the circuit closes, and if it
+ * fails the circuit opens again.
+ */
+final class PeerHealth {
+
+    static final int FAILURE_THRESHOLD = 3;
+
+    private static final long MIN_OPEN_MILLIS = 1000;
+    private static final long MAX_OPEN_MILLIS = 30 * 1000;
+
+    private static final long MIN_CONNECT_TIMEOUT_NANOS = 500 * 1000 * 1000L;
+    private static final long MIN_IO_TIMEOUT_NANOS = 1000 * 1000 * 1000L;
+    private static final long MAX_IO_TIMEOUT_NANOS = 60 * 1000 * 1000 * 1000L;
+
+    /**
+     * Minimum throughput expected from a peer, which gives the time allowed to write a buffer on
+     * top of the round trips.
+     */
+    private static final long MIN_BYTES_PER_SECOND = 32 * 1024;
+
+    private final RttEstimator rttEstimator = new RttEstimator();
+
+    private int consecutiveFailures;
+    private int openings;
+    private long openUntilNanos;
+
+    /**
+     * @return the time allowed to open a connection with the peer: two retransmission timeouts,
+     * so a lost SYN can be sent again.
+     */
+    synchronized int connectTimeoutMillis() {
+        return (int) (Math.max(MIN_CONNECT_TIMEOUT_NANOS, 2 * rttEstimator.getRtoNanos()) / (1000 * 1000));
+    }
+
+    /**
+     * @param bytes The size of the buffer to write.
+     * @return the time allowed to write a buffer to the peer before considering it dead.
+     */
+    synchronized long ioTimeoutNanos(long bytes) {
+        long timeout = Math.max(MIN_IO_TIMEOUT_NANOS, 4 * rttEstimator.getRtoNanos())
+                + bytes * 1000 * 1000 * 1000L / MIN_BYTES_PER_SECOND;
+        return Math.min(MAX_IO_TIMEOUT_NANOS, timeout);
+    }
+
+    /**
+     * A connection with the peer has been opened.
+     *
+     * @param connectNanos The time taken to open it, which is a sample of the round trip time.
+     */
+    synchronized void onConnected(long connectNanos) {
+        rttEstimator.onSample(connectNanos);
+    }
+
+    /**
+     * An operation with the peer has succeeded, so the circuit closes.
+     */
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        openings = 0;
+    }
+
+    /**
+     * An operation with the peer has failed.
+     *
+     * @param timeout True if it has failed because it has timed out, so the timeouts are backed
+     *                off.
+     */
+    synchronized void onFailure(boolean timeout) {
+        if (timeout) {
+            rttEstimator.onTimeout();
+        }
+        consecutiveFailures++;
+        if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            openUntilNanos = System.nanoTime() + Backoff.delayMillis(openings, MIN_OPEN_MILLIS, MAX_OPEN_MILLIS) * 1000 * 1000;
+            openings++;
+        }
+    }
+
+    /**
+     * @return true if the peer can be tried: the circuit is closed, or it's open but its period
+     * has expired.
+     */
+    synchronized boolean isAvailable() {
+        return consecutiveFailures < FAILURE_THRESHOLD || System.nanoTime() - openUntilNanos >= 0;
+    }
+
+    /**
+     * @return true if the last operations with the peer haven't failed.
+     */
+    synchronized boolean isHealthy() {
+        return consecutiveFailures < FAILURE_THRESHOLD;
+    }
+
+    /**
+     * @return the smoothed round trip time with the peer in nanoseconds, or -1 if it's unknown.
+     */
+    synchronized long getSmoothedRttNanos() {
+        return rttEstimator.getSmoothedNanos();
+    }
+
+}
@@ -0,0 +1,584 @@
+package com.abemart.wroup.common.transport;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.metrics.WroupMetrics;
+import com.abemart.wroup.common.tracing.TraceContext;
+import com.abemart.wroup.common.tracing.Tracer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Persistent connection with the server socket of a peer, which multiplexes the
+ * {@link MessageChannel}s.
+ * <p>
+ * Every channel has its own queue. The queues are drained by one task of the executor, which
+ * writes a chunk at a time choosing the channel before every chunk, so a message queued in a
+ * channel with more priority is written as soon as the chunk in progress finishes. The connection
+ * is opened by the first message, and opened again when it has been idle long enough for the peer
+ * to close it or when it fails.
+ * <p>
+ * The timeouts of the connection and the writes come from the round trip time measured with the
+ * peer. When a write fails the messages queued are sent again in a new connection after a backoff,
+ * up to {@link #MAX_ATTEMPTS} times, and while the circuit breaker of the peer is open the
+ * messages fail at once.
+ * <p>
+ * The links with all the peers share the executor, so a drain task writes at most
+ * <code>weight * {@link #TURN_CHUNKS}</code> chunks and then goes back to the end of the queue of
+ * the executor while it has messages left. When the executor is busy the links take turns like in
+ * a weighted round robin, and a peer with a large backlog doesn't delay the messages of the others.
+ */
+class PeerLink implements Runnable {
+
+    private static final String TAG = PeerLink.class.getSimpleName();
+
+    /**
+     * Attempts to send a message before failing it, through a link or in its own connection.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Delay of the first retry of a failed send, and the maximum one, before the jitter of the
+     * {@link Backoff}.
+     */
+    static final long RETRY_BASE_MILLIS = 200;
+    static final long RETRY_MAX_MILLIS = 5000;
+
+    /**
+     * The receivers close the links idle for {@link MessageReceiver#LINK_IDLE_TIMEOUT_MILLIS}, so
+     * the senders don't reuse them after a shorter time to avoid writing in a link being closed.
+     */
+    private static final long REUSE_IDLE_MILLIS = MessageReceiver.LINK_IDLE_TIMEOUT_MILLIS / 3;
+
+    private static final MessageChannel[] CHANNELS = MessageChannel.values();
+
+    /**
+     * Chunks written in every turn of a link with weight 1.
+     */
+    static final int TURN_CHUNKS = 4;
+
+    private final WroupDevice device;
+    private final Executor executor;
+    private final WroupMetrics metrics;
+    private final Tracer tracer;
+    private final PeerHealth health;
+    private final IoTimer ioTimer;
+
+    private final List<ArrayDeque<OutgoingMessage>> queues = new ArrayList<>(CHANNELS.length);
+    private final long[] deficits = new long[CHANNELS.length];
+    private MessageChannel currentChannel;
+    private boolean draining;
+    private Runnable idleTask;
+    private volatile int weight = 1;
+    private int failedAttempts;
+
+    private SocketChannel socketChannel;
+    private long lastWriteMillis;
+    private int nextMessageId;
+
+    PeerLink(WroupDevice device, Executor executor, WroupMetrics metrics, Tracer tracer, PeerHealth health, IoTimer ioTimer) {
+        this.device = device;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        this.health = health;
+        this.ioTimer = ioTimer;
+
+        for (int i = 0; i < CHANNELS.length; i++) {
+            queues.add(new ArrayDeque<OutgoingMessage>());
+        }
+    }
+
+    /**
+     * Queue a message to be sent through the link. The message is released and the metrics are
+     * updated when it has been sent or it has failed.
+     *
+     * @throws RejectedExecutionException If the executor doesn't accept the drain task. The
+     *                                    message is released before.
+     */
+    void enqueue(EncodedMessage encodedMessage, TraceContext trace) {
+        if (!health.isAvailable()) {
+            // The circuit of the peer is open, the message fails without waiting for another timeout
+            encodedMessage.release();
+            metrics.onSendFailed(device);
+            WroupLog.d(TAG, "Discarded {} to unavailable IP: {}", encodedMessage.getMessage().getMessageType(),
+                    device.getDeviceServerSocketIP());
+            return;
+        }
+
+        OutgoingMessage message = new OutgoingMessage(encodedMessage, trace);
+        metrics.onSendQueued();
+
+        boolean startDraining;
+        synchronized (this) {
+            queues.get(message.channel.ordinal()).add(message);
+            startDraining = !draining;
+            draining = true;
+        }
+
+        if (startDraining) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    draining = false;
+                    queues.get(message.channel.ordinal()).remove(message);
+                    notifyAll();
+                }
+                finish(message);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Set the share of the executor which the link takes when the links with other peers have
+     * messages to write too.
+     *
+     * @param weight The number of turns of {@link #TURN_CHUNKS} chunks written at once.
+     */
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    WroupDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Wait until the link has sent or failed all the messages queued, including the ones waiting
+     * for a retry.
+     *
+     * @param deadlineNanos The {@link System#nanoTime()} when the wait gives up.
+     * @return true if the link has no messages left, false if the deadline has passed.
+     */
+    synchronized boolean awaitIdle(long deadlineNanos) throws InterruptedException {
+        while (draining) {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                return false;
+            }
+            wait(Math.max(1, remainingNanos / 1000000));
+        }
+        return true;
+    }
+
+    /**
+     * Close the connection. The messages queued are still sent, in a new connection.
+     */
+    synchronized void close() {
+        closeConnection();
+    }
+
+    /**
+     * Close the connection once the messages queued have been sent or failed, and then run a task.
+     * No more messages must be queued in the link.
+     *
+     * @param task The task to run when the link is idle.
+     */
+    void closeWhenIdle(Runnable task) {
+        synchronized (this) {
+            if (draining) {
+                idleTask = task;
+                return;
+            }
+            closeConnection();
+        }
+        task.run();
+    }
+
+    /**
+     * Take the task to run when the link becomes idle, closing the connection if there's one.
+     */
+    private Runnable takeIdleTask() {
+        Runnable task = idleTask;
+        if (task != null) {
+            idleTask = null;
+            closeConnection();
+        }
+        return task;
+    }
+
+    @Override
+    public void run() {
+        int turnChunks = weight * TURN_CHUNKS;
+        int chunksWritten = 0;
+        while (true) {
+            if (chunksWritten >= turnChunks && hasQueuedMessages()) {
+                // Yield the thread to the links queued in the executor, the task is drained again
+                // after them. If it's busy the link keeps it instead.
+                try {
+                    executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    chunksWritten = 0;
+                }
+            }
+
+            OutgoingMessage message;
+            Runnable task;
+            synchronized (this) {
+                MessageChannel channel = nextChannel();
+                if (channel == null) {
+                    draining = false;
+                    notifyAll();
+                    task = takeIdleTask();
+                    message = null;
+                } else {
+                    task = null;
+                    message = queues.get(channel.ordinal()).peek();
+                }
+            }
+            if (message == null) {
+                if (task != null) {
+                    task.run();
+                }
+                return;
+            }
+
+            int written;
+            try {
+                written = writeChunk(message);
+            } catch (IOException e) {
+                WroupLog.e(TAG, "Error sending to {}: {}", device.getDeviceServerSocketIP(), e.getMessage());
+                retryOrFail(e);
+                return;
+            }
+            chunksWritten++;
+
+            boolean completed = !message.hasRemaining();
+            synchronized (this) {
+                int channelIndex = message.channel.ordinal();
+                deficits[channelIndex] -= written;
+                if (completed) {
+                    // A peer which accepts chunks but never reads them doesn't complete messages
+                    failedAttempts = 0;
+                    queues.get(channelIndex).poll();
+                    if (queues.get(channelIndex).isEmpty()) {
+                        deficits[channelIndex] = 0;
+                    }
+                }
+            }
+
+            if (completed) {
+                health.onSuccess();
+                metrics.onMessageSent(device, (int) message.frameSize);
+                finish(message);
+                if (WroupLog.isSampled(WroupLog.DEBUG)) {
+                    WroupLog.d(TAG, "Sent {} ({} bytes) in channel {} to IP: {}", message.encodedMessage.getMessage().getMessageType(),
+                            message.frameSize, message.channel, device.getDeviceServerSocketIP());
+                }
+            }
+        }
+    }
+
+    private synchronized boolean hasQueuedMessages() {
+        for (ArrayDeque<OutgoingMessage> queue : queues) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Choose the channel of the next chunk: the channels with the lowest priority value which have
+     * messages, and among them the current one while it has deficit left, as in deficit round
+     * robin with a quantum of <code>weight</code> chunks.
+     */
+    private MessageChannel nextChannel() {
+        int priority = Integer.MAX_VALUE;
+        for (MessageChannel channel : CHANNELS) {
+            if (!queues.get(channel.ordinal()).isEmpty()) {
+                priority = Math.min(priority, channel.getPriority());
+            }
+        }
+        if (priority == Integer.MAX_VALUE) {
+            return null;
+        }
+
+        if (currentChannel != null && currentChannel.getPriority() == priority
+                && !queues.get(currentChannel.ordinal()).isEmpty() && deficits[currentChannel.ordinal()] > 0) {
+            return currentChannel;
+        }
+
+        int start = currentChannel != null ? currentChannel.ordinal() : -1;
+        for (int i = 1; i <= CHANNELS.length; i++) {
+            MessageChannel channel = CHANNELS[(start + i + CHANNELS.length) % CHANNELS.length];
+            if (channel.getPriority() == priority && !queues.get(channel.ordinal()).isEmpty()) {
+                deficits[channel.ordinal()] += (long) channel.getWeight() * MessageFrame.CHUNK_SIZE;
+                currentChannel = channel;
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send the messages queued again in a new connection after a backoff, or fail them if they
+     * have been tried {@link #MAX_ATTEMPTS} times or the circuit of the peer has opened.
+     */
+    private void retryOrFail(IOException e) {
+        if (e instanceof PeerUnavailableException) {
+            failAll();
+            return;
+        }
+
+        health.onFailure(e instanceof SocketTimeoutException);
+        int attempt;
+        synchronized (this) {
+            closeConnection();
+            for (ArrayDeque<OutgoingMessage> queue : queues) {
+                for (OutgoingMessage queuedMessage : queue) {
+                    queuedMessage.restart();
+                }
+            }
+            attempt = failedAttempts++;
+        }
+        if (attempt + 1 >= MAX_ATTEMPTS || !health.isAvailable()) {
+            failAll();
+            return;
+        }
+
+        long delayMillis = Backoff.delayMillis(attempt, RETRY_BASE_MILLIS, RETRY_MAX_MILLIS);
+        WroupLog.w(TAG, "Retrying the messages to {} in {} ms", device.getDeviceServerSocketIP(), delayMillis);
+        try {
+            // The link keeps draining, so the messages queued meanwhile wait for the retry
+            ioTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        executor.execute(PeerLink.this);
+                    } catch (RejectedExecutionException e) {
+                        failAll();
+                    }
+                }
+            }, delayMillis);
+        } catch (RejectedExecutionException rejectedException) {
+            failAll();
+        }
+    }
+
+    private int writeChunk(OutgoingMessage message) throws IOException {
+        boolean reused = ensureConnected();
+        if (message.frame == null) {
+            message.start(nextMessageId++);
+        }
+
+        try {
+            SocketChannel actualChannel;
+            synchronized (this) {
+                actualChannel = socketChannel;
+            }
+            if (actualChannel == null) {
+                // The link has been closed by another thread
+                throw new ClosedChannelException();
+            }
+            int written = message.writeChunk(actualChannel);
+            lastWriteMillis = System.currentTimeMillis();
+            return written;
+        } catch (IOException e) {
+            if (!reused || e instanceof SocketTimeoutException) {
+                metrics.onSendFailed(device);
+                throw e;
+            }
+
+            // The peer closed the link while it was idle, the messages started are sent again
+            WroupLog.w(TAG, "Link with {} closed, reconnecting", device.getDeviceServerSocketIP());
+            synchronized (this) {
+                closeConnection();
+                for (ArrayDeque<OutgoingMessage> queue : queues) {
+                    for (OutgoingMessage queuedMessage : queue) {
+                        queuedMessage.restart();
+                    }
+                }
+            }
+            return writeChunk(message);
+        }
+    }
+
+    /**
+     * @return true if an existing connection is reused, false if a new one has been opened.
+     */
+    private boolean ensureConnected() throws IOException {
+        SocketChannel actualChannel;
+        synchronized (this) {
+            if (socketChannel != null && System.currentTimeMillis() - lastWriteMillis > REUSE_IDLE_MILLIS) {
+                closeConnection();
+                for (ArrayDeque<OutgoingMessage> queue : queues) {
+                    for (OutgoingMessage queuedMessage : queue) {
+                        queuedMessage.restart();
+                    }
+                }
+            }
+            actualChannel = socketChannel;
+        }
+        if (actualChannel != null) {
+            return true;
+        }
+
+        if (!health.isAvailable()) {
+            throw new PeerUnavailableException("The circuit of " + device.getDeviceServerSocketIP() + " is open");
+        }
+
+        SocketChannel newChannel = SocketChannel.open();
+        try {
+            InetSocketAddress hostAddres = new InetSocketAddress(device.getDeviceServerSocketIP(), device.getDeviceServerSocketPort());
+            long connectStartNanos = System.nanoTime();
+            newChannel.socket().connect(hostAddres, health.connectTimeoutMillis());
+            health.onConnected(System.nanoTime() - connectStartNanos);
+            newChannel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            newChannel.close();
+            metrics.onConnectFailed(device);
+            throw e;
+        }
+
+        synchronized (this) {
+            socketChannel = newChannel;
+            lastWriteMillis = System.currentTimeMillis();
+            nextMessageId = 0;
+        }
+        return false;
+    }
+
+    private void closeConnection() {
+        if (socketChannel != null) {
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                WroupLog.e(TAG, "Error closing the link with {}", device.getDeviceServerSocketIP());
+            }
+            socketChannel = null;
+        }
+    }
+
+    private void failAll() {
+        List<OutgoingMessage> failedMessages = new ArrayList<>();
+        Runnable task;
+        synchronized (this) {
+            closeConnection();
+            task = takeIdleTask();
+            failedAttempts = 0;
+            for (ArrayDeque<OutgoingMessage> queue : queues) {
+                failedMessages.addAll(queue);
+                queue.clear();
+            }
+            draining = false;
+            notifyAll();
+        }
+
+        for (OutgoingMessage failedMessage : failedMessages) {
+            finish(failedMessage);
+        }
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    private void finish(OutgoingMessage message) {
+        message.encodedMessage.release();
+        metrics.onSendFinished(message.queuedNanos);
+    }
+
+    /**
+     * A message queued in the link and its progress.
+     */
+    private class OutgoingMessage {
+
+        private final EncodedMessage encodedMessage;
+        private final TraceContext trace;
+        private final long queuedNanos = System.nanoTime();
+        private final MessageChannel channel;
+
+        private ByteBuffer[] frame;
+        private long frameSize;
+        private long remaining;
+        private int messageId;
+
+        OutgoingMessage(EncodedMessage encodedMessage, TraceContext trace) {
+            this.encodedMessage = encodedMessage;
+            this.trace = trace;
+
+            // The header isn't encoded yet, so the channel is chosen with the size of the payload
+            ByteBuffer payload = encodedMessage.getMessage().getPayload();
+            this.channel = MessageChannel.forMessage(encodedMessage.getMessage(), payload != null ? payload.remaining() : 0);
+        }
+
+        void start(int messageId) throws IOException {
+            this.messageId = messageId;
+            if (trace != null) {
+                trace.setDequeuedMicros(tracer.groupMicros());
+                trace.setConnectedMicros(tracer.groupMicros());
+            }
+            frame = MessageFrame.build(encodedMessage, trace, tracer);
+            frameSize = MessageFrame.remaining(frame);
+            remaining = frameSize;
+        }
+
+        void restart() {
+            frame = null;
+        }
+
+        boolean hasRemaining() {
+            return remaining > 0;
+        }
+
+        /**
+         * Write the next chunk of the frame, with a gathering write of the chunk header and the
+         * slices of the frame sections which fit in the chunk.
+         */
+        int writeChunk(SocketChannel socketChannel) throws IOException {
+            int chunkLength = (int) Math.min(MessageFrame.CHUNK_SIZE, remaining);
+            int flags = (remaining == frameSize ? MessageFrame.FIRST_CHUNK : 0)
+                    | (remaining == chunkLength ? MessageFrame.LAST_CHUNK : 0);
+
+            ByteBuffer chunkHeader = ByteBuffer.allocate(MessageFrame.CHUNK_HEADER_SIZE);
+            chunkHeader.put(MessageFrame.LINK_VERSION);
+            chunkHeader.put((byte) flags);
+            chunkHeader.put((byte) channel.ordinal());
+            chunkHeader.putInt(messageId);
+            chunkHeader.putInt(chunkLength);
+            chunkHeader.flip();
+
+            ByteBuffer[] chunk = new ByteBuffer[frame.length + 1];
+            int[] sections = new int[frame.length + 1];
+            chunk[0] = chunkHeader;
+            int chunkBuffers = 1;
+            int left = chunkLength;
+            for (int i = 0; i < frame.length && left > 0; i++) {
+                int length = Math.min(frame[i].remaining(), left);
+                if (length > 0) {
+                    ByteBuffer slice = frame[i].duplicate();
+                    slice.limit(slice.position() + length);
+                    sections[chunkBuffers] = i;
+                    chunk[chunkBuffers++] = slice;
+                    left -= length;
+                }
+            }
+
+            long chunkSize = MessageFrame.CHUNK_HEADER_SIZE + chunkLength;
+            ioTimer.write(socketChannel, chunk, 0, chunkBuffers, chunkSize, health.ioTimeoutNanos(chunkSize));
+
+            // Advance the frame sections to the end of the slices written
+            for (int i = 1; i < chunkBuffers; i++) {
+                frame[sections[i]].position(chunk[i].position());
+            }
+            remaining -= chunkLength;
+            return chunkLength;
+        }
+
+    }
+
+}
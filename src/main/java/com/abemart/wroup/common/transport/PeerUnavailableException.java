@@ -0,0 +1,18 @@
+package com.abemart.wroup.common.transport;
+
+
+import java.io.IOException;
+
+/**
+ * A message hasn't been sent because the last attempts to reach its receiver have failed, so it's
+ * considered unavailable for a while instead of waiting for another timeout.
+ */
+public class PeerUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PeerUnavailableException(String message) {
+        super(message);
+    }
+
+}
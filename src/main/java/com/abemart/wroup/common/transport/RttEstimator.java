@@ -0,0 +1,65 @@
+package com.abemart.wroup.common.transport;
+
+
+/**
+ * Estimator of the round trip time with a peer, which computes its retransmission timeout like
+ * TCP (RFC 6298): a smoothed round trip time and its variation are updated with every sample, and
+ * the timeout is the smoothed time plus four times the variation.
+ * <p>
+ * The samples are the time to open the connections with the peer, which takes one round trip. The
+ * timeout starts at {@link #INITIAL_RTO_NANOS} until the first sample, and it's doubled every
+ * time an operation times out until a new sample arrives. This class isn't thread safe.
+ */
+final class RttEstimator {
+
+    static final long INITIAL_RTO_NANOS = 1000 * 1000 * 1000L;
+    static final long MIN_RTO_NANOS = 200 * 1000 * 1000L;
+    static final long MAX_RTO_NANOS = 10 * 1000 * 1000 * 1000L;
+
+    private static final long CLOCK_GRANULARITY_NANOS = 10 * 1000 * 1000L;
+
+    private long smoothedNanos = -1;
+    private long variationNanos;
+    private long rtoNanos = INITIAL_RTO_NANOS;
+
+    /**
+     * Update the estimation with a round trip measured.
+     */
+    void onSample(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (smoothedNanos < 0) {
+            smoothedNanos = rttNanos;
+            variationNanos = rttNanos / 2;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+            variationNanos += (Math.abs(smoothedNanos - rttNanos) - variationNanos) / 4;
+            smoothedNanos += (rttNanos - smoothedNanos) / 8;
+        }
+        rtoNanos = clamp(smoothedNanos + Math.max(CLOCK_GRANULARITY_NANOS, 4 * variationNanos));
+    }
+
+    /**
+     * Back off the timeout after an operation has timed out.
+     */
+    void onTimeout() {
+        rtoNanos = clamp(rtoNanos * 2);
+    }
+
+    /**
+     * @return the smoothed round trip time, or -1 if there aren't samples yet.
+     */
+    long getSmoothedNanos() {
+        return smoothedNanos;
+    }
+
+    long getRtoNanos() {
+        return rtoNanos;
+    }
+
+    private static long clamp(long nanos) {
+        return Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, nanos));
+    }
+
+}
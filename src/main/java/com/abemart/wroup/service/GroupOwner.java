@@ -0,0 +1,1139 @@
+package com.abemart.wroup.service;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.dedup.DuplicateWindow;
+import com.abemart.wroup.common.dedup.MessageIdSequence;
+import com.abemart.wroup.common.history.HistoryRequest;
+import com.abemart.wroup.common.history.MessageHistory;
+import com.abemart.wroup.common.listeners.ClientConnectedListener;
+import com.abemart.wroup.common.listeners.ClientDisconnectedListener;
+import com.abemart.wroup.common.listeners.DataReceivedListener;
+import com.abemart.wroup.common.listeners.MessageReceivedListener;
+import com.abemart.wroup.common.listeners.ShutdownListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.ClockSyncMessageContent;
+import com.abemart.wroup.common.messages.DisconnectionMessageContent;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.OutboxAckMessageContent;
+import com.abemart.wroup.common.messages.RegisteredDevicesMessageContent;
+import com.abemart.wroup.common.messages.RegistrationMessageContent;
+import com.abemart.wroup.common.messages.RouteAdvertisementMessageContent;
+import com.abemart.wroup.common.messages.RoutedMessageContent;
+import com.abemart.wroup.common.messages.SubscriptionMessageContent;
+import com.abemart.wroup.common.metrics.WroupMetrics;
+import com.abemart.wroup.common.ordering.ReorderBuffer;
+import com.abemart.wroup.common.outbox.DeliveryTracker;
+import com.abemart.wroup.common.outbox.Outbox;
+import com.abemart.wroup.common.outbox.OutboxTransport;
+import com.abemart.wroup.common.replication.ReplicatedStore;
+import com.abemart.wroup.common.replication.ReplicationTransport;
+import com.abemart.wroup.common.routing.DuplicateFilter;
+import com.abemart.wroup.common.routing.MessageIdGenerator;
+import com.abemart.wroup.common.routing.RoutingTable;
+import com.abemart.wroup.common.rpc.RpcEngine;
+import com.abemart.wroup.common.rpc.RpcTransport;
+import com.abemart.wroup.common.throttling.RateLimiter;
+import com.abemart.wroup.common.topics.SubscriptionIndex;
+import com.abemart.wroup.common.topics.TopicPatterns;
+import com.abemart.wroup.common.tracing.TraceContext;
+import com.abemart.wroup.common.tracing.Tracer;
+import com.abemart.wroup.common.transport.EncodedMessage;
+import com.abemart.wroup.common.transport.MessageReceiver;
+import com.abemart.wroup.common.transport.MessageSender;
+import com.abemart.wroup.common.transport.PeerDirectory;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+
+/**
+ * Group owner side of the Wroup protocol.
+ * <p>
+ * It keeps the devices registered in the group and manages the group changes: when a client sends
+ * a <code>CONNECTION_MESSAGE</code> it's registered, the rest of the clients are notified and the
+ * new client receives the <code>REGISTERED_DEVICES</code> already in the group. The same happens
+ * with the <code>DISCONNECTION_MESSAGE</code>. Every client is assigned an id when it registers,
+ * and the messages of the group carry the id of their sender instead of the whole device.
+ * <p>
+ * It also keeps the topics which every client is subscribed to, declared in its registration or
+ * later with <code>SUBSCRIPTION</code> messages, and routes the messages published in a topic
+ * only to the devices subscribed to it.
+ * <p>
+ * The clients which send <code>ROUTE_ADVERTISEMENT</code> messages are bridges with other groups.
+ * The group owner keeps the routes which they advertise, advertises to every bridge the devices
+ * reachable through the rest of the group, and forwards the <code>ROUTED</code> messages to the
+ * bridge of the best route to their destination.
+ * <p>
+ * The changes of the {@link ReplicatedStore} of every device are sent to all the group, and the
+ * clients which join synchronize their store with the one of the group owner.
+ * <p>
+ * Every data message sent carries an id, and the copies of a message already received from the
+ * same sender are discarded before notifying it.
+ * <p>
+ * If the outbox is enabled, the messages sent to a client are kept on disk until it acknowledges
+ * them, and the ones which it hasn't received are sent again when it registers.
+ * <p>
+ * If the history is enabled, the last data messages sent to all the group or published in a topic
+ * are kept in a bounded {@link MessageHistory}, and the clients which ask for it in their
+ * registration receive the ones which they request in a <code>HISTORY</code> message, in the bulk
+ * channel so the messages of the group aren't delayed.
+ * <p>
+ * In total order mode the group owner is the sequencer of the group: the messages sent to all the
+ * group, by itself or by the clients through it, are stamped with a sequence number, and every
+ * device, including the sender, delivers them in the order of the sequence with a
+ * {@link ReorderBuffer}.
+ * <p>
+ * The group owner relays the traffic of all the clients, so the rate of the data messages received
+ * from every client and the rate of the ones relayed for it can be limited, and the clients share
+ * the threads which send the messages in proportion to their weight. The messages throttled are
+ * counted in the {@link WroupMetrics}.
+ * <p>
+ * The clients which leave the group receive a <code>DISCONNECTION_ACK</code>, so they release
+ * their sockets as soon as the group owner has processed the disconnection. The group owner
+ * itself closes the group with {@link #shutdown(long, ShutdownListener)}, which discards the new
+ * messages and sends the ones queued before closing the sockets.
+ * <p>
+ * This class only works with sockets, the WiFi P2P group and the service registration are managed
+ * by {@link WroupService}. Because of that it can also run in a plain JVM, for example in the
+ * group load simulator.
+ */
+public class GroupOwner implements MessageReceivedListener {
+
+    private static final String TAG = GroupOwner.class.getSimpleName();
+
+    private final Executor executor;
+    private final MessageSender messageSender;
+    private final RpcEngine rpcEngine;
+    private final ReplicatedStore replicatedStore;
+    private final WroupMetrics metrics = new WroupMetrics();
+    private final Tracer tracer = new Tracer(true);
+    private final Map<String, WroupDevice> clientsConnected = new ConcurrentHashMap<>();
+    private final PeerDirectory peerDirectory = new PeerDirectory();
+    private final SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+    private final Set<String> subscriptions = new CopyOnWriteArraySet<>();
+    private final RoutingTable routingTable = new RoutingTable(0);
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter();
+    private final MessageIdGenerator messageIdGenerator = new MessageIdGenerator();
+    private final Map<String, Map<String, Integer>> advertisementsSent = new ConcurrentHashMap<>();
+    private final DeliveryTracker deliveryTracker = new DeliveryTracker();
+    private final MessageIdSequence messageIds = new MessageIdSequence();
+    private final DuplicateWindow duplicateWindow = new DuplicateWindow();
+    private final RateLimiter inboundLimiter = new RateLimiter();
+    private final RateLimiter relayLimiter = new RateLimiter();
+
+    private DataReceivedListener dataReceivedListener;
+    private ClientConnectedListener clientConnectedListener;
+    private ClientDisconnectedListener clientDisconnectedListener;
+
+    private WroupDevice thisDevice;
+    private ServerSocket serverSocket;
+    private volatile Outbox outbox;
+    private volatile MessageHistory history;
+    private volatile boolean totalOrder;
+    private final Object sequencerLock = new Object();
+    private long nextSequence;
+    private final ReorderBuffer localOrder = new ReorderBuffer();
+    private final ArrayDeque<MessageWrapper> localDeliveries = new ArrayDeque<>();
+    private boolean deliveringLocally;
+    private volatile boolean closing;
+
+    /**
+     * @param executor The executor used to send the messages in background.
+     */
+    public GroupOwner(Executor executor) {
+        this.executor = executor;
+        this.messageSender = new MessageSender(executor, metrics, tracer);
+        this.rpcEngine = new RpcEngine(executor, new RpcTransport() {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                sendMessage(device, message);
+            }
+        });
+        this.replicatedStore = new ReplicatedStore(new ReplicationTransport() {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                sendMessage(device, message);
+            }
+
+            @Override
+            public void sendToAll(MessageWrapper message) {
+                sendMessageToAllClients(message);
+            }
+        });
+        this.localOrder.reset(0);
+    }
+
+    /**
+     * Set the device of the group owner. A copy is kept, since the device of the node may be shared
+     * by other roles, like a client of another group.
+     *
+     * @param thisDevice The device of this node.
+     */
+    public void setThisDevice(WroupDevice thisDevice) {
+        WroupDevice ownDevice = null;
+        if (thisDevice != null) {
+            // The messages of the history carry the whole device, identified by the id too
+            ownDevice = new WroupDevice(thisDevice);
+            ownDevice.setPeerId(PeerDirectory.GROUP_OWNER_ID);
+        }
+        this.thisDevice = ownDevice;
+        replicatedStore.setReplicaId(thisDevice != null ? thisDevice.getDeviceMac() : null);
+    }
+
+    public WroupDevice getThisDevice() {
+        return thisDevice;
+    }
+
+    public void setDataReceivedListener(DataReceivedListener dataReceivedListener) {
+        this.dataReceivedListener = dataReceivedListener;
+    }
+
+    public void setClientConnectedListener(ClientConnectedListener clientConnectedListener) {
+        this.clientConnectedListener = clientConnectedListener;
+    }
+
+    public void setClientDisconnectedListener(ClientDisconnectedListener clientDisconnectedListener) {
+        this.clientDisconnectedListener = clientDisconnectedListener;
+    }
+
+    /**
+     * Obtain the metrics of the messages sent and received by this device.
+     *
+     * @return the metrics of this device.
+     */
+    public WroupMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Obtain the ids of the clients, which resolve the senders of the messages received.
+     *
+     * @return the directory of the ids of the group.
+     */
+    public PeerDirectory getPeerDirectory() {
+        return peerDirectory;
+    }
+
+    /**
+     * Obtain the tracer of the messages sent and received by this device.
+     *
+     * @return the tracer of this device.
+     */
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Obtain the engine of the remote calls made and answered by this device.
+     *
+     * @return the RPC engine of this device.
+     */
+    public RpcEngine getRpcEngine() {
+        return rpcEngine;
+    }
+
+    /**
+     * Obtain the key-value store replicated in all the devices of the group.
+     *
+     * @return the replicated store of this device.
+     */
+    public ReplicatedStore getReplicatedStore() {
+        return replicatedStore;
+    }
+
+    /**
+     * Keep the messages sent to the clients on disk until they acknowledge them, so the messages
+     * sent while a client is disconnected are delivered when it registers again, even after a
+     * restart of the application. Only the messages sent to one client without a topic are kept.
+     *
+     * @param directory The directory of the outbox, which is created if it doesn't exist.
+     */
+    public void enableOutbox(File directory) {
+        if (outbox == null) {
+            outbox = new Outbox(directory, new OutboxTransport() {
+                @Override
+                public void send(WroupDevice device, MessageWrapper message) {
+                    // The messages kept on disk may carry the id of a previous group
+                    message.setSender(thisDevice, PeerDirectory.GROUP_OWNER_ID);
+                    sendMessage(device, messageSender.prepare(message, 1));
+                }
+            });
+        }
+    }
+
+    /**
+     * Obtain the outbox of the messages sent to the clients.
+     *
+     * @return the outbox of this device, or null if it isn't enabled.
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Keep the last data messages sent to all the group or published in a topic, so the clients
+     * which join later can ask for them. The memory used is bounded by the size of the history.
+     *
+     * @param maxBytes    The maximum number of bytes of the messages kept.
+     * @param maxMessages The maximum number of messages kept.
+     * @param offHeap     True to keep the messages out of the Java heap.
+     */
+    public void enableHistory(int maxBytes, int maxMessages, boolean offHeap) {
+        if (history == null) {
+            history = new MessageHistory(maxBytes, maxMessages, offHeap);
+        }
+    }
+
+    /**
+     * Send the messages to all the group in total order: the group owner stamps them with a
+     * sequence number and every device delivers them in the same order, including the messages of
+     * the sender, which are delivered to it too. The clients which register from now on send their
+     * messages to all the group through the group owner, which costs one more hop.
+     *
+     * @param totalOrder True to send the messages to all the group in total order.
+     */
+    public void setTotalOrder(boolean totalOrder) {
+        this.totalOrder = totalOrder;
+    }
+
+    /**
+     * @return true if the messages to all the group are sent in total order.
+     */
+    public boolean isTotalOrder() {
+        return totalOrder;
+    }
+
+    /**
+     * Obtain the history of the messages sent to the group.
+     *
+     * @return the history of the group, or null if it isn't enabled.
+     */
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Limit the rate of the data messages received from every client. The messages which exceed it
+     * through the link of the client are delayed, which slows the client down without affecting
+     * the rest of the group, and the ones sent in their own connection are discarded. The limit is
+     * applied before the messages are decoded, and the control messages sent through the links are
+     * never limited.
+     *
+     * @param messagesPerSecond The average rate allowed to every client, or 0 to remove the limit.
+     * @param burst             The number of messages allowed at once to every client.
+     */
+    public void setInboundRateLimit(double messagesPerSecond, int burst) {
+        inboundLimiter.setLimit(messagesPerSecond, burst);
+    }
+
+    /**
+     * Limit the rate of the messages which the group owner relays for every client, the ones
+     * published in a topic and the routed ones forwarded to other devices. The messages which
+     * exceed it aren't relayed, but the group owner still receives them.
+     *
+     * @param messagesPerSecond The average rate allowed to every client, or 0 to remove the limit.
+     * @param burst             The number of messages relayed at once for every client.
+     */
+    public void setRelayRateLimit(double messagesPerSecond, int burst) {
+        relayLimiter.setLimit(messagesPerSecond, burst);
+    }
+
+    /**
+     * Set the share of the sending threads which the messages to a client take when there are
+     * messages queued for other clients too.
+     *
+     * @param clientMac The MAC address of the client.
+     * @param weight    The weight of the client, 1 by default.
+     */
+    public void setClientWeight(String clientMac, int weight) {
+        messageSender.setPeerWeight(clientMac, weight);
+    }
+
+    /**
+     * Obtain the routes to the devices of other groups, learned from the bridges of this group.
+     *
+     * @return the routing table of this device.
+     */
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    /**
+     * Obtain the devices registered in the group.
+     *
+     * @return the devices registered in the group.
+     */
+    public Collection<WroupDevice> getClientsConnected() {
+        return clientsConnected.values();
+    }
+
+    /**
+     * Obtain the topics which every client of the group is subscribed to.
+     *
+     * @return the subscription index of the group.
+     */
+    public SubscriptionIndex getSubscriptionIndex() {
+        return subscriptionIndex;
+    }
+
+    /**
+     * Subscribe the group owner to the messages published by the clients in the topics which match
+     * the pattern. They are notified to the <code>DataReceivedListener</code>.
+     *
+     * @param pattern A topic or a prefix followed by the wildcard.
+     */
+    public void subscribe(String pattern) {
+        TopicPatterns.checkPattern(pattern);
+        subscriptions.add(pattern);
+    }
+
+    /**
+     * Unsubscribe the group owner from a pattern.
+     *
+     * @param pattern The pattern used to subscribe.
+     */
+    public void unsubscribe(String pattern) {
+        subscriptions.remove(pattern);
+    }
+
+    /**
+     * Accept the messages sent to the server socket until it's closed. This method blocks, so it
+     * must be called from a background thread.
+     *
+     * @param serverSocket The server socket of the group owner.
+     * @throws IOException If the server socket is closed or fails accepting connections.
+     */
+    public void listen(ServerSocket serverSocket) throws IOException {
+        this.serverSocket = serverSocket;
+        MessageReceiver messageReceiver = new MessageReceiver(serverSocket, this, metrics, tracer);
+        messageReceiver.setRateLimiter(inboundLimiter);
+        messageReceiver.setPeerDirectory(peerDirectory);
+        messageReceiver.receive();
+    }
+
+    /**
+     * Close the group gracefully in background: the messages sent from now on are discarded, the
+     * ones already queued are sent, and then the server socket and the links are closed. Whatever
+     * is left at the deadline is abandoned.
+     *
+     * @param timeoutMillis    The maximum time to send the messages queued.
+     * @param shutdownListener The listener notified when the sockets have been closed, or null.
+     */
+    public void shutdown(final long timeoutMillis, final ShutdownListener shutdownListener) {
+        closing = true;
+        // The wait has its own thread, so it doesn't hold one of the executor which sends the messages
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean graceful = messageSender.drain(timeoutMillis);
+                close();
+                closing = false;
+                if (shutdownListener != null) {
+                    shutdownListener.onShutdownCompleted(graceful);
+                }
+            }
+        }, "wroup-shutdown").start();
+    }
+
+    /**
+     * @return true while the group is being closed and the messages sent are discarded.
+     */
+    public boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Close the server socket and forget the devices registered.
+     */
+    public void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+                WroupLog.i(TAG, "ServerSocket closed");
+            } catch (IOException e) {
+                WroupLog.e(TAG, "Error closing the serverSocket");
+            }
+        }
+
+        serverSocket = null;
+        messageSender.closeLinks();
+        rpcEngine.cancelAll();
+        clientsConnected.clear();
+        peerDirectory.clear();
+        routingTable.clear();
+        duplicateFilter.clear();
+        duplicateWindow.clear();
+        inboundLimiter.clear();
+        relayLimiter.clear();
+        advertisementsSent.clear();
+        subscriptionIndex.clear();
+        metrics.setMembershipSize(0);
+
+        MessageHistory history = this.history;
+        if (history != null) {
+            history.clear();
+        }
+
+        synchronized (sequencerLock) {
+            nextSequence = 0;
+        }
+        synchronized (localOrder) {
+            localOrder.clear();
+            localOrder.reset(0);
+            localDeliveries.clear();
+        }
+
+        // The outbox keeps the messages of the clients until they register in a new group
+        Outbox outbox = this.outbox;
+        if (outbox != null) {
+            outbox.onAllDevicesDisconnected();
+        }
+    }
+
+    /**
+     * Send a message to all the devices registered in the group.
+     *
+     * @param message The message to be sent.
+     */
+    public void sendMessageToAllClients(MessageWrapper message) {
+        message.setSender(thisDevice, PeerDirectory.GROUP_OWNER_ID);
+        assignId(message);
+        if (totalOrder && MessageWrapper.MessageType.NORMAL.equals(message.getMessageType()) && message.getTopic() == null) {
+            sendInTotalOrder(message);
+            return;
+        }
+
+        // The message is encoded once for all the clients
+        List<WroupDevice> clients = new ArrayList<>(clientsConnected.values());
+        addToHistory(message);
+        EncodedMessage encodedMessage = messageSender.prepare(message, clients.size());
+        for (WroupDevice clientDevice : clients) {
+            sendMessage(clientDevice, encodedMessage);
+        }
+    }
+
+    /**
+     * Publish a message in a topic. It's only sent to the clients subscribed to the topic.
+     *
+     * @param topic   The topic of the message.
+     * @param message The message to be published.
+     */
+    public void publish(String topic, MessageWrapper message) {
+        TopicPatterns.checkTopic(topic);
+        message.setTopic(topic);
+        message.setSender(thisDevice, PeerDirectory.GROUP_OWNER_ID);
+        assignId(message);
+        routePublication(message, null);
+    }
+
+    /**
+     * Send a message to a device of this group or of another group connected through bridges.
+     *
+     * @param destinationMac The MAC address of the receiver of the message.
+     * @param message        The message to be sent.
+     */
+    public void sendRoutedMessage(String destinationMac, MessageWrapper message) {
+        message.setWroupDevice(thisDevice);
+        assignId(message);
+
+        RoutedMessageContent content = new RoutedMessageContent();
+        content.setMessageId(messageIdGenerator.next(thisDevice.getDeviceMac()));
+        content.setDestinationMac(destinationMac);
+        content.setTtl(RoutingTable.MAX_DISTANCE);
+        content.setMessage(message);
+
+        duplicateFilter.add(content.getMessageId());
+        routeMessage(content);
+    }
+
+    /**
+     * Send a message in background to the desired device registered in the group.
+     *
+     * @param device  The receiver of the message.
+     * @param message The message to be sent.
+     */
+    public void sendMessage(final WroupDevice device, final MessageWrapper message) {
+        // Set the actual device to the message
+        message.setSender(thisDevice, PeerDirectory.GROUP_OWNER_ID);
+        assignId(message);
+
+        Outbox outbox = this.outbox;
+        if (outbox != null && !closing && MessageWrapper.MessageType.NORMAL.equals(message.getMessageType()) && message.getTopic() == null) {
+            outbox.send(device, message);
+            return;
+        }
+        sendMessage(device, messageSender.prepare(message, 1));
+    }
+
+    private void sendMessage(WroupDevice device, EncodedMessage encodedMessage) {
+        MessageWrapper.MessageType messageType = encodedMessage.getMessage().getMessageType();
+        if (closing && !MessageWrapper.MessageType.DISCONNECTION_MESSAGE.equals(messageType)
+                && !MessageWrapper.MessageType.DISCONNECTION_ACK.equals(messageType)) {
+            // The group is being closed, only the disconnections are sent
+            encodedMessage.release();
+            WroupLog.w(TAG, "Discarded {} sent while closing the group", messageType);
+            return;
+        }
+        TraceContext trace = MessageWrapper.MessageType.NORMAL.equals(encodedMessage.getMessage().getMessageType()) ? tracer.newTraceContext() : null;
+        messageSender.enqueue(device, encodedMessage, trace);
+    }
+
+    @Override
+    public void onMessageReceived(MessageWrapper messageWrapper, InetAddress fromAddress) {
+        if (messageWrapper.getMessageType().equals(MessageWrapper.MessageType.CONNECTION_MESSAGE)) {
+            Gson gson = MessageCodec.GSON;
+
+            String messageContentStr = messageWrapper.getMessage();
+            RegistrationMessageContent registrationMessageContent = gson.fromJson(messageContentStr, RegistrationMessageContent.class);
+            WroupDevice client = registrationMessageContent.getWroupDevice();
+            client.setDeviceServerSocketIP(fromAddress.getHostAddress());
+            int peerId = peerDirectory.register(client);
+            WroupLog.d(TAG, "New client registered: {} ({}) at {}:{} with id {}", client.getDeviceName(), client.getDeviceMac(),
+                    client.getDeviceServerSocketIP(), client.getDeviceServerSocketPort(), peerId);
+
+            // Sending to all clients that new client is connected, before the new client knows them
+            // and can send them messages with its id
+            for (WroupDevice device : clientsConnected.values()) {
+                if (!client.getDeviceMac().equals(device.getDeviceMac())) {
+                    sendConnectionMessage(device, client);
+                }
+            }
+            Long clientNextSequence;
+            synchronized (sequencerLock) {
+                // The client knows the ids of the group before any message is relayed to it, and
+                // receives all the messages stamped from now on
+                clientNextSequence = totalOrder ? Long.valueOf(nextSequence) : null;
+                sendRegisteredDevicesMessage(client, clientNextSequence);
+                clientsConnected.put(client.getDeviceMac(), client);
+            }
+            subscriptionIndex.setSubscriptions(client.getDeviceMac(), validPatterns(registrationMessageContent.getSubscriptions()));
+            metrics.setMembershipSize(clientsConnected.size());
+
+            if (registrationMessageContent.getHistory() != null) {
+                sendHistory(client, registrationMessageContent.getHistory(), clientNextSequence);
+            }
+
+            if (clientConnectedListener != null) {
+                clientConnectedListener.onClientConnected(client);
+            }
+
+            Outbox outbox = this.outbox;
+            if (outbox != null) {
+                outbox.onDeviceConnected(client);
+            }
+
+            advertiseRoutes();
+        } else if (messageWrapper.getMessageType().equals(MessageWrapper.MessageType.DISCONNECTION_MESSAGE)) {
+            Gson gson = MessageCodec.GSON;
+
+            String messageContentStr = messageWrapper.getMessage();
+            DisconnectionMessageContent disconnectionMessageContent = gson.fromJson(messageContentStr, DisconnectionMessageContent.class);
+            WroupDevice client = disconnectionMessageContent.getWroupDevice();
+            WroupDevice registeredClient = clientsConnected.remove(client.getDeviceMac());
+            peerDirectory.remove(client.getDeviceMac());
+            sendDisconnectionAck(registeredClient != null ? registeredClient : client);
+            messageSender.closeLink(registeredClient != null ? registeredClient : client);
+            subscriptionIndex.removeDevice(client.getDeviceMac());
+            metrics.setMembershipSize(clientsConnected.size());
+
+            WroupLog.d(TAG, "Client disconnected: {} ({}) at {}:{}", client.getDeviceName(), client.getDeviceMac(),
+                    client.getDeviceServerSocketIP(), client.getDeviceServerSocketPort());
+
+            // Sending to all clients that a client is disconnected now
+            for (WroupDevice device : clientsConnected.values()) {
+                if (!client.getDeviceMac().equals(device.getDeviceMac())) {
+                    sendDisconnectionMessage(device, client);
+                }
+            }
+
+            if (clientDisconnectedListener != null) {
+                clientDisconnectedListener.onClientDisconnected(client);
+            }
+
+            Outbox outbox = this.outbox;
+            if (outbox != null) {
+                outbox.onDeviceDisconnected(client.getDeviceMac());
+            }
+
+            inboundLimiter.remove(client.getDeviceMac());
+            inboundLimiter.remove(client.getDeviceServerSocketIP());
+            relayLimiter.remove(client.getDeviceMac());
+            routingTable.removeNeighbor(client.getDeviceMac());
+            advertisementsSent.remove(client.getDeviceMac());
+            advertiseRoutes();
+        } else if (messageWrapper.getMessageType().equals(MessageWrapper.MessageType.CLOCK_SYNC_REQUEST)) {
+            long receiveMicros = tracer.localMicros();
+            WroupDevice client = messageWrapper.getWroupDevice() != null ? clientsConnected.get(messageWrapper.getWroupDevice().getDeviceMac()) : null;
+            if (client != null) {
+                Gson gson = MessageCodec.GSON;
+                ClockSyncMessageContent content = gson.fromJson(messageWrapper.getMessage(), ClockSyncMessageContent.class);
+                content.setReceiveMicros(receiveMicros);
+                sendClockSyncResponse(client, content);
+            }
+        } else if (MessageWrapper.MessageType.RPC_REQUEST.equals(messageWrapper.getMessageType())) {
+            WroupDevice caller = messageWrapper.getWroupDevice() != null ? clientsConnected.get(messageWrapper.getWroupDevice().getDeviceMac()) : null;
+            rpcEngine.onRequest(messageWrapper, caller);
+        } else if (MessageWrapper.MessageType.RPC_RESPONSE.equals(messageWrapper.getMessageType())) {
+            rpcEngine.onResponse(messageWrapper);
+        } else if (MessageWrapper.MessageType.STATE_DELTA.equals(messageWrapper.getMessageType())) {
+            replicatedStore.onDelta(messageWrapper);
+        } else if (MessageWrapper.MessageType.STATE_SYNC.equals(messageWrapper.getMessageType())) {
+            WroupDevice client = messageWrapper.getWroupDevice() != null ? clientsConnected.get(messageWrapper.getWroupDevice().getDeviceMac()) : null;
+            replicatedStore.onSync(messageWrapper, client);
+        } else if (MessageWrapper.MessageType.OUTBOX_ACK.equals(messageWrapper.getMessageType())) {
+            Outbox outbox = this.outbox;
+            OutboxAckMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), OutboxAckMessageContent.class);
+            if (outbox != null && content != null && messageWrapper.getWroupDevice() != null) {
+                outbox.onAcknowledgement(messageWrapper.getWroupDevice().getDeviceMac(), content);
+            }
+        } else if (MessageWrapper.MessageType.ROUTED.equals(messageWrapper.getMessageType())) {
+            RoutedMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), RoutedMessageContent.class);
+            if (content != null && content.getMessage() != null && duplicateFilter.add(content.getMessageId())
+                    && (isForThisDevice(content) || tryRelay(messageWrapper.getWroupDevice()))) {
+                routeMessage(content);
+            }
+        } else if (MessageWrapper.MessageType.ROUTE_ADVERTISEMENT.equals(messageWrapper.getMessageType())) {
+            // The clients which advertise routes are the bridges with other groups
+            WroupDevice bridge = messageWrapper.getWroupDevice();
+            RouteAdvertisementMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), RouteAdvertisementMessageContent.class);
+            if (bridge != null && content != null) {
+                routingTable.update(bridge.getDeviceMac(), content.getDistances());
+                advertiseRoutes();
+            }
+        } else if (MessageWrapper.MessageType.SUBSCRIPTION.equals(messageWrapper.getMessageType())) {
+            WroupDevice client = messageWrapper.getWroupDevice();
+            SubscriptionMessageContent content = MessageCodec.GSON.fromJson(messageWrapper.getMessage(), SubscriptionMessageContent.class);
+            if (client != null && content != null) {
+                for (String pattern : validPatterns(content.getSubscribed())) {
+                    subscriptionIndex.subscribe(client.getDeviceMac(), pattern);
+                }
+                if (content.getUnsubscribed() != null) {
+                    for (String pattern : content.getUnsubscribed()) {
+                        subscriptionIndex.unsubscribe(client.getDeviceMac(), pattern);
+                    }
+                }
+            }
+        } else {
+            if (isDuplicate(messageWrapper)) {
+                return;
+            }
+
+            if (messageWrapper.isOrdered()) {
+                // Not even this device delivers a message which isn't relayed, so all of them have the same order
+                if (tryRelay(messageWrapper.getWroupDevice())) {
+                    sendInTotalOrder(messageWrapper);
+                }
+                return;
+            }
+
+            // The publications are kept when they are routed
+            if (messageWrapper.isBroadcast() && messageWrapper.getTopic() == null) {
+                addToHistory(messageWrapper);
+            }
+
+            String topic = messageWrapper.getTopic();
+            if (topic != null) {
+                // Published by a client, it's routed to the subscribers keeping the publisher as sender
+                WroupDevice publisher = messageWrapper.getWroupDevice();
+                routePublication(messageWrapper, publisher != null ? publisher.getDeviceMac() : null);
+                if (!isSubscribed(topic)) {
+                    return;
+                }
+            }
+
+            if (dataReceivedListener != null) {
+                dataReceivedListener.onDataReceived(messageWrapper);
+            }
+        }
+    }
+
+    /**
+     * Check if a data message is a copy of one already received. The messages of an outbox are
+     * acknowledged and checked by their position in it, and the rest by their id.
+     */
+    private boolean isDuplicate(MessageWrapper message) {
+        boolean duplicate;
+        if (message.getOutboxStamp() != null) {
+            duplicate = !acceptFromOutbox(message);
+        } else {
+            duplicate = !duplicateWindow.accept(message);
+        }
+        if (duplicate) {
+            metrics.onDuplicateDiscarded();
+        }
+        return duplicate;
+    }
+
+    /**
+     * Give a new id to a data message sent by this device, so the receivers can discard its
+     * copies.
+     */
+    private void assignId(MessageWrapper message) {
+        if (MessageWrapper.MessageType.NORMAL.equals(message.getMessageType())) {
+            message.setId(messageIds.next());
+        }
+    }
+
+    /**
+     * Acknowledge a message sent from the outbox of a client.
+     *
+     * @return true if the message must be delivered, false if it's a duplicate.
+     */
+    private boolean acceptFromOutbox(MessageWrapper message) {
+        WroupDevice sender = message.getWroupDevice() != null ? clientsConnected.get(message.getWroupDevice().getDeviceMac()) : null;
+        if (sender == null) {
+            return true;
+        }
+
+        boolean accepted = deliveryTracker.accept(sender.getDeviceMac(), message.getOutboxStamp());
+        OutboxAckMessageContent content = new OutboxAckMessageContent();
+        content.setEpoch(message.getOutboxStamp().getEpoch());
+        content.setSequence(deliveryTracker.getAcknowledged(sender.getDeviceMac()));
+
+        MessageWrapper ack = new MessageWrapper();
+        ack.setMessageType(MessageWrapper.MessageType.OUTBOX_ACK);
+        ack.setMessage(MessageCodec.GSON.toJson(content));
+        sendMessage(sender, ack);
+        return accepted;
+    }
+
+    /**
+     * Take a message of the relay rate of a client.
+     *
+     * @return true if the message can be relayed, false if the client has exceeded its rate.
+     */
+    private boolean tryRelay(WroupDevice sender) {
+        String senderMac = sender != null ? sender.getDeviceMac() : null;
+        if (relayLimiter.tryAcquire(senderMac, 1)) {
+            return true;
+        }
+        metrics.onRelayThrottled(senderMac);
+        return false;
+    }
+
+    private boolean isForThisDevice(RoutedMessageContent content) {
+        return thisDevice != null && thisDevice.getDeviceMac().equals(content.getDestinationMac());
+    }
+
+    /**
+     * Send a message published in a topic to the clients subscribed to it, if the publisher hasn't
+     * exceeded its relay rate.
+     *
+     * @param publisherMac The MAC address of the client which has published the message, or null
+     *                     if it's the group owner.
+     */
+    private void routePublication(MessageWrapper message, String publisherMac) {
+        addToHistory(message);
+        Set<String> subscribers = subscriptionIndex.getSubscribers(message.getTopic());
+        List<WroupDevice> devices = new ArrayList<>(subscribers.size());
+        for (String subscriber : subscribers) {
+            WroupDevice device = clientsConnected.get(subscriber);
+            if (device != null && !subscriber.equals(publisherMac)) {
+                devices.add(device);
+            }
+        }
+
+        if (!devices.isEmpty() && (publisherMac == null || tryRelay(message.getWroupDevice()))) {
+            EncodedMessage encodedMessage = messageSender.prepare(message, devices.size());
+            for (WroupDevice device : devices) {
+                sendMessage(device, encodedMessage);
+            }
+        }
+    }
+
+    private boolean isSubscribed(String topic) {
+        for (String pattern : subscriptions) {
+            if (TopicPatterns.matches(pattern, topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The patterns come from other devices, so the invalid ones are discarded instead of failing.
+     */
+    private static List<String> validPatterns(List<String> patterns) {
+        List<String> validPatterns = new ArrayList<>();
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                try {
+                    TopicPatterns.checkPattern(pattern);
+                    validPatterns.add(pattern);
+                } catch (IllegalArgumentException e) {
+                    WroupLog.w(TAG, e.getMessage());
+                }
+            }
+        }
+        return validPatterns;
+    }
+
+    /**
+     * Stamp a data message with the next sequence number of the group, send it to all the clients
+     * and deliver it to this device in order. Only the stamp and the clients which receive it are
+     * taken under the lock of the sequencer, so a client which registers at the same time receives
+     * all the messages from the sequence number of its registration, and the message is encoded
+     * and sent outside it. The receivers reorder the messages which overtake others.
+     */
+    private void sendInTotalOrder(MessageWrapper message) {
+        List<WroupDevice> clients;
+        long sequence;
+        synchronized (sequencerLock) {
+            sequence = nextSequence++;
+            clients = new ArrayList<>(clientsConnected.values());
+        }
+        message.setOrdered(false);
+        message.setSequence(sequence);
+        addToHistory(message);
+
+        EncodedMessage encodedMessage = messageSender.prepare(message, clients.size());
+        for (WroupDevice clientDevice : clients) {
+            sendMessage(clientDevice, encodedMessage);
+        }
+
+        // The messages of this device and the ones relayed are ordered from different threads, and
+        // only one of them delivers at a time so they are delivered in order too
+        synchronized (localOrder) {
+            localDeliveries.addAll(localOrder.offer(message));
+            if (deliveringLocally) {
+                return;
+            }
+            deliveringLocally = true;
+        }
+        deliverLocally();
+    }
+
+    /**
+     * Deliver the messages ordered to this device until there are no more, outside the lock of the
+     * order so the listener doesn't block the threads which order the next ones.
+     */
+    private void deliverLocally() {
+        boolean finished = false;
+        try {
+            while (true) {
+                MessageWrapper deliverable;
+                synchronized (localOrder) {
+                    deliverable = localDeliveries.poll();
+                    if (deliverable == null) {
+                        deliveringLocally = false;
+                        finished = true;
+                        return;
+                    }
+                }
+                if (dataReceivedListener != null) {
+                    dataReceivedListener.onDataReceived(deliverable);
+                }
+            }
+        } finally {
+            if (!finished) {
+                // The listener has failed, the next message ordered delivers the rest
+                synchronized (localOrder) {
+                    deliveringLocally = false;
+                }
+            }
+        }
+    }
+
+    private void addToHistory(MessageWrapper message) {
+        MessageHistory history = this.history;
+        if (history != null && MessageWrapper.MessageType.NORMAL.equals(message.getMessageType())) {
+            history.add(message, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Send in background the messages of the history requested by a client which has registered.
+     * The messages are already encoded, so they are joined in the content without decoding them.
+     * The client is always answered, without messages if the history isn't enabled, since it waits
+     * for them to deliver the messages in total order.
+     *
+     * @param nextSequence The sequence number of the first message sent to the client, or null if
+     *                     the messages aren't sent in total order.
+     */
+    private void sendHistory(final WroupDevice client, final HistoryRequest request, final Long nextSequence) {
+        final MessageHistory history = this.history;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> messages = history != null
+                        ? history.select(request, client.getDeviceMac(), subscriptionIndex.getSubscriptions(client.getDeviceMac()))
+                        : Collections.<String>emptyList();
+                StringBuilder content = new StringBuilder("{");
+                if (nextSequence != null) {
+                    content.append("\"nextSequence\":").append(nextSequence).append(',');
+                }
+                content.append("\"messages\":[");
+                for (int i = 0; i < messages.size(); i++) {
+                    if (i > 0) {
+                        content.append(',');
+                    }
+                    content.append(messages.get(i));
+                }
+                content.append("]}");
+
+                MessageWrapper messageWrapper = new MessageWrapper();
+                messageWrapper.setMessageType(MessageWrapper.MessageType.HISTORY);
+                messageWrapper.setMessage(content.toString());
+                sendMessage(client, messageWrapper);
+                WroupLog.d(TAG, "Sent {} messages of the history to {}", messages.size(), client.getDeviceMac());
+            }
+        });
+    }
+
+    private void sendClockSyncResponse(final WroupDevice deviceToSend, final ClockSyncMessageContent content) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The transmit time is stamped as late as possible to reduce the asymmetry of the exchange
+                content.setTransmitMicros(tracer.localMicros());
+
+                MessageWrapper messageWrapper = new MessageWrapper();
+                messageWrapper.setMessageType(MessageWrapper.MessageType.CLOCK_SYNC_RESPONSE);
+                messageWrapper.setMessage(MessageCodec.GSON.toJson(content));
+                messageWrapper.setSender(thisDevice, PeerDirectory.GROUP_OWNER_ID);
+
+                messageSender.sendWithRetries(deviceToSend, messageWrapper);
+            }
+        });
+    }
+
+    private void sendConnectionMessage(WroupDevice deviceToSend, WroupDevice deviceConnected) {
+        RegistrationMessageContent content = new RegistrationMessageContent();
+        content.setWroupDevice(deviceConnected);
+
+        Gson gson = MessageCodec.GSON;
+
+        MessageWrapper messageWrapper = new MessageWrapper();
+        messageWrapper.setMessageType(MessageWrapper.MessageType.CONNECTION_MESSAGE);
+        messageWrapper.setMessage(gson.toJson(content));
+
+        sendMessage(deviceToSend, messageWrapper);
+    }
+
+    private void sendDisconnectionMessage(WroupDevice deviceToSend, WroupDevice deviceDisconnected) {
+        DisconnectionMessageContent content = new DisconnectionMessageContent();
+        content.setWroupDevice(deviceDisconnected);
+
+        Gson gson = MessageCodec.GSON;
+
+        MessageWrapper disconnectionMessage = new MessageWrapper();
+        disconnectionMessage.setMessageType(MessageWrapper.MessageType.DISCONNECTION_MESSAGE);
+        disconnectionMessage.setMessage(gson.toJson(content));
+
+        sendMessage(deviceToSend, disconnectionMessage);
+    }
+
+    private void sendDisconnectionAck(WroupDevice deviceToSend) {
+        if (deviceToSend.getDeviceServerSocketIP() == null) {
+            return;
+        }
+
+        MessageWrapper ack = new MessageWrapper();
+        ack.setMessageType(MessageWrapper.MessageType.DISCONNECTION_ACK);
+        sendMessage(deviceToSend, ack);
+    }
+
+    private void sendRegisteredDevicesMessage(WroupDevice deviceToSend, Long nextSequence) {
+        List<WroupDevice> devicesConnected = new ArrayList<>();
+        for (WroupDevice device : clientsConnected.values()) {
+            if (!device.getDeviceMac().equals(deviceToSend.getDeviceMac())) {
+                devicesConnected.add(device);
+            }
+        }
+
+        RegisteredDevicesMessageContent content = new RegisteredDevicesMessageContent();
+        content.setDevicesRegistered(devicesConnected);
+        content.setPeerId(deviceToSend.getPeerId());
+        content.setNextSequence(nextSequence);
+
+        Gson gson = MessageCodec.GSON;
+
+        MessageWrapper messageWrapper = new MessageWrapper();
+        messageWrapper.setMessageType(MessageWrapper.MessageType.REGISTERED_DEVICES);
+        messageWrapper.setMessage(gson.toJson(content));
+
+        sendMessage(deviceToSend, messageWrapper);
+    }
+
+    /**
+     * Deliver a routed message if its destination is this device or a client of the group, or
+     * forward it to the bridge of the best route otherwise.
+     */
+    private void routeMessage(RoutedMessageContent content) {
+        String destinationMac = content.getDestinationMac();
+        if (isForThisDevice(content)) {
+            if (dataReceivedListener != null && !isDuplicate(content.getMessage())) {
+                dataReceivedListener.onDataReceived(content.getMessage());
+            }
+            return;
+        }
+
+        WroupDevice client = clientsConnected.get(destinationMac);
+        if (client != null) {
+            // Delivered as a plain message, keeping the device which sent it originally
+            sendMessage(client, messageSender.prepare(content.getMessage(), 1));
+            return;
+        }
+
+        RoutingTable.Route route = routingTable.getRoute(destinationMac);
+        WroupDevice bridge = route != null ? clientsConnected.get(route.getNextHop()) : null;
+        if (bridge == null || content.getTtl() <= 1) {
+            WroupLog.w(TAG, "Discarded routed message {} without route to {}", content.getMessageId(), destinationMac);
+            return;
+        }
+
+        content.setTtl(content.getTtl() - 1);
+        MessageWrapper messageWrapper = new MessageWrapper();
+        messageWrapper.setMessageType(MessageWrapper.MessageType.ROUTED);
+        messageWrapper.setMessage(MessageCodec.GSON.toJson(content));
+        sendMessage(bridge, messageWrapper);
+    }
+
+    /**
+     * Send to every bridge of the group the devices reachable through this group, if they have
+     * changed since the last advertisement sent to it.
+     */
+    private void advertiseRoutes() {
+        Collection<String> bridges = routingTable.getNeighbors();
+        if (bridges.isEmpty()) {
+            return;
+        }
+
+        List<String> localDevices = new ArrayList<>(clientsConnected.keySet());
+        if (thisDevice != null) {
+            localDevices.add(thisDevice.getDeviceMac());
+        }
+        for (String bridgeMac : bridges) {
+            WroupDevice bridge = clientsConnected.get(bridgeMac);
+            if (bridge == null) {
+                continue;
+            }
+
+            Map<String, Integer> distances = routingTable.advertisementFor(bridgeMac, localDevices);
+            if (!distances.equals(advertisementsSent.put(bridgeMac, distances))) {
+                RouteAdvertisementMessageContent content = new RouteAdvertisementMessageContent();
+                content.setDistances(distances);
+
+                MessageWrapper messageWrapper = new MessageWrapper();
+                messageWrapper.setMessageType(MessageWrapper.MessageType.ROUTE_ADVERTISEMENT);
+                messageWrapper.setMessage(MessageCodec.GSON.toJson(content));
+                sendMessage(bridge, messageWrapper);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+package com.abemart.wroup.service;
+
+
+import android.net.wifi.p2p.WifiP2pGroup;
+import android.net.wifi.p2p.WifiP2pInfo;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
+import android.os.AsyncTask;
+
+import com.abemart.wroup.common.WiFiP2PError;
+import com.abemart.wroup.common.WiFiP2PInstance;
+import com.abemart.wroup.common.listeners.ServiceRegisteredListener;
+import com.abemart.wroup.common.logging.WroupLog;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The startup of a {@link WroupService}, run as a state machine in the thread of the
+ * <code>WiFiP2PInstance</code>.
+ * <p>
+ * The steps which don't depend on each other start at once: the server socket is bound in the
+ * executor of the service while the previous group is removed and the new one is created, and the
+ * local services of the channel are cleared. The service is advertised only when the socket accepts
+ * connections and the group is formed, so the clients which discover it can join it, and the
+ * success is notified once it's advertised. The results of a startup cancelled or failed are
+ * ignored.
+ */
+final class ServiceStartup {
+
+    private static final String TAG = ServiceStartup.class.getSimpleName();
+
+    private final WiFiP2PInstance wiFiP2PInstance;
+    private final GroupOwner groupOwner;
+    private final int serverPort;
+    private final Executor executor;
+    private final Executor callbackExecutor;
+    private final long timeoutMillis;
+    private final WifiP2pDnsSdServiceInfo serviceInfo;
+    private final ServiceRegisteredListener serviceRegisteredListener;
+
+    private volatile WroupService.State state = WroupService.State.PREPARING;
+    private volatile ServerSocket serverSocket;
+    private volatile StartupTimings timings;
+
+    private long startNanos;
+    private long socketNanos;
+    private long groupNanos;
+    private long advertiseNanos;
+    private boolean servicesCleared;
+    private boolean groupRequested;
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            WroupLog.e(TAG, "The service isn't ready after {} ms (socket {}, group {}, services cleared {})", timeoutMillis,
+                    socketNanos != 0, groupNanos != 0, servicesCleared);
+            fail(WiFiP2PError.ERROR);
+        }
+    };
+
+    ServiceStartup(WiFiP2PInstance wiFiP2PInstance, GroupOwner groupOwner, int serverPort, Executor executor,
+                   Executor callbackExecutor, long timeoutMillis, WifiP2pDnsSdServiceInfo serviceInfo,
+                   ServiceRegisteredListener serviceRegisteredListener) {
+        this.wiFiP2PInstance = wiFiP2PInstance;
+        this.groupOwner = groupOwner;
+        this.serverPort = serverPort;
+        this.executor = executor;
+        this.callbackExecutor = callbackExecutor;
+        this.timeoutMillis = timeoutMillis;
+        this.serviceInfo = serviceInfo;
+        this.serviceRegisteredListener = serviceRegisteredListener;
+    }
+
+    WroupService.State getState() {
+        return state;
+    }
+
+    /**
+     * @return the timings of the startup, or null if the service isn't ready.
+     */
+    StartupTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Start the independent steps. It's called in the thread of the <code>WiFiP2PInstance</code>.
+     */
+    void start() {
+        if (state != WroupService.State.PREPARING) {
+            return;
+        }
+        startNanos = System.nanoTime();
+        if (timeoutMillis > 0) {
+            wiFiP2PInstance.getHandler().postDelayed(timeout, timeoutMillis);
+        }
+
+        bindServerSocket();
+        clearLocalServices();
+        removeAndCreateGroup();
+    }
+
+    /**
+     * Notify that the WiFi P2P connection has changed. It's called in the thread of the
+     * <code>WiFiP2PInstance</code>.
+     */
+    void onPeerConnected(WifiP2pInfo wifiP2pInfo) {
+        if (state == WroupService.State.PREPARING && groupRequested && groupNanos == 0
+                && wifiP2pInfo.groupFormed && wifiP2pInfo.isGroupOwner) {
+            groupNanos = System.nanoTime();
+            WroupLog.i(TAG, "Group formed in {} ms", millisSince(startNanos, groupNanos));
+            advance();
+        }
+    }
+
+    /**
+     * Stop the startup, closing the server socket if it was bound. It can be called from any
+     * thread.
+     */
+    void cancel() {
+        state = WroupService.State.IDLE;
+        wiFiP2PInstance.getHandler().removeCallbacks(timeout);
+        closeServerSocket();
+    }
+
+    private boolean isActive() {
+        return state == WroupService.State.PREPARING || state == WroupService.State.ADVERTISING;
+    }
+
+    private void bindServerSocket() {
+        new AsyncTask<Void, Void, Void>() {
+
+            @Override
+            protected Void doInBackground(Void... params) {
+                ServerSocket socket;
+                try {
+                    socket = new ServerSocket(serverPort);
+                } catch (IOException e) {
+                    WroupLog.e(TAG, "Error creating server socket: {}", e.getMessage());
+                    wiFiP2PInstance.getHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            fail(WiFiP2PError.ERROR);
+                        }
+                    });
+                    return null;
+                }
+
+                serverSocket = socket;
+                if (!isActive()) {
+                    // Cancelled while the socket was bound
+                    closeServerSocket();
+                    return null;
+                }
+
+                wiFiP2PInstance.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (state == WroupService.State.PREPARING && socketNanos == 0) {
+                            socketNanos = System.nanoTime();
+                            advance();
+                        }
+                    }
+                });
+
+                // The connections are queued in the backlog of the socket until they are accepted
+                try {
+                    WroupLog.i(TAG, "Server socket created. Accepting requests...");
+                    groupOwner.setThisDevice(wiFiP2PInstance.getThisDevice());
+                    groupOwner.listen(socket);
+                } catch (IOException e) {
+                    WroupLog.e(TAG, "Error creating/closing server socket: {}", e.getMessage());
+                }
+                return null;
+            }
+
+        }.executeOnExecutor(executor);
+    }
+
+    private void clearLocalServices() {
+        wiFiP2PInstance.getWifiP2pManager().clearLocalServices(wiFiP2PInstance.getChannel(), new WifiP2pManager.ActionListener() {
+
+            @Override
+            public void onSuccess() {
+                WroupLog.d(TAG, "Success clearing local services");
+                onLocalServicesCleared();
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                // The service is added anyway, only the stale ones are kept
+                WroupLog.e(TAG, "Error clearing local services: {}", reason);
+                onLocalServicesCleared();
+            }
+        });
+    }
+
+    private void onLocalServicesCleared() {
+        if (state == WroupService.State.PREPARING) {
+            servicesCleared = true;
+            advance();
+        }
+    }
+
+    private void removeAndCreateGroup() {
+        wiFiP2PInstance.getWifiP2pManager().requestGroupInfo(wiFiP2PInstance.getChannel(), new WifiP2pManager.GroupInfoListener() {
+
+            @Override
+            public void onGroupInfoAvailable(final WifiP2pGroup group) {
+                if (!isActive()) {
+                    return;
+                }
+
+                if (group != null) {
+                    wiFiP2PInstance.getWifiP2pManager().removeGroup(wiFiP2PInstance.getChannel(), new WifiP2pManager.ActionListener() {
+                        @Override
+                        public void onSuccess() {
+                            // The passphrase of the group isn't logged
+                            WroupLog.d(TAG, "Group deleted: {} in {}, owner {} ({}), {} clients", group.getNetworkName(), group.getInterface(),
+                                    group.getOwner().deviceName, group.getOwner().deviceAddress, group.getClientList().size());
+
+                            // Now we can create the group
+                            createGroup();
+                        }
+
+                        @Override
+                        public void onFailure(int reason) {
+                            WroupLog.e(TAG, "Error deleting group");
+                            fail(WiFiP2PError.fromReason(reason));
+                        }
+                    });
+                } else {
+                    createGroup();
+                }
+            }
+        });
+    }
+
+    private void createGroup() {
+        if (!isActive()) {
+            return;
+        }
+
+        // The group is ready when the connection of this device as group owner is broadcast
+        groupRequested = true;
+        wiFiP2PInstance.getWifiP2pManager().createGroup(wiFiP2PInstance.getChannel(), new WifiP2pManager.ActionListener() {
+
+            @Override
+            public void onSuccess() {
+                WroupLog.i(TAG, "Group created!");
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                WroupLog.e(TAG, "Error creating group. Reason: {}", WiFiP2PError.fromReason(reason));
+                fail(WiFiP2PError.fromReason(reason));
+            }
+        });
+    }
+
+    /**
+     * Advertise the service once the server socket and the group are ready.
+     */
+    private void advance() {
+        if (state != WroupService.State.PREPARING || socketNanos == 0 || groupNanos == 0 || !servicesCleared) {
+            return;
+        }
+
+        state = WroupService.State.ADVERTISING;
+        advertiseNanos = System.nanoTime();
+        wiFiP2PInstance.getWifiP2pManager().addLocalService(wiFiP2PInstance.getChannel(), serviceInfo, new WifiP2pManager.ActionListener() {
+
+            @Override
+            public void onSuccess() {
+                if (state != WroupService.State.ADVERTISING) {
+                    return;
+                }
+
+                long readyNanos = System.nanoTime();
+                timings = new StartupTimings(millisSince(startNanos, socketNanos), millisSince(startNanos, groupNanos),
+                        millisSince(advertiseNanos, readyNanos), millisSince(startNanos, readyNanos));
+                state = WroupService.State.READY;
+                wiFiP2PInstance.getHandler().removeCallbacks(timeout);
+                WroupLog.i(TAG, "Service registered and ready: {}", timings);
+
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serviceRegisteredListener.onSuccessServiceRegistered();
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                WroupLog.e(TAG, "Failure registering the service. Reason: {}", WiFiP2PError.fromReason(reason));
+                fail(WiFiP2PError.fromReason(reason));
+            }
+
+        });
+    }
+
+    private void fail(WiFiP2PError wiFiP2PError) {
+        if (!isActive()) {
+            return;
+        }
+
+        state = WroupService.State.FAILED;
+        wiFiP2PInstance.getHandler().removeCallbacks(timeout);
+        closeServerSocket();
+
+        final WiFiP2PError error = wiFiP2PError != null ? wiFiP2PError : WiFiP2PError.ERROR;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                serviceRegisteredListener.onErrorServiceRegistered(error);
+            }
+        });
+    }
+
+    private void closeServerSocket() {
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                WroupLog.e(TAG, "Error closing the server socket");
+            }
+        }
+    }
+
+    private static long millisSince(long fromNanos, long toNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(toNanos - fromNanos);
+    }
+
+}
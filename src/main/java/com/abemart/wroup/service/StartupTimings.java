@@ -0,0 +1,61 @@
+package com.abemart.wroup.service;
+
+
+/**
+ * The time taken by every phase of the startup of a {@link WroupService}, measured from the call to
+ * <code>registerService</code>. The server socket and the group are prepared at the same time, so
+ * the total time is the slowest of them plus the advertising of the service.
+ */
+public class StartupTimings {
+
+    private final long socketMillis;
+    private final long groupMillis;
+    private final long advertiseMillis;
+    private final long totalMillis;
+
+    StartupTimings(long socketMillis, long groupMillis, long advertiseMillis, long totalMillis) {
+        this.socketMillis = socketMillis;
+        this.groupMillis = groupMillis;
+        this.advertiseMillis = advertiseMillis;
+        this.totalMillis = totalMillis;
+    }
+
+    /**
+     * @return the time until the server socket accepted connections.
+     */
+    public long getSocketMillis() {
+        return socketMillis;
+    }
+
+    /**
+     * @return the time until the previous group was removed and the new one was formed.
+     */
+    public long getGroupMillis() {
+        return groupMillis;
+    }
+
+    /**
+     * @return the time taken to advertise the service once the socket and the group were ready.
+     */
+    public long getAdvertiseMillis() {
+        return advertiseMillis;
+    }
+
+    /**
+     * @return the time until the service was ready to accept clients.
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StartupTimings{" +
+                "socketMillis=" + socketMillis +
+                ", groupMillis=" + groupMillis +
+                ", advertiseMillis=" + advertiseMillis +
+                ", totalMillis=" + totalMillis +
+                '}';
+    }
+
+}
@@ -2,43 +2,41 @@ package com.abemart.wroup.service;
 
 
 import android.content.Context;
-import android.net.wifi.p2p.WifiP2pGroup;
 import android.net.wifi.p2p.WifiP2pInfo;
-import android.net.wifi.p2p.WifiP2pManager;
 import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
 import android.os.AsyncTask;
-import android.util.Log;
 
-import com.abemart.wroup.common.WiFiP2PError;
 import com.abemart.wroup.common.WiFiP2PInstance;
 import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.advertisement.ServiceAdvertisement;
 import com.abemart.wroup.common.direct.WiFiDirectUtils;
+import com.abemart.wroup.common.history.MessageHistory;
+import com.abemart.wroup.common.listeners.CallbackListeners;
 import com.abemart.wroup.common.listeners.ClientConnectedListener;
 import com.abemart.wroup.common.listeners.ClientDisconnectedListener;
 import com.abemart.wroup.common.listeners.DataReceivedListener;
+import com.abemart.wroup.common.listeners.MetricsListener;
 import com.abemart.wroup.common.listeners.PeerConnectedListener;
+import com.abemart.wroup.common.listeners.RpcRequestListener;
+import com.abemart.wroup.common.listeners.RpcResponseListener;
 import com.abemart.wroup.common.listeners.ServiceRegisteredListener;
-import com.abemart.wroup.common.messages.DisconnectionMessageContent;
+import com.abemart.wroup.common.listeners.ShutdownListener;
+import com.abemart.wroup.common.listeners.TracingListener;
+import com.abemart.wroup.common.logging.WroupLog;
+import com.abemart.wroup.common.messages.MessageCodec;
 import com.abemart.wroup.common.messages.MessageWrapper;
-import com.abemart.wroup.common.messages.RegisteredDevicesMessageContent;
-import com.abemart.wroup.common.messages.RegistrationMessageContent;
-import com.google.gson.Gson;
-
-import org.apache.commons.io.IOUtils;
-
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
+import com.abemart.wroup.common.metrics.MetricsSnapshot;
+import com.abemart.wroup.common.replication.ReplicatedStore;
+import com.abemart.wroup.common.rpc.RpcEngine;
+
+import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
- * Singleton class acting as a "server" device.
+ * Class acting as a "server" device.
  * <p>
  * With Wroup Library you can register a service in the current local network to be discovered by
  * other devices. When a service is registered a WiFi P2P Group is created, we know it as Wroup ;)
@@ -47,11 +45,20 @@ import java.util.Map;
  * disconnections). When a new client is connected/disconnected the service device notify to the
  * other devices connected.
  * <p>
+ * The services are created with a {@link Builder}, which configures the port of the server socket
+ * and the executors of each one, so a process can run many of them. The creation of the group runs
+ * in the thread of the <code>WiFiP2PInstance</code>, and the listeners of the service are called in
+ * its callback executor, the main thread by default.
+ * <p>
+ * The startup of the service is a state machine: the server socket is bound while the group is
+ * created, and the service is advertised to the clients only when both are ready, so the success
+ * is notified when the service can accept clients. See {@link #getStartupTimings()}.
+ * <p>
  * To register a service you must do the following:
  * <pre>
  * {@code
  *
- * wiFiP2PService = WroupService.getInstance(getApplicationContext());
+ * wiFiP2PService = new WroupService.Builder(getApplicationContext()).build();
  * wiFiP2PService.registerService(groupName, new ServiceRegisteredListener() {
  *
  *  public void onSuccessServiceRegistered() {
@@ -71,43 +78,137 @@ public class WroupService implements PeerConnectedListener {
 
     private static final String TAG = WroupService.class.getSimpleName();
 
-    private static final String SERVICE_TYPE = "_wroup._tcp";
-    public static final String SERVICE_PORT_PROPERTY = "SERVICE_PORT";
+    public static final String SERVICE_TYPE = "_wroup._tcp";
     public static final Integer SERVICE_PORT_VALUE = 9999;
+
+    /**
+     * @deprecated The services advertise a compact {@link ServiceAdvertisement}.
+     */
+    @Deprecated
+    public static final String SERVICE_PORT_PROPERTY = "SERVICE_PORT";
+    /**
+     * @deprecated The services advertise a compact {@link ServiceAdvertisement}.
+     */
+    @Deprecated
     public static final String SERVICE_NAME_PROPERTY = "SERVICE_NAME";
+    /**
+     * @deprecated The services advertise a compact {@link ServiceAdvertisement}.
+     */
+    @Deprecated
     public static final String SERVICE_NAME_VALUE = "WROUP";
+    /**
+     * @deprecated The services advertise a compact {@link ServiceAdvertisement}.
+     */
+    @Deprecated
     public static final String SERVICE_GROUP_NAME = "GROUP_NAME";
 
-    private static WroupService instance;
+    /**
+     * The remote method which returns the extended metadata of the service as a JSON object.
+     */
+    public static final String METADATA_METHOD = "wroup.metadata";
+
+    private static final int CAPABILITIES = ServiceAdvertisement.CAPABILITY_TOPICS | ServiceAdvertisement.CAPABILITY_RPC
+            | ServiceAdvertisement.CAPABILITY_REPLICATION | ServiceAdvertisement.CAPABILITY_ROUTING;
 
-    private DataReceivedListener dataReceivedListener;
-    private ClientConnectedListener clientConnectedListener;
-    private ClientDisconnectedListener clientDisconnectedListener;
-    private Map<String, WroupDevice> clientsConnected = new HashMap<>();
-    private WiFiP2PInstance wiFiP2PInstance;
+    /**
+     * The states of the startup of the service.
+     */
+    public enum State {
+        /**
+         * The service isn't registered.
+         */
+        IDLE,
+        /**
+         * The server socket is being bound and the group created.
+         */
+        PREPARING,
+        /**
+         * The service is being added to the local services of the channel.
+         */
+        ADVERTISING,
+        /**
+         * The service is advertised and accepts clients.
+         */
+        READY,
+        /**
+         * A step of the startup failed or it wasn't ready in time.
+         */
+        FAILED
+    }
 
-    private ServerSocket serverSocket;
-    private Boolean groupAlreadyCreated = false;
+    private static WroupService instance;
 
-    private WroupService(Context context) {
-        wiFiP2PInstance = WiFiP2PInstance.getInstance(context);
-        wiFiP2PInstance.setPeerConnectedListener(this);
+    private final GroupOwner groupOwner;
+    private final WiFiP2PInstance wiFiP2PInstance;
+    private final int serverPort;
+    private final Executor executor;
+    private final Executor callbackExecutor;
+    private final long disconnectionTimeoutMillis;
+    private final long startupTimeoutMillis;
+
+    private volatile ServiceStartup startup;
+    private volatile Map<String, String> metadata = Collections.emptyMap();
+
+    private WroupService(Builder builder) {
+        wiFiP2PInstance = builder.wiFiP2PInstance != null ? builder.wiFiP2PInstance : WiFiP2PInstance.getInstance(builder.context);
+        serverPort = builder.serverPort;
+        executor = builder.executor;
+        callbackExecutor = builder.callbackExecutor != null ? builder.callbackExecutor : wiFiP2PInstance.getCallbackExecutor();
+        disconnectionTimeoutMillis = builder.disconnectionTimeoutMillis;
+        startupTimeoutMillis = builder.startupTimeoutMillis;
+        groupOwner = new GroupOwner(executor);
+        if (builder.rpcCallbackExecutor != null) {
+            groupOwner.getRpcEngine().setCallbackExecutor(builder.rpcCallbackExecutor);
+        }
+        groupOwner.getRpcEngine().registerHandler(METADATA_METHOD, new RpcRequestListener() {
+            @Override
+            public String onRpcRequest(WroupDevice caller, String params) {
+                return MessageCodec.GSON.toJson(metadata);
+            }
+        });
+        wiFiP2PInstance.addPeerConnectedListener(this);
     }
 
     /**
-     * Return the <code>WroupService</code> instance. If the instance doesn't exist yet, it's
-     * created and returned.
+     * Return the <code>WroupService</code> shared by the application. If the instance doesn't exist
+     * yet, it's created with the default configuration and returned.
      *
      * @param context The application context.
-     * @return The actual <code>WroupService</code> instance.
+     * @return The shared <code>WroupService</code> instance.
+     * @deprecated Create the services with a {@link Builder}.
      */
-    public static WroupService getInstance(Context context) {
+    @Deprecated
+    public static synchronized WroupService getInstance(Context context) {
         if (instance == null) {
-            instance = new WroupService(context);
+            instance = new Builder(context).build();
         }
         return instance;
     }
 
+    /**
+     * @return the port of the server socket which the clients connect to.
+     */
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * @return the state of the startup of the service.
+     */
+    public State getState() {
+        ServiceStartup currentStartup = startup;
+        return currentStartup != null ? currentStartup.getState() : State.IDLE;
+    }
+
+    /**
+     * @return the time taken by every phase of the last startup, or null if the service isn't
+     * ready.
+     */
+    public StartupTimings getStartupTimings() {
+        ServiceStartup currentStartup = startup;
+        return currentStartup != null ? currentStartup.getTimings() : null;
+    }
+
     /**
      * Start a Wroup service registration in the actual local network with the name indicated in
      * the arguments. When te service is registered the method
@@ -124,12 +225,17 @@ public class WroupService implements PeerConnectedListener {
     /**
      * Start a Wroup service registration in the actual local network with the name indicated in
      * the arguments. When te service is registered the method
-     * {@link ServiceRegisteredListener#onSuccessServiceRegistered()} is called.
+     * {@link ServiceRegisteredListener#onSuccessServiceRegistered()} is called, once the server
+     * socket accepts connections, the group is formed and the service is advertised. If a step
+     * fails, or the service isn't ready before the startup timeout, the method
+     * {@link ServiceRegisteredListener#onErrorServiceRegistered(com.abemart.wroup.common.WiFiP2PError)}
+     * is called instead. Registering the service again restarts it.
      *
      * @param groupName                 The name of the group that want to be created.
      * @param customProperties          A Map of custom properties which will be registered with the
-     *                                  service. This properties can be accessed by the client devices
-     *                                  when the service is discovered.
+     *                                  service as its extended metadata. Only their hash is
+     *                                  advertised, the client devices fetch them when they need
+     *                                  them once connected.
      * @param serviceRegisteredListener The <code>ServiceRegisteredListener</code> to notify
      *                                  registration changes.
      */
@@ -138,89 +244,99 @@ public class WroupService implements PeerConnectedListener {
         // We need to start peer discovering because otherwise the clients cannot found the service
         wiFiP2PInstance.startPeerDiscovering();
 
-        Map<String, String> record = new HashMap<>();
-        record.put(SERVICE_PORT_PROPERTY, SERVICE_PORT_VALUE.toString());
-        record.put(SERVICE_NAME_PROPERTY, SERVICE_NAME_VALUE);
-        record.put(SERVICE_GROUP_NAME, groupName);
-
-        // Insert the custom properties to the record Map
-        if (customProperties != null) {
-            for (Map.Entry<String, String> entry : customProperties.entrySet()) {
-                record.put(entry.getKey(), entry.getValue());
-            }
+        // The custom properties are served on request, only their hash is advertised
+        metadata = customProperties != null ? Collections.unmodifiableMap(new HashMap<>(customProperties))
+                : Collections.<String, String>emptyMap();
+        int capabilities = groupOwner.getOutbox() != null ? CAPABILITIES | ServiceAdvertisement.CAPABILITY_OUTBOX : CAPABILITIES;
+        if (groupOwner.getHistory() != null) {
+            capabilities |= ServiceAdvertisement.CAPABILITY_HISTORY;
         }
+        if (groupOwner.isTotalOrder()) {
+            capabilities |= ServiceAdvertisement.CAPABILITY_TOTAL_ORDER;
+        }
+        ServiceAdvertisement advertisement = new ServiceAdvertisement(serverPort, groupName, capabilities,
+                ServiceAdvertisement.hash(metadata));
 
-        WifiP2pDnsSdServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(groupName, SERVICE_TYPE, record);
-
-        wiFiP2PInstance.getWifiP2pManager().clearLocalServices(wiFiP2PInstance.getChannel(), new WifiP2pManager.ActionListener() {
-
-            @Override
-            public void onSuccess() {
-                Log.d(TAG, "Success clearing local services");
-            }
+        WifiP2pDnsSdServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(groupName, SERVICE_TYPE, advertisement.toTxtRecord());
 
+        final ServiceStartup previousStartup = startup;
+        final ServiceStartup newStartup = new ServiceStartup(wiFiP2PInstance, groupOwner, serverPort, executor,
+                callbackExecutor, startupTimeoutMillis, serviceInfo, serviceRegisteredListener);
+        startup = newStartup;
+        wiFiP2PInstance.getHandler().post(new Runnable() {
             @Override
-            public void onFailure(int reason) {
-                Log.e(TAG, "Error clearing local services: " + reason);
+            public void run() {
+                if (previousStartup != null) {
+                    previousStartup.cancel();
+                }
+                newStartup.start();
             }
         });
+    }
 
-        wiFiP2PInstance.getWifiP2pManager().addLocalService(wiFiP2PInstance.getChannel(), serviceInfo, new WifiP2pManager.ActionListener() {
+    /**
+     * Remove the group created. Before the disconnection, the server sends the messages queued to
+     * the clients.
+     */
+    public void disconnect() {
+        disconnect(null);
+    }
 
+    /**
+     * Remove the group created. The messages sent from now on are discarded, the ones queued are
+     * sent to the clients, and the group is removed once they have been sent or when the
+     * disconnection timeout of the service expires.
+     *
+     * @param shutdownListener The listener notified in the callback executor when the group has
+     *                         been removed, or null.
+     */
+    public void disconnect(final ShutdownListener shutdownListener) {
+        groupOwner.shutdown(disconnectionTimeoutMillis, new ShutdownListener() {
             @Override
-            public void onSuccess() {
-                Log.d(TAG, "Service registered");
-                serviceRegisteredListener.onSuccessServiceRegistered();
-
-                // Create the group to the clients can connect to it
-                removeAndCreateGroup();
-
-                // Create the socket that will accept request
-                createServerSocket();
-            }
+            public void onShutdownCompleted(final boolean graceful) {
+                wiFiP2PInstance.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ServiceStartup currentStartup = startup;
+                        if (currentStartup != null) {
+                            currentStartup.cancel();
+                        }
 
-            @Override
-            public void onFailure(int reason) {
-                WiFiP2PError wiFiP2PError = WiFiP2PError.fromReason(reason);
-                if (wiFiP2PError != null) {
-                    Log.e(TAG, "Failure registering the service. Reason: " + wiFiP2PError.name());
-                    serviceRegisteredListener.onErrorServiceRegistered(wiFiP2PError);
-                }
+                        WiFiDirectUtils.removeGroup(wiFiP2PInstance);
+                        WiFiDirectUtils.clearLocalServices(wiFiP2PInstance);
+                        WiFiDirectUtils.stopPeerDiscovering(wiFiP2PInstance);
+
+                        if (shutdownListener != null) {
+                            callbackExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    shutdownListener.onShutdownCompleted(graceful);
+                                }
+                            });
+                        }
+                    }
+                });
             }
-
         });
     }
 
     /**
-     * Remove the group created. Before the disconnection, the server sends a message to all
-     * clients connected to notify the disconnection.
+     * Remove the group created and stop listening to the events of the <code>WiFiP2PInstance</code>.
+     * The service can't be used after releasing it.
      */
-    public void disconnect() {
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-                Log.i(TAG, "ServerSocket closed");
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing the serverSocket");
-            }
-        }
-
-        groupAlreadyCreated = false;
-        serverSocket = null;
-        clientsConnected.clear();
-
-        WiFiDirectUtils.removeGroup(wiFiP2PInstance);
-        WiFiDirectUtils.clearLocalServices(wiFiP2PInstance);
-        WiFiDirectUtils.stopPeerDiscovering(wiFiP2PInstance);
+    public void release() {
+        disconnect();
+        wiFiP2PInstance.removePeerConnectedListener(this);
     }
 
     /**
      * Set the listener to know when data is received from the client devices connected to the group.
+     * The listener is called in the callback executor.
      *
      * @param dataReceivedListener The <code>DataReceivedListener</code> to notify data entries.
      */
     public void setDataReceivedListener(DataReceivedListener dataReceivedListener) {
-        this.dataReceivedListener = dataReceivedListener;
+        groupOwner.setDataReceivedListener(CallbackListeners.dataReceived(callbackExecutor, dataReceivedListener));
     }
 
     /**
@@ -230,7 +346,7 @@ public class WroupService implements PeerConnectedListener {
      *                                   client disconnections.
      */
     public void setClientDisconnectedListener(ClientDisconnectedListener clientDisconnectedListener) {
-        this.clientDisconnectedListener = clientDisconnectedListener;
+        groupOwner.setClientDisconnectedListener(CallbackListeners.clientDisconnected(callbackExecutor, clientDisconnectedListener));
     }
 
     /**
@@ -240,16 +356,55 @@ public class WroupService implements PeerConnectedListener {
      *                                 connections in the group.
      */
     public void setClientConnectedListener(ClientConnectedListener clientConnectedListener) {
-        this.clientConnectedListener = clientConnectedListener;
+        groupOwner.setClientConnectedListener(CallbackListeners.clientConnected(callbackExecutor, clientConnectedListener));
+    }
+
+    /**
+     * Obtain a snapshot of the metrics of the messages sent and received by this device.
+     *
+     * @return the actual values of the metrics.
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return groupOwner.getMetrics().snapshot();
+    }
+
+    /**
+     * Set the listener to receive periodically a snapshot of the metrics of this device. The
+     * listener is called from a background thread.
+     *
+     * @param metricsListener The <code>MetricsListener</code> to notify the metrics, or null to
+     *                        stop the notifications.
+     * @param periodMillis    The time in milliseconds between two notifications.
+     */
+    public void setMetricsListener(MetricsListener metricsListener, long periodMillis) {
+        groupOwner.getMetrics().startReporting(metricsListener, periodMillis);
+    }
+
+    /**
+     * Set the listener to receive the breakdown of every message received from other devices of
+     * the group: queueing, connection, serialization, transmission, decoding and dispatch times.
+     * Setting a listener enables the tracing of the messages sent by this device too. The listener
+     * is called from a background thread.
+     *
+     * @param tracingListener The <code>TracingListener</code> to notify the traces, or null to
+     *                        disable the tracing.
+     */
+    public void setTracingListener(TracingListener tracingListener) {
+        groupOwner.getTracer().setTracingListener(tracingListener);
     }
 
     @Override
     public void onPeerConnected(WifiP2pInfo wifiP2pInfo) {
-        Log.i(TAG, "OnPeerConnected...");
+        WroupLog.i(TAG, "OnPeerConnected...");
 
         if (wifiP2pInfo.groupFormed && wifiP2pInfo.isGroupOwner) {
-            Log.i(TAG, "I am the group owner");
-            Log.i(TAG, "My addess is: " + wifiP2pInfo.groupOwnerAddress.getHostAddress());
+            WroupLog.i(TAG, "I am the group owner");
+            WroupLog.i(TAG, "My addess is: {}", wifiP2pInfo.groupOwnerAddress.getHostAddress());
+        }
+
+        ServiceStartup currentStartup = startup;
+        if (currentStartup != null) {
+            currentStartup.onPeerConnected(wifiP2pInfo);
         }
     }
 
@@ -259,9 +414,8 @@ public class WroupService implements PeerConnectedListener {
      * @param message The message to be sent.
      */
     public void sendMessageToAllClients(final MessageWrapper message) {
-        for (WroupDevice clientDevice : clientsConnected.values()) {
-            sendMessage(clientDevice, message);
-        }
+        groupOwner.setThisDevice(wiFiP2PInstance.getThisDevice());
+        groupOwner.sendMessageToAllClients(message);
     }
 
     /**
@@ -271,230 +425,316 @@ public class WroupService implements PeerConnectedListener {
      * @param message The message to be sent.
      */
     public void sendMessage(final WroupDevice device, MessageWrapper message) {
-        // Set the actual device to the message
-        message.setWroupDevice(wiFiP2PInstance.getThisDevice());
-
-        new AsyncTask<MessageWrapper, Void, Void>() {
-            @Override
-            protected Void doInBackground(MessageWrapper... params) {
-                if (device != null && device.getDeviceServerSocketIP() != null) {
-                    try {
-                        Socket socket = new Socket();
-                        socket.bind(null);
-
-                        InetSocketAddress hostAddres = new InetSocketAddress(device.getDeviceServerSocketIP(), device.getDeviceServerSocketPort());
-                        socket.connect(hostAddres, 2000);
-
-                        Gson gson = new Gson();
-                        String messageJson = gson.toJson(params[0]);
-
-                        OutputStream outputStream = socket.getOutputStream();
-                        outputStream.write(messageJson.getBytes(), 0, messageJson.getBytes().length);
-
-                        Log.d(TAG, "Sending data: " + params[0]);
-
-                        socket.close();
-                        outputStream.close();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error creating client socket: " + e.getMessage());
-                    }
-                }
+        groupOwner.setThisDevice(wiFiP2PInstance.getThisDevice());
+        groupOwner.sendMessage(device, message);
+    }
 
-                return null;
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, message);
+    /**
+     * Send a message to a device which may be in another group, connected to this one through
+     * bridges. It's forwarded along the route learned from the bridges of the group.
+     *
+     * @param destinationMac The MAC address of the receiver of the message.
+     * @param message        The message to be sent.
+     */
+    public void sendRoutedMessage(String destinationMac, MessageWrapper message) {
+        groupOwner.setThisDevice(wiFiP2PInstance.getThisDevice());
+        groupOwner.sendRoutedMessage(destinationMac, message);
     }
 
-    private void createServerSocket() {
-        if (serverSocket == null) {
-            new AsyncTask<Void, Void, Void>() {
+    /**
+     * Publish a message in a topic. It's only sent to the clients subscribed to a pattern which
+     * matches the topic, instead of to all the group.
+     *
+     * @param topic   The topic of the message, like <code>sensors/temperature</code>.
+     * @param message The message to be published.
+     */
+    public void publish(String topic, MessageWrapper message) {
+        groupOwner.setThisDevice(wiFiP2PInstance.getThisDevice());
+        groupOwner.publish(topic, message);
+    }
 
-                @Override
-                protected Void doInBackground(Void... params) {
+    /**
+     * Subscribe this device to the messages published by the clients in the topics which match
+     * the pattern. They are received in the <code>DataReceivedListener</code>.
+     *
+     * @param pattern A topic or a prefix followed by '*', like <code>sensors/*</code>.
+     */
+    public void subscribe(String pattern) {
+        groupOwner.subscribe(pattern);
+    }
 
-                    try {
-                        serverSocket = new ServerSocket(SERVICE_PORT_VALUE);
-                        Log.i(TAG, "Server socket created. Accepting requests...");
+    /**
+     * Unsubscribe this device from a pattern.
+     *
+     * @param pattern The pattern used to subscribe.
+     */
+    public void unsubscribe(String pattern) {
+        groupOwner.unsubscribe(pattern);
+    }
 
-                        while (true) {
-                            Socket socket = serverSocket.accept();
+    /**
+     * Register the handler of the remote calls of a method made by the other devices of the
+     * group. The handler is run in the RPC callback executor and its result is sent back to the
+     * caller.
+     *
+     * @param method             The name of the method.
+     * @param rpcRequestListener The handler of the calls.
+     */
+    public void registerRpcHandler(String method, RpcRequestListener rpcRequestListener) {
+        groupOwner.getRpcEngine().registerHandler(method, rpcRequestListener);
+    }
 
-                            String dataReceived = IOUtils.toString(socket.getInputStream());
-                            Log.i(TAG, "Data received: " + dataReceived);
-                            Log.i(TAG, "From IP: " + socket.getInetAddress().getHostAddress());
+    /**
+     * Unregister the handler of the remote calls of a method. The calls received later fail with
+     * <code>RpcError.METHOD_NOT_FOUND</code>.
+     *
+     * @param method The name of the method.
+     */
+    public void unregisterRpcHandler(String method) {
+        groupOwner.getRpcEngine().unregisterHandler(method);
+    }
 
-                            Gson gson = new Gson();
-                            MessageWrapper messageWrapper = gson.fromJson(dataReceived, MessageWrapper.class);
-                            onMessageReceived(messageWrapper, socket.getInetAddress());
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error creating/closing server socket: " + e.getMessage());
-                    }
+    /**
+     * Call a method of a device of the group. The listener receives the result, or the error if
+     * the device doesn't answer before the timeout.
+     *
+     * @param device              The device called.
+     * @param method              The name of the method.
+     * @param params              The parameters of the call.
+     * @param timeoutMillis       The time to wait for the response.
+     * @param rpcResponseListener The listener notified with the result of the call.
+     */
+    public void call(WroupDevice device, String method, String params, long timeoutMillis, RpcResponseListener rpcResponseListener) {
+        groupOwner.setThisDevice(wiFiP2PInstance.getThisDevice());
+        groupOwner.getRpcEngine().call(device, method, params, timeoutMillis, rpcResponseListener);
+    }
 
-                    return null;
-                }
+    /**
+     * Set the executor which runs the RPC handlers and response listeners. By default they run in
+     * the executor of the service.
+     *
+     * @param executor The executor of the RPC callbacks.
+     */
+    public void setRpcCallbackExecutor(Executor executor) {
+        groupOwner.getRpcEngine().setCallbackExecutor(executor);
+    }
 
-            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-        }
+    /**
+     * Set the maximum number of calls waiting for a response from the same device. The default
+     * value is {@link RpcEngine#DEFAULT_MAX_IN_FLIGHT_PER_PEER}.
+     *
+     * @param maxInFlightCalls The maximum number of calls in flight per device.
+     */
+    public void setMaxInFlightCallsPerPeer(int maxInFlightCalls) {
+        groupOwner.getRpcEngine().setMaxInFlightPerPeer(maxInFlightCalls);
     }
 
+    /**
+     * Obtain the key-value store replicated in all the devices of the group. Its registers,
+     * counters and sets can be changed by any device, and the changes are merged in all of them
+     * without conflicts. Set a <code>StateChangedListener</code> in the store to be notified of
+     * the changes received from the other devices.
+     *
+     * @return the replicated store of this device.
+     */
+    public ReplicatedStore getReplicatedStore() {
+        groupOwner.setThisDevice(wiFiP2PInstance.getThisDevice());
+        return groupOwner.getReplicatedStore();
+    }
 
-    private void removeAndCreateGroup() {
-        wiFiP2PInstance.getWifiP2pManager().requestGroupInfo(wiFiP2PInstance.getChannel(), new WifiP2pManager.GroupInfoListener() {
+    /**
+     * Keep the messages sent to the clients on disk until they acknowledge them, so the messages
+     * sent while a device is out of range are delivered when it connects again, even after a
+     * restart of the application. Only the messages sent with <code>sendMessage</code> are kept, the
+     * ones sent to all the group or published in a topic aren't.
+     * <p>
+     * The directory is usually private to the application, like
+     * <code>new File(context.getFilesDir(), "wroup-outbox")</code>.
+     *
+     * @param directory The directory of the outbox, which is created if it doesn't exist.
+     */
+    public void enableOutbox(File directory) {
+        groupOwner.enableOutbox(directory);
+    }
 
-            @Override
-            public void onGroupInfoAvailable(final WifiP2pGroup group) {
-                if (group != null) {
-                    wiFiP2PInstance.getWifiP2pManager().removeGroup(wiFiP2PInstance.getChannel(), new WifiP2pManager.ActionListener() {
-                        @Override
-                        public void onSuccess() {
-                            Log.d(TAG, "Group deleted");
-                            Log.d(TAG, "\tNetwordk Name: " + group.getNetworkName());
-                            Log.d(TAG, "\tInterface: " + group.getInterface());
-                            Log.d(TAG, "\tPassword: " + group.getPassphrase());
-                            Log.d(TAG, "\tOwner Name: " + group.getOwner().deviceName);
-                            Log.d(TAG, "\tOwner Address: " + group.getOwner().deviceAddress);
-                            Log.d(TAG, "\tClient list size: " + group.getClientList().size());
-
-                            groupAlreadyCreated = false;
-
-                            // Now we can create the group
-                            createGroup();
-                        }
+    /**
+     * Keep the last messages sent to all the group or published in a topic in memory, so the
+     * clients which join later can ask for them with <code>WroupClient.setHistoryRequest</code>.
+     * When the history is full the oldest messages are discarded, and the binary payloads aren't
+     * kept. It must be enabled before registering the service so it's advertised.
+     *
+     * @param maxBytes    The maximum number of bytes of the messages kept, like
+     *                    {@link MessageHistory#DEFAULT_MAX_BYTES}.
+     * @param maxMessages The maximum number of messages kept, like
+     *                    {@link MessageHistory#DEFAULT_MAX_MESSAGES}.
+     * @param offHeap     True to keep the messages out of the Java heap.
+     */
+    public void enableHistory(int maxBytes, int maxMessages, boolean offHeap) {
+        groupOwner.enableHistory(maxBytes, maxMessages, offHeap);
+    }
 
-                        @Override
-                        public void onFailure(int reason) {
-                            Log.e(TAG, "Error deleting group");
-                        }
-                    });
-                } else {
-                    createGroup();
-                }
-            }
-        });
+    /**
+     * Send the messages to all the group in total order: this device stamps them with a sequence
+     * number, and every device of the group, including the sender and this one, delivers them in
+     * the same order. The messages of the clients take one more hop through this device, and a
+     * message lost is skipped when the following ones fill the reorder window of a receiver. It must
+     * be set before registering the service so the clients use it.
+     *
+     * @param totalOrder True to send the messages to all the group in total order.
+     */
+    public void setTotalOrder(boolean totalOrder) {
+        groupOwner.setTotalOrder(totalOrder);
     }
 
-    private void createGroup() {
-        if (!groupAlreadyCreated) {
-            wiFiP2PInstance.getWifiP2pManager().createGroup(wiFiP2PInstance.getChannel(), new WifiP2pManager.ActionListener() {
+    /**
+     * Limit the rate of the data messages received from every client, so a client which floods the
+     * group owner is slowed down without affecting the rest of the group.
+     *
+     * @param messagesPerSecond The average rate allowed to every client, or 0 to remove the limit.
+     * @param burst             The number of messages allowed at once to every client.
+     */
+    public void setInboundRateLimit(double messagesPerSecond, int burst) {
+        groupOwner.setInboundRateLimit(messagesPerSecond, burst);
+    }
 
-                @Override
-                public void onSuccess() {
-                    Log.i(TAG, "Group created!");
-                    groupAlreadyCreated = true;
-                }
+    /**
+     * Limit the rate of the messages published or routed by every client which the group owner
+     * relays to the rest of the devices. The messages which exceed it aren't relayed.
+     *
+     * @param messagesPerSecond The average rate allowed to every client, or 0 to remove the limit.
+     * @param burst             The number of messages relayed at once for every client.
+     */
+    public void setRelayRateLimit(double messagesPerSecond, int burst) {
+        groupOwner.setRelayRateLimit(messagesPerSecond, burst);
+    }
 
-                @Override
-                public void onFailure(int reason) {
-                    Log.e(TAG, "Error creating group. Reason: " + WiFiP2PError.fromReason(reason));
-                }
-            });
-        }
+    /**
+     * Give a client a larger share of the threads which send the messages of the group owner,
+     * for example to the client which shows the group on a screen.
+     *
+     * @param clientMac The MAC address of the client.
+     * @param weight    The weight of the client, 1 by default.
+     */
+    public void setClientWeight(String clientMac, int weight) {
+        groupOwner.setClientWeight(clientMac, weight);
     }
 
-    private void onMessageReceived(MessageWrapper messageWrapper, InetAddress fromAddress) {
-        if (messageWrapper.getMessageType().equals(MessageWrapper.MessageType.CONNECTION_MESSAGE)) {
-            Gson gson = new Gson();
-
-            String messageContentStr = messageWrapper.getMessage();
-            RegistrationMessageContent registrationMessageContent = gson.fromJson(messageContentStr, RegistrationMessageContent.class);
-            WroupDevice client = registrationMessageContent.getWroupDevice();
-            client.setDeviceServerSocketIP(fromAddress.getHostAddress());
-            clientsConnected.put(client.getDeviceMac(), client);
-
-            Log.d(TAG, "New client registered:");
-            Log.d(TAG, "\tDevice name: " + client.getDeviceName());
-            Log.d(TAG, "\tDecive mac: " + client.getDeviceMac());
-            Log.d(TAG, "\tDevice IP: " + client.getDeviceServerSocketIP());
-            Log.d(TAG, "\tDevice ServerSocket port: " + client.getDeviceServerSocketPort());
-
-            // Sending to all clients that new client is connected
-            for (WroupDevice device : clientsConnected.values()) {
-                if (!client.getDeviceMac().equals(device.getDeviceMac())) {
-                    sendConnectionMessage(device, client);
-                } else {
-                    sendRegisteredDevicesMessage(device);
-                }
-            }
+    /**
+     * Builder of the <code>WroupService</code> instances.
+     */
+    public static class Builder {
+
+        private final Context context;
+        private WiFiP2PInstance wiFiP2PInstance;
+        private int serverPort = SERVICE_PORT_VALUE;
+        private Executor executor = AsyncTask.THREAD_POOL_EXECUTOR;
+        private Executor rpcCallbackExecutor;
+        private Executor callbackExecutor;
+        private long disconnectionTimeoutMillis = 2000;
+        private long startupTimeoutMillis = 30000;
+
+        /**
+         * @param context The application context.
+         */
+        public Builder(Context context) {
+            this.context = context;
+        }
 
-            if (clientConnectedListener != null) {
-                clientConnectedListener.onClientConnected(client);
-            }
-        } else if (messageWrapper.getMessageType().equals(MessageWrapper.MessageType.DISCONNECTION_MESSAGE)) {
-            Gson gson = new Gson();
-
-            String messageContentStr = messageWrapper.getMessage();
-            DisconnectionMessageContent disconnectionMessageContent = gson.fromJson(messageContentStr, DisconnectionMessageContent.class);
-            WroupDevice client = disconnectionMessageContent.getWroupDevice();
-            clientsConnected.remove(client.getDeviceMac());
-
-            Log.d(TAG, "Client disconnected:");
-            Log.d(TAG, "\tDevice name: " + client.getDeviceName());
-            Log.d(TAG, "\tDecive mac: " + client.getDeviceMac());
-            Log.d(TAG, "\tDevice IP: " + client.getDeviceServerSocketIP());
-            Log.d(TAG, "\tDevice ServerSocket port: " + client.getDeviceServerSocketPort());
-
-            // Sending to all clients that a client is disconnected now
-            for (WroupDevice device : clientsConnected.values()) {
-                if (!client.getDeviceMac().equals(device.getDeviceMac())) {
-                    sendDisconnectionMessage(device, client);
-                }
-            }
+        /**
+         * Set the <code>WiFiP2PInstance</code> of the service. By default the one returned by
+         * {@link WiFiP2PInstance#getInstance(Context)} is used.
+         *
+         * @param wiFiP2PInstance The WiFi P2P channel of the service.
+         * @return this builder.
+         */
+        public Builder setWiFiP2PInstance(WiFiP2PInstance wiFiP2PInstance) {
+            this.wiFiP2PInstance = wiFiP2PInstance;
+            return this;
+        }
 
-            if (clientDisconnectedListener != null) {
-                clientDisconnectedListener.onClientDisconnected(client);
-            }
-        } else {
-            if (dataReceivedListener != null) {
-                dataReceivedListener.onDataReceived(messageWrapper);
+        /**
+         * Set the port of the server socket which the clients connect to. It's published in the
+         * service record, so the clients find it. By default it's {@link #SERVICE_PORT_VALUE}.
+         *
+         * @param serverPort The port of the server socket.
+         * @return this builder.
+         */
+        public Builder setServerPort(int serverPort) {
+            if (serverPort <= 0 || serverPort > 65535) {
+                throw new IllegalArgumentException("Invalid port: " + serverPort);
             }
+            this.serverPort = serverPort;
+            return this;
         }
-    }
-
-    private void sendConnectionMessage(WroupDevice deviceToSend, WroupDevice deviceConnected) {
-        RegistrationMessageContent content = new RegistrationMessageContent();
-        content.setWroupDevice(deviceConnected);
 
-        Gson gson = new Gson();
-
-        MessageWrapper messageWrapper = new MessageWrapper();
-        messageWrapper.setMessageType(MessageWrapper.MessageType.CONNECTION_MESSAGE);
-        messageWrapper.setMessage(gson.toJson(content));
-
-        sendMessage(deviceToSend, messageWrapper);
-    }
+        /**
+         * Set the executor which accepts the connections and sends the messages in background. By
+         * default it's the <code>AsyncTask.THREAD_POOL_EXECUTOR</code>.
+         *
+         * @param executor The executor of the service.
+         * @return this builder.
+         */
+        public Builder setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
 
-    private void sendDisconnectionMessage(WroupDevice deviceToSend, WroupDevice deviceDisconnected) {
-        DisconnectionMessageContent content = new DisconnectionMessageContent();
-        content.setWroupDevice(deviceDisconnected);
+        /**
+         * Set the executor which runs the RPC handlers and response listeners. By default it's the
+         * executor of the service.
+         *
+         * @param rpcCallbackExecutor The executor of the RPC callbacks.
+         * @return this builder.
+         */
+        public Builder setRpcCallbackExecutor(Executor rpcCallbackExecutor) {
+            this.rpcCallbackExecutor = rpcCallbackExecutor;
+            return this;
+        }
 
-        Gson gson = new Gson();
+        /**
+         * Set the executor which runs the listeners of the registration, the disconnection, the
+         * data received and the clients of the group. By default it's the callback executor of the
+         * <code>WiFiP2PInstance</code>, which runs them in the main thread.
+         *
+         * @param callbackExecutor The executor of the listeners.
+         * @return this builder.
+         */
+        public Builder setCallbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
 
-        MessageWrapper disconnectionMessage = new MessageWrapper();
-        disconnectionMessage.setMessageType(MessageWrapper.MessageType.DISCONNECTION_MESSAGE);
-        disconnectionMessage.setMessage(gson.toJson(content));
+        /**
+         * Set the maximum time to send the messages queued before removing the group. 2 seconds by
+         * default.
+         *
+         * @param disconnectionTimeoutMillis The deadline of the disconnection.
+         * @return this builder.
+         */
+        public Builder setDisconnectionTimeoutMillis(long disconnectionTimeoutMillis) {
+            this.disconnectionTimeoutMillis = disconnectionTimeoutMillis;
+            return this;
+        }
 
-        sendMessage(deviceToSend, disconnectionMessage);
-    }
+        /**
+         * Set the maximum time to bind the server socket, create the group and advertise the
+         * service before the registration fails. 30 seconds by default.
+         *
+         * @param startupTimeoutMillis The deadline of the startup, or 0 to wait indefinitely.
+         * @return this builder.
+         */
+        public Builder setStartupTimeoutMillis(long startupTimeoutMillis) {
+            this.startupTimeoutMillis = startupTimeoutMillis;
+            return this;
+        }
 
-    private void sendRegisteredDevicesMessage(WroupDevice deviceToSend) {
-        List<WroupDevice> devicesConnected = new ArrayList<>();
-        for (WroupDevice device : clientsConnected.values()) {
-            if (!device.getDeviceMac().equals(deviceToSend.getDeviceMac())) {
-                devicesConnected.add(device);
+        public WroupService build() {
+            if (context == null && wiFiP2PInstance == null) {
+                throw new IllegalStateException("A context or a WiFiP2PInstance is required");
             }
+            return new WroupService(this);
         }
 
-        RegisteredDevicesMessageContent content = new RegisteredDevicesMessageContent();
-        content.setDevicesRegistered(devicesConnected);
-
-        Gson gson = new Gson();
-
-        MessageWrapper messageWrapper = new MessageWrapper();
-        messageWrapper.setMessageType(MessageWrapper.MessageType.REGISTERED_DEVICES);
-        messageWrapper.setMessage(gson.toJson(content));
-
-        sendMessage(deviceToSend, messageWrapper);
     }
 
 }
@@ -0,0 +1,56 @@
+package com.abemart.wroup.common.advertisement;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceAdvertisementTest {
+
+    @Test
+    public void readsTheRecordItWrites() {
+        ServiceAdvertisement advertisement = new ServiceAdvertisement(9999, "Group",
+                ServiceAdvertisement.CAPABILITY_RPC, "0123456789abcdef");
+
+        ServiceAdvertisement read = ServiceAdvertisement.fromTxtRecord(advertisement.toTxtRecord());
+
+        assertEquals(ServiceAdvertisement.VERSION, read.getVersion());
+        assertEquals(9999, read.getPort());
+        assertEquals("Group", read.getGroupName());
+        assertTrue(read.hasCapability(ServiceAdvertisement.CAPABILITY_RPC));
+        assertTrue(read.hasCapability(ServiceAdvertisement.CAPABILITY_METADATA));
+        assertEquals("0123456789abcdef", read.getMetadataHash());
+        assertNull(read.getLegacyMetadata());
+    }
+
+    @Test
+    public void readsTheRecordsOfThePreviousVersions() {
+        Map<String, String> txtRecord = new HashMap<>();
+        txtRecord.put("SERVICE_NAME", "WROUP");
+        txtRecord.put("SERVICE_PORT", "9999");
+        txtRecord.put("GROUP_NAME", "Group");
+        txtRecord.put("custom", "value");
+
+        ServiceAdvertisement read = ServiceAdvertisement.fromTxtRecord(txtRecord);
+
+        assertEquals(0, read.getVersion());
+        assertEquals(9999, read.getPort());
+        assertEquals("Group", read.getGroupName());
+        assertEquals(1, read.getLegacyMetadata().size());
+        assertEquals("value", read.getLegacyMetadata().get("custom"));
+    }
+
+    @Test
+    public void ignoresTheRecordsOfOtherServices() {
+        Map<String, String> txtRecord = new HashMap<>();
+        txtRecord.put("SERVICE_NAME", "OTHER");
+        txtRecord.put("SERVICE_PORT", "9999");
+
+        assertNull(ServiceAdvertisement.fromTxtRecord(txtRecord));
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.abemart.wroup.common.dedup;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateWindowTest {
+
+    private static final String SENDER = "aa:aa:aa:aa:aa:aa";
+
+    @Test
+    public void rejectsTheCopiesOfAMessage() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        MessageIdSequence ids = new MessageIdSequence(1);
+        long id = ids.next();
+
+        assertTrue(duplicateWindow.accept(SENDER, id));
+        assertFalse(duplicateWindow.accept(SENDER, id));
+    }
+
+    @Test
+    public void acceptsTheMessagesOutOfOrderWithinTheWindow() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        MessageIdSequence ids = new MessageIdSequence(1);
+        long[] sent = new long[10];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = ids.next();
+        }
+
+        assertTrue(duplicateWindow.accept(SENDER, sent[9]));
+        for (int i = 8; i >= 0; i--) {
+            assertTrue(duplicateWindow.accept(SENDER, sent[i]));
+        }
+        for (long id : sent) {
+            assertFalse(duplicateWindow.accept(SENDER, id));
+        }
+    }
+
+    @Test
+    public void forgetsTheSequenceNumbersWhichLeaveTheWindow() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        MessageIdSequence ids = new MessageIdSequence(1);
+        long first = ids.next();
+        long second = ids.next();
+        assertTrue(duplicateWindow.accept(SENDER, second));
+
+        // The bits reused by the numbers which wrap around the bitmap are cleared when the window slides
+        long last = 0;
+        for (int i = 0; i < DuplicateWindow.WINDOW_SIZE - 1; i++) {
+            last = ids.next();
+        }
+        assertTrue(duplicateWindow.accept(SENDER, last));
+
+        // The first message is now out of the window, so it's considered a retry
+        assertFalse(duplicateWindow.accept(SENDER, first));
+        assertFalse(duplicateWindow.accept(SENDER, second));
+        assertTrue(duplicateWindow.accept(SENDER, last - 1));
+    }
+
+    @Test
+    public void clearsTheWindowAfterAJumpLargerThanIt() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        MessageIdSequence ids = new MessageIdSequence(1);
+        long first = ids.next();
+        assertTrue(duplicateWindow.accept(SENDER, first));
+
+        long jump = 0;
+        for (int i = 0; i < 3 * DuplicateWindow.WINDOW_SIZE; i++) {
+            jump = ids.next();
+        }
+        assertTrue(duplicateWindow.accept(SENDER, jump));
+
+        // The bit of the first message was cleared, so its neighbor in the window isn't a duplicate
+        assertTrue(duplicateWindow.accept(SENDER, jump - DuplicateWindow.WINDOW_SIZE + 1));
+        assertFalse(duplicateWindow.accept(SENDER, jump));
+    }
+
+    @Test
+    public void startsANewWindowForANewSessionOfTheSender() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        long id = new MessageIdSequence(1).next();
+        long restartedId = new MessageIdSequence(2).next();
+
+        assertTrue(duplicateWindow.accept(SENDER, id));
+        assertTrue(duplicateWindow.accept(SENDER, restartedId));
+        assertFalse(duplicateWindow.accept(SENDER, restartedId));
+    }
+
+    @Test
+    public void keepsTheSendersApart() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        long id = new MessageIdSequence(1).next();
+
+        assertTrue(duplicateWindow.accept(SENDER, id));
+        assertTrue(duplicateWindow.accept("bb:bb:bb:bb:bb:bb", id));
+    }
+
+    @Test
+    public void evictsTheSendersSeenLeastRecently() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow(2);
+        long id = new MessageIdSequence(1).next();
+        duplicateWindow.accept("first", id);
+        duplicateWindow.accept("second", id);
+        duplicateWindow.accept("first", id);
+
+        duplicateWindow.accept("third", id);
+
+        assertFalse(duplicateWindow.accept("first", id));
+        // A sender forgotten starts a new window
+        assertTrue(duplicateWindow.accept("second", id));
+    }
+
+    @Test
+    public void checksTheMessagesWhoseSenderIsNotResolved() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        long id = new MessageIdSequence(1).next();
+
+        MessageWrapper unresolved = message(id);
+        unresolved.setSender(null, 3);
+        assertTrue(duplicateWindow.accept(unresolved));
+
+        // The same message resolved, or sent again with the whole device which has the same id
+        MessageWrapper resolved = message(id);
+        resolved.setSender(device(3), 3);
+        assertFalse(duplicateWindow.accept(resolved));
+        MessageWrapper whole = message(id);
+        whole.setWroupDevice(device(3));
+        assertFalse(duplicateWindow.accept(whole));
+
+        MessageWrapper otherSender = message(id);
+        otherSender.setSender(null, 4);
+        assertTrue(duplicateWindow.accept(otherSender));
+    }
+
+    @Test
+    public void acceptsTheMessagesWithoutIdOrSender() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+
+        MessageWrapper withoutId = new MessageWrapper();
+        withoutId.setSender(null, 3);
+        assertTrue(duplicateWindow.accept(withoutId));
+        assertTrue(duplicateWindow.accept(withoutId));
+
+        MessageWrapper withoutSender = message(new MessageIdSequence(1).next());
+        assertTrue(duplicateWindow.accept(withoutSender));
+        assertTrue(duplicateWindow.accept(withoutSender));
+    }
+
+    @Test
+    public void acceptsTheHistoryOlderThanTheWindow() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        MessageIdSequence ids = new MessageIdSequence(1);
+        long[] sent = new long[3 * DuplicateWindow.WINDOW_SIZE];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = ids.next();
+        }
+        duplicateWindow.startCatchUp();
+
+        // The messages received live while the history is sent are far ahead of it
+        MessageWrapper live = message(sent[sent.length - 1]);
+        live.setSender(null, 3);
+        assertTrue(duplicateWindow.accept(live));
+
+        for (int i = 0; i < sent.length - 1; i++) {
+            MessageWrapper old = message(sent[i]);
+            old.setWroupDevice(device(3));
+            assertTrue(duplicateWindow.acceptFromHistory(old));
+        }
+        MessageWrapper copy = message(sent[sent.length - 1]);
+        copy.setWroupDevice(device(3));
+        assertFalse(duplicateWindow.acceptFromHistory(copy));
+
+        // The messages of the history within the window are remembered
+        assertFalse(duplicateWindow.accept(live(sent[sent.length - 2])));
+    }
+
+    @Test
+    public void rejectsTheHistoryReceivedBeforeRegistering() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        MessageIdSequence ids = new MessageIdSequence(1);
+        long received = ids.next();
+        assertTrue(duplicateWindow.accept(live(received)));
+
+        // Out of the group while the sender sent more than the window
+        long missed = ids.next();
+        for (int i = 0; i < 2 * DuplicateWindow.WINDOW_SIZE; i++) {
+            ids.next();
+        }
+        duplicateWindow.startCatchUp();
+        assertTrue(duplicateWindow.accept(live(ids.next())));
+
+        assertFalse(duplicateWindow.acceptFromHistory(live(received)));
+        assertTrue(duplicateWindow.acceptFromHistory(live(missed)));
+    }
+
+    @Test
+    public void acceptsTheHistoryWithoutLiveMessages() {
+        DuplicateWindow duplicateWindow = new DuplicateWindow();
+        MessageIdSequence ids = new MessageIdSequence(1);
+        long first = ids.next();
+        long second = ids.next();
+        duplicateWindow.startCatchUp();
+
+        assertTrue(duplicateWindow.acceptFromHistory(live(first)));
+        assertTrue(duplicateWindow.acceptFromHistory(live(second)));
+        assertFalse(duplicateWindow.accept(live(second)));
+    }
+
+    private static MessageWrapper live(long id) {
+        MessageWrapper message = message(id);
+        message.setSender(null, 3);
+        return message;
+    }
+
+    private static MessageWrapper message(long id) {
+        MessageWrapper message = new MessageWrapper();
+        message.setMessageType(MessageWrapper.MessageType.NORMAL);
+        message.setId(id);
+        return message;
+    }
+
+    private static WroupDevice device(int peerId) {
+        WroupDevice device = new WroupDevice();
+        device.setDeviceMac(SENDER);
+        device.setPeerId(peerId);
+        return device;
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.abemart.wroup.common.history;
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageHistoryTest {
+
+    private static final HistoryRequest ALL = HistoryRequest.lastMessages(Integer.MAX_VALUE);
+    private static final List<String> NO_SUBSCRIPTIONS = Collections.emptyList();
+
+    @Test
+    public void overwritesTheOldestMessagesWhenTheRingWrapsAround() {
+        int size = encodedSize(message(1, "aa:aa"));
+        MessageHistory history = new MessageHistory(3 * size + size / 2, 100, false);
+
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(history.add(message(i, "aa:aa"), i));
+        }
+
+        // The fourth message didn't fit at the end, so it was written at the start over the first
+        assertEquals(3, history.size());
+        assertEquals(texts(3, 4, 5), texts(history.select(ALL, null, NO_SUBSCRIPTIONS)));
+    }
+
+    @Test
+    public void keepsTheMaximumNumberOfMessages() {
+        MessageHistory history = new MessageHistory(MessageHistory.DEFAULT_MAX_BYTES, 2, true);
+
+        for (int i = 1; i <= 4; i++) {
+            history.add(message(i, "aa:aa"), i);
+        }
+
+        assertEquals(2, history.size());
+        assertEquals(texts(3, 4), texts(history.select(ALL, null, NO_SUBSCRIPTIONS)));
+    }
+
+    @Test
+    public void discardsTheMessagesLargerThanTheRing() {
+        int size = encodedSize(message(1, "aa:aa"));
+        MessageHistory history = new MessageHistory(size, 10, false);
+
+        assertTrue(history.add(message(1, "aa:aa"), 1));
+        MessageWrapper large = message(2, "aa:aa");
+        large.setMessage("a larger message than the ring");
+        assertFalse(history.add(large, 2));
+
+        assertEquals(1, history.getMessagesDiscarded());
+        assertEquals(texts(1), texts(history.select(ALL, null, NO_SUBSCRIPTIONS)));
+    }
+
+    @Test
+    public void selectsTheLastMessagesOrTheOnesSinceATime() {
+        MessageHistory history = new MessageHistory(MessageHistory.DEFAULT_MAX_BYTES, 100, false);
+        for (int i = 1; i <= 5; i++) {
+            history.add(message(i, "aa:aa"), i * 1000L);
+        }
+
+        assertEquals(texts(4, 5), texts(history.select(HistoryRequest.lastMessages(2), null, NO_SUBSCRIPTIONS)));
+        assertEquals(texts(3, 4, 5), texts(history.select(HistoryRequest.since(3000), null, NO_SUBSCRIPTIONS)));
+    }
+
+    @Test
+    public void skipsTheOwnMessagesAndTheTopicsNotSubscribed() {
+        MessageHistory history = new MessageHistory(MessageHistory.DEFAULT_MAX_BYTES, 100, false);
+        history.add(message(1, "aa:aa"), 1);
+        history.add(message(2, "bb:bb"), 2);
+        MessageWrapper published = message(3, "aa:aa");
+        published.setTopic("sensors/temperature");
+        history.add(published, 3);
+        MessageWrapper other = message(4, "aa:aa");
+        other.setTopic("chat");
+        history.add(other, 4);
+
+        assertEquals(texts(1, 3), texts(history.select(ALL, "bb:bb", Collections.singletonList("sensors/*"))));
+    }
+
+    @Test
+    public void keepsTheSequenceAndTheWholeSender() {
+        MessageHistory history = new MessageHistory(MessageHistory.DEFAULT_MAX_BYTES, 100, false);
+        MessageWrapper ordered = message(1, "aa:aa");
+        ordered.setSequence(42L);
+        ordered.setSender(device("aa:aa"), 7);
+        history.add(ordered, 1);
+
+        MessageWrapper kept = MessageCodec.GSON.fromJson(history.select(ALL, null, NO_SUBSCRIPTIONS).get(0), MessageWrapper.class);
+
+        assertEquals(Long.valueOf(42), kept.getSequence());
+        assertEquals(null, kept.getSenderId());
+        assertEquals("aa:aa", kept.getWroupDevice().getDeviceMac());
+    }
+
+    @Test
+    public void forgetsTheMessagesWhenCleared() {
+        MessageHistory history = new MessageHistory(MessageHistory.DEFAULT_MAX_BYTES, 100, false);
+        history.add(message(1, "aa:aa"), 1);
+
+        history.clear();
+
+        assertEquals(0, history.size());
+        assertTrue(history.select(ALL, null, NO_SUBSCRIPTIONS).isEmpty());
+        assertTrue(history.add(message(2, "aa:aa"), 2));
+        assertEquals(texts(2), texts(history.select(ALL, null, NO_SUBSCRIPTIONS)));
+    }
+
+    private static int encodedSize(MessageWrapper message) {
+        MessageHistory probe = new MessageHistory(MessageHistory.DEFAULT_MAX_BYTES, 1, false);
+        probe.add(message, 0);
+        return probe.select(ALL, null, NO_SUBSCRIPTIONS).get(0).length();
+    }
+
+    private static MessageWrapper message(int number, String senderMac) {
+        MessageWrapper message = new MessageWrapper();
+        message.setId((long) number);
+        message.setMessageType(MessageWrapper.MessageType.NORMAL);
+        message.setMessage("message " + number);
+        message.setWroupDevice(device(senderMac));
+        return message;
+    }
+
+    private static WroupDevice device(String deviceMac) {
+        WroupDevice device = new WroupDevice();
+        device.setDeviceMac(deviceMac);
+        return device;
+    }
+
+    private static List<String> texts(int... numbers) {
+        List<String> texts = new ArrayList<>();
+        for (int number : numbers) {
+            texts.add("message " + number);
+        }
+        return texts;
+    }
+
+    private static List<String> texts(List<String> encoded) {
+        List<String> texts = new ArrayList<>();
+        for (String json : encoded) {
+            texts.add(MessageCodec.GSON.fromJson(json, MessageWrapper.class).getMessage());
+        }
+        return texts;
+    }
+
+}
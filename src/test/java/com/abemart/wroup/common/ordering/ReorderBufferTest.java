@@ -0,0 +1,157 @@
+package com.abemart.wroup.common.ordering;
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReorderBufferTest {
+
+    @Test
+    public void deliversTheMessagesInOrder() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.reset(0);
+
+        assertEquals(sequences(0), sequences(buffer.offer(message(0))));
+        assertEquals(sequences(1), sequences(buffer.offer(message(1))));
+        assertEquals(0, buffer.getPending());
+    }
+
+    @Test
+    public void keepsTheMessagesWhichOvertakeOthers() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.reset(0);
+
+        assertTrue(buffer.offer(message(2)).isEmpty());
+        assertTrue(buffer.offer(message(1)).isEmpty());
+        assertEquals(2, buffer.getPending());
+        assertEquals(sequences(0, 1, 2), sequences(buffer.offer(message(0))));
+        assertEquals(0, buffer.getPending());
+    }
+
+    @Test
+    public void discardsTheMessagesAlreadyDelivered() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.reset(0);
+        buffer.offer(message(0));
+        buffer.offer(message(1));
+
+        assertTrue(buffer.offer(message(0)).isEmpty());
+        assertEquals(1, buffer.getMessagesDiscarded());
+    }
+
+    @Test
+    public void skipsTheMissingMessagesWhenTheWindowIsFull() {
+        ReorderBuffer buffer = new ReorderBuffer(3);
+        buffer.reset(0);
+
+        buffer.offer(message(2));
+        buffer.offer(message(3));
+        buffer.offer(message(4));
+        assertEquals(sequences(2, 3, 4, 5), sequences(buffer.offer(message(5))));
+        assertEquals(2, buffer.getMessagesSkipped());
+
+        // The skipped ones are discarded if they arrive later
+        assertTrue(buffer.offer(message(1)).isEmpty());
+        assertEquals(1, buffer.getMessagesDiscarded());
+    }
+
+    @Test
+    public void keepsTheMessagesReceivedBeforeTheReset() {
+        ReorderBuffer buffer = new ReorderBuffer();
+
+        assertTrue(buffer.offer(message(5)).isEmpty());
+        assertTrue(buffer.offer(message(4)).isEmpty());
+        assertTrue(buffer.offer(message(6)).isEmpty());
+
+        assertEquals(sequences(5, 6), sequences(buffer.reset(5)));
+        assertEquals(1, buffer.getMessagesDiscarded());
+    }
+
+    @Test
+    public void startsFromTheOldestMessageIfTheResetDoesNotArrive() {
+        ReorderBuffer buffer = new ReorderBuffer(2);
+
+        buffer.offer(message(8));
+        buffer.offer(message(7));
+
+        assertEquals(sequences(7, 8, 9), sequences(buffer.offer(message(9))));
+    }
+
+    @Test
+    public void forgetsTheMessagesWhenCleared() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.reset(0);
+        buffer.offer(message(3));
+
+        buffer.clear();
+
+        assertEquals(0, buffer.getPending());
+        assertTrue(buffer.offer(message(0)).isEmpty());
+        assertEquals(sequences(0), sequences(buffer.reset(0)));
+    }
+
+    @Test
+    public void deliversTheHistoryBeforeTheMessagesKept() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        assertTrue(buffer.offer(message(11)).isEmpty());
+        assertTrue(buffer.offer(message(10)).isEmpty());
+
+        // The gaps in the history are the messages not selected for the device
+        List<MessageWrapper> history = new ArrayList<>();
+        history.add(message(7));
+        history.add(message(3));
+        history.add(message(10));
+
+        assertEquals(sequences(3, 7, 10, 11), sequences(buffer.catchUp(history, 10)));
+        assertEquals(1, buffer.getMessagesDiscarded());
+        assertEquals(sequences(12), sequences(buffer.offer(message(12))));
+    }
+
+    @Test
+    public void discardsTheHistoryOnceTheDeliveryHasStarted() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.reset(10);
+        buffer.offer(message(10));
+
+        List<MessageWrapper> history = new ArrayList<>();
+        history.add(message(9));
+
+        assertTrue(buffer.catchUp(history, 10).isEmpty());
+        assertEquals(1, buffer.getMessagesDiscarded());
+        assertEquals(sequences(11), sequences(buffer.offer(message(11))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyWindow() {
+        new ReorderBuffer(0);
+    }
+
+    private static MessageWrapper message(long sequence) {
+        MessageWrapper message = new MessageWrapper();
+        message.setSequence(sequence);
+        return message;
+    }
+
+    private static List<Long> sequences(long... sequences) {
+        List<Long> list = new ArrayList<>();
+        for (long sequence : sequences) {
+            list.add(sequence);
+        }
+        return list;
+    }
+
+    private static List<Long> sequences(List<MessageWrapper> messages) {
+        List<Long> list = new ArrayList<>();
+        for (MessageWrapper message : messages) {
+            list.add(message.getSequence());
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.abemart.wroup.common.outbox;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.OutboxAckMessageContent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    private static final String DEVICE_MAC = "aa:aa:aa:aa:aa:aa";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<MessageWrapper> sent = new ArrayList<>();
+    private final OutboxTransport transport = new OutboxTransport() {
+        @Override
+        public void send(WroupDevice device, MessageWrapper message) {
+            sent.add(message);
+        }
+    };
+    private WroupDevice device;
+    private Outbox outbox;
+
+    @Before
+    public void setUp() {
+        device = new WroupDevice();
+        device.setDeviceMac(DEVICE_MAC);
+        device.setDeviceServerSocketIP("192.168.49.10");
+        outbox = new Outbox(temporaryFolder.getRoot(), transport, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        outbox.close();
+    }
+
+    @Test
+    public void sendsTheMessagesInOrderWithTheirStamp() {
+        outbox.send(device, message("first"));
+        outbox.send(device, message("second"));
+
+        assertEquals(2, sent.size());
+        assertEquals("first", sent.get(0).getMessage());
+        assertEquals(1, sent.get(0).getOutboxStamp().getSequence());
+        assertEquals(2, sent.get(1).getOutboxStamp().getSequence());
+        assertEquals(sent.get(0).getOutboxStamp().getEpoch(), sent.get(1).getOutboxStamp().getEpoch());
+        assertEquals(2, outbox.getPending(DEVICE_MAC));
+    }
+
+    @Test
+    public void keepsTheMessagesUntilTheyAreAcknowledged() {
+        outbox.send(device, message("first"));
+        outbox.send(device, message("second"));
+
+        outbox.onAcknowledgement(DEVICE_MAC, acknowledgement(sent.get(0), 1));
+        assertEquals(1, outbox.getPending(DEVICE_MAC));
+
+        // The acknowledgements of other epochs and the older ones are ignored
+        outbox.onAcknowledgement(DEVICE_MAC, acknowledgement(sent.get(0).getOutboxStamp().getEpoch() + 1, 2));
+        outbox.onAcknowledgement(DEVICE_MAC, acknowledgement(sent.get(0), 1));
+        assertEquals(1, outbox.getPending(DEVICE_MAC));
+
+        outbox.onAcknowledgement(DEVICE_MAC, acknowledgement(sent.get(0), 2));
+        assertEquals(0, outbox.getPending(DEVICE_MAC));
+    }
+
+    @Test
+    public void limitsTheMessagesSentWithoutAcknowledgement() {
+        for (int i = 0; i < Outbox.WINDOW + 10; i++) {
+            outbox.send(device, message("message-" + i));
+        }
+        assertEquals(Outbox.WINDOW, sent.size());
+
+        // Every acknowledgement opens the window to the next messages
+        outbox.onAcknowledgement(DEVICE_MAC, acknowledgement(sent.get(0), 10));
+        assertEquals(Outbox.WINDOW + 10, sent.size());
+        assertEquals("message-" + (Outbox.WINDOW + 9), sent.get(sent.size() - 1).getMessage());
+    }
+
+    @Test
+    public void keepsTheMessagesOfTheDisconnectedDevicesUntilTheyConnect() {
+        outbox.send(device, message("first"));
+        outbox.onDeviceDisconnected(DEVICE_MAC);
+        outbox.send(device, message("second"));
+        assertEquals(1, sent.size());
+
+        sent.clear();
+        outbox.onDeviceConnected(device);
+
+        assertEquals(2, sent.size());
+        assertEquals("first", sent.get(0).getMessage());
+        assertEquals("second", sent.get(1).getMessage());
+    }
+
+    @Test
+    public void sendsTheMessagesKeptBeforeARestart() {
+        outbox.send(device, message("first"));
+        outbox.send(device, message("second"));
+        outbox.onAcknowledgement(DEVICE_MAC, acknowledgement(sent.get(0), 1));
+        long epoch = sent.get(0).getOutboxStamp().getEpoch();
+        outbox.close();
+
+        sent.clear();
+        outbox = new Outbox(temporaryFolder.getRoot(), transport, 4096);
+        outbox.onDeviceConnected(device);
+
+        assertEquals(1, sent.size());
+        assertEquals("second", sent.get(0).getMessage());
+        assertEquals(epoch, sent.get(0).getOutboxStamp().getEpoch());
+        assertEquals(2, sent.get(0).getOutboxStamp().getSequence());
+        assertEquals(1, sent.get(0).getOutboxStamp().getAcknowledged());
+    }
+
+    @Test
+    public void deliversEveryMessageOnceAndInOrder() {
+        outbox.send(device, message("first"));
+        outbox.send(device, message("second"));
+        outbox.send(device, message("third"));
+        DeliveryTracker deliveryTracker = new DeliveryTracker();
+
+        assertTrue(deliveryTracker.accept(DEVICE_MAC, sent.get(0).getOutboxStamp()));
+        // A duplicate, and a message after a gap which will be sent again
+        assertFalse(deliveryTracker.accept(DEVICE_MAC, sent.get(0).getOutboxStamp()));
+        assertFalse(deliveryTracker.accept(DEVICE_MAC, sent.get(2).getOutboxStamp()));
+        assertTrue(deliveryTracker.accept(DEVICE_MAC, sent.get(1).getOutboxStamp()));
+        assertTrue(deliveryTracker.accept(DEVICE_MAC, sent.get(2).getOutboxStamp()));
+
+        assertEquals(3, deliveryTracker.getAcknowledged(DEVICE_MAC));
+    }
+
+    @Test
+    public void followsTheNewEpochOfASender() {
+        DeliveryTracker deliveryTracker = new DeliveryTracker();
+        assertTrue(deliveryTracker.accept(DEVICE_MAC, new OutboxStamp(1, 1, 0)));
+        assertTrue(deliveryTracker.accept(DEVICE_MAC, new OutboxStamp(1, 2, 0)));
+
+        // The log of the sender was deleted, its messages start again from the last one acknowledged
+        assertTrue(deliveryTracker.accept(DEVICE_MAC, new OutboxStamp(2, 1, 0)));
+        assertEquals(1, deliveryTracker.getAcknowledged(DEVICE_MAC));
+    }
+
+    private static MessageWrapper message(String text) {
+        MessageWrapper message = new MessageWrapper();
+        message.setMessageType(MessageWrapper.MessageType.NORMAL);
+        message.setMessage(text);
+        return message;
+    }
+
+    private static OutboxAckMessageContent acknowledgement(MessageWrapper sentMessage, long sequence) {
+        return acknowledgement(sentMessage.getOutboxStamp().getEpoch(), sequence);
+    }
+
+    private static OutboxAckMessageContent acknowledgement(long epoch, long sequence) {
+        OutboxAckMessageContent content = new OutboxAckMessageContent();
+        content.setEpoch(epoch);
+        content.setSequence(sequence);
+        return content;
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.abemart.wroup.common.outbox;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class SegmentLogTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readsTheRecordsAppended() throws IOException {
+        SegmentLog log = new SegmentLog(temporaryFolder.getRoot(), 4096);
+
+        assertEquals(1, log.append(bytes("first"), null));
+        assertEquals(2, log.append(bytes("second"), bytes("payload")));
+
+        ByteBuffer[] first = log.read(1);
+        assertEquals("first", string(first[0]));
+        assertNull(first[1]);
+        ByteBuffer[] second = log.read(2);
+        assertEquals("second", string(second[0]));
+        assertEquals("payload", string(second[1]));
+        assertNull(log.read(3));
+    }
+
+    @Test
+    public void rollsOverToNewSegmentsAndDeletesTheOnesAcknowledged() throws IOException {
+        // Every segment holds two records of 25 bytes
+        File directory = temporaryFolder.getRoot();
+        SegmentLog log = new SegmentLog(directory, 2 * (RECORD_HEADER_SIZE + 5));
+        for (int i = 1; i <= 6; i++) {
+            log.append(bytes("rec-" + i), null);
+        }
+        assertEquals(3, segmentFiles(directory));
+
+        log.acknowledge(3);
+        assertEquals(2, segmentFiles(directory));
+        assertNull(log.read(3));
+        assertEquals("rec-4", string(log.read(4)[0]));
+
+        // The last segment is kept to append the next records
+        log.acknowledge(6);
+        assertEquals(1, segmentFiles(directory));
+        assertEquals(7, log.append(bytes("rec-7"), null));
+    }
+
+    @Test
+    public void growsTheSegmentsOfTheRecordsLargerThanThem() throws IOException {
+        SegmentLog log = new SegmentLog(temporaryFolder.getRoot(), 32);
+
+        log.append(bytes("a record larger than a segment"), null);
+
+        assertEquals("a record larger than a segment", string(log.read(1)[0]));
+    }
+
+    @Test
+    public void recoversTheRecordsAndTheCheckpointAfterReopening() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        SegmentLog log = new SegmentLog(directory, 2 * (RECORD_HEADER_SIZE + 5));
+        for (int i = 1; i <= 5; i++) {
+            log.append(bytes("rec-" + i), null);
+        }
+        log.acknowledge(2);
+        long epoch = log.getEpoch();
+        log.close();
+
+        SegmentLog reopened = new SegmentLog(directory, 2 * (RECORD_HEADER_SIZE + 5));
+
+        assertEquals(epoch, reopened.getEpoch());
+        assertEquals(2, reopened.getAcknowledged());
+        assertEquals(5, reopened.getLastSequence());
+        assertNull(reopened.read(2));
+        assertEquals("rec-3", string(reopened.read(3)[0]));
+        assertEquals("rec-5", string(reopened.read(5)[0]));
+        assertEquals(6, reopened.append(bytes("rec-6"), null));
+    }
+
+    @Test
+    public void recoversTheRecordsBeforeATruncatedOne() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        SegmentLog log = new SegmentLog(directory, 4096);
+        log.append(bytes("rec-1"), null);
+        log.append(bytes("rec-2"), null);
+        log.append(bytes("rec-3"), bytes("payload"));
+        log.close();
+
+        // The crash cut the last record in the middle
+        File segment = onlySegmentFile(directory);
+        truncate(segment, 2 * (RECORD_HEADER_SIZE + 5) + RECORD_HEADER_SIZE + 2);
+
+        SegmentLog reopened = new SegmentLog(directory, 4096);
+
+        assertEquals(2, reopened.getLastSequence());
+        assertEquals("rec-2", string(reopened.read(2)[0]));
+        assertNull(reopened.read(3));
+        // The next record takes the place of the one lost
+        assertEquals(3, reopened.append(bytes("new-3"), null));
+        assertEquals("new-3", string(reopened.read(3)[0]));
+    }
+
+    @Test
+    public void discardsTheRecordsAfterACorruptedOne() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        SegmentLog log = new SegmentLog(directory, 4096);
+        log.append(bytes("rec-1"), null);
+        log.append(bytes("rec-2"), null);
+        log.append(bytes("rec-3"), null);
+        log.close();
+
+        // Flip a byte of the header of the second record
+        RandomAccessFile file = new RandomAccessFile(onlySegmentFile(directory), "rw");
+        try {
+            long position = RECORD_HEADER_SIZE + 5 + RECORD_HEADER_SIZE + 1;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        SegmentLog reopened = new SegmentLog(directory, 4096);
+
+        assertEquals(1, reopened.getLastSequence());
+        assertEquals("rec-1", string(reopened.read(1)[0]));
+        assertNull(reopened.read(2));
+    }
+
+    @Test
+    public void dropsTheSegmentsAfterAGap() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        SegmentLog log = new SegmentLog(directory, 2 * (RECORD_HEADER_SIZE + 5));
+        for (int i = 1; i <= 6; i++) {
+            log.append(bytes("rec-" + i), null);
+        }
+        log.close();
+
+        // The segment of the records 3 and 4 is lost, so the records 5 and 6 can't be sent in order
+        new File(directory, String.format("%020d", 3) + ".seg").delete();
+
+        SegmentLog reopened = new SegmentLog(directory, 2 * (RECORD_HEADER_SIZE + 5));
+
+        assertEquals(2, reopened.getLastSequence());
+        assertEquals(1, segmentFiles(directory));
+        assertNull(reopened.read(5));
+    }
+
+    @Test
+    public void givesEveryNewLogADifferentEpoch() throws IOException {
+        SegmentLog log = new SegmentLog(temporaryFolder.newFolder("first"), 4096);
+        SegmentLog other = new SegmentLog(temporaryFolder.newFolder("second"), 4096);
+
+        assertNotEquals(log.getEpoch(), other.getEpoch());
+    }
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int segmentFiles(File directory) {
+        int segments = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".seg")) {
+                segments++;
+            }
+        }
+        return segments;
+    }
+
+    private static File onlySegmentFile(File directory) {
+        return new File(directory, String.format("%020d", 1) + ".seg");
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.abemart.wroup.common.replication;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LwwRegisterTest {
+
+    @Test
+    public void keepsTheNewestWriteWhateverTheOrderOfTheMerges() {
+        LwwRegister older = new LwwRegister("old", 10, "a");
+        LwwRegister newer = new LwwRegister("new", 20, "a");
+
+        LwwRegister first = new LwwRegister();
+        assertTrue(first.merge(older));
+        assertTrue(first.merge(newer));
+
+        LwwRegister second = new LwwRegister();
+        assertTrue(second.merge(newer));
+        assertFalse(second.merge(older));
+
+        assertEquals("new", first.getValue());
+        assertEquals("new", second.getValue());
+        assertEquals(first.digest(), second.digest());
+    }
+
+    @Test
+    public void breaksTiesByTheReplica() {
+        LwwRegister register = new LwwRegister("a", 10, "a");
+
+        assertTrue(register.merge(new LwwRegister("b", 10, "b")));
+        assertFalse(register.merge(new LwwRegister("a", 10, "a")));
+
+        assertEquals("b", register.getValue());
+        assertEquals("b", register.getReplicaId());
+    }
+
+    @Test
+    public void ignoresTheSameWriteMergedTwice() {
+        LwwRegister write = new LwwRegister("value", 10, "a");
+        LwwRegister register = new LwwRegister();
+
+        assertTrue(register.merge(write));
+        assertFalse(register.merge(write));
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.abemart.wroup.common.replication;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MerkleTreeTest {
+
+    @Test
+    public void updatesOneNodePerLevel() {
+        MerkleTree merkleTree = new MerkleTree();
+        long keyHash = StateHash.of("key");
+
+        merkleTree.update(keyHash, 0, 42);
+
+        for (int level = 0; level <= MerkleTree.LEAF_LEVEL; level++) {
+            int node = MerkleTree.node(keyHash, level);
+            assertEquals(42, merkleTree.hash(level, node));
+            int sibling = node ^ 1;
+            if (merkleTree.isValidNode(level, sibling)) {
+                assertEquals(0, merkleTree.hash(level, sibling));
+            }
+        }
+    }
+
+    @Test
+    public void doesNotDependOnTheOrderOfTheUpdates() {
+        long first = StateHash.of("first");
+        long second = StateHash.of("second");
+
+        MerkleTree merkleTree = new MerkleTree();
+        merkleTree.update(first, 0, 1);
+        merkleTree.update(second, 0, 2);
+        merkleTree.update(first, 1, 3);
+
+        MerkleTree other = new MerkleTree();
+        other.update(first, 0, 3);
+        other.update(second, 0, 2);
+
+        for (int level = 0; level <= MerkleTree.LEAF_LEVEL; level++) {
+            assertEquals(merkleTree.hash(level, MerkleTree.node(first, level)), other.hash(level, MerkleTree.node(first, level)));
+            assertEquals(merkleTree.hash(level, MerkleTree.node(second, level)), other.hash(level, MerkleTree.node(second, level)));
+        }
+    }
+
+    @Test
+    public void wrapsAroundTheHashesOfTheEntries() {
+        MerkleTree merkleTree = new MerkleTree();
+        long keyHash = StateHash.of("key");
+
+        merkleTree.update(keyHash, 0, Long.MAX_VALUE);
+        merkleTree.update(StateHash.of("other"), 0, Long.MAX_VALUE);
+        merkleTree.update(keyHash, Long.MAX_VALUE, 0);
+
+        assertEquals(Long.MAX_VALUE, merkleTree.hash(0, 0));
+    }
+
+    @Test
+    public void choosesTheChildrenFromTheParents() {
+        long keyHash = StateHash.of("key");
+        for (int level = 1; level <= MerkleTree.LEAF_LEVEL; level++) {
+            assertEquals(MerkleTree.node(keyHash, level - 1), MerkleTree.node(keyHash, level) / MerkleTree.FANOUT);
+        }
+    }
+
+    @Test
+    public void validatesTheNodes() {
+        MerkleTree merkleTree = new MerkleTree();
+
+        assertTrue(merkleTree.isValidNode(0, 0));
+        assertFalse(merkleTree.isValidNode(0, 1));
+        assertTrue(merkleTree.isValidNode(MerkleTree.LEAF_LEVEL, (1 << (MerkleTree.BITS_PER_LEVEL * MerkleTree.LEAF_LEVEL)) - 1));
+        assertFalse(merkleTree.isValidNode(MerkleTree.LEAF_LEVEL + 1, 0));
+        assertFalse(merkleTree.isValidNode(1, -1));
+    }
+
+    @Test
+    public void forgetsTheHashesWhenCleared() {
+        MerkleTree merkleTree = new MerkleTree();
+        merkleTree.update(StateHash.of("key"), 0, 42);
+        assertNotEquals(0, merkleTree.hash(0, 0));
+
+        merkleTree.clear();
+
+        assertEquals(0, merkleTree.hash(0, 0));
+    }
+
+}
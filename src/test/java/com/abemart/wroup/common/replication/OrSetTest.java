@@ -0,0 +1,63 @@
+package com.abemart.wroup.common.replication;
+
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OrSetTest {
+
+    @Test
+    public void keepsTheElementsAddedConcurrentlyWithTheirRemoval() {
+        OrSet replicaA = new OrSet();
+        OrSet replicaB = new OrSet();
+        replicaB.merge(replicaA.add("x", "a-1"));
+
+        // A removes the addition it has seen while B adds the element again
+        OrSet removal = replicaA.remove("x");
+        OrSet addition = replicaB.add("x", "b-1");
+        replicaA.merge(addition);
+        replicaB.merge(removal);
+
+        assertTrue(replicaA.contains("x"));
+        assertTrue(replicaB.contains("x"));
+        assertEquals(replicaA.digest(), replicaB.digest());
+    }
+
+    @Test
+    public void discardsTheAdditionsReceivedAfterTheirRemoval() {
+        OrSet source = new OrSet();
+        OrSet addition = source.add("x", "a-1");
+        OrSet removal = source.remove("x");
+
+        OrSet replica = new OrSet();
+        assertTrue(replica.merge(removal));
+        assertFalse(replica.merge(addition));
+
+        assertFalse(replica.contains("x"));
+        assertEquals(source.digest(), replica.digest());
+    }
+
+    @Test
+    public void ignoresTheDuplicateDeltas() {
+        OrSet source = new OrSet();
+        OrSet addition = source.add("x", "a-1");
+
+        OrSet replica = new OrSet();
+        assertTrue(replica.merge(addition));
+        assertFalse(replica.merge(addition));
+
+        assertEquals(Collections.singleton("x"), replica.getElements());
+    }
+
+    @Test
+    public void removesNothingFromTheElementsNotInTheSet() {
+        assertNull(new OrSet().remove("x"));
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.abemart.wroup.common.replication;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PnCounterTest {
+
+    @Test
+    public void addsTheConcurrentChangesOfAllTheReplicas() {
+        PnCounter replicaA = new PnCounter();
+        PnCounter replicaB = new PnCounter();
+        PnCounter deltaA = replicaA.add("a", 5);
+        PnCounter deltaB = replicaB.add("b", -2);
+
+        assertTrue(replicaA.merge(deltaB));
+        assertTrue(replicaB.merge(deltaA));
+
+        assertEquals(3, replicaA.getValue());
+        assertEquals(3, replicaB.getValue());
+        assertEquals(replicaA.digest(), replicaB.digest());
+    }
+
+    @Test
+    public void ignoresTheDuplicateAndTheOutdatedDeltas() {
+        PnCounter source = new PnCounter();
+        PnCounter firstDelta = source.add("a", 1);
+        PnCounter secondDelta = source.add("a", 1);
+
+        PnCounter replica = new PnCounter();
+        assertTrue(replica.merge(secondDelta));
+        // The totals of a replica only grow, so the older delta and the repeated one change nothing
+        assertFalse(replica.merge(firstDelta));
+        assertFalse(replica.merge(secondDelta));
+
+        assertEquals(2, replica.getValue());
+    }
+
+}
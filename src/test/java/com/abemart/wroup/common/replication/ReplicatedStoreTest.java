@@ -0,0 +1,165 @@
+package com.abemart.wroup.common.replication;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicatedStoreTest {
+
+    private WroupDevice deviceA;
+    private WroupDevice deviceB;
+    private ReplicatedStore storeA;
+    private ReplicatedStore storeB;
+    private List<MessageWrapper> deltasOfA;
+    private List<MessageWrapper> deltasOfB;
+
+    @Before
+    public void setUp() {
+        deviceA = device("aa:aa:aa:aa:aa:aa");
+        deviceB = device("bb:bb:bb:bb:bb:bb");
+        deltasOfA = new ArrayList<>();
+        deltasOfB = new ArrayList<>();
+
+        // The deltas are kept to deliver them in any order, and the sync messages are answered at once
+        storeA = new ReplicatedStore(new LinkedTransport(deltasOfA) {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                storeB.onSync(message, deviceA);
+            }
+        });
+        storeB = new ReplicatedStore(new LinkedTransport(deltasOfB) {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                storeA.onSync(message, deviceB);
+            }
+        });
+        storeA.setReplicaId(deviceA.getDeviceMac());
+        storeB.setReplicaId(deviceB.getDeviceMac());
+    }
+
+    @Test
+    public void convergesWithTheDeltasDeliveredOutOfOrderAndTwice() {
+        storeA.putRegister("name", "first");
+        storeA.putRegister("name", "second");
+        storeA.incrementCounter("count", 3);
+        storeA.incrementCounter("count", -1);
+        storeA.addToSet("tags", "x");
+        storeA.addToSet("tags", "y");
+        storeA.removeFromSet("tags", "x");
+
+        List<MessageWrapper> deltas = new ArrayList<>(deltasOfA);
+        Collections.reverse(deltas);
+        for (MessageWrapper delta : deltas) {
+            storeB.onDelta(delta);
+            storeB.onDelta(delta);
+        }
+
+        assertEquals("second", storeB.getRegister("name"));
+        assertEquals(2, storeB.getCounter("count"));
+        assertEquals(Collections.singleton("y"), storeB.getSet("tags"));
+        assertEquals(storeA.getStateHash(), storeB.getStateHash());
+    }
+
+    @Test
+    public void mergesTheConcurrentChangesOfBothDevices() {
+        storeA.incrementCounter("count", 2);
+        storeB.incrementCounter("count", 5);
+        storeA.addToSet("tags", "a");
+        storeB.addToSet("tags", "b");
+
+        exchangeDeltas();
+
+        assertEquals(7, storeA.getCounter("count"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), storeB.getSet("tags"));
+        assertEquals(storeA.getStateHash(), storeB.getStateHash());
+    }
+
+    @Test
+    public void repairsTheChangesMissedWithASynchronization() {
+        for (int i = 0; i < 100; i++) {
+            storeA.putRegister("a" + i, "value" + i);
+            storeB.incrementCounter("b" + i, i);
+        }
+        storeA.putRegister("shared", "a");
+        assertNotEquals(storeA.getStateHash(), storeB.getStateHash());
+
+        storeB.synchronize(deviceA);
+
+        assertEquals(storeA.getStateHash(), storeB.getStateHash());
+        assertEquals(storeA.getKeys(), storeB.getKeys());
+        assertEquals("value42", storeB.getRegister("a42"));
+        assertEquals(42, storeA.getCounter("b42"));
+        assertEquals("a", storeB.getRegister("shared"));
+    }
+
+    @Test
+    public void discardsTheChangesOfAKeyWithOtherType() {
+        storeA.putRegister("key", "value");
+        storeB.incrementCounter("key", 1);
+
+        exchangeDeltas();
+
+        assertEquals("value", storeA.getRegister("key"));
+        assertEquals(1, storeB.getCounter("key"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsTheLocalChangesOfAKeyWithOtherType() {
+        storeA.putRegister("key", "value");
+        storeA.incrementCounter("key", 1);
+    }
+
+    @Test
+    public void forgetsTheStateWhenCleared() {
+        storeA.putRegister("key", "value");
+
+        storeA.clear();
+
+        assertTrue(storeA.getKeys().isEmpty());
+        assertEquals(0, storeA.getStateHash());
+    }
+
+    private void exchangeDeltas() {
+        for (MessageWrapper delta : deltasOfA) {
+            storeB.onDelta(delta);
+        }
+        for (MessageWrapper delta : deltasOfB) {
+            storeA.onDelta(delta);
+        }
+    }
+
+    private static WroupDevice device(String mac) {
+        WroupDevice device = new WroupDevice();
+        device.setDeviceMac(mac);
+        return device;
+    }
+
+    private abstract static class LinkedTransport implements ReplicationTransport {
+
+        private final List<MessageWrapper> deltas;
+
+        LinkedTransport(List<MessageWrapper> deltas) {
+            this.deltas = deltas;
+        }
+
+        @Override
+        public void sendToAll(MessageWrapper message) {
+            deltas.add(message);
+        }
+
+    }
+
+}
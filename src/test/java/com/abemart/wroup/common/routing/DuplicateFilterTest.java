@@ -0,0 +1,45 @@
+package com.abemart.wroup.common.routing;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+    @Test
+    public void rejectsTheIdsSeenBefore() {
+        DuplicateFilter duplicateFilter = new DuplicateFilter(4);
+
+        assertTrue(duplicateFilter.add("a"));
+        assertTrue(duplicateFilter.add("b"));
+        assertFalse(duplicateFilter.add("a"));
+        assertFalse(duplicateFilter.add("b"));
+    }
+
+    @Test
+    public void forgetsTheLeastRecentlySeenIdsOverTheCapacity() {
+        DuplicateFilter duplicateFilter = new DuplicateFilter(2);
+        duplicateFilter.add("a");
+        duplicateFilter.add("b");
+        // Seeing an id again keeps it in the filter
+        duplicateFilter.add("a");
+
+        assertTrue(duplicateFilter.add("c"));
+
+        assertFalse(duplicateFilter.add("a"));
+        assertTrue(duplicateFilter.add("b"));
+    }
+
+    @Test
+    public void forgetsEverythingWhenCleared() {
+        DuplicateFilter duplicateFilter = new DuplicateFilter();
+        duplicateFilter.add("a");
+
+        duplicateFilter.clear();
+
+        assertTrue(duplicateFilter.add("a"));
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.abemart.wroup.common.routing;
+
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingTableTest {
+
+    private static final String BRIDGE_A = "aa:aa:aa:aa:aa:aa";
+    private static final String BRIDGE_B = "bb:bb:bb:bb:bb:bb";
+    private static final String DEVICE_X = "11:11:11:11:11:11";
+    private static final String DEVICE_Y = "22:22:22:22:22:22";
+
+    @Test
+    public void routesThroughTheNeighborWhichAdvertisesTheDevice() {
+        RoutingTable routingTable = new RoutingTable(1);
+
+        assertTrue(routingTable.update(BRIDGE_A, distances(DEVICE_X, 0, DEVICE_Y, 2)));
+
+        assertEquals(new RoutingTable.Route(BRIDGE_A, 1), routingTable.getRoute(BRIDGE_A));
+        assertEquals(new RoutingTable.Route(BRIDGE_A, 1), routingTable.getRoute(DEVICE_X));
+        assertEquals(new RoutingTable.Route(BRIDGE_A, 3), routingTable.getRoute(DEVICE_Y));
+    }
+
+    @Test
+    public void prefersTheRouteWhichCrossesFewerBridges() {
+        RoutingTable routingTable = new RoutingTable(0);
+        routingTable.update(BRIDGE_A, distances(DEVICE_X, 3));
+        routingTable.update(BRIDGE_B, distances(DEVICE_X, 1));
+
+        assertEquals(new RoutingTable.Route(BRIDGE_B, 1), routingTable.getRoute(DEVICE_X));
+    }
+
+    @Test
+    public void breaksTiesByTheNeighborAddressWhateverTheOrderOfTheAdvertisements() {
+        RoutingTable first = new RoutingTable(0);
+        first.update(BRIDGE_A, distances(DEVICE_X, 1));
+        first.update(BRIDGE_B, distances(DEVICE_X, 1));
+
+        RoutingTable second = new RoutingTable(0);
+        second.update(BRIDGE_B, distances(DEVICE_X, 1));
+        second.update(BRIDGE_A, distances(DEVICE_X, 1));
+
+        assertEquals(BRIDGE_A, first.getRoute(DEVICE_X).getNextHop());
+        assertEquals(first.getRoutes(), second.getRoutes());
+    }
+
+    @Test
+    public void reportsOnlyTheAdvertisementsWhichChangeTheRoutes() {
+        RoutingTable routingTable = new RoutingTable(0);
+
+        assertTrue(routingTable.update(BRIDGE_A, distances(DEVICE_X, 1)));
+        assertFalse(routingTable.update(BRIDGE_A, distances(DEVICE_X, 1)));
+        // A worse route of another neighbor doesn't change the best routes, but the neighbor is new
+        assertTrue(routingTable.update(BRIDGE_B, distances(DEVICE_X, 2)));
+        assertFalse(routingTable.update(BRIDGE_B, distances(DEVICE_X, 3)));
+    }
+
+    @Test
+    public void dropsTheRoutesWithdrawnByTheNextAdvertisement() {
+        RoutingTable routingTable = new RoutingTable(0);
+        routingTable.update(BRIDGE_A, distances(DEVICE_X, 0, DEVICE_Y, 0));
+
+        assertTrue(routingTable.update(BRIDGE_A, distances(DEVICE_X, 0)));
+
+        assertNull(routingTable.getRoute(DEVICE_Y));
+        assertEquals(new RoutingTable.Route(BRIDGE_A, 0), routingTable.getRoute(DEVICE_X));
+    }
+
+    @Test
+    public void fallsBackToTheNextRouteWhenANeighborLeaves() {
+        RoutingTable routingTable = new RoutingTable(0);
+        routingTable.update(BRIDGE_A, distances(DEVICE_X, 1));
+        routingTable.update(BRIDGE_B, distances(DEVICE_X, 4));
+
+        assertTrue(routingTable.removeNeighbor(BRIDGE_A));
+        assertFalse(routingTable.removeNeighbor(BRIDGE_A));
+
+        assertFalse(routingTable.isNeighbor(BRIDGE_A));
+        assertNull(routingTable.getRoute(BRIDGE_A));
+        assertEquals(new RoutingTable.Route(BRIDGE_B, 4), routingTable.getRoute(DEVICE_X));
+    }
+
+    @Test
+    public void considersUnreachableTheDevicesAtTheMaximumDistance() {
+        RoutingTable routingTable = new RoutingTable(1);
+        routingTable.update(BRIDGE_A, distances(DEVICE_X, RoutingTable.MAX_DISTANCE - 2, DEVICE_Y, RoutingTable.MAX_DISTANCE - 1));
+
+        assertEquals(RoutingTable.MAX_DISTANCE - 1, routingTable.getRoute(DEVICE_X).getDistance());
+        assertNull(routingTable.getRoute(DEVICE_Y));
+    }
+
+    @Test
+    public void stopsCountingToInfinityInALoopOfBridges() {
+        // Two bridges which keep advertising to each other a device which none of them reaches
+        RoutingTable bridgeA = new RoutingTable(1);
+        RoutingTable bridgeB = new RoutingTable(1);
+        bridgeA.update(BRIDGE_B, distances(DEVICE_X, 1));
+        bridgeB.update(BRIDGE_A, distances(DEVICE_X, 1));
+
+        for (int round = 0; round < RoutingTable.MAX_DISTANCE; round++) {
+            bridgeB.update(BRIDGE_A, bridgeA.advertisementFor(BRIDGE_A + "-other", Collections.<String>emptyList()));
+            bridgeA.update(BRIDGE_B, bridgeB.advertisementFor(BRIDGE_B + "-other", Collections.<String>emptyList()));
+        }
+
+        assertNull(bridgeA.getRoute(DEVICE_X));
+        assertNull(bridgeB.getRoute(DEVICE_X));
+    }
+
+    @Test
+    public void advertisesTheLocalDevicesAndSplitsTheHorizon() {
+        RoutingTable routingTable = new RoutingTable(0);
+        routingTable.update(BRIDGE_A, distances(DEVICE_X, 1));
+        routingTable.update(BRIDGE_B, distances(DEVICE_Y, 2));
+
+        Map<String, Integer> advertisement = routingTable.advertisementFor(BRIDGE_A, Arrays.asList(BRIDGE_A, "33:33:33:33:33:33"));
+
+        // The routes learned from the neighbor and the neighbor itself aren't advertised back to it
+        assertEquals(distances(BRIDGE_B, 0, DEVICE_Y, 2, "33:33:33:33:33:33", 0), advertisement);
+    }
+
+    @Test
+    public void forgetsEverythingWhenCleared() {
+        RoutingTable routingTable = new RoutingTable(0);
+        routingTable.update(BRIDGE_A, distances(DEVICE_X, 1));
+
+        routingTable.clear();
+
+        assertTrue(routingTable.getNeighbors().isEmpty());
+        assertTrue(routingTable.getRoutes().isEmpty());
+    }
+
+    private static Map<String, Integer> distances(Object... devicesAndDistances) {
+        Map<String, Integer> distances = new HashMap<>();
+        for (int i = 0; i < devicesAndDistances.length; i += 2) {
+            distances.put((String) devicesAndDistances[i], (Integer) devicesAndDistances[i + 1]);
+        }
+        return distances;
+    }
+
+}
@@ -0,0 +1,248 @@
+package com.abemart.wroup.common.rpc;
+
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.listeners.RpcRequestListener;
+import com.abemart.wroup.common.listeners.RpcResponseListener;
+import com.abemart.wroup.common.messages.MessageCodec;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.messages.RpcMessageContent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RpcEngineTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private WroupDevice callerDevice;
+    private WroupDevice calleeDevice;
+    private RpcEngine caller;
+    private RpcEngine callee;
+    private boolean deliverRequests;
+
+    @Before
+    public void setUp() {
+        callerDevice = device("aa:aa:aa:aa:aa:aa", "192.168.49.10");
+        calleeDevice = device("bb:bb:bb:bb:bb:bb", "192.168.49.1");
+        deliverRequests = true;
+
+        // Both engines are linked in memory: the requests of the caller reach the callee, and its
+        // responses come back from the called device.
+        caller = new RpcEngine(DIRECT_EXECUTOR, new RpcTransport() {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                if (deliverRequests) {
+                    message.setWroupDevice(callerDevice);
+                    callee.onRequest(message, callerDevice);
+                }
+            }
+        });
+        callee = new RpcEngine(DIRECT_EXECUTOR, new RpcTransport() {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                message.setWroupDevice(calleeDevice);
+                caller.onResponse(message);
+            }
+        });
+    }
+
+    @Test
+    public void returnsTheResultOfTheHandler() throws InterruptedException {
+        callee.registerHandler("echo", new RpcRequestListener() {
+            @Override
+            public String onRpcRequest(WroupDevice device, String params) {
+                return device.getDeviceMac() + " " + params;
+            }
+        });
+
+        RecordingListener listener = new RecordingListener();
+        caller.call(calleeDevice, "echo", "hello", 1000, listener);
+
+        assertTrue(listener.await());
+        assertEquals("aa:aa:aa:aa:aa:aa hello", listener.result);
+        assertNull(listener.error);
+        assertEquals(0, caller.getPendingCalls());
+    }
+
+    @Test
+    public void failsTheCallsOfMethodsWithoutHandler() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        caller.call(calleeDevice, "missing", null, 1000, listener);
+
+        assertTrue(listener.await());
+        assertEquals(RpcError.METHOD_NOT_FOUND, listener.error);
+    }
+
+    @Test
+    public void failsTheCallsOfUnregisteredMethods() throws InterruptedException {
+        callee.registerHandler("echo", new RpcRequestListener() {
+            @Override
+            public String onRpcRequest(WroupDevice device, String params) {
+                return params;
+            }
+        });
+        callee.unregisterHandler("echo");
+
+        RecordingListener listener = new RecordingListener();
+        caller.call(calleeDevice, "echo", "hello", 1000, listener);
+
+        assertTrue(listener.await());
+        assertEquals(RpcError.METHOD_NOT_FOUND, listener.error);
+    }
+
+    @Test
+    public void reportsTheFailuresOfTheHandler() throws InterruptedException {
+        callee.registerHandler("fail", new RpcRequestListener() {
+            @Override
+            public String onRpcRequest(WroupDevice device, String params) throws Exception {
+                throw new IllegalStateException("broken");
+            }
+        });
+
+        RecordingListener listener = new RecordingListener();
+        caller.call(calleeDevice, "fail", null, 1000, listener);
+
+        assertTrue(listener.await());
+        assertEquals(RpcError.HANDLER_FAILED, listener.error);
+        assertEquals("broken", listener.errorMessage);
+    }
+
+    @Test
+    public void expiresTheCallsWithoutResponse() throws InterruptedException {
+        deliverRequests = false;
+
+        RecordingListener listener = new RecordingListener();
+        caller.call(calleeDevice, "echo", null, 50, listener);
+        assertEquals(1, caller.getPendingCalls());
+
+        assertTrue(listener.await());
+        assertEquals(RpcError.TIMEOUT, listener.error);
+        assertEquals(0, caller.getPendingCalls());
+    }
+
+    @Test
+    public void limitsTheCallsInFlightWithADevice() throws InterruptedException {
+        deliverRequests = false;
+        caller.setMaxInFlightPerPeer(2);
+
+        caller.call(calleeDevice, "echo", null, 10000, new RecordingListener());
+        caller.call(calleeDevice, "echo", null, 10000, new RecordingListener());
+        RecordingListener rejected = new RecordingListener();
+        caller.call(calleeDevice, "echo", null, 10000, rejected);
+
+        assertTrue(rejected.await());
+        assertEquals(RpcError.TOO_MANY_IN_FLIGHT, rejected.error);
+        assertEquals(2, caller.getPendingCalls());
+
+        // The calls to other devices aren't limited by the calls in flight with this one
+        RecordingListener other = new RecordingListener();
+        caller.call(device("cc:cc:cc:cc:cc:cc", "192.168.49.11"), "echo", null, 10000, other);
+        assertEquals(3, caller.getPendingCalls());
+
+        caller.cancelAll();
+        assertEquals(0, caller.getPendingCalls());
+    }
+
+    @Test
+    public void discardsTheResponsesOfOtherDevices() throws InterruptedException {
+        final MessageWrapper[] request = new MessageWrapper[1];
+        RpcEngine engine = new RpcEngine(DIRECT_EXECUTOR, new RpcTransport() {
+            @Override
+            public void send(WroupDevice device, MessageWrapper message) {
+                request[0] = message;
+            }
+        });
+        RecordingListener listener = new RecordingListener();
+        engine.call(calleeDevice, "echo", null, 10000, listener);
+
+        RpcMessageContent requestContent = MessageCodec.GSON.fromJson(request[0].getMessage(), RpcMessageContent.class);
+        RpcMessageContent responseContent = new RpcMessageContent();
+        responseContent.setCallId(requestContent.getCallId());
+        responseContent.setBody("forged");
+        MessageWrapper response = new MessageWrapper();
+        response.setMessageType(MessageWrapper.MessageType.RPC_RESPONSE);
+        response.setMessage(MessageCodec.GSON.toJson(responseContent));
+
+        // The id of the call is right, but the response comes from a device different of the called one
+        response.setWroupDevice(device("cc:cc:cc:cc:cc:cc", "192.168.49.11"));
+        engine.onResponse(response);
+        assertEquals(1, engine.getPendingCalls());
+
+        response.setWroupDevice(calleeDevice);
+        engine.onResponse(response);
+        assertTrue(listener.await());
+        assertEquals("forged", listener.result);
+        assertEquals(0, engine.getPendingCalls());
+    }
+
+    @Test
+    public void cancelsThePendingCalls() throws InterruptedException {
+        deliverRequests = false;
+
+        RecordingListener listener = new RecordingListener();
+        caller.call(calleeDevice, "echo", null, 10000, listener);
+        caller.cancelAll();
+
+        assertTrue(listener.await());
+        assertEquals(RpcError.CANCELLED, listener.error);
+        assertEquals(0, caller.getPendingCalls());
+    }
+
+    @Test
+    public void failsTheCallsToDisconnectedDevices() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        caller.call(device("cc:cc:cc:cc:cc:cc", null), "echo", null, 1000, listener);
+
+        assertTrue(listener.await());
+        assertEquals(RpcError.NOT_CONNECTED, listener.error);
+        assertEquals(0, caller.getPendingCalls());
+    }
+
+    private static WroupDevice device(String mac, String ip) {
+        WroupDevice device = new WroupDevice();
+        device.setDeviceMac(mac);
+        device.setDeviceServerSocketIP(ip);
+        return device;
+    }
+
+    private static final class RecordingListener implements RpcResponseListener {
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile String result;
+        private volatile RpcError error;
+        private volatile String errorMessage;
+
+        @Override
+        public void onRpcResponse(String result) {
+            this.result = result;
+            completed.countDown();
+        }
+
+        @Override
+        public void onRpcError(RpcError rpcError, String message) {
+            this.error = rpcError;
+            this.errorMessage = message;
+            completed.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return completed.await(1, TimeUnit.SECONDS);
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.abemart.wroup.common.rpc;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    @Test
+    public void expiresTimeoutAfterItsDelay() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        RecordingTimeout timeout = new RecordingTimeout(1);
+
+        long startNanos = System.nanoTime();
+        timingWheel.schedule(timeout, 50);
+
+        assertTrue(timeout.await(1000));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(timeout.expiredNanos - startNanos) >= 45);
+    }
+
+    @Test
+    public void keepsDeadlinesBeyondOneTurnUntilTheirTurn() throws InterruptedException {
+        // A turn of the wheel is 20 ms, so the deadline passes by its slot four times before expiring
+        TimingWheel timingWheel = new TimingWheel(5, 4);
+        RecordingTimeout timeout = new RecordingTimeout(1);
+
+        long startNanos = System.nanoTime();
+        timingWheel.schedule(timeout, 100);
+
+        assertFalse(timeout.await(60));
+        assertEquals(1, timingWheel.size());
+        assertTrue(timeout.await(1000));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(timeout.expiredNanos - startNanos) >= 95);
+    }
+
+    @Test
+    public void expiresTimeoutsInTheOrderOfTheirDeadlines() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 8);
+        final List<Integer> expired = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch allExpired = new CountDownLatch(3);
+        int[] delays = {90, 10, 50};
+        for (final int delay : delays) {
+            timingWheel.schedule(new TimingWheel.Timeout() {
+                @Override
+                void onExpired() {
+                    expired.add(delay);
+                    allExpired.countDown();
+                }
+            }, delay);
+        }
+
+        assertTrue(allExpired.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(10, 50, 90), expired);
+    }
+
+    @Test
+    public void forgetsTheDeadlinesExpired() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 8);
+        RecordingTimeout first = new RecordingTimeout(1);
+        RecordingTimeout second = new RecordingTimeout(1);
+        timingWheel.schedule(first, 0);
+        timingWheel.schedule(second, 20);
+        assertEquals(2, timingWheel.size());
+
+        assertTrue(first.await(1000));
+        assertTrue(second.await(1000));
+        assertEquals(0, timingWheel.size());
+
+        // The wheel starts ticking again for a new deadline
+        RecordingTimeout third = new RecordingTimeout(1);
+        timingWheel.schedule(third, 10);
+        assertTrue(third.await(1000));
+    }
+
+    private static final class RecordingTimeout extends TimingWheel.Timeout {
+
+        private final CountDownLatch expired;
+        private volatile long expiredNanos;
+
+        RecordingTimeout(int expirations) {
+            expired = new CountDownLatch(expirations);
+        }
+
+        @Override
+        void onExpired() {
+            expiredNanos = System.nanoTime();
+            expired.countDown();
+        }
+
+        boolean await(long timeoutMillis) throws InterruptedException {
+            return expired.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.abemart.wroup.common.throttling;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    private final ManualClock clock = new ManualClock();
+
+    @Test
+    public void letsABurstPassAtOnce() {
+        TokenBucket tokenBucket = new TokenBucket(10, 5, clock);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(tokenBucket.tryAcquire(1));
+        }
+        assertFalse(tokenBucket.tryAcquire(1));
+    }
+
+    @Test
+    public void refillsAtItsRate() {
+        TokenBucket tokenBucket = new TokenBucket(10, 5, clock);
+        assertTrue(tokenBucket.tryAcquire(5));
+
+        clock.advanceMillis(99);
+        assertFalse(tokenBucket.tryAcquire(1));
+        clock.advanceMillis(2);
+        assertTrue(tokenBucket.tryAcquire(1));
+        assertFalse(tokenBucket.tryAcquire(1));
+    }
+
+    @Test
+    public void keepsNoMoreTokensThanTheBurst() {
+        TokenBucket tokenBucket = new TokenBucket(10, 5, clock);
+
+        clock.advanceMillis(60 * 1000);
+
+        assertFalse(tokenBucket.tryAcquire(6));
+        assertTrue(tokenBucket.tryAcquire(5));
+        assertFalse(tokenBucket.tryAcquire(1));
+    }
+
+    @Test
+    public void returnsTheTimeToPayTheDebtOfAReservation() {
+        TokenBucket tokenBucket = new TokenBucket(10, 5, clock);
+
+        assertEquals(0, tokenBucket.reserve(5));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), tokenBucket.reserve(1), 1);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(300), tokenBucket.reserve(2), 1);
+    }
+
+    @Test
+    public void refusesTheEventsUntilTheDebtIsPaid() {
+        TokenBucket tokenBucket = new TokenBucket(10, 5, clock);
+        tokenBucket.reserve(7);
+
+        clock.advanceMillis(200);
+        assertFalse(tokenBucket.tryAcquire(1));
+        clock.advanceMillis(110);
+        assertTrue(tokenBucket.tryAcquire(1));
+    }
+
+    @Test
+    public void ignoresAClockWhichGoesBack() {
+        TokenBucket tokenBucket = new TokenBucket(10, 5, clock);
+        assertTrue(tokenBucket.tryAcquire(5));
+
+        clock.advanceMillis(-1000);
+        assertFalse(tokenBucket.tryAcquire(1));
+    }
+
+    private static class ManualClock implements TokenBucket.Clock {
+
+        private long nanos = 1000;
+
+        void advanceMillis(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+
+    }
+
+}
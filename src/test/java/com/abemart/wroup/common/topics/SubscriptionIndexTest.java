@@ -0,0 +1,100 @@
+package com.abemart.wroup.common.topics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SubscriptionIndexTest {
+
+    private final SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+
+    @Test
+    public void findsTheSubscribersOfAnExactTopic() {
+        subscriptionIndex.subscribe("aa:aa", "a/b");
+        subscriptionIndex.subscribe("bb:bb", "a/c");
+
+        assertEquals(set("aa:aa"), subscriptionIndex.getSubscribers("a/b"));
+        assertEquals(set(), subscriptionIndex.getSubscribers("a/b/c"));
+        assertEquals(set(), subscriptionIndex.getSubscribers("a"));
+    }
+
+    @Test
+    public void findsTheSubscribersOfAPrefix() {
+        subscriptionIndex.subscribe("aa:aa", "a/*");
+        subscriptionIndex.subscribe("bb:bb", "a/b");
+
+        assertEquals(set("aa:aa", "bb:bb"), subscriptionIndex.getSubscribers("a/b"));
+        assertEquals(set("aa:aa"), subscriptionIndex.getSubscribers("a/b/c"));
+        assertEquals(set(), subscriptionIndex.getSubscribers("a"));
+        assertEquals(set(), subscriptionIndex.getSubscribers("b/a"));
+    }
+
+    @Test
+    public void matchesEveryTopicWithTheWildcard() {
+        subscriptionIndex.subscribe("aa:aa", "*");
+
+        assertEquals(set("aa:aa"), subscriptionIndex.getSubscribers("a"));
+        assertEquals(set("aa:aa"), subscriptionIndex.getSubscribers("a/b"));
+    }
+
+    @Test
+    public void forgetsTheSubscriptionsRemoved() {
+        subscriptionIndex.subscribe("aa:aa", "a/*");
+        subscriptionIndex.subscribe("aa:aa", "b");
+        subscriptionIndex.subscribe("bb:bb", "b");
+
+        assertTrue(subscriptionIndex.unsubscribe("aa:aa", "a/*"));
+        assertFalse(subscriptionIndex.unsubscribe("aa:aa", "a/*"));
+        assertEquals(set(), subscriptionIndex.getSubscribers("a/b"));
+
+        subscriptionIndex.removeDevice("aa:aa");
+        assertEquals(set("bb:bb"), subscriptionIndex.getSubscribers("b"));
+        assertEquals(set(), subscriptionIndex.getSubscriptions("aa:aa"));
+    }
+
+    @Test
+    public void replacesTheSubscriptionsOfADevice() {
+        subscriptionIndex.subscribe("aa:aa", "a");
+
+        subscriptionIndex.setSubscriptions("aa:aa", Arrays.asList("b", "c/*"));
+
+        assertEquals(set("b", "c/*"), subscriptionIndex.getSubscriptions("aa:aa"));
+        assertEquals(set(), subscriptionIndex.getSubscribers("a"));
+        assertEquals(set("aa:aa"), subscriptionIndex.getSubscribers("c/d"));
+    }
+
+    @Test
+    public void rejectsAWildcardInTheMiddleOfAPattern() {
+        try {
+            subscriptionIndex.subscribe("aa:aa", "a*b");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(set(), subscriptionIndex.getSubscriptions("aa:aa"));
+        }
+    }
+
+    @Test
+    public void keepsTheSubscriptionsWhenAReplacementIsInvalid() {
+        subscriptionIndex.subscribe("aa:aa", "a");
+
+        try {
+            subscriptionIndex.setSubscriptions("aa:aa", Arrays.asList("b", "a*b"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(set("a"), subscriptionIndex.getSubscriptions("aa:aa"));
+            assertEquals(set("aa:aa"), subscriptionIndex.getSubscribers("a"));
+        }
+    }
+
+    private static Set<String> set(String... strings) {
+        return new HashSet<>(Arrays.asList(strings));
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.abemart.wroup.common.transport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class BackoffTest {
+
+    private static final long BASE_MILLIS = 200;
+    private static final long MAX_MILLIS = 5000;
+
+    @Test
+    public void waitsBetweenHalfAndAllOfTheExponentialDelay() {
+        assertDelays(0, 200);
+        assertDelays(1, 400);
+        assertDelays(3, 1600);
+    }
+
+    @Test
+    public void waitsAtMostTheMaximum() {
+        assertDelays(5, MAX_MILLIS);
+        assertDelays(40, MAX_MILLIS);
+        assertDelays(Integer.MAX_VALUE, MAX_MILLIS);
+    }
+
+    @Test
+    public void spreadsTheDelays() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = Backoff.delayMillis(10, BASE_MILLIS, MAX_MILLIS);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        // The devices which fail at once retry at different times
+        assertTrue(max - min > MAX_MILLIS / 4);
+    }
+
+    private static void assertDelays(int attempt, long delayMillis) {
+        for (int i = 0; i < 1000; i++) {
+            long delay = Backoff.delayMillis(attempt, BASE_MILLIS, MAX_MILLIS);
+            assertTrue(delay + " ms for attempt " + attempt, delay >= delayMillis / 2 && delay <= delayMillis);
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.abemart.wroup.common.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    private final BufferPool bufferPool = new BufferPool(1024, 2);
+
+    @Test
+    public void reusesTheBuffersReleased() {
+        ByteBuffer buffer = bufferPool.acquire();
+        buffer.put((byte) 1);
+        bufferPool.release(buffer);
+
+        ByteBuffer reused = bufferPool.acquire();
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1, bufferPool.getAllocations());
+    }
+
+    @Test
+    public void allocatesNewBuffersWhenItIsExhausted() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(1024, bufferPool.acquire().capacity());
+        }
+
+        assertEquals(5, bufferPool.getAllocations());
+    }
+
+    @Test
+    public void keepsOnlyTheMaximumOfBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = bufferPool.acquire();
+        }
+        for (ByteBuffer buffer : buffers) {
+            bufferPool.release(buffer);
+        }
+
+        assertSame(buffers[0], bufferPool.acquire());
+        assertSame(buffers[1], bufferPool.acquire());
+        bufferPool.acquire();
+        assertEquals(4, bufferPool.getAllocations());
+    }
+
+    @Test
+    public void doesNotKeepTheBuffersGrown() {
+        ByteBuffer buffer = bufferPool.acquire();
+        buffer.put(new byte[1024]);
+
+        ByteBuffer grown = bufferPool.grow(buffer);
+        bufferPool.release(grown);
+
+        assertEquals(2048, grown.capacity());
+        assertEquals(1024, grown.position());
+        assertSame(buffer, bufferPool.acquire());
+        assertEquals(1024, bufferPool.acquire().capacity());
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.abemart.wroup.common.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ByteBufferReaderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TEXT = "a\u00f1o \u20ac \ud83d\ude00 end";
+
+    private final ByteBufferReader reader = new ByteBufferReader();
+
+    @Test
+    public void decodesTheCharactersOfEveryLength() {
+        reader.reset(ByteBuffer.wrap(TEXT.getBytes(UTF_8)));
+
+        assertEquals(TEXT, readAll(1024));
+    }
+
+    @Test
+    public void splitsASupplementaryCharacterBetweenTwoReads() {
+        reader.reset(ByteBuffer.wrap(TEXT.getBytes(UTF_8)));
+
+        // Every read takes one char, so the low surrogate is returned by the next one
+        assertEquals(TEXT, readAll(1));
+    }
+
+    @Test
+    public void decodesFromThePositionToTheLimitOfTheBuffer() {
+        byte[] bytes = ("{" + TEXT + "}").getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 2).slice();
+        reader.reset(buffer);
+
+        assertEquals(TEXT, readAll(3));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void replacesACharacterCutByTheEndOfTheBuffer() {
+        byte[] bytes = "a\u20ac".getBytes(UTF_8);
+        reader.reset(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+
+        assertEquals("a\ufffd", readAll(1024));
+    }
+
+    @Test
+    public void replacesTheMalformedSequencesAsAString() {
+        byte[] bytes = {'a', (byte) 0xe2, 'b', (byte) 0xff, 'c'};
+        reader.reset(ByteBuffer.wrap(bytes));
+
+        assertEquals(new String(bytes, UTF_8), readAll(1024));
+    }
+
+    private String readAll(int charsPerRead) {
+        StringBuilder text = new StringBuilder();
+        char[] chars = new char[charsPerRead];
+        int read;
+        while ((read = reader.read(chars, 0, chars.length)) != -1) {
+            text.append(chars, 0, read);
+        }
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.abemart.wroup.common.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ByteBufferWriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void encodesTheCharactersAsAString() {
+        String text = "a\u00f1o \u20ac \ud83d\ude00 end";
+        ByteBufferWriter writer = new ByteBufferWriter(new BufferPool());
+
+        writer.write(text, 0, text.length());
+
+        assertArrayEquals(text.getBytes(UTF_8), bytes(writer.getBuffer()));
+    }
+
+    @Test
+    public void growsTheBufferInTheMiddleOfACharacter() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("\ud83d\ude00\u20ac");
+        }
+        BufferPool bufferPool = new BufferPool(16, 1);
+        ByteBufferWriter writer = new ByteBufferWriter(bufferPool);
+
+        writer.write(text.toString(), 0, text.length());
+
+        assertArrayEquals(text.toString().getBytes(UTF_8), bytes(writer.getBuffer()));
+    }
+
+    @Test
+    public void replacesTheUnpairedSurrogates() {
+        String text = "a\ud83db\ude00c\ud83d";
+        ByteBufferWriter writer = new ByteBufferWriter(new BufferPool());
+
+        writer.write(text, 0, text.length());
+
+        assertEquals("a?b?c?", new String(bytes(writer.getBuffer()), UTF_8));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.abemart.wroup.common.transport;
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class EncodedMessageTest {
+
+    private final BufferPool bufferPool = new BufferPool(1024, 1);
+
+    @Test
+    public void encodesTheHeaderOnceForAllTheRecipients() throws Exception {
+        EncodedMessage encodedMessage = new EncodedMessage(bufferPool, MessageFrameTest.message("hello", null), 3);
+
+        int headerSize = encodedMessage.getHeader().remaining();
+
+        assertEquals(headerSize, encodedMessage.getHeader().remaining());
+        assertEquals(1, bufferPool.getAllocations());
+    }
+
+    @Test
+    public void returnsTheHeaderToThePoolAfterTheLastRecipient() throws Exception {
+        EncodedMessage encodedMessage = new EncodedMessage(bufferPool, MessageFrameTest.message("hello", null), 3);
+        encodedMessage.getHeader();
+
+        encodedMessage.release();
+        encodedMessage.release();
+        // The header is still in use, so the pool is empty
+        bufferPool.acquire();
+        assertEquals(2, bufferPool.getAllocations());
+        assertEquals("hello", new MessageReader().decode(encodedMessage.getHeader()).getMessage());
+
+        encodedMessage.release();
+        bufferPool.acquire();
+        assertEquals(2, bufferPool.getAllocations());
+    }
+
+    @Test
+    public void releasesAMessageNeverEncoded() {
+        EncodedMessage encodedMessage = new EncodedMessage(bufferPool, new MessageWrapper(), 2);
+
+        encodedMessage.release();
+        encodedMessage.release();
+
+        assertEquals(0, bufferPool.getAllocations());
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.abemart.wroup.common.transport;
+
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.tracing.TraceContext;
+import com.abemart.wroup.common.tracing.Tracer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MessageFrameTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MessageReader messageReader = new MessageReader();
+
+    @Test
+    public void decodesTheMessageItBuilds() throws Exception {
+        MessageWrapper message = message("hello", "payload");
+        TraceContext trace = new TraceContext();
+        trace.setTraceId(42);
+
+        MessageWrapper decoded = messageReader.decode(join(build(message, trace)));
+
+        assertEquals(MessageWrapper.MessageType.NORMAL, decoded.getMessageType());
+        assertEquals("hello", decoded.getMessage());
+        assertEquals("payload", text(decoded.getPayload()));
+        assertEquals(42, decoded.getTrace().getTraceId());
+    }
+
+    @Test
+    public void decodesAMessageWithoutPayloadNorTrace() throws Exception {
+        MessageWrapper decoded = messageReader.decode(join(build(message("hello", null), null)));
+
+        assertEquals("hello", decoded.getMessage());
+        assertNull(decoded.getPayload());
+        assertNull(decoded.getTrace());
+    }
+
+    @Test
+    public void keepsThePayloadOfTheSender() throws Exception {
+        MessageWrapper message = message("hello", "payload");
+
+        ByteBuffer[] frame = build(message, null);
+
+        assertEquals(MessageFrame.remaining(frame), join(frame).remaining());
+        assertEquals("payload", text(message.getPayload()));
+    }
+
+    static MessageWrapper message(String content, String payload) {
+        MessageWrapper message = new MessageWrapper();
+        message.setMessageType(MessageWrapper.MessageType.NORMAL);
+        message.setMessage(content);
+        if (payload != null) {
+            message.setPayload(ByteBuffer.wrap(payload.getBytes(UTF_8)));
+        }
+        return message;
+    }
+
+    static ByteBuffer[] build(MessageWrapper message, TraceContext trace) throws Exception {
+        return MessageFrame.build(new EncodedMessage(new BufferPool(), message, 1), trace, new Tracer(false));
+    }
+
+    /**
+     * @return the sections of a frame in one buffer, as the receivers read them.
+     */
+    static ByteBuffer join(ByteBuffer[] frame) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) MessageFrame.remaining(frame));
+        for (ByteBuffer section : frame) {
+            buffer.put(section.duplicate());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String text(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+}
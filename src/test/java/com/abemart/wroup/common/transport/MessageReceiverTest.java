@@ -0,0 +1,165 @@
+package com.abemart.wroup.common.transport;
+
+import com.abemart.wroup.common.listeners.MessageReceivedListener;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MessageReceiverTest {
+
+    private final BlockingQueue<MessageWrapper> received = new LinkedBlockingQueue<>();
+    private final List<Socket> sockets = new ArrayList<>();
+
+    private ServerSocket serverSocket;
+    private MessageReceiver messageReceiver;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+        messageReceiver = new MessageReceiver(serverSocket, new MessageReceivedListener() {
+            @Override
+            public void onMessageReceived(MessageWrapper messageWrapper, InetAddress fromAddress) {
+                received.add(messageWrapper);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        serverSocket.close();
+    }
+
+    @Test
+    public void reassemblesTheChunksOfInterleavedMessagesOfTwoLinks() throws Exception {
+        startReceiving();
+        DataOutputStream first = openLink();
+        DataOutputStream second = openLink();
+        byte[] firstA = frame("a0", 2 * MessageFrame.CHUNK_SIZE);
+        byte[] firstB = frame("a1", MessageFrame.CHUNK_SIZE);
+        byte[] secondA = frame("b0", MessageFrame.CHUNK_SIZE);
+
+        // Both links use the same ids, and the messages of a link finish out of order
+        writeChunk(first, MessageFrame.FIRST_CHUNK, 1, firstB, 0, MessageFrame.CHUNK_SIZE);
+        writeChunk(second, MessageFrame.FIRST_CHUNK, 0, secondA, 0, MessageFrame.CHUNK_SIZE);
+        writeChunk(first, MessageFrame.FIRST_CHUNK, 0, firstA, 0, MessageFrame.CHUNK_SIZE);
+        writeChunk(first, 0, 0, firstA, MessageFrame.CHUNK_SIZE, MessageFrame.CHUNK_SIZE);
+        writeChunk(first, MessageFrame.LAST_CHUNK, 1, firstB, MessageFrame.CHUNK_SIZE, firstB.length - MessageFrame.CHUNK_SIZE);
+        assertReceived("a1", MessageFrame.CHUNK_SIZE);
+
+        writeChunk(second, MessageFrame.LAST_CHUNK, 0, secondA, MessageFrame.CHUNK_SIZE, secondA.length - MessageFrame.CHUNK_SIZE);
+        assertReceived("b0", MessageFrame.CHUNK_SIZE);
+
+        writeChunk(first, MessageFrame.LAST_CHUNK, 0, firstA, 2 * MessageFrame.CHUNK_SIZE, firstA.length - 2 * MessageFrame.CHUNK_SIZE);
+        assertReceived("a0", 2 * MessageFrame.CHUNK_SIZE);
+    }
+
+    @Test
+    public void closesALinkWithTooManyPartialMessages() throws Exception {
+        startReceiving();
+        DataOutputStream link = openLink();
+        byte[] frame = frame("partial", MessageFrame.CHUNK_SIZE);
+
+        for (int messageId = 0; messageId <= MessageReceiver.MAX_PARTIAL_MESSAGES; messageId++) {
+            writeChunk(link, MessageFrame.FIRST_CHUNK, messageId, frame, 0, MessageFrame.CHUNK_SIZE);
+        }
+
+        assertClosed(sockets.get(0));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void closesALinkWithAMessageLargerThanTheMaximum() throws Exception {
+        messageReceiver.setMaxMessageBytes(4 * 1024);
+        startReceiving();
+        DataOutputStream link = openLink();
+        byte[] small = frame("small", 1024);
+        byte[] large = frame("large", 8 * 1024);
+
+        writeChunk(link, MessageFrame.FIRST_CHUNK | MessageFrame.LAST_CHUNK, 0, small, 0, small.length);
+        assertReceived("small", 1024);
+        writeChunk(link, MessageFrame.FIRST_CHUNK | MessageFrame.LAST_CHUNK, 1, large, 0, large.length);
+
+        assertClosed(sockets.get(0));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    private void startReceiving() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    messageReceiver.receive();
+                } catch (IOException e) {
+                    // The server socket has been closed by the test
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private DataOutputStream openLink() throws IOException {
+        Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        socket.setSoTimeout(5000);
+        sockets.add(socket);
+        return new DataOutputStream(socket.getOutputStream());
+    }
+
+    private void assertReceived(String content, int payloadSize) throws InterruptedException {
+        MessageWrapper message = received.poll(5, TimeUnit.SECONDS);
+        assertEquals(content, message.getMessage());
+        assertEquals(payloadSize, message.getPayload().remaining());
+    }
+
+    private static void assertClosed(Socket socket) throws IOException {
+        int read;
+        try {
+            read = socket.getInputStream().read();
+        } catch (SocketException e) {
+            // Reset by the receiver, which has closed it with data unread
+            return;
+        }
+        assertEquals(-1, read);
+    }
+
+    private static byte[] frame(String content, int payloadSize) throws Exception {
+        MessageWrapper message = MessageFrameTest.message(content, null);
+        message.setPayload(ByteBuffer.allocate(payloadSize));
+        ByteBuffer frame = MessageFrameTest.join(MessageFrameTest.build(message, null));
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    private static void writeChunk(DataOutputStream link, int flags, int messageId, byte[] frame, int offset, int length) throws IOException {
+        link.writeByte(MessageFrame.LINK_VERSION);
+        link.writeByte(flags);
+        link.writeByte(MessageChannel.INTERACTIVE.ordinal());
+        link.writeInt(messageId);
+        link.writeInt(length);
+        link.write(frame, offset, length);
+        link.flush();
+    }
+
+}
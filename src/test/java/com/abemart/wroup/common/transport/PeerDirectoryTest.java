@@ -0,0 +1,121 @@
+package com.abemart.wroup.common.transport;
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PeerDirectoryTest {
+
+    private final PeerDirectory peerDirectory = new PeerDirectory();
+
+    @Test
+    public void resolvesTheSenderOfItsId() {
+        WroupDevice device = device("aa:aa");
+        int peerId = peerDirectory.register(device);
+
+        MessageWrapper message = received(peerId);
+
+        assertTrue(peerDirectory.resolveSender(message));
+        assertSame(device, message.getWroupDevice());
+    }
+
+    @Test
+    public void keepsTheIdOfADeviceWhichRegistersAgain() {
+        int peerId = peerDirectory.register(device("aa:aa"));
+        peerDirectory.register(device("bb:bb"));
+        peerDirectory.remove("aa:aa");
+
+        assertEquals(peerId, peerDirectory.register(device("aa:aa")));
+    }
+
+    @Test
+    public void resolvesTheMessagesSentBeforeLeaving() {
+        WroupDevice device = device("aa:aa");
+        int peerId = peerDirectory.register(device);
+        peerDirectory.remove("aa:aa");
+
+        MessageWrapper message = received(peerId);
+
+        assertNull(peerDirectory.get(peerId));
+        assertTrue(peerDirectory.resolveSender(message));
+        assertSame(device, message.getWroupDevice());
+    }
+
+    @Test
+    public void doesNotResolveAnUnknownId() {
+        MessageWrapper message = received(7);
+
+        assertFalse(peerDirectory.resolveSender(message));
+        assertNull(message.getWroupDevice());
+    }
+
+    @Test
+    public void forgetsAllTheDevicesWhenCleared() {
+        int peerId = peerDirectory.register(device("aa:aa"));
+        peerDirectory.remove("aa:aa");
+        peerDirectory.clear();
+
+        assertFalse(peerDirectory.resolveSender(received(peerId)));
+    }
+
+    @Test
+    public void forgetsTheDevicesWhichLeftLongAgo() throws InterruptedException {
+        PeerDirectory peerDirectory = new PeerDirectory(10, PeerDirectory.MAX_DEPARTED_DEVICES);
+        int peerId = peerDirectory.register(device("aa:aa"));
+        peerDirectory.register(device("bb:bb"));
+        peerDirectory.remove("aa:aa");
+
+        Thread.sleep(20);
+        peerDirectory.remove("bb:bb");
+
+        assertFalse(peerDirectory.resolveSender(received(peerId)));
+        assertNotEquals(peerId, peerDirectory.register(device("aa:aa")));
+    }
+
+    @Test
+    public void keepsOnlyTheLastDevicesWhichLeft() {
+        PeerDirectory peerDirectory = new PeerDirectory(PeerDirectory.DEPARTED_TIMEOUT_MILLIS, 2);
+        int[] peerIds = new int[3];
+        for (int i = 0; i < peerIds.length; i++) {
+            peerIds[i] = peerDirectory.register(device("aa:a" + i));
+        }
+
+        for (int i = 0; i < peerIds.length; i++) {
+            peerDirectory.remove("aa:a" + i);
+        }
+
+        assertFalse(peerDirectory.resolveSender(received(peerIds[0])));
+        assertTrue(peerDirectory.resolveSender(received(peerIds[1])));
+        assertTrue(peerDirectory.resolveSender(received(peerIds[2])));
+    }
+
+    @Test
+    public void resolvesTheMessagesWhichCarryTheWholeDevice() {
+        MessageWrapper message = new MessageWrapper();
+        message.setWroupDevice(device("aa:aa"));
+
+        assertTrue(peerDirectory.resolveSender(message));
+    }
+
+    private static WroupDevice device(String deviceMac) {
+        WroupDevice device = new WroupDevice();
+        device.setDeviceMac(deviceMac);
+        return device;
+    }
+
+    private static MessageWrapper received(int senderId) {
+        MessageWrapper message = new MessageWrapper();
+        message.setSender(device("ff:ff"), senderId);
+        message.resolveSender(null);
+        return message;
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.abemart.wroup.common.transport;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PeerHealthTest {
+
+    private final PeerHealth peerHealth = new PeerHealth();
+
+    @Test
+    public void opensTheCircuitAfterConsecutiveFailures() {
+        for (int i = 1; i < PeerHealth.FAILURE_THRESHOLD; i++) {
+            peerHealth.onFailure(false);
+            assertTrue(peerHealth.isAvailable());
+        }
+
+        peerHealth.onFailure(false);
+
+        assertFalse(peerHealth.isAvailable());
+        assertFalse(peerHealth.isHealthy());
+    }
+
+    @Test
+    public void forgetsTheFailuresAfterASuccess() {
+        for (int i = 1; i < PeerHealth.FAILURE_THRESHOLD; i++) {
+            peerHealth.onFailure(false);
+        }
+
+        peerHealth.onSuccess();
+        peerHealth.onFailure(false);
+
+        assertTrue(peerHealth.isAvailable());
+        assertTrue(peerHealth.isHealthy());
+    }
+
+    @Test
+    public void closesTheCircuitWhenTheProbeSucceeds() throws InterruptedException {
+        openCircuit();
+
+        // The first period is at most one second
+        Thread.sleep(1100);
+        assertTrue(peerHealth.isAvailable());
+        assertFalse(peerHealth.isHealthy());
+
+        peerHealth.onSuccess();
+        assertTrue(peerHealth.isHealthy());
+    }
+
+    @Test
+    public void opensTheCircuitAgainWhenTheProbeFails() throws InterruptedException {
+        openCircuit();
+        Thread.sleep(1100);
+
+        peerHealth.onFailure(false);
+
+        assertFalse(peerHealth.isAvailable());
+    }
+
+    @Test
+    public void backsOffTheTimeoutsAfterATimeout() {
+        peerHealth.onConnected(TimeUnit.MILLISECONDS.toNanos(100));
+        long timeoutNanos = peerHealth.ioTimeoutNanos(0);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), peerHealth.getSmoothedRttNanos());
+
+        peerHealth.onFailure(true);
+        peerHealth.onFailure(true);
+
+        assertTrue(peerHealth.ioTimeoutNanos(0) > timeoutNanos);
+        assertTrue(peerHealth.ioTimeoutNanos(1024 * 1024) > peerHealth.ioTimeoutNanos(0));
+    }
+
+    private void openCircuit() {
+        for (int i = 0; i < PeerHealth.FAILURE_THRESHOLD; i++) {
+            peerHealth.onFailure(false);
+        }
+        assertFalse(peerHealth.isAvailable());
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.abemart.wroup.common.transport;
+
+import com.abemart.wroup.common.WroupDevice;
+import com.abemart.wroup.common.messages.MessageWrapper;
+import com.abemart.wroup.common.metrics.WroupMetrics;
+import com.abemart.wroup.common.tracing.Tracer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeerLinkTest {
+
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+    private final ExecutorService peerExecutor = Executors.newSingleThreadExecutor();
+
+    private ServerSocket serverSocket;
+    private PeerLink peerLink;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0);
+        WroupDevice device = new WroupDevice();
+        device.setDeviceServerSocketIP("127.0.0.1");
+        device.setDeviceServerSocketPort(serverSocket.getLocalPort());
+        peerLink = new PeerLink(device, executor, new WroupMetrics(), new Tracer(false), new PeerHealth(), new IoTimer());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        peerLink.close();
+        serverSocket.close();
+        peerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void writesAControlMessageBetweenTheChunksOfABulkOne() throws Exception {
+        Future<List<String>> chunks = readChunks(2);
+        peerLink.enqueue(encode(message(MessageWrapper.MessageType.NORMAL, 8 * MessageFrame.CHUNK_SIZE)), null);
+
+        // The first turn writes some chunks and queues the link again
+        tasks.poll().run();
+        peerLink.enqueue(encode(message(MessageWrapper.MessageType.DISCONNECTION_MESSAGE, 0)), null);
+        runTasks();
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < PeerLink.TURN_CHUNKS; i++) {
+            expected.add(i == 0 ? "BULK 0 first" : "BULK 0");
+        }
+        expected.add("CONTROL 1 first last");
+        for (int i = PeerLink.TURN_CHUNKS; i < 8; i++) {
+            expected.add("BULK 0");
+        }
+        expected.add("BULK 0 last");
+        assertEquals(expected, chunks.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void writesTheControlMessagesBeforeTheDataQueuedEarlier() throws Exception {
+        Future<List<String>> chunks = readChunks(3);
+        peerLink.enqueue(encode(message(MessageWrapper.MessageType.NORMAL, 0)), null);
+        peerLink.enqueue(encode(message(MessageWrapper.MessageType.NORMAL, 2 * MessageFrame.CHUNK_SIZE)), null);
+        peerLink.enqueue(encode(message(MessageWrapper.MessageType.CONNECTION_MESSAGE, 0)), null);
+        runTasks();
+
+        List<String> received = chunks.get(10, TimeUnit.SECONDS);
+        assertEquals("CONTROL 0 first last", received.get(0));
+        assertTrue(received.contains("INTERACTIVE 1 first last"));
+        assertEquals("BULK 2 last", received.get(received.size() - 1));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Read the chunks written by the link until some messages have been completed.
+     *
+     * @return the channel, the id and the flags of every chunk.
+     */
+    private Future<List<String>> readChunks(final int messages) {
+        return peerExecutor.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                List<String> chunks = new ArrayList<>();
+                Socket socket = serverSocket.accept();
+                try {
+                    DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                    int completed = 0;
+                    while (completed < messages) {
+                        assertEquals(MessageFrame.LINK_VERSION, inputStream.readUnsignedByte());
+                        int flags = inputStream.readUnsignedByte();
+                        int channel = inputStream.readUnsignedByte();
+                        int messageId = inputStream.readInt();
+                        inputStream.readFully(new byte[inputStream.readInt()]);
+
+                        String chunk = MessageChannel.values()[channel] + " " + messageId;
+                        if ((flags & MessageFrame.FIRST_CHUNK) != 0) {
+                            chunk += " first";
+                        }
+                        if ((flags & MessageFrame.LAST_CHUNK) != 0) {
+                            chunk += " last";
+                            completed++;
+                        }
+                        chunks.add(chunk);
+                    }
+                } finally {
+                    socket.close();
+                }
+                return chunks;
+            }
+        });
+    }
+
+    private static MessageWrapper message(MessageWrapper.MessageType messageType, int payloadSize) {
+        MessageWrapper message = new MessageWrapper();
+        message.setMessageType(messageType);
+        message.setMessage("message");
+        if (payloadSize > 0) {
+            byte[] payload = new byte[payloadSize];
+            Arrays.fill(payload, (byte) 1);
+            message.setPayload(ByteBuffer.wrap(payload));
+        }
+        return message;
+    }
+
+    private static EncodedMessage encode(MessageWrapper message) {
+        return new EncodedMessage(new BufferPool(), message, 1);
+    }
+
+}
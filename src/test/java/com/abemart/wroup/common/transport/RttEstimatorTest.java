@@ -0,0 +1,87 @@
+package com.abemart.wroup.common.transport;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RttEstimatorTest {
+
+    private final RttEstimator rttEstimator = new RttEstimator();
+
+    @Test
+    public void startsWithTheInitialTimeout() {
+        assertEquals(-1, rttEstimator.getSmoothedNanos());
+        assertEquals(RttEstimator.INITIAL_RTO_NANOS, rttEstimator.getRtoNanos());
+    }
+
+    @Test
+    public void takesTheFirstSampleAsTheSmoothedTime() {
+        rttEstimator.onSample(millis(100));
+
+        assertEquals(millis(100), rttEstimator.getSmoothedNanos());
+        // RTO = SRTT + 4 * RTTVAR, with RTTVAR = R / 2
+        assertEquals(millis(300), rttEstimator.getRtoNanos());
+    }
+
+    @Test
+    public void smoothsTheNextSamples() {
+        rttEstimator.onSample(millis(100));
+        rttEstimator.onSample(millis(200));
+
+        // RTTVAR = 3/4 * 50 + 1/4 * 100, SRTT = 7/8 * 100 + 1/8 * 200
+        assertEquals(micros(112500), rttEstimator.getSmoothedNanos());
+        assertEquals(micros(112500 + 4 * 62500), rttEstimator.getRtoNanos());
+    }
+
+    @Test
+    public void ignoresTheNegativeSamples() {
+        rttEstimator.onSample(-1);
+
+        assertEquals(-1, rttEstimator.getSmoothedNanos());
+        assertEquals(RttEstimator.INITIAL_RTO_NANOS, rttEstimator.getRtoNanos());
+    }
+
+    @Test
+    public void clampsTheTimeout() {
+        rttEstimator.onSample(millis(1));
+        assertEquals(RttEstimator.MIN_RTO_NANOS, rttEstimator.getRtoNanos());
+
+        RttEstimator slowEstimator = new RttEstimator();
+        slowEstimator.onSample(millis(5000));
+        assertEquals(RttEstimator.MAX_RTO_NANOS, slowEstimator.getRtoNanos());
+    }
+
+    @Test
+    public void doublesTheTimeoutUntilTheMaximum() {
+        rttEstimator.onTimeout();
+        assertEquals(2 * RttEstimator.INITIAL_RTO_NANOS, rttEstimator.getRtoNanos());
+        rttEstimator.onTimeout();
+        assertEquals(4 * RttEstimator.INITIAL_RTO_NANOS, rttEstimator.getRtoNanos());
+
+        for (int i = 0; i < 10; i++) {
+            rttEstimator.onTimeout();
+        }
+        assertEquals(RttEstimator.MAX_RTO_NANOS, rttEstimator.getRtoNanos());
+    }
+
+    @Test
+    public void resetsTheBackoffWithANewSample() {
+        rttEstimator.onTimeout();
+        rttEstimator.onTimeout();
+
+        rttEstimator.onSample(millis(100));
+
+        assertEquals(millis(300), rttEstimator.getRtoNanos());
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static long micros(long micros) {
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+}